@@ -16,8 +16,10 @@
  */
 package org.lisapark.koctopus.processors;
 
+import com.google.gson.Gson;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.lisapark.koctopus.processors.transport.RedisConnections;
 import org.lisapark.koctopus.repo.KosCache;
 import static spark.Spark.*;
 
@@ -39,12 +41,22 @@ public class ComputeService {
             _port = Integer.valueOf(args[0]);
         }
         port(_port);
+        
+        // Redis clients are shared by all runs and live as long as the service
+        RedisConnections.keepAlive();
+        Runtime.getRuntime().addShutdownHook(new Thread(RedisConnections::shutdown));
           
         get(endPoint + "health", (req, res) -> {
             LOG.log(Level.INFO, "{0}:{1}", new Object[]{endPoint, "health"});
             return new LivenessCheck().check(req, res);
         });
         
+        get(endPoint + "redis", (req, res) -> {
+            LOG.log(Level.INFO, "{0}:{1}", new Object[]{endPoint, "redis"});
+            res.type("application/json;charset=utf8");
+            return new Gson().toJson(RedisConnections.metrics());
+        });
+        
         // Map requests
         post(endPoint + "compute", (req, res) -> {
             LOG.log(Level.INFO, "{0}:{1}", new Object[]{endPoint, "processors"});
@@ -0,0 +1,244 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Collection;
+import org.lisapark.koctopus.core.memory.Memory;
+
+/**
+ * Circular buffer of primitive doubles. Same behaviour as
+ * HeapCircularBuffer&lt;Double&gt;, but values are not boxed and can be read
+ * by index without copying: get(0) is the oldest value, get(size() - 1) the
+ * newest.
+ *
+ * Values are kept in a {@link DoubleStorage}, on the heap unless the buffer
+ * is created on another one.
+ *
+ * @author alexmy
+ */
+public class DoubleCircularBuffer implements Memory<Double>, Snapshottable {
+
+    private DoubleStorage values;
+    private int size;
+    private int next;
+
+    public DoubleCircularBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity should be greater than 0.");
+        }
+        this.values = DoubleStorage.onHeap(capacity);
+    }
+
+    /**
+     * Creates an empty buffer on a storage, its length is the capacity.
+     *
+     * @param storage
+     */
+    public DoubleCircularBuffer(DoubleStorage storage) {
+        this.values = storage;
+    }
+
+    /**
+     * Adds a value, overwriting the oldest one if the buffer is full.
+     *
+     * @param value
+     */
+    public void add(double value) {
+        values.set(next, value);
+        next = next + 1 == values.length() ? 0 : next + 1;
+        if (size < values.length()) {
+            size++;
+        }
+    }
+
+    /**
+     *
+     * @param index 0 - the oldest value
+     * @return value
+     */
+    public double get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        int i = next - size + index;
+        return values.get(i < 0 ? i + values.length() : i);
+    }
+
+    /**
+     *
+     * @return value that will be overwritten by the next add, valid only if
+     * the buffer is full
+     */
+    public double getOldest() {
+        return get(0);
+    }
+
+    public double getLatest() {
+        return get(size - 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return values.length();
+    }
+
+    public boolean isFull() {
+        return size == values.length();
+    }
+
+    public void clear() {
+        size = 0;
+        next = 0;
+    }
+
+    /**
+     * Releases the storage, e.g. deletes the file of a mapped one. The buffer
+     * is not used afterwards.
+     */
+    public void release() {
+        values.release();
+    }
+
+    /**
+     * Drops the oldest value.
+     */
+    public void removeOldest() {
+        if (size == 0) {
+            throw new IndexOutOfBoundsException("Buffer is empty.");
+        }
+        size--;
+    }
+
+    /**
+     * Grows the buffer, keeping its values. Used by duration based windows
+     * whose length is not known in advance.
+     *
+     * @param minCapacity
+     */
+    public void ensureCapacity(int minCapacity) {
+        int capacity = values.length();
+        if (minCapacity <= capacity) {
+            return;
+        }
+        if (next == 0) {
+            next = capacity;
+        }
+        values = values.grow(minCapacity);
+        int head = next - size;
+        if (head < 0) {
+            // wrapped, move the older part to the end of the grown storage
+            int shift = minCapacity - capacity;
+            for (int i = capacity - 1; i >= head + capacity; i--) {
+                values.set(i + shift, values.get(i));
+            }
+        }
+    }
+
+    /**
+     * Writes the values, oldest first.
+     */
+    @Override
+    public void writeState(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeDouble(get(i));
+        }
+    }
+
+    /**
+     * Adds the values again, so subclasses rebuild what they derive from
+     * them.
+     */
+    @Override
+    public void readState(DataInput in) throws IOException {
+        clear();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Wrong number of values: " + count);
+        }
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            add(in.readDouble());
+        }
+    }
+
+    @Override
+    public void add(Double value) {
+        if (value != null) {
+            add(value.doubleValue());
+        }
+    }
+
+    /**
+     * Removes the first (oldest) occurrence of a value, O(capacity).
+     *
+     * @param value
+     * @return true if the value was found
+     */
+    @Override
+    public boolean remove(Double value) {
+        if (value == null) {
+            return false;
+        }
+        for (int index = 0; index < size; index++) {
+            if (Double.compare(get(index), value) == 0) {
+                double[] rest = new double[size - index - 1];
+                for (int j = 0; j < rest.length; j++) {
+                    rest[j] = get(index + 1 + j);
+                }
+                next = next - (size - index);
+                if (next < 0) {
+                    next += values.length();
+                }
+                size = index;
+                for (double v : rest) {
+                    add(v);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read-only view, oldest value first. Boxes values on access, prefer
+     * {@link #get(int)}.
+     *
+     * @return values
+     */
+    @Override
+    public Collection<Double> values() {
+        return new AbstractList<Double>() {
+            @Override
+            public Double get(int index) {
+                return DoubleCircularBuffer.this.get(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
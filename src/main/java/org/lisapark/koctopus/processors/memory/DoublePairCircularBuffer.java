@@ -0,0 +1,258 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Collection;
+import org.lisapark.koctopus.core.memory.Memory;
+import org.lisapark.koctopus.util.Pair;
+
+/**
+ * Circular buffer of pairs of primitive doubles, kept side by side in one
+ * {@link DoubleStorage} (on the heap unless the buffer is created on another
+ * one). Replaces HeapCircularBuffer&lt;Pair&lt;Double, Double&gt;&gt; in
+ * two-input processors: getFirst(i) / getSecond(i) read the i-th pair
+ * (0 - the oldest) without boxing or copying.
+ *
+ * @author alexmy
+ */
+public class DoublePairCircularBuffer implements Memory<Pair<Double, Double>>, Snapshottable {
+
+    private DoubleStorage values;
+    private int capacity;
+    private int size;
+    private int next;
+
+    public DoublePairCircularBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity should be greater than 0.");
+        }
+        this.values = DoubleStorage.onHeap(2 * capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * Creates an empty buffer on a storage, half of its length is the
+     * capacity.
+     *
+     * @param storage
+     */
+    public DoublePairCircularBuffer(DoubleStorage storage) {
+        if (storage.length() < 2) {
+            throw new IllegalArgumentException("Storage should hold at least one pair.");
+        }
+        this.values = storage;
+        this.capacity = storage.length() / 2;
+    }
+
+    /**
+     * Adds a pair, overwriting the oldest one if the buffer is full.
+     *
+     * @param firstValue
+     * @param secondValue
+     */
+    public void add(double firstValue, double secondValue) {
+        values.set(2 * next, firstValue);
+        values.set(2 * next + 1, secondValue);
+        next = next + 1 == capacity ? 0 : next + 1;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    private int position(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        int i = next - size + index;
+        return i < 0 ? i + capacity : i;
+    }
+
+    /**
+     *
+     * @param index 0 - the oldest pair
+     * @return first value of the pair
+     */
+    public double getFirst(int index) {
+        return values.get(2 * position(index));
+    }
+
+    /**
+     *
+     * @param index 0 - the oldest pair
+     * @return second value of the pair
+     */
+    public double getSecond(int index) {
+        return values.get(2 * position(index) + 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public void clear() {
+        size = 0;
+        next = 0;
+    }
+
+    /**
+     * Releases the storage, e.g. deletes the file of a mapped one. The buffer
+     * is not used afterwards.
+     */
+    public void release() {
+        values.release();
+    }
+
+    /**
+     * Drops the oldest pair.
+     */
+    public void removeOldest() {
+        if (size == 0) {
+            throw new IndexOutOfBoundsException("Buffer is empty.");
+        }
+        size--;
+    }
+
+    /**
+     * Grows the buffer, keeping its pairs. Used by duration based windows
+     * whose length is not known in advance.
+     *
+     * @param minCapacity
+     */
+    public void ensureCapacity(int minCapacity) {
+        if (minCapacity <= capacity) {
+            return;
+        }
+        if (next == 0) {
+            next = capacity;
+        }
+        values = values.grow(2 * minCapacity);
+        int head = next - size;
+        if (head < 0) {
+            // wrapped, move the older pairs to the end of the grown storage
+            int shift = 2 * (minCapacity - capacity);
+            for (int i = 2 * capacity - 1; i >= 2 * (head + capacity); i--) {
+                values.set(i + shift, values.get(i));
+            }
+        }
+        capacity = minCapacity;
+    }
+
+    /**
+     * Writes the pairs, oldest first.
+     */
+    @Override
+    public void writeState(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeDouble(getFirst(i));
+            out.writeDouble(getSecond(i));
+        }
+    }
+
+    /**
+     * Adds the pairs again, so subclasses rebuild what they derive from
+     * them.
+     */
+    @Override
+    public void readState(DataInput in) throws IOException {
+        clear();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Wrong number of pairs: " + count);
+        }
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            double x = in.readDouble();
+            add(x, in.readDouble());
+        }
+    }
+
+    @Override
+    public void add(Pair<Double, Double> pair) {
+        if (pair != null && pair.getFirst() != null && pair.getSecond() != null) {
+            add(pair.getFirst(), pair.getSecond());
+        }
+    }
+
+    /**
+     * Removes the first (oldest) equal pair, O(capacity).
+     *
+     * @param pair
+     * @return true if the pair was found
+     */
+    @Override
+    public boolean remove(Pair<Double, Double> pair) {
+        if (pair == null || pair.getFirst() == null || pair.getSecond() == null) {
+            return false;
+        }
+        for (int index = 0; index < size; index++) {
+            if (Double.compare(getFirst(index), pair.getFirst()) == 0
+                    && Double.compare(getSecond(index), pair.getSecond()) == 0) {
+                int count = size - index - 1;
+                double[] restFirst = new double[count];
+                double[] restSecond = new double[count];
+                for (int j = 0; j < count; j++) {
+                    restFirst[j] = getFirst(index + 1 + j);
+                    restSecond[j] = getSecond(index + 1 + j);
+                }
+                next = next - (size - index);
+                if (next < 0) {
+                    next += capacity;
+                }
+                size = index;
+                for (int j = 0; j < count; j++) {
+                    add(restFirst[j], restSecond[j]);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read-only view, oldest pair first. Creates a Pair on every access,
+     * prefer {@link #getFirst(int)} and {@link #getSecond(int)}.
+     *
+     * @return pairs
+     */
+    @Override
+    public Collection<Pair<Double, Double>> values() {
+        return new AbstractList<Pair<Double, Double>>() {
+            @Override
+            public Pair<Double, Double> get(int index) {
+                return new Pair<>(getFirst(index), getSecond(index));
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -0,0 +1,229 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Fixed length block of primitive doubles behind the circular buffers. A
+ * buffer of records that are several doubles wide (pairs) keeps them side by
+ * side, so one storage holds the whole window.
+ *
+ * Windows are kept on the heap by default. A direct storage lives outside of
+ * the garbage collected heap, so windows of tens of millions of points do not
+ * inflate the heap and GC pauses. A mapped storage is a memory mapped file:
+ * it is paged by the OS, may be larger than the free memory and keeps the
+ * window with its cursor in the file, so a buffer created on it with reuse
+ * continues with the same values.
+ *
+ * One storage can not hold more than Integer.MAX_VALUE bytes.
+ *
+ * @author alexmy
+ */
+public abstract class DoubleStorage {
+
+    /**
+     * Number of doubles.
+     *
+     * @return length
+     */
+    public abstract int length();
+
+    public abstract double get(int index);
+
+    public abstract void set(int index, double value);
+
+    /**
+     * Creates a longer storage of the same kind, values keep their indexes.
+     * The storage it is called on is not used afterwards.
+     *
+     * @param length new length
+     * @return grown storage
+     */
+    public abstract DoubleStorage grow(int length);
+
+    /**
+     * Gives up the storage, it is not used afterwards. A mapped storage
+     * deletes its file; the mapping itself is unmapped when the storage is
+     * garbage collected.
+     */
+    public void release() {
+    }
+
+    public static DoubleStorage onHeap(int length) {
+        return new Heap(new double[checkLength(length)]);
+    }
+
+    public static DoubleStorage direct(int length) {
+        checkLength(length);
+        return new Direct(allocate(length));
+    }
+
+    /**
+     * Maps the file, creating it or dropping what an earlier run left in it.
+     *
+     * @param file
+     * @param length number of doubles
+     * @return mapped storage
+     * @throws IOException
+     */
+    public static DoubleStorage mapped(File file, int length) throws IOException {
+        return new Mapped(file, checkLength(length), true);
+    }
+
+    private static int checkLength(int length) {
+        if (length < 1 || length > Integer.MAX_VALUE / Double.BYTES) {
+            throw new IllegalArgumentException("Storage length should be in 1.."
+                    + Integer.MAX_VALUE / Double.BYTES + ": " + length);
+        }
+        return length;
+    }
+
+    private static DoubleBuffer allocate(int length) {
+        return ByteBuffer.allocateDirect(length * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    private static final class Heap extends DoubleStorage {
+
+        private final double[] values;
+
+        Heap(double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public int length() {
+            return values.length;
+        }
+
+        @Override
+        public double get(int index) {
+            return values[index];
+        }
+
+        @Override
+        public void set(int index, double value) {
+            values[index] = value;
+        }
+
+        @Override
+        public DoubleStorage grow(int length) {
+            return new Heap(Arrays.copyOf(values, checkLength(length)));
+        }
+    }
+
+    private static final class Direct extends DoubleStorage {
+
+        private final DoubleBuffer values;
+
+        Direct(DoubleBuffer values) {
+            this.values = values;
+        }
+
+        @Override
+        public int length() {
+            return values.capacity();
+        }
+
+        @Override
+        public double get(int index) {
+            return values.get(index);
+        }
+
+        @Override
+        public void set(int index, double value) {
+            values.put(index, value);
+        }
+
+        @Override
+        public DoubleStorage grow(int length) {
+            DoubleBuffer grown = allocate(checkLength(length));
+            values.rewind();
+            grown.put(values);
+            return new Direct(grown);
+        }
+    }
+
+    /**
+     * File layout: the doubles in the native byte order.
+     */
+    private static final class Mapped extends DoubleStorage {
+
+        private final File file;
+        private final DoubleBuffer values;
+
+        /**
+         *
+         * @param file
+         * @param length number of doubles
+         * @param truncate true - drop the old content, false - keep it, e.g.
+         * when the storage grows
+         */
+        Mapped(File file, int length, boolean truncate) throws IOException {
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    FileChannel channel = raf.getChannel()) {
+                if (truncate) {
+                    raf.setLength(0);
+                }
+                // the mapping stays valid after the channel is closed
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) length * Double.BYTES);
+                values = buffer.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            }
+        }
+
+        @Override
+        public int length() {
+            return values.capacity();
+        }
+
+        @Override
+        public double get(int index) {
+            return values.get(index);
+        }
+
+        @Override
+        public void set(int index, double value) {
+            values.put(index, value);
+        }
+
+        @Override
+        public DoubleStorage grow(int length) {
+            try {
+                return new Mapped(file, checkLength(length), false);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Can not grow " + file + ": " + ex.getMessage(), ex);
+            }
+        }
+
+        @Override
+        public void release() {
+            if (!file.delete() && file.exists()) {
+                // e.g. a file system that does not delete mapped files
+                file.deleteOnExit();
+            }
+        }
+    }
+}
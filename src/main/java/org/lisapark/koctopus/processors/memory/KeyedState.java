@@ -0,0 +1,262 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Per-key state of a processor that groups a multiplexed stream by a key
+ * attribute, e.g. one moving average window per instrument.
+ *
+ * Open addressing hash table with linear probing over parallel arrays: keys,
+ * their cached hashes, states and last access times, so a lookup is a
+ * primitive hash compare and usually a single equals. Deletes shift the
+ * following entries back instead of leaving tombstones.
+ *
+ * With an idle TTL, keys not seen for ttl milliseconds are dropped. The table
+ * is swept at most once per ttl, so the cost stays O(1) amortized. Not
+ * thread safe.
+ *
+ * Snapshots write every key with its last access time and state; the
+ * states have to be {@link Snapshottable}.
+ *
+ * States that hold resources, e.g. mapped window files, are passed to the
+ * onDrop callback when their key expires, when they are replaced by a
+ * snapshot and on {@link #clear()}.
+ *
+ * @param <S> state type
+ * @author alexmy
+ */
+public final class KeyedState<S> implements Snapshottable {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private final Supplier<S> factory;
+    private final long idleTtl;
+    private final Consumer<? super S> onDrop;
+
+    private String[] keys;
+    private int[] hashes;
+    private Object[] states;
+    private long[] accessed;
+    private int size;
+    private long lastSweep = Long.MIN_VALUE;
+
+    /**
+     *
+     * @param factory creates the state of a new key
+     * @param idleTtl milliseconds a key may stay unused, 0 - keys are never
+     * dropped
+     */
+    public KeyedState(Supplier<S> factory, long idleTtl) {
+        this(factory, idleTtl, state -> {
+        });
+    }
+
+    /**
+     *
+     * @param factory creates the state of a new key
+     * @param idleTtl milliseconds a key may stay unused, 0 - keys are never
+     * dropped
+     * @param onDrop releases the state of a dropped key
+     */
+    public KeyedState(Supplier<S> factory, long idleTtl, Consumer<? super S> onDrop) {
+        this.factory = factory;
+        this.idleTtl = idleTtl;
+        this.onDrop = onDrop;
+        allocate(16);
+    }
+
+    private void allocate(int capacity) {
+        keys = new String[capacity];
+        hashes = new int[capacity];
+        states = new Object[capacity];
+        accessed = new long[capacity];
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * State of a key, created on the first access.
+     *
+     * @param key
+     * @param now current time in milliseconds, event or wall clock time
+     * @return state
+     */
+    public S get(String key, long now) {
+        if (lastSweep == Long.MIN_VALUE) {
+            // now - MIN_VALUE would overflow, the first sweep is due a ttl later
+            lastSweep = now;
+        } else if (idleTtl > 0 && now - lastSweep >= idleTtl) {
+            expire(now);
+        }
+        return lookup(key, now);
+    }
+
+    @SuppressWarnings("unchecked")
+    private S lookup(String key, long now) {
+        int h = hash(key);
+        int mask = keys.length - 1;
+        int i = h & mask;
+        while (keys[i] != null) {
+            if (hashes[i] == h && keys[i].equals(key)) {
+                accessed[i] = now;
+                return (S) states[i];
+            }
+            i = (i + 1) & mask;
+        }
+        S state = factory.get();
+        keys[i] = key;
+        hashes[i] = h;
+        states[i] = state;
+        accessed[i] = now;
+        if (++size > keys.length * LOAD_FACTOR) {
+            rehash(keys.length * 2);
+        }
+        return state;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Drops the keys not accessed since now - idleTtl.
+     *
+     * @param now
+     * @return number of dropped keys
+     */
+    public int expire(long now) {
+        lastSweep = now;
+        if (idleTtl <= 0 || size == 0) {
+            return 0;
+        }
+        int dropped = 0;
+        int i = 0;
+        while (i < keys.length) {
+            if (keys[i] != null && now - accessed[i] >= idleTtl) {
+                delete(i);
+                dropped++;
+                // the slot got the next entry of the cluster, check it again
+            } else {
+                i++;
+            }
+        }
+        return dropped;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void delete(int slot) {
+        onDrop.accept((S) states[slot]);
+        int mask = keys.length - 1;
+        int gap = slot;
+        int i = (slot + 1) & mask;
+        while (keys[i] != null) {
+            int home = hashes[i] & mask;
+            // move the entry into the gap if the gap lies on its probe path
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                move(i, gap);
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[gap] = null;
+        states[gap] = null;
+        size--;
+    }
+
+    private void move(int from, int to) {
+        keys[to] = keys[from];
+        hashes[to] = hashes[from];
+        states[to] = states[from];
+        accessed[to] = accessed[from];
+    }
+
+    private void rehash(int capacity) {
+        String[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        Object[] oldStates = states;
+        long[] oldAccessed = accessed;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = oldHashes[j] & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                hashes[i] = oldHashes[j];
+                states[i] = oldStates[j];
+                accessed[i] = oldAccessed[j];
+            }
+        }
+    }
+
+    /**
+     * Drops all keys, their states are passed to onDrop.
+     */
+    @SuppressWarnings("unchecked")
+    public void clear() {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                onDrop.accept((S) states[i]);
+            }
+        }
+        Arrays.fill(keys, null);
+        Arrays.fill(states, null);
+        size = 0;
+    }
+
+    @Override
+    public void writeState(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                out.writeUTF(keys[i]);
+                out.writeLong(accessed[i]);
+                ((Snapshottable) states[i]).writeState(out);
+            }
+        }
+    }
+
+    /**
+     * Replaces all keys with the snapshot ones, their states are created by
+     * the factory and then read.
+     */
+    @Override
+    public void readState(DataInput in) throws IOException {
+        clear();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Wrong number of keys: " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            long time = in.readLong();
+            ((Snapshottable) lookup(key, time)).readState(in);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Collections;
+import org.lisapark.koctopus.core.memory.Memory;
+import org.lisapark.koctopus.core.memory.MemoryProvider;
+import org.lisapark.koctopus.core.memory.heap.HeapCircularBuffer;
+import org.lisapark.koctopus.util.Pair;
+
+/**
+ * {@link MemoryProvider} that puts windows in direct or memory mapped
+ * {@link DoubleStorage}s, so very large windows stay out of the garbage
+ * collected heap. Storages hold fixed width records of primitive doubles,
+ * e.g. width 2 for a {@link DoublePairCircularBuffer}.
+ *
+ * Mapped files are k-octopus-&lt;prefix&gt;-&lt;name&gt;.window in the
+ * directory set by the koctopus.memory.dir system property (java.io.tmpdir
+ * by default). They are scratch space: a new storage starts empty and
+ * {@link DoubleStorage#release()} deletes the file, window state survives a
+ * restart through snapshots only.
+ *
+ * The storage of a processor left empty is the one set by the
+ * koctopus.memory.storage system property, heap by default.
+ *
+ * @author alexmy
+ */
+public class OffHeapMemoryProvider implements MemoryProvider {
+
+    public static final String HEAP = "heap";
+    public static final String DIRECT = "direct";
+    public static final String MAPPED = "mapped";
+
+    public static final String DIR_PROPERTY = "koctopus.memory.dir";
+    public static final String STORAGE_PROPERTY = "koctopus.memory.storage";
+
+    private final String storage;
+    private final String prefix;
+    private int buffers;
+
+    /**
+     *
+     * @param storage heap, direct or mapped, null or empty - the
+     * koctopus.memory.storage default
+     * @param prefix file name prefix of mapped storages, e.g. processor UUID
+     */
+    public OffHeapMemoryProvider(String storage, String prefix) {
+        if (storage == null || storage.isEmpty()) {
+            storage = System.getProperty(STORAGE_PROPERTY, HEAP);
+        }
+        if (!HEAP.equalsIgnoreCase(storage) && !DIRECT.equalsIgnoreCase(storage)
+                && !MAPPED.equalsIgnoreCase(storage)) {
+            throw new IllegalArgumentException("Unknown window storage: " + storage);
+        }
+        this.storage = storage.toLowerCase();
+        this.prefix = prefix;
+    }
+
+    public String getStorage() {
+        return storage;
+    }
+
+    /**
+     * Creates a storage for records.
+     *
+     * @param name unique name of the window, part of the mapped file name
+     * @param capacity number of records
+     * @param width number of doubles in a record
+     * @return storage, has to be released when the window is dropped
+     */
+    public DoubleStorage createStorage(String name, int capacity, int width) {
+        if ((long) capacity * width > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Window is too large: " + capacity + " x " + width);
+        }
+        int length = capacity * width;
+        switch (storage) {
+            case DIRECT:
+                return DoubleStorage.direct(length);
+            case MAPPED:
+                File file = new File(System.getProperty(DIR_PROPERTY, System.getProperty("java.io.tmpdir")),
+                        "k-octopus-" + prefix + "-" + fileName(name) + ".window");
+                try {
+                    return DoubleStorage.mapped(file, length);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException("Can not map " + file, ex);
+                }
+            default:
+                return DoubleStorage.onHeap(length);
+        }
+    }
+
+    /**
+     * Names are keys of the stream, only safe characters are kept and the
+     * hash keeps different names apart.
+     */
+    private static String fileName(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(name.hashCode());
+    }
+
+    /**
+     * Creates a circular buffer whose element type is decided by the first
+     * added value: Doubles go to a {@link DoubleCircularBuffer}, pairs of
+     * Doubles to a {@link DoublePairCircularBuffer}, anything else stays on
+     * the heap.
+     *
+     * @param <T> element type
+     * @param n capacity
+     * @return buffer
+     */
+    @Override
+    public synchronized <T> Memory<T> createCircularBuffer(int n) {
+        return new TypedBuffer<>("buffer-" + buffers++, n);
+    }
+
+    private static boolean isDoublePair(Object value) {
+        return value instanceof Pair && ((Pair) value).getFirst() instanceof Double
+                && ((Pair) value).getSecond() instanceof Double;
+    }
+
+    private final class TypedBuffer<T> implements Memory<T> {
+
+        private final String name;
+        private final int capacity;
+        private Memory<Object> memory;
+        private int width;
+
+        TypedBuffer(String name, int capacity) {
+            this.name = name;
+            this.capacity = capacity;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void add(T value) {
+            if (memory == null) {
+                if (value instanceof Double) {
+                    width = 1;
+                    memory = (Memory) new DoubleCircularBuffer(createStorage(name, capacity, 1));
+                } else if (isDoublePair(value)) {
+                    width = 2;
+                    memory = (Memory) new DoublePairCircularBuffer(createStorage(name, capacity, 2));
+                } else {
+                    memory = new HeapCircularBuffer<>(capacity);
+                }
+            } else if (width == 1 && !(value instanceof Double) || width == 2 && !isDoublePair(value)) {
+                throw new IllegalArgumentException("Buffer " + name + " holds "
+                        + (width == 1 ? "Double" : "Pair<Double, Double>") + " values, not " + value);
+            }
+            memory.add(value);
+        }
+
+        @Override
+        public boolean remove(T value) {
+            return memory != null && memory.remove(value);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Collection<T> values() {
+            return memory == null ? Collections.emptyList() : (Collection<T>) memory.values();
+        }
+    }
+}
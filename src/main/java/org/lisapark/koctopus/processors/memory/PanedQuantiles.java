@@ -0,0 +1,228 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.util.Collection;
+import java.util.Collections;
+import org.lisapark.koctopus.core.memory.Memory;
+
+/**
+ * Sliding window of quantile sketches. The window is split into panes, each
+ * with its own {@link QuantileSketch}; when the newest pane is full the
+ * oldest one is cleared and reused, and quantiles are read from the merge of
+ * all panes. Memory is bounded by panes * sketch size whatever the number of
+ * values, at the cost of a window that slides one pane at a time.
+ *
+ * Panes are sized either in values (count window: length / panes values per
+ * pane) or in milliseconds of event time (duration / panes). Time panes are
+ * aligned to multiples of the pane duration; a late value goes to its own
+ * pane while that pane is still in the window and is dropped after.
+ *
+ * @author alexmy
+ */
+public class PanedQuantiles implements Memory<Double> {
+
+    private final QuantileSketch[] panes;
+    private final QuantileSketch merged;
+    private final boolean timed;
+    /**
+     * Values or milliseconds per pane
+     */
+    private final long paneSpan;
+
+    private int current;
+    /**
+     * Count window: values in the current pane, time window: sequence number
+     * of the current pane
+     */
+    private long position = Long.MIN_VALUE;
+    private boolean dirty;
+
+    /**
+     *
+     * @param length values in a count window, ignored if duration is set
+     * @param duration milliseconds in a time window, 0 - count window
+     * @param panes number of panes the window is split into
+     * @param relativeAccuracy relative error of quantiles
+     * @param maxBuckets max buckets of every sketch
+     */
+    public PanedQuantiles(int length, long duration, int panes, double relativeAccuracy, int maxBuckets) {
+        if (panes < 1) {
+            throw new IllegalArgumentException("Number of panes should be greater than 0.");
+        }
+        this.timed = duration > 0;
+        long span = timed ? duration : length;
+        if (span < panes) {
+            throw new IllegalArgumentException("Window should be at least one value or millisecond per pane.");
+        }
+        this.paneSpan = (span + panes - 1) / panes;
+        this.panes = new QuantileSketch[panes];
+        for (int i = 0; i < panes; i++) {
+            this.panes[i] = new QuantileSketch(relativeAccuracy, maxBuckets);
+        }
+        this.merged = new QuantileSketch(relativeAccuracy, maxBuckets);
+        if (!timed) {
+            position = 0;
+        }
+    }
+
+    public boolean isTimed() {
+        return timed;
+    }
+
+    /**
+     * Adds a value to a count window.
+     *
+     * @param value
+     */
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (position == paneSpan) {
+            current = next(current);
+            panes[current].clear();
+            position = 0;
+        }
+        panes[current].add(value);
+        position++;
+        dirty = true;
+    }
+
+    /**
+     * Adds a value to a time window, or to a count window if the window is
+     * not timed.
+     *
+     * @param time event time in milliseconds
+     * @param value
+     */
+    public void add(long time, double value) {
+        if (!timed) {
+            add(value);
+            return;
+        }
+        if (Double.isNaN(value)) {
+            return;
+        }
+        long pane = Math.floorDiv(time, paneSpan);
+        advance(time);
+        long age = position - pane;
+        if (age >= panes.length) {
+            // the pane of the value has already left the window
+            return;
+        }
+        int i = (int) (current - age);
+        panes[i < 0 ? i + panes.length : i].add(value);
+        dirty = true;
+    }
+
+    /**
+     * Slides a time window to the time, clearing the panes that left it.
+     *
+     * @param time event or wall clock time in milliseconds
+     */
+    public void advance(long time) {
+        if (!timed) {
+            return;
+        }
+        long pane = Math.floorDiv(time, paneSpan);
+        if (position == Long.MIN_VALUE) {
+            position = pane;
+            return;
+        }
+        if (pane <= position) {
+            return;
+        }
+        long steps = Math.min(pane - position, panes.length);
+        for (long s = 0; s < steps; s++) {
+            current = next(current);
+            if (panes[current].getCount() > 0) {
+                panes[current].clear();
+                dirty = true;
+            }
+        }
+        position = pane;
+    }
+
+    private int next(int pane) {
+        return pane + 1 == panes.length ? 0 : pane + 1;
+    }
+
+    /**
+     *
+     * @return merge of all panes, valid until the next add
+     */
+    public QuantileSketch getSketch() {
+        if (dirty) {
+            merged.clear();
+            for (QuantileSketch pane : panes) {
+                merged.merge(pane);
+            }
+            dirty = false;
+        }
+        return merged;
+    }
+
+    public double getQuantile(double q) {
+        return getSketch().getQuantile(q);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (QuantileSketch pane : panes) {
+            count += pane.getCount();
+        }
+        return count;
+    }
+
+    public void clear() {
+        for (QuantileSketch pane : panes) {
+            pane.clear();
+        }
+        merged.clear();
+        current = 0;
+        position = timed ? Long.MIN_VALUE : 0;
+        dirty = false;
+    }
+
+    @Override
+    public void add(Double value) {
+        if (value != null) {
+            add(value.doubleValue());
+        }
+    }
+
+    /**
+     * Values cannot be removed from a sketch.
+     *
+     * @return false
+     */
+    @Override
+    public boolean remove(Double value) {
+        return false;
+    }
+
+    /**
+     * A sketch does not keep the values.
+     *
+     * @return empty collection
+     */
+    @Override
+    public Collection<Double> values() {
+        return Collections.emptyList();
+    }
+}
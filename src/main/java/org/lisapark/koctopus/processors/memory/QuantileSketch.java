@@ -0,0 +1,284 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch with relative accuracy, in the style of
+ * DDSketch: a value x is counted in the logarithmic bucket
+ * ceil(log(|x|) / log(gamma)), gamma = (1 + a) / (1 - a), so any quantile
+ * is returned within a relative error a of the exact one.
+ *
+ * Buckets are dense arrays of counts, one for positive and one for negative
+ * values, plus a count of zeros. Each array holds at most maxBuckets
+ * buckets; if the range of values grows beyond that, the lowest buckets are
+ * collapsed into one, so memory is bounded whatever the number of values and
+ * only the smallest magnitudes lose accuracy. Two sketches with the same
+ * accuracy merge by adding counts.
+ *
+ * @author alexmy
+ */
+public final class QuantileSketch {
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+    /**
+     * Magnitudes below it are counted as zeros
+     */
+    private final double minIndexable;
+
+    private final Store positive;
+    private final Store negative;
+    private long zeroCount;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+
+    /**
+     *
+     * @param relativeAccuracy relative error of quantiles, 0 &lt; a &lt; 1
+     * @param maxBuckets max number of buckets for each sign
+     */
+    public QuantileSketch(double relativeAccuracy, int maxBuckets) {
+        if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+            throw new IllegalArgumentException("Relative accuracy should be between 0 and 1.");
+        }
+        if (maxBuckets < 1) {
+            throw new IllegalArgumentException("Max buckets should be greater than 0.");
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+        this.minIndexable = Double.MIN_NORMAL * gamma;
+        this.positive = new Store(maxBuckets);
+        this.negative = new Store(maxBuckets);
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    private int index(double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / logGamma);
+    }
+
+    /**
+     * Value reported for a bucket, within the relative accuracy of every
+     * magnitude in (gamma^(index-1), gamma^index].
+     */
+    private double value(int index) {
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        if (value >= minIndexable) {
+            positive.add(index(value), 1);
+        } else if (value <= -minIndexable) {
+            negative.add(index(-value), 1);
+        } else {
+            zeroCount++;
+        }
+        if (!(value >= min)) {
+            min = value;
+        }
+        if (!(value <= max)) {
+            max = value;
+        }
+    }
+
+    /**
+     * Adds the counts of another sketch with the same relative accuracy.
+     *
+     * @param other
+     */
+    public void merge(QuantileSketch other) {
+        if (other.gamma != gamma) {
+            throw new IllegalArgumentException("Sketches with different relative accuracy cannot be merged.");
+        }
+        if (other.getCount() == 0) {
+            return;
+        }
+        positive.merge(other.positive);
+        negative.merge(other.negative);
+        zeroCount += other.zeroCount;
+        if (!(other.min >= min)) {
+            min = other.min;
+        }
+        if (!(other.max <= max)) {
+            max = other.max;
+        }
+    }
+
+    public long getCount() {
+        return positive.total + negative.total + zeroCount;
+    }
+
+    /**
+     *
+     * @return exact min value, NaN if empty
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     *
+     * @return exact max value, NaN if empty
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * Value at the rank q * (count - 1), lower quantile. The extreme ranks
+     * return the exact min and max.
+     *
+     * @param q quantile, 0..1
+     * @return value within the relative accuracy, NaN if the sketch is empty
+     */
+    public double getQuantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("Quantile should be between 0 and 1.");
+        }
+        long count = getCount();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long) (q * (count - 1));
+        if (rank == 0) {
+            return min;
+        }
+        if (rank == count - 1) {
+            return max;
+        }
+        double result;
+        if (rank < negative.total) {
+            // most negative first: from the highest magnitude down
+            result = -value(negative.indexOfRank(negative.total - 1 - rank));
+        } else if (rank < negative.total + zeroCount) {
+            result = 0;
+        } else {
+            result = value(positive.indexOfRank(rank - negative.total - zeroCount));
+        }
+        return Math.max(min, Math.min(max, result));
+    }
+
+    public void clear() {
+        positive.clear();
+        negative.clear();
+        zeroCount = 0;
+        min = Double.NaN;
+        max = Double.NaN;
+    }
+
+    /**
+     * Counts of consecutive bucket indexes: counts[i] belongs to the index
+     * offset + i.
+     */
+    private static final class Store {
+
+        private final int maxBuckets;
+        private long[] counts = new long[0];
+        private int offset;
+        private int minIndex;
+        private int maxIndex;
+        private long total;
+
+        Store(int maxBuckets) {
+            this.maxBuckets = maxBuckets;
+        }
+
+        void add(int index, long count) {
+            int lo = total == 0 ? index : Math.min(minIndex, index);
+            int hi = total == 0 ? index : Math.max(maxIndex, index);
+            if (hi - lo >= maxBuckets) {
+                // collapse the lowest buckets
+                lo = hi - maxBuckets + 1;
+            }
+            if (lo < offset || hi >= offset + counts.length || total > 0 && lo > minIndex) {
+                resize(lo, hi);
+            }
+            counts[Math.max(index, lo) - offset] += count;
+            minIndex = lo;
+            maxIndex = hi;
+            total += count;
+        }
+
+        /**
+         * Moves the counts into an array covering lo..hi with some slack,
+         * counts below lo are added to lo.
+         */
+        private void resize(int lo, int hi) {
+            int span = hi - lo + 1;
+            int length = Math.min(maxBuckets, Math.max(span * 2, 32));
+            long[] grown = counts.length >= length ? counts : new long[length];
+            // keep the slack on the side the range grows to
+            int start = total > 0 && lo >= minIndex ? lo : hi + 1 - length;
+            if (total == 0) {
+                Arrays.fill(grown, 0);
+            } else {
+                long[] old = grown == counts ? Arrays.copyOf(counts, counts.length) : counts;
+                Arrays.fill(grown, 0);
+                for (int i = minIndex; i <= maxIndex; i++) {
+                    long c = old[i - offset];
+                    if (c != 0) {
+                        grown[Math.max(i, lo) - start] += c;
+                    }
+                }
+            }
+            counts = grown;
+            offset = start;
+        }
+
+        void merge(Store other) {
+            if (other.total == 0) {
+                return;
+            }
+            for (int i = other.minIndex; i <= other.maxIndex; i++) {
+                long c = other.counts[i - other.offset];
+                if (c != 0) {
+                    add(i, c);
+                }
+            }
+        }
+
+        /**
+         *
+         * @param rank 0..total - 1, counted from the lowest index
+         * @return index of the bucket with the value of the rank
+         */
+        int indexOfRank(long rank) {
+            long seen = 0;
+            for (int i = minIndex; i <= maxIndex; i++) {
+                seen += counts[i - offset];
+                if (seen > rank) {
+                    return i;
+                }
+            }
+            return maxIndex;
+        }
+
+        void clear() {
+            Arrays.fill(counts, 0);
+            total = 0;
+        }
+    }
+}
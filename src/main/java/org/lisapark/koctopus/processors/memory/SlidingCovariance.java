@@ -0,0 +1,263 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import org.lisapark.koctopus.core.memory.Memory;
+
+/**
+ * Sliding window of N-dimensional rows (one value of each of N aligned
+ * series) that keeps the means and the full co-moment matrix up to date with
+ * rank-1 updates as rows are added and evicted - the multivariate form of
+ * the Welford updates of {@link SlidingPairStatistics}. A row costs O(N^2)
+ * whatever the window length, and all N * (N - 1) / 2 correlations share one
+ * window instead of one per pair.
+ *
+ * Rows are kept in one primitive array, the symmetric co-moment matrix is
+ * packed as its upper triangle. Moments are recomputed from the window once
+ * per capacity additions to keep rounding errors from accumulating.
+ *
+ * @author alexmy
+ */
+public class SlidingCovariance implements Memory<double[]> {
+
+    private final int dimension;
+    private final int capacity;
+    private final double[] rows;
+    private int size;
+    private int next;
+
+    private final double[] means;
+    private final double[] coMoments;
+    private final double[] delta;
+    private int sinceResync;
+
+    /**
+     *
+     * @param dimension number of series
+     * @param capacity window length, in rows
+     */
+    public SlidingCovariance(int dimension, int capacity) {
+        if (dimension < 1) {
+            throw new IllegalArgumentException("Dimension should be greater than 0.");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity should be greater than 0.");
+        }
+        this.dimension = dimension;
+        this.capacity = capacity;
+        this.rows = new double[dimension * capacity];
+        this.means = new double[dimension];
+        this.coMoments = new double[dimension * (dimension + 1) / 2];
+        this.delta = new double[dimension];
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Index of (i, j), i &lt;= j, in the packed upper triangle.
+     */
+    private int packed(int i, int j) {
+        if (i > j) {
+            int t = i;
+            i = j;
+            j = t;
+        }
+        return i * dimension - i * (i - 1) / 2 + (j - i);
+    }
+
+    /**
+     * Adds a row, evicting the oldest one if the window is full.
+     *
+     * @param row values of the series, length {@link #dimension()}
+     * @param offset index of the first value in the array
+     */
+    public void add(double[] row, int offset) {
+        int slot = next * dimension;
+        if (isFull()) {
+            evict(rows, slot);
+        }
+        System.arraycopy(row, offset, rows, slot, dimension);
+        next = next + 1 == capacity ? 0 : next + 1;
+        size++;
+        include(rows, slot, size);
+
+        if (++sinceResync >= capacity) {
+            resync();
+        }
+    }
+
+    private void include(double[] data, int at, int n) {
+        for (int i = 0; i < dimension; i++) {
+            delta[i] = data[at + i] - means[i];
+            means[i] += delta[i] / n;
+        }
+        int k = 0;
+        for (int i = 0; i < dimension; i++) {
+            double di = delta[i];
+            for (int j = i; j < dimension; j++) {
+                // old deviation of i times new deviation of j
+                coMoments[k++] += di * (data[at + j] - means[j]);
+            }
+        }
+    }
+
+    private void evict(double[] data, int at) {
+        int n = size - 1;
+        size = n;
+        if (n == 0) {
+            Arrays.fill(means, 0);
+            Arrays.fill(coMoments, 0);
+            return;
+        }
+        for (int i = 0; i < dimension; i++) {
+            // deviation from the old mean
+            delta[i] = data[at + i] - means[i];
+            means[i] -= delta[i] / n;
+        }
+        int k = 0;
+        for (int i = 0; i < dimension; i++) {
+            double di = delta[i];
+            for (int j = i; j < dimension; j++) {
+                coMoments[k++] -= di * (data[at + j] - means[j]);
+            }
+        }
+    }
+
+    private void resync() {
+        sinceResync = 0;
+        Arrays.fill(means, 0);
+        Arrays.fill(coMoments, 0);
+        for (int r = 0; r < size; r++) {
+            include(rows, slot(r), r + 1);
+        }
+    }
+
+    private int slot(int index) {
+        int i = next - size + index;
+        return (i < 0 ? i + capacity : i) * dimension;
+    }
+
+    /**
+     *
+     * @param index row, 0 - the oldest
+     * @param series
+     * @return value
+     */
+    public double get(int index, int series) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        return rows[slot(index) + series];
+    }
+
+    public double getMean(int series) {
+        return size == 0 ? Double.NaN : means[series];
+    }
+
+    /**
+     *
+     * @return sample covariance of two series, variance if i == j, NaN for
+     * less than 2 rows
+     */
+    public double getCovariance(int i, int j) {
+        return size < 2 ? Double.NaN : coMoments[packed(i, j)] / (size - 1);
+    }
+
+    /**
+     *
+     * @return Pearson's correlation of two series, NaN for less than 2 rows
+     * or if one of them is constant
+     */
+    public double getCorrelation(int i, int j) {
+        if (size < 2) {
+            return Double.NaN;
+        }
+        double sii = coMoments[packed(i, i)];
+        double sjj = coMoments[packed(j, j)];
+        if (!(sii > 0 && sjj > 0)) {
+            return Double.NaN;
+        }
+        double r = coMoments[packed(i, j)] / Math.sqrt(sii * sjj);
+        return Math.max(-1, Math.min(1, r));
+    }
+
+    public void clear() {
+        size = 0;
+        next = 0;
+        sinceResync = 0;
+        Arrays.fill(means, 0);
+        Arrays.fill(coMoments, 0);
+    }
+
+    @Override
+    public void add(double[] row) {
+        if (row != null) {
+            add(row, 0);
+        }
+    }
+
+    /**
+     * Rows cannot be removed from the middle of the window.
+     *
+     * @return false
+     */
+    @Override
+    public boolean remove(double[] row) {
+        return false;
+    }
+
+    /**
+     * Read-only view, oldest row first. Copies a row on access.
+     *
+     * @return rows
+     */
+    @Override
+    public Collection<double[]> values() {
+        return new AbstractList<double[]>() {
+            @Override
+            public double[] get(int index) {
+                if (index < 0 || index >= size) {
+                    throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+                }
+                int at = slot(index);
+                return Arrays.copyOfRange(rows, at, at + dimension);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -0,0 +1,262 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import org.lisapark.koctopus.util.Pair;
+
+/**
+ * {@link DoublePairCircularBuffer} that keeps means, second moments and the
+ * co-moment of the two series in the window up to date as pairs are added
+ * and evicted (Welford's updates), so correlation and regression
+ * coefficients cost O(1) per event whatever the window length.
+ *
+ * Moments are recomputed from the window once per capacity additions, which
+ * keeps the error of the add / evict updates from accumulating and costs
+ * O(1) amortized. Duration based windows drop pairs with
+ * {@link #removeOldest()} and grow the capacity instead.
+ *
+ * @author alexmy
+ */
+public class SlidingPairStatistics extends DoublePairCircularBuffer {
+
+    private double firstMean;
+    private double secondMean;
+    private double firstSquares;
+    private double secondSquares;
+    private double coMoment;
+    private int sinceResync;
+
+    public SlidingPairStatistics(int capacity) {
+        super(capacity);
+    }
+
+    /**
+     * Creates the window on a storage, moments of the values it already
+     * holds are computed at once.
+     *
+     * @param storage
+     */
+    public SlidingPairStatistics(DoubleStorage storage) {
+        super(storage);
+        resync();
+    }
+
+    @Override
+    public void add(double firstValue, double secondValue) {
+        if (isFull()) {
+            evict(getFirst(0), getSecond(0));
+        }
+        super.add(firstValue, secondValue);
+        include(firstValue, secondValue, size());
+
+        if (++sinceResync >= capacity()) {
+            resync();
+        }
+    }
+
+    private void include(double x, double y, int n) {
+        double dx = x - firstMean;
+        firstMean += dx / n;
+        double dy = y - secondMean;
+        secondMean += dy / n;
+        firstSquares += dx * (x - firstMean);
+        secondSquares += dy * (y - secondMean);
+        coMoment += dx * (y - secondMean);
+    }
+
+    private void evict(double x, double y) {
+        int n = size() - 1;
+        if (n == 0) {
+            reset();
+            return;
+        }
+        double oldFirstMean = firstMean;
+        double oldSecondMean = secondMean;
+        firstMean -= (x - firstMean) / n;
+        secondMean -= (y - secondMean) / n;
+        firstSquares -= (x - firstMean) * (x - oldFirstMean);
+        secondSquares -= (y - secondMean) * (y - oldSecondMean);
+        coMoment -= (x - firstMean) * (y - oldSecondMean);
+    }
+
+    private void reset() {
+        firstMean = 0;
+        secondMean = 0;
+        firstSquares = 0;
+        secondSquares = 0;
+        coMoment = 0;
+    }
+
+    private void resync() {
+        sinceResync = 0;
+        reset();
+        for (int i = 0; i < size(); i++) {
+            include(getFirst(i), getSecond(i), i + 1);
+        }
+    }
+
+    @Override
+    public boolean remove(Pair<Double, Double> pair) {
+        boolean removed = super.remove(pair);
+        if (removed) {
+            resync();
+        }
+        return removed;
+    }
+
+    @Override
+    public void removeOldest() {
+        if (size() > 0) {
+            evict(getFirst(0), getSecond(0));
+        }
+        super.removeOldest();
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        reset();
+        sinceResync = 0;
+    }
+
+    public double getFirstMean() {
+        return firstMean;
+    }
+
+    public double getSecondMean() {
+        return secondMean;
+    }
+
+    /**
+     *
+     * @return sample covariance, NaN for less than 2 pairs
+     */
+    public double getCovariance() {
+        return size() < 2 ? Double.NaN : coMoment / (size() - 1);
+    }
+
+    /**
+     *
+     * @return Pearson correlation coefficient, NaN if either series is
+     * constant
+     */
+    public double getCorrelation() {
+        return coMoment / Math.sqrt(firstSquares * secondSquares);
+    }
+
+    /**
+     * Least squares slope of second = intercept + slope * first.
+     *
+     * @return slope, NaN if first series is constant
+     */
+    public double getSlope() {
+        return coMoment / firstSquares;
+    }
+
+    /**
+     * Least squares intercept of second = intercept + slope * first.
+     *
+     * @return intercept
+     */
+    public double getIntercept() {
+        return getInterceptAt(0);
+    }
+
+    /**
+     * Least squares intercept when the first series is measured from origin,
+     * i.e. second = intercept + slope * (first - origin).
+     *
+     * @param origin value of the first series taken as zero
+     * @return intercept
+     */
+    public double getInterceptAt(double origin) {
+        return secondMean - getSlope() * (firstMean - origin);
+    }
+
+    /**
+     *
+     * @return coefficient of determination of the least squares line, NaN if
+     * either series is constant
+     */
+    public double getRSquare() {
+        return coMoment * coMoment / (firstSquares * secondSquares);
+    }
+
+    /**
+     *
+     * @return standard error of the slope, NaN for less than 3 pairs
+     */
+    public double getSlopeStdErr() {
+        return Math.sqrt(getMeanSquareError() / firstSquares);
+    }
+
+    /**
+     *
+     * @return standard error of the intercept, NaN for less than 3 pairs
+     */
+    public double getInterceptStdErr() {
+        return getInterceptStdErrAt(0);
+    }
+
+    /**
+     *
+     * @param origin value of the first series taken as zero, see
+     * {@link #getInterceptAt(double)}
+     * @return standard error of the intercept, NaN for less than 3 pairs
+     */
+    public double getInterceptStdErrAt(double origin) {
+        double offset = firstMean - origin;
+        return Math.sqrt(getMeanSquareError() * (1.0 / size() + offset * offset / firstSquares));
+    }
+
+    /**
+     *
+     * @return sum of squared residuals divided by the degrees of freedom, NaN
+     * for less than 3 pairs
+     */
+    public double getMeanSquareError() {
+        if (size() < 3) {
+            return Double.NaN;
+        }
+        double sse = Math.max(0, secondSquares - coMoment * coMoment / firstSquares);
+        return sse / (size() - 2);
+    }
+
+    /**
+     *
+     * @return sum of squared deviations of the first series from its mean
+     */
+    public double getFirstSquares() {
+        return firstSquares;
+    }
+
+    /**
+     *
+     * @return sum of squared deviations of the second series from its mean
+     */
+    public double getSecondSquares() {
+        return secondSquares;
+    }
+
+    /**
+     *
+     * @return sum of products of deviations of the two series
+     */
+    public double getCoMoment() {
+        return coMoment;
+    }
+}
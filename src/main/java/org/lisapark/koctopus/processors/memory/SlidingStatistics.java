@@ -0,0 +1,136 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+/**
+ * {@link DoubleCircularBuffer} that keeps the mean and the sum of squared
+ * deviations of the window up to date as values are added and evicted
+ * (Welford's updates), so mean and variance cost O(1) per value whatever
+ * the window length.
+ *
+ * As in {@link SlidingPairStatistics}, the moments are recomputed from the
+ * window once per capacity additions to keep rounding errors from
+ * accumulating.
+ *
+ * @author alexmy
+ */
+public class SlidingStatistics extends DoubleCircularBuffer {
+
+    private double mean;
+    private double squares;
+    private int sinceResync;
+
+    public SlidingStatistics(int capacity) {
+        super(capacity);
+    }
+
+    /**
+     * Creates the window on a storage, moments of the values it already
+     * holds are computed at once.
+     *
+     * @param storage
+     */
+    public SlidingStatistics(DoubleStorage storage) {
+        super(storage);
+        resync();
+    }
+
+    @Override
+    public void add(double value) {
+        if (isFull()) {
+            evict(getOldest());
+        }
+        super.add(value);
+        include(value, size());
+
+        if (++sinceResync >= capacity()) {
+            resync();
+        }
+    }
+
+    private void include(double x, int n) {
+        double dx = x - mean;
+        mean += dx / n;
+        squares += dx * (x - mean);
+    }
+
+    private void evict(double x) {
+        int n = size() - 1;
+        if (n == 0) {
+            mean = 0;
+            squares = 0;
+            return;
+        }
+        double oldMean = mean;
+        mean -= (x - mean) / n;
+        squares -= (x - mean) * (x - oldMean);
+    }
+
+    private void resync() {
+        sinceResync = 0;
+        mean = 0;
+        squares = 0;
+        for (int i = 0; i < size(); i++) {
+            include(get(i), i + 1);
+        }
+    }
+
+    @Override
+    public boolean remove(Double value) {
+        boolean removed = super.remove(value);
+        if (removed) {
+            resync();
+        }
+        return removed;
+    }
+
+    @Override
+    public void removeOldest() {
+        if (size() > 0) {
+            evict(getOldest());
+        }
+        super.removeOldest();
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        mean = 0;
+        squares = 0;
+        sinceResync = 0;
+    }
+
+    /**
+     *
+     * @return mean, NaN if empty
+     */
+    public double getMean() {
+        return size() == 0 ? Double.NaN : mean;
+    }
+
+    /**
+     *
+     * @return sample variance, NaN for less than 2 values
+     */
+    public double getVariance() {
+        return size() < 2 ? Double.NaN : Math.max(squares, 0) / (size() - 1);
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+}
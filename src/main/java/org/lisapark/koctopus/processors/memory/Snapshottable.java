@@ -0,0 +1,82 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Processor state that can be written to a snapshot and read back, so a
+ * restarted processor resumes with warm windows instead of replaying the
+ * stream (see StateSnapshot in the transport package).
+ *
+ * Only the primary data is written - e.g. the values of a window, oldest
+ * first - and derived sums and moments are rebuilt on read by adding the
+ * values again, which keeps snapshots compact and independent of the
+ * internal layout.
+ *
+ * @author alexmy
+ */
+public interface Snapshottable {
+
+    /**
+     * Writes the state.
+     *
+     * @param out
+     * @throws IOException
+     */
+    void writeState(DataOutput out) throws IOException;
+
+    /**
+     * Replaces the state with the one written by {@link #writeState}. The
+     * object has to be configured the same way as the one that wrote it.
+     *
+     * @param in
+     * @throws IOException
+     */
+    void readState(DataInput in) throws IOException;
+
+    /**
+     * Several states written one after another, e.g. windows and the reorder
+     * buffer in front of them.
+     *
+     * @param parts states, nulls are skipped
+     * @return state of all parts
+     */
+    static Snapshottable all(Snapshottable... parts) {
+        return new Snapshottable() {
+            @Override
+            public void writeState(DataOutput out) throws IOException {
+                for (Snapshottable part : parts) {
+                    if (part != null) {
+                        part.writeState(out);
+                    }
+                }
+            }
+
+            @Override
+            public void readState(DataInput in) throws IOException {
+                for (Snapshottable part : parts) {
+                    if (part != null) {
+                        part.readState(in);
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,206 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Event time bookkeeping for duration based windows. Keeps the timestamps of
+ * the values in a window as a monotonic deque; the values themselves live in
+ * a parallel primitive buffer of the caller, which drops as many oldest
+ * values as {@link #expire(long)} reports.
+ *
+ * Sliding window (hop 0) holds the values of the last duration
+ * milliseconds and is reported on every value. Hopping windows
+ * [end - duration, end) end on multiples of hop and are reported once, when
+ * the first value at or after their end arrives; hop equal to duration gives
+ * tumbling windows. Windows without values are not reported.
+ *
+ * Time never goes backwards: a value older than the newest one is counted
+ * at the newest time, so a late value joins the current window instead of
+ * breaking the order of the deque.
+ *
+ * @author alexmy
+ */
+public final class TimeWindow implements Snapshottable {
+
+    /**
+     * No closed window.
+     */
+    public static final long NONE = Long.MIN_VALUE;
+
+    private final long duration;
+    private final long hop;
+
+    private long[] times = new long[16];
+    private int head;
+    private int size;
+    private long latest = NONE;
+    private long nextEnd = NONE;
+
+    /**
+     *
+     * @param duration window length in milliseconds, greater than 0
+     * @param hop distance between window ends in milliseconds, 0 - sliding
+     * window
+     */
+    public TimeWindow(long duration, long hop) {
+        if (duration < 1) {
+            throw new IllegalArgumentException("Window duration should be greater than 0.");
+        }
+        if (hop < 0) {
+            throw new IllegalArgumentException("Window hop cannot be negative.");
+        }
+        this.duration = duration;
+        this.hop = hop;
+    }
+
+    public boolean isSliding() {
+        return hop == 0;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Event time of the next value, never less than the previous one.
+     *
+     * @param time timestamp of the value
+     * @return time to use for the value
+     */
+    public long time(long time) {
+        if (time > latest) {
+            latest = time;
+        }
+        return latest;
+    }
+
+    /**
+     * Hopping windows only: finds the next window closed by a value at time.
+     * Call it until it returns {@link #NONE} before adding the value, then
+     * {@link #expire(long)} with end - duration and report each window.
+     *
+     * @param time event time from {@link #time(long)}
+     * @return end of the closed window, or NONE
+     */
+    public long nextClosed(long time) {
+        if (hop == 0) {
+            return NONE;
+        }
+        if (nextEnd == NONE) {
+            nextEnd = firstEndAfter(time);
+            return NONE;
+        }
+        while (time >= nextEnd) {
+            long end = nextEnd;
+            nextEnd += hop;
+            if (size > 0 && newest() >= end - duration) {
+                return end;
+            }
+            // no values for this and any window up to time, skip them
+            nextEnd = Math.max(nextEnd, firstEndAfter(time));
+        }
+        return NONE;
+    }
+
+    private long firstEndAfter(long time) {
+        return Math.floorDiv(time, hop) * hop + hop;
+    }
+
+    /**
+     * Sliding window: drops the values that are out of the window ending at
+     * time, call it before adding the value at time.
+     *
+     * @param time event time from {@link #time(long)}
+     * @return number of oldest values the caller has to drop
+     */
+    public int slide(long time) {
+        return expire(time - duration + 1);
+    }
+
+    /**
+     * Drops timestamps older than start.
+     *
+     * @param start
+     * @return number of oldest values the caller has to drop
+     */
+    public int expire(long start) {
+        int count = 0;
+        while (size > 0 && times[head] < start) {
+            head = head + 1 == times.length ? 0 : head + 1;
+            size--;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Records the time of a value added by the caller.
+     *
+     * @param time event time from {@link #time(long)}
+     */
+    public void add(long time) {
+        if (size == times.length) {
+            long[] grown = Arrays.copyOf(times, times.length * 2);
+            // unwrap, the oldest goes to 0
+            for (int i = 0; i < size; i++) {
+                grown[i] = times[(head + i) % times.length];
+            }
+            times = grown;
+            head = 0;
+        }
+        times[(head + size) % times.length] = time;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private long newest() {
+        return times[(head + size - 1) % times.length];
+    }
+
+    @Override
+    public void writeState(DataOutput out) throws IOException {
+        out.writeLong(latest);
+        out.writeLong(nextEnd);
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeLong(times[(head + i) % times.length]);
+        }
+    }
+
+    @Override
+    public void readState(DataInput in) throws IOException {
+        latest = in.readLong();
+        nextEnd = in.readLong();
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Wrong number of times: " + count);
+        }
+        head = 0;
+        size = 0;
+        for (int i = 0; i < count; i++) {
+            add(in.readLong());
+        }
+    }
+}
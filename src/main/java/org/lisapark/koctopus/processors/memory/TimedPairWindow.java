@@ -0,0 +1,99 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Duration based window of pairs: {@link SlidingPairStatistics} whose pairs
+ * are dropped by event time, see {@link TimeWindow}, instead of by count.
+ *
+ * Sliding window: call {@link #add(long, double, double)} and read the
+ * statistics after every pair. Hopping / tumbling windows: before adding a
+ * pair call {@link #close(long)} until it returns {@link TimeWindow#NONE},
+ * the statistics hold the closed window after each other result.
+ *
+ * @author alexmy
+ */
+public final class TimedPairWindow implements Snapshottable {
+
+    private final TimeWindow window;
+    private final SlidingPairStatistics statistics = new SlidingPairStatistics(16);
+
+    /**
+     *
+     * @param duration window length in milliseconds
+     * @param hop distance between window ends in milliseconds, 0 - sliding
+     * window
+     */
+    public TimedPairWindow(long duration, long hop) {
+        this.window = new TimeWindow(duration, hop);
+    }
+
+    public boolean isHopping() {
+        return !window.isSliding();
+    }
+
+    public SlidingPairStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     *
+     * @param time event time of the next pair
+     * @return end of a hopping window closed by it, or TimeWindow.NONE
+     */
+    public long close(long time) {
+        long end = window.nextClosed(window.time(time));
+        if (end != TimeWindow.NONE) {
+            drop(window.expire(end - window.getDuration()));
+        }
+        return end;
+    }
+
+    public void add(long time, double first, double second) {
+        long t = window.time(time);
+        if (window.isSliding()) {
+            drop(window.slide(t));
+        }
+        if (statistics.isFull()) {
+            statistics.ensureCapacity(statistics.capacity() * 2);
+        }
+        statistics.add(first, second);
+        window.add(t);
+    }
+
+    private void drop(int count) {
+        for (int i = 0; i < count; i++) {
+            statistics.removeOldest();
+        }
+    }
+
+    @Override
+    public void writeState(DataOutput out) throws IOException {
+        window.writeState(out);
+        statistics.writeState(out);
+    }
+
+    @Override
+    public void readState(DataInput in) throws IOException {
+        window.readState(in);
+        statistics.readState(in);
+    }
+}
@@ -0,0 +1,480 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.processor.anomaly;
+
+import com.fasterxml.uuid.Generators;
+import io.lettuce.core.StreamMessage;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.ProgrammerException;
+import org.lisapark.koctopus.core.Persistable;
+import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.event.Event;
+import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.NodeAttribute;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.memory.Memory;
+import org.lisapark.koctopus.core.memory.MemoryProvider;
+import org.lisapark.koctopus.core.parameter.Constraints;
+import org.lisapark.koctopus.core.parameter.Parameter;
+import org.lisapark.koctopus.core.processor.AbstractProcessor;
+import org.lisapark.koctopus.core.processor.CompiledProcessor;
+import org.lisapark.koctopus.core.processor.ProcessorInput;
+import org.lisapark.koctopus.core.processor.ProcessorOutput;
+import org.lisapark.koctopus.core.runtime.ProcessorContext;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.core.transport.TransportReference;
+import org.lisapark.koctopus.processors.memory.KeyedState;
+import org.lisapark.koctopus.processors.transport.ColumnPage;
+import org.lisapark.koctopus.processors.transport.EntryCodec;
+import org.lisapark.koctopus.processors.transport.StreamGroupReader;
+import org.lisapark.koctopus.processors.transport.StreamPartitions;
+import org.lisapark.koctopus.processors.transport.StreamWriter;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+
+/**
+ * This {@link AbstractProcessor} detects anomalies of a single input: every
+ * value is scored against the incrementally kept mean and standard deviation
+ * of the values before it (see {@link ZScoreDetector}) and only the values
+ * with a z-score beyond the threshold are written, with the score, the
+ * baseline and the reason. Downstream processors and sinks get a small
+ * fraction of the input instead of every value.
+ *
+ * @author alexmy
+ */
+@Persistable
+public class ZScoreAnomaly extends AbstractProcessor<Double> {
+
+    static final Logger LOG = Logger.getLogger(ZScoreAnomaly.class.getName());
+
+    private static final String DEFAULT_NAME = "Z-Score Anomaly";
+    private static final String DEFAULT_DESCRIPTION = "Writes values that deviate from the moving baseline"
+            + " by more than the threshold, in standard deviations.";
+    private static final String DEFAULT_INPUT_DESCRIPTION = "Attribute from the connected source that is watched"
+            + " for anomalies.";
+    private static final String DEFAULT_OUTPUT_DESCRIPTION = "Z-score of an anomalous value; the baseline is written"
+            + " as <output>_mean and <output>_stddev, the explanation as <output>_reason.";
+
+    private static final int METHOD_PARAMETER_ID = 2;
+    private static final int WINDOW_LENGTH_PARAMETER_ID = 3;
+    private static final int THRESHOLD_PARAMETER_ID = 4;
+    private static final int WARM_UP_PARAMETER_ID = 5;
+    private static final int DIRECTION_PARAMETER_ID = 6;
+    private static final int LEARN_ANOMALIES_PARAMETER_ID = 7;
+    private static final int KEY_ATTRIBUTE_PARAMETER_ID = 8;
+    private static final int IDLE_KEY_TTL_PARAMETER_ID = 9;
+    private static final int TRANSPORT_PARAMETER_ID = 10;
+    private static final int STREAMING_MODE_PARAMETER_ID = 11;
+    private static final int BLOCK_TIMEOUT_PARAMETER_ID = 12;
+    private static final int WRITE_BATCH_SIZE_PARAMETER_ID = 13;
+    private static final int WRITE_LINGER_PARAMETER_ID = 14;
+    private static final int MAX_STREAM_LENGTH_PARAMETER_ID = 15;
+
+    private static final int INPUT_ID = 1;
+    private static final int OUTPUT_ID = 1;
+
+    protected Map<String, TransportReference> procrefs = new HashMap<>();
+
+    public ZScoreAnomaly() {
+        super(Generators.timeBasedGenerator().generate(), DEFAULT_NAME, DEFAULT_DESCRIPTION);
+    }
+
+    protected ZScoreAnomaly(UUID id, String name, String description) {
+        super(id, name, description);
+    }
+
+    protected ZScoreAnomaly(UUID id, ZScoreAnomaly copyFromAnomaly) {
+        super(id, copyFromAnomaly);
+    }
+
+    protected ZScoreAnomaly(ZScoreAnomaly copyFromAnomaly) {
+        super(copyFromAnomaly);
+    }
+
+    public String getMethod() {
+        return getParameter(METHOD_PARAMETER_ID).getValueAsString();
+    }
+
+    public int getWindowLength() {
+        return getParameter(WINDOW_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Double getThreshold() {
+        return (Double) getParameter(THRESHOLD_PARAMETER_ID).getValue();
+    }
+
+    public int getWarmUp() {
+        return getParameter(WARM_UP_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getDirection() {
+        return getParameter(DIRECTION_PARAMETER_ID).getValueAsString();
+    }
+
+    public Boolean isLearnAnomalies() {
+        return (Boolean) getParameter(LEARN_ANOMALIES_PARAMETER_ID).getValue();
+    }
+
+    public String getKeyAttribute() {
+        return getParameter(KEY_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public int getIdleKeyTtl() {
+        return getParameter(IDLE_KEY_TTL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getRedisUrl() {
+        return getParameter(TRANSPORT_PARAMETER_ID).getValueAsString();
+    }
+
+    public Boolean isStreamingMode() {
+        return (Boolean) getParameter(STREAMING_MODE_PARAMETER_ID).getValue();
+    }
+
+    public int getBlockTimeout() {
+        return getParameter(BLOCK_TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteBatchSize() {
+        return getParameter(WRITE_BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteLinger() {
+        return getParameter(WRITE_LINGER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getMaxStreamLength() {
+        return getParameter(MAX_STREAM_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public ProcessorInput getInput() {
+        return getInputs().get(0);
+    }
+
+    @Override
+    public ZScoreAnomaly copyOf() {
+        return new ZScoreAnomaly(this);
+    }
+
+    @Override
+    public ZScoreAnomaly newInstance() {
+        return new ZScoreAnomaly(Generators.timeBasedGenerator().generate(), this);
+    }
+
+    @Override
+    public ZScoreAnomaly newInstance(Gnode gnode) {
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        ZScoreAnomaly anomaly = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildProcessor(anomaly, gnode);
+
+        return anomaly;
+    }
+
+    public static ZScoreAnomaly newTemplate() {
+        UUID uuid = Generators.timeBasedGenerator().generate();
+        return newTemplate(uuid);
+    }
+
+    public static ZScoreAnomaly newTemplate(UUID uuid) {
+        ZScoreAnomaly anomaly = new ZScoreAnomaly(uuid, DEFAULT_NAME, DEFAULT_DESCRIPTION);
+        anomaly.addParameter(
+                Parameter.stringParameterWithIdAndName(METHOD_PARAMETER_ID, "Method").
+                        description("ewma - exponentially weighted mean and variance, window - mean and"
+                                + " variance of the last Window length values.").
+                        defaultValue(ZScoreDetector.EWMA)
+        );
+        anomaly.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_LENGTH_PARAMETER_ID, "Window length").
+                        description("Number of values in the window, or the span of the EWMA"
+                                + " (alpha = 2 / (span + 1)).").
+                        defaultValue(100).required(true).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(2,
+                                "Window length should be greater than 1."))
+        );
+        anomaly.addParameter(
+                Parameter.doubleParameterWithIdAndName(THRESHOLD_PARAMETER_ID, "Threshold").
+                        description("Min absolute z-score, in standard deviations, of an anomalous value.").
+                        defaultValue(3.0)
+        );
+        anomaly.addParameter(
+                Parameter.integerParameterWithIdAndName(WARM_UP_PARAMETER_ID, "Warm-up").
+                        description("Number of values taken into the baseline before values are scored.").
+                        defaultValue(30).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(2,
+                                "Warm-up should be at least 2 values."))
+        );
+        anomaly.addParameter(
+                Parameter.stringParameterWithIdAndName(DIRECTION_PARAMETER_ID, "Direction").
+                        description("Anomalies reported: both, above (spikes only) or below (drops only).").
+                        defaultValue(ZScoreDetector.BOTH)
+        );
+        anomaly.addParameter(
+                Parameter.booleanParameterWithIdAndName(LEARN_ANOMALIES_PARAMETER_ID, "Learn anomalies").
+                        description("If true, anomalous values are added to the baseline, so it follows a level"
+                                + " shift. If false, they are left out and a burst does not hide itself.").
+                        defaultValue(true)
+        );
+        anomaly.addParameter(
+                Parameter.stringParameterWithIdAndName(KEY_ATTRIBUTE_PARAMETER_ID, "Key attribute").
+                        description("A baseline is kept per value of this attribute, which is written with"
+                                + " the anomalies. Empty - one baseline.").
+                        defaultValue("")
+        );
+        anomaly.addParameter(
+                Parameter.integerParameterWithIdAndName(IDLE_KEY_TTL_PARAMETER_ID, "Idle key TTL").
+                        description("Milliseconds of stream time after which the baseline of a key that got no"
+                                + " values is dropped. 0 - baselines are kept.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Idle key TTL cannot be negative."))
+        );
+        anomaly.addParameter(
+                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
+                        description("Redis URL.").
+                        defaultValue("redis://localhost")
+        );
+        anomaly.addParameter(
+                Parameter.booleanParameterWithIdAndName(STREAMING_MODE_PARAMETER_ID, "Streaming mode").
+                        description("If true, tails the input stream through a consumer group until stopped,"
+                                + " otherwise reads the stream from the beginning and completes at its end.").
+                        defaultValue(false)
+        );
+        anomaly.addParameter(
+                Parameter.integerParameterWithIdAndName(BLOCK_TIMEOUT_PARAMETER_ID, "Block timeout").
+                        description("Streaming mode only. Milliseconds to wait for new entries on each read.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Block timeout should be greater than 0."))
+        );
+        anomaly.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_BATCH_SIZE_PARAMETER_ID, "Write batch size").
+                        description("Number of output events sent to Redis in one pipelined batch. 1 - no batching.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Write batch size should be greater than 0."))
+        );
+        anomaly.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_LINGER_PARAMETER_ID, "Write linger").
+                        description("Max milliseconds an output event waits in a batch before it is sent.").
+                        defaultValue(10)
+        );
+        anomaly.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_STREAM_LENGTH_PARAMETER_ID, "Max stream length").
+                        description("Approximate max length of the output stream (XADD MAXLEN ~). 0 - no trimming.").
+                        defaultValue(0)
+        );
+
+        anomaly.addInput(
+                ProcessorInput.doubleInputWithId(INPUT_ID).name("Input").description(DEFAULT_INPUT_DESCRIPTION)
+        );
+        try {
+            anomaly.setOutput(
+                    ProcessorOutput.doubleOutputWithId(OUTPUT_ID).name("Anomaly").description(DEFAULT_OUTPUT_DESCRIPTION).attributeName("zscore")
+            );
+        } catch (ValidationException ex) {
+            // this should NOT happen. It means we created the processor with an invalid attribute name
+            throw new ProgrammerException(ex);
+        }
+        return anomaly;
+    }
+
+    /**
+     * The baseline is a {@link ZScoreDetector}.
+     *
+     * @param memoryProvider not used
+     * @return detector
+     */
+    @Override
+    public Memory<Double> createMemoryForProcessor(MemoryProvider memoryProvider) {
+        return newDetector();
+    }
+
+    ZScoreDetector newDetector() {
+        return new ZScoreDetector(getMethod(), getWindowLength(), getThreshold(), getWarmUp(), getDirection(),
+                Boolean.TRUE.equals(isLearnAnomalies()));
+    }
+
+    @Override
+    public CompiledProcessor<Double> compile() throws ValidationException {
+        validate();
+        ZScoreAnomaly copy = copyOf();
+        return new CompiledAnomaly(copy);
+    }
+
+    @Override
+    public <T extends AbstractProcessor> CompiledProcessor<Double> compile(T processor) throws ValidationException {
+        return new CompiledAnomaly((ZScoreAnomaly) processor);
+    }
+
+    @Override
+    public Map<String, TransportReference> getReferences() {
+        return procrefs;
+    }
+
+    @Override
+    public void setReferences(Map<String, TransportReference> procrefs) {
+        this.procrefs = procrefs;
+    }
+
+    static class CompiledAnomaly extends CompiledProcessor<Double> {
+
+        private final String inputAttributeName;
+        private final ZScoreAnomaly anomaly;
+
+        protected CompiledAnomaly(ZScoreAnomaly anomaly) {
+            super(anomaly);
+            this.anomaly = anomaly;
+            this.inputAttributeName = anomaly.getInput().getSourceAttributeName();
+        }
+
+        /**
+         * Fills the event with the value, its score, the baseline and the
+         * reason.
+         */
+        private void describe(ZScoreDetector detector, int signal, String valueName, double value,
+                Map<String, Object> event) {
+            String outAttName = anomaly.getOutputAttributeName();
+            event.put(valueName, value);
+            event.put(outAttName, detector.getScore());
+            event.put(outAttName + "_mean", detector.getMean());
+            event.put(outAttName + "_stddev", detector.getStandardDeviation());
+            event.put(outAttName + "_reason", String.format(Locale.ROOT, "%s baseline: |z| = %.2f > %.2f",
+                    signal == ZScoreDetector.HIGH ? "above" : "below", Math.abs(detector.getScore()),
+                    detector.getThreshold()));
+        }
+
+        @Override
+        public Integer processEvent(Transport runtime) {
+            String inputName = anomaly.getInputs().get(0).getName();
+            TransportReference ref = anomaly.getReferences().get(inputName);
+            if (ref == null) {
+                return GraphVocabulary.CANCEL;
+            }
+            if (!StreamPartitions.checkUnpartitioned(runtime, anomaly.getRedisUrl(), ref)) {
+                return GraphVocabulary.CANCEL;
+            }
+            String sourceClassName = ref.getReferenceClass();
+            String sourceId = ref.getReferenceId();
+
+            Map<String, NodeAttribute> attributes = ref.getAttributes();
+            String inputAttName;
+            if (attributes != null && attributes.size() == 1) {
+                inputAttName = attributes.keySet().iterator().next();
+            } else {
+                return GraphVocabulary.CANCEL;
+            }
+            try {
+                // fail early on bad settings
+                anomaly.newDetector();
+            } catch (IllegalArgumentException ex) {
+                LOG.log(Level.SEVERE, ex.getMessage());
+                return GraphVocabulary.CANCEL;
+            }
+
+            String keyAttName = anomaly.getKeyAttribute();
+            boolean keyed = keyAttName != null && !keyAttName.isEmpty();
+            // baselines per key, an ungrouped stream has the single key ""
+            KeyedState<ZScoreDetector> detectors = new KeyedState<>(anomaly::newDetector, anomaly.getIdleKeyTtl());
+            ColumnPage input = keyed ? ColumnPage.keyed(keyAttName, inputAttName) : new ColumnPage(inputAttName);
+
+            runtime.start();
+            String outputKey = StreamGroupReader.streamKey(anomaly.getClass().getCanonicalName(),
+                    anomaly.getId().toString());
+            EntryCodec codec = EntryCodec.create(runtime, anomaly.getRedisUrl());
+            StreamWriter writer = StreamWriter.create(runtime, anomaly.getClass().getCanonicalName(),
+                    anomaly.getId(), anomaly.getRedisUrl(), anomaly.getWriteBatchSize(),
+                    anomaly.getWriteLinger(), anomaly.getMaxStreamLength());
+
+            // writers copy the event, so the maps serve all anomalies
+            Map<String, Object> event = new HashMap<>();
+            Map<String, String> body = new HashMap<>();
+            Consumer<List<StreamMessage<String, String>>> pageHandler = list -> {
+                input.decode(list, codec);
+                double[] values = input.column(0);
+                for (int i = 0; i < input.size(); i++) {
+                    double value = values[i];
+                    if (Double.isNaN(value)) {
+                        continue;
+                    }
+                    String key = keyed && input.getKey(i) != null ? input.getKey(i) : "";
+                    ZScoreDetector detector = detectors.get(key, input.getTime(i, -1));
+                    int signal = detector.update(value);
+                    if (signal == ZScoreDetector.NONE) {
+                        continue;
+                    }
+                    event.clear();
+                    describe(detector, signal, inputAttName, value, event);
+                    if (keyed) {
+                        event.put(keyAttName, key);
+                    }
+                    body.clear();
+                    event.forEach((name, v) -> body.put(name, String.valueOf(v)));
+                    writer.write(body);
+                }
+            };
+
+            Integer status;
+            if (Boolean.TRUE.equals(anomaly.isStreamingMode())) {
+                StreamGroupReader reader = new StreamGroupReader(anomaly.getRedisUrl(),
+                        StreamGroupReader.streamKey(sourceClassName, sourceId), outputKey, anomaly.getBlockTimeout());
+                status = reader.consumePages(StreamGroupReader.DEFAULT_PAGE_SIZE, pageHandler, writer::flush);
+            } else {
+                String offset = "0";
+                while (true) {
+                    List<StreamMessage<String, String>> list = runtime.readEvents(sourceClassName,
+                            UUID.fromString(sourceId), offset);
+                    if (list.isEmpty()) {
+                        break;
+                    }
+                    pageHandler.accept(list);
+                    offset = list.get(list.size() - 1).getId();
+                }
+                status = GraphVocabulary.COMPLETE;
+            }
+            writer.close();
+            codec.close();
+            runtime.shutdown();
+            return status;
+        }
+
+        /**
+         *
+         * @return map describing the anomaly, null for a normal value
+         */
+        @Override
+        public Object processEvent(ProcessorContext<Double> ctx, Map<Integer, Event> eventsByInputId) {
+            Event event = eventsByInputId.get(INPUT_ID);
+            Double value = event.getAttributeAsDouble(inputAttributeName);
+            if (value == null) {
+                return null;
+            }
+            Memory processorMemory = ctx.getProcessorMemory();
+            ZScoreDetector detector = (ZScoreDetector) processorMemory;
+            int signal = detector.update(value);
+            if (signal == ZScoreDetector.NONE) {
+                return null;
+            }
+            Map<String, Object> retMap = new HashMap<>();
+            describe(detector, signal, inputAttributeName, value, retMap);
+            return retMap;
+        }
+    }
+}
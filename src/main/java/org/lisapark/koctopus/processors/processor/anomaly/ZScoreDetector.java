@@ -0,0 +1,235 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.processor.anomaly;
+
+import java.util.Collection;
+import java.util.Collections;
+import org.lisapark.koctopus.core.memory.Memory;
+import org.lisapark.koctopus.processors.memory.SlidingStatistics;
+
+/**
+ * Z-score of every value against the mean and standard deviation of the
+ * values before it, kept incrementally: either over a sliding window
+ * (Welford's add / evict updates, see {@link SlidingStatistics}) or as an
+ * exponentially weighted mean and variance with alpha = 2 / (span + 1).
+ * Both cost O(1) per value.
+ *
+ * A value is anomalous if |z| exceeds the threshold in the watched
+ * direction. Anomalies can be left out of the statistics, so a burst of
+ * outliers does not drag the baseline and hide itself.
+ *
+ * @author alexmy
+ */
+public final class ZScoreDetector implements Memory<Double> {
+
+    public static final String EWMA = "ewma";
+    public static final String WINDOW = "window";
+
+    public static final String BOTH = "both";
+    public static final String ABOVE = "above";
+    public static final String BELOW = "below";
+
+    /**
+     * Value is above the baseline.
+     */
+    public static final int HIGH = 1;
+    /**
+     * Value is below the baseline.
+     */
+    public static final int LOW = -1;
+    public static final int NONE = 0;
+
+    private final double threshold;
+    private final long warmUp;
+    private final int direction;
+    private final boolean learnAnomalies;
+
+    // sliding window statistics, null for EWMA
+    private final SlidingStatistics window;
+    private final double alpha;
+    private double ewmaMean;
+    private double ewmaVariance;
+    private long count;
+
+    private double score = Double.NaN;
+    private double mean = Double.NaN;
+    private double standardDeviation = Double.NaN;
+
+    /**
+     *
+     * @param method {@link #EWMA} or {@link #WINDOW}
+     * @param length window length or EWMA span, in values
+     * @param threshold min |z| of an anomaly
+     * @param warmUp number of values seen before scoring starts
+     * @param direction {@link #BOTH}, {@link #ABOVE} or {@link #BELOW}
+     * @param learnAnomalies if false, anomalies are not added to the
+     * statistics
+     */
+    public ZScoreDetector(String method, int length, double threshold, long warmUp, String direction,
+            boolean learnAnomalies) {
+        if (length < 2) {
+            throw new IllegalArgumentException("Window length should be greater than 1.");
+        }
+        if (!(threshold > 0)) {
+            throw new IllegalArgumentException("Threshold should be greater than 0.");
+        }
+        String m = method == null ? EWMA : method.trim().toLowerCase();
+        if (WINDOW.equals(m)) {
+            this.window = new SlidingStatistics(length);
+        } else if (EWMA.equals(m) || m.isEmpty()) {
+            this.window = null;
+        } else {
+            throw new IllegalArgumentException("Unknown method: " + method + ", expected ewma or window.");
+        }
+        String d = direction == null ? BOTH : direction.trim().toLowerCase();
+        if (ABOVE.equals(d)) {
+            this.direction = HIGH;
+        } else if (BELOW.equals(d)) {
+            this.direction = LOW;
+        } else if (BOTH.equals(d) || d.isEmpty()) {
+            this.direction = NONE;
+        } else {
+            throw new IllegalArgumentException("Unknown direction: " + direction + ", expected both, above or below.");
+        }
+        this.alpha = 2.0 / (length + 1);
+        this.threshold = threshold;
+        this.warmUp = Math.max(warmUp, 2);
+        this.learnAnomalies = learnAnomalies;
+    }
+
+    /**
+     * Scores the value against the statistics of the previous values, then
+     * adds it to them.
+     *
+     * @param value
+     * @return {@link #HIGH} or {@link #LOW} for an anomaly, {@link #NONE}
+     * otherwise
+     */
+    public int update(double value) {
+        mean = window == null ? ewmaMean : window.getMean();
+        standardDeviation = window == null ? Math.sqrt(ewmaVariance) : window.getStandardDeviation();
+
+        int signal = NONE;
+        if (count >= warmUp) {
+            double diff = value - mean;
+            if (standardDeviation > 0) {
+                score = diff / standardDeviation;
+            } else {
+                // any change of a constant series
+                score = diff == 0 ? 0 : Math.copySign(Double.POSITIVE_INFINITY, diff);
+            }
+            if (Math.abs(score) > threshold) {
+                signal = score > 0 ? HIGH : LOW;
+                if (direction != NONE && direction != signal) {
+                    signal = NONE;
+                }
+            }
+        } else {
+            score = Double.NaN;
+        }
+        if (signal == NONE || learnAnomalies) {
+            include(value);
+        }
+        return signal;
+    }
+
+    private void include(double value) {
+        count++;
+        if (window != null) {
+            window.add(value);
+            return;
+        }
+        if (count == 1) {
+            ewmaMean = value;
+            ewmaVariance = 0;
+            return;
+        }
+        double diff = value - ewmaMean;
+        double increment = alpha * diff;
+        ewmaMean += increment;
+        ewmaVariance = (1 - alpha) * (ewmaVariance + diff * increment);
+    }
+
+    /**
+     *
+     * @return z-score of the last value, NaN during warm up
+     */
+    public double getScore() {
+        return score;
+    }
+
+    /**
+     *
+     * @return baseline mean the last value was scored against
+     */
+    public double getMean() {
+        return mean;
+    }
+
+    /**
+     *
+     * @return baseline standard deviation the last value was scored against
+     */
+    public double getStandardDeviation() {
+        return standardDeviation;
+    }
+
+    public double getThreshold() {
+        return threshold;
+    }
+
+    /**
+     *
+     * @return number of values in the statistics
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public void clear() {
+        if (window != null) {
+            window.clear();
+        }
+        ewmaMean = 0;
+        ewmaVariance = 0;
+        count = 0;
+        score = Double.NaN;
+        mean = Double.NaN;
+        standardDeviation = Double.NaN;
+    }
+
+    @Override
+    public void add(Double value) {
+        if (value != null) {
+            update(value);
+        }
+    }
+
+    @Override
+    public boolean remove(Double value) {
+        return false;
+    }
+
+    /**
+     *
+     * @return window values, empty for EWMA statistics
+     */
+    @Override
+    public Collection<Double> values() {
+        return window == null ? Collections.emptyList() : window.values();
+    }
+}
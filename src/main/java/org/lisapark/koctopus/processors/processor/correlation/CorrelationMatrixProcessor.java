@@ -0,0 +1,553 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.processor.correlation;
+
+import com.fasterxml.uuid.Generators;
+import io.lettuce.core.StreamMessage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.ProgrammerException;
+import org.lisapark.koctopus.core.Persistable;
+import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.event.Event;
+import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.memory.Memory;
+import org.lisapark.koctopus.core.memory.MemoryProvider;
+import org.lisapark.koctopus.core.parameter.Constraints;
+import org.lisapark.koctopus.core.parameter.Parameter;
+import org.lisapark.koctopus.core.processor.AbstractProcessor;
+import org.lisapark.koctopus.core.processor.CompiledProcessor;
+import org.lisapark.koctopus.core.processor.ProcessorInput;
+import org.lisapark.koctopus.core.processor.ProcessorOutput;
+import org.lisapark.koctopus.core.runtime.ProcessorContext;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.core.transport.TransportReference;
+import org.lisapark.koctopus.processors.memory.SlidingCovariance;
+import org.lisapark.koctopus.processors.transport.ColumnPage;
+import org.lisapark.koctopus.processors.transport.EntryCodec;
+import org.lisapark.koctopus.processors.transport.StreamGroupReader;
+import org.lisapark.koctopus.processors.transport.StreamPartitions;
+import org.lisapark.koctopus.processors.transport.StreamWriter;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+
+/**
+ * This {@link AbstractProcessor} computes the correlation (or covariance)
+ * matrix of N series over a sliding window. The series are attributes of the
+ * same input entry, e.g. prices of several instruments sampled together, so
+ * every entry is one aligned row; entries missing one of the series are
+ * skipped.
+ *
+ * The matrix is kept incrementally by {@link SlidingCovariance}, one window
+ * for all pairs instead of one {@link PearsonsCorrelationProcessor} per
+ * pair. At a configured cadence either the full matrix is written as one
+ * event, with an attribute per pair, or the top k pairs by absolute value
+ * as k events.
+ *
+ * @author alexmy
+ */
+@Persistable
+public class CorrelationMatrixProcessor extends AbstractProcessor<double[]> {
+
+    static final Logger LOG = Logger.getLogger(CorrelationMatrixProcessor.class.getName());
+
+    private static final String DEFAULT_NAME = "CorrelationMatrix";
+    private static final String DEFAULT_DESCRIPTION = "Correlation or covariance matrix of N series over a sliding window.";
+    private static final String DEFAULT_INPUT_DESCRIPTION = "Source with the series as attributes of every entry.";
+    private static final String DEFAULT_OUTPUT_DESCRIPTION = "Prefix of the output attributes: the matrix is written as"
+            + " <prefix>_<series1>_<series2>, top k pairs as first, second, rank and <prefix>.";
+
+    public static final String CORRELATION = "correlation";
+    public static final String COVARIANCE = "covariance";
+
+    private static final int SERIES_PARAMETER_ID = 2;
+    private static final int WINDOW_LENGTH_PARAMETER_ID = 3;
+    private static final int STATISTIC_PARAMETER_ID = 4;
+    private static final int TOP_K_PARAMETER_ID = 5;
+    private static final int EMIT_EVERY_PARAMETER_ID = 6;
+    private static final int EMIT_INTERVAL_PARAMETER_ID = 7;
+    private static final int TRANSPORT_PARAMETER_ID = 8;
+    private static final int STREAMING_MODE_PARAMETER_ID = 9;
+    private static final int BLOCK_TIMEOUT_PARAMETER_ID = 10;
+    private static final int WRITE_BATCH_SIZE_PARAMETER_ID = 11;
+    private static final int WRITE_LINGER_PARAMETER_ID = 12;
+    private static final int MAX_STREAM_LENGTH_PARAMETER_ID = 13;
+
+    private static final int INPUT_ID = 1;
+    private static final int OUTPUT_ID = 1;
+
+    protected Map<String, TransportReference> procrefs = new HashMap<>();
+
+    public CorrelationMatrixProcessor() {
+        super(Generators.timeBasedGenerator().generate(), DEFAULT_NAME, DEFAULT_DESCRIPTION);
+    }
+
+    protected CorrelationMatrixProcessor(UUID id, String name, String description) {
+        super(id, name, description);
+    }
+
+    protected CorrelationMatrixProcessor(UUID id, CorrelationMatrixProcessor copyFromMatrix) {
+        super(id, copyFromMatrix);
+    }
+
+    protected CorrelationMatrixProcessor(CorrelationMatrixProcessor copyFromMatrix) {
+        super(copyFromMatrix);
+    }
+
+    public String getSeries() {
+        return getParameter(SERIES_PARAMETER_ID).getValueAsString();
+    }
+
+    /**
+     *
+     * @return names of the series attributes
+     */
+    public String[] getSeriesNames() {
+        List<String> names = new ArrayList<>();
+        String series = getSeries();
+        if (series != null) {
+            for (String name : series.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    names.add(name.trim());
+                }
+            }
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    public int getWindowLength() {
+        return getParameter(WINDOW_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getStatistic() {
+        return getParameter(STATISTIC_PARAMETER_ID).getValueAsString();
+    }
+
+    public int getTopK() {
+        return getParameter(TOP_K_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getEmitEvery() {
+        return getParameter(EMIT_EVERY_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getEmitInterval() {
+        return getParameter(EMIT_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getRedisUrl() {
+        return getParameter(TRANSPORT_PARAMETER_ID).getValueAsString();
+    }
+
+    public Boolean isStreamingMode() {
+        return (Boolean) getParameter(STREAMING_MODE_PARAMETER_ID).getValue();
+    }
+
+    public int getBlockTimeout() {
+        return getParameter(BLOCK_TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteBatchSize() {
+        return getParameter(WRITE_BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteLinger() {
+        return getParameter(WRITE_LINGER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getMaxStreamLength() {
+        return getParameter(MAX_STREAM_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public ProcessorInput getInput() {
+        return getInputs().get(0);
+    }
+
+    @Override
+    public CorrelationMatrixProcessor copyOf() {
+        return new CorrelationMatrixProcessor(this);
+    }
+
+    @Override
+    public CorrelationMatrixProcessor newInstance() {
+        return new CorrelationMatrixProcessor(Generators.timeBasedGenerator().generate(), this);
+    }
+
+    @Override
+    public CorrelationMatrixProcessor newInstance(Gnode gnode) {
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        CorrelationMatrixProcessor matrix = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildProcessor(matrix, gnode);
+
+        return matrix;
+    }
+
+    public static CorrelationMatrixProcessor newTemplate() {
+        UUID uuid = Generators.timeBasedGenerator().generate();
+        return newTemplate(uuid);
+    }
+
+    public static CorrelationMatrixProcessor newTemplate(UUID uuid) {
+        CorrelationMatrixProcessor matrix = new CorrelationMatrixProcessor(uuid, DEFAULT_NAME, DEFAULT_DESCRIPTION);
+        matrix.addParameter(
+                Parameter.stringParameterWithIdAndName(SERIES_PARAMETER_ID, "Series").
+                        description("Comma separated attributes of the input entries, one per series.").
+                        required(true)
+        );
+        matrix.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_LENGTH_PARAMETER_ID, "Time window").
+                        description("Number of rows in the sliding window.").
+                        defaultValue(100).required(true).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(2,
+                                "Time window should be greater than 1."))
+        );
+        matrix.addParameter(
+                Parameter.stringParameterWithIdAndName(STATISTIC_PARAMETER_ID, "Statistic").
+                        description("correlation - Pearson's correlation of every pair, covariance - sample"
+                                + " covariance of every pair and variance of every series.").
+                        defaultValue(CORRELATION)
+        );
+        matrix.addParameter(
+                Parameter.integerParameterWithIdAndName(TOP_K_PARAMETER_ID, "Top k").
+                        description("If greater than 0, only the k pairs with the highest absolute value are"
+                                + " written, one event per pair. 0 - the full matrix in one event.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Top k cannot be negative."))
+        );
+        matrix.addParameter(
+                Parameter.integerParameterWithIdAndName(EMIT_EVERY_PARAMETER_ID, "Emit every").
+                        description("The matrix is written after every n rows once the window is full."
+                                + " 0 - by Emit interval only.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Emit every cannot be negative."))
+        );
+        matrix.addParameter(
+                Parameter.integerParameterWithIdAndName(EMIT_INTERVAL_PARAMETER_ID, "Emit interval").
+                        description("The matrix is written at most every n milliseconds of stream time."
+                                + " 0 - by Emit every only. If both are 0, after every row.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Emit interval cannot be negative."))
+        );
+        matrix.addParameter(
+                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
+                        description("Redis URL.").
+                        defaultValue("redis://localhost")
+        );
+        matrix.addParameter(
+                Parameter.booleanParameterWithIdAndName(STREAMING_MODE_PARAMETER_ID, "Streaming mode").
+                        description("If true, tails the input stream through a consumer group until stopped,"
+                                + " otherwise reads the stream from the beginning and completes at its end.").
+                        defaultValue(false)
+        );
+        matrix.addParameter(
+                Parameter.integerParameterWithIdAndName(BLOCK_TIMEOUT_PARAMETER_ID, "Block timeout").
+                        description("Streaming mode only. Milliseconds to wait for new entries on each read.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Block timeout should be greater than 0."))
+        );
+        matrix.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_BATCH_SIZE_PARAMETER_ID, "Write batch size").
+                        description("Number of output events sent to Redis in one pipelined batch. 1 - no batching.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Write batch size should be greater than 0."))
+        );
+        matrix.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_LINGER_PARAMETER_ID, "Write linger").
+                        description("Max milliseconds an output event waits in a batch before it is sent.").
+                        defaultValue(10)
+        );
+        matrix.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_STREAM_LENGTH_PARAMETER_ID, "Max stream length").
+                        description("Approximate max length of the output stream (XADD MAXLEN ~). 0 - no trimming.").
+                        defaultValue(0)
+        );
+
+        matrix.addInput(
+                ProcessorInput.doubleInputWithId(INPUT_ID).name("Input").description(DEFAULT_INPUT_DESCRIPTION)
+        );
+        try {
+            matrix.setOutput(
+                    ProcessorOutput.doubleOutputWithId(OUTPUT_ID).name("Matrix").description(DEFAULT_OUTPUT_DESCRIPTION).attributeName("corr")
+            );
+        } catch (ValidationException ex) {
+            // this should NOT happen. It means we created the processor with an invalid attribute name
+            throw new ProgrammerException(ex);
+        }
+        return matrix;
+    }
+
+    /**
+     * All pairs share one {@link SlidingCovariance} window.
+     *
+     * @param memoryProvider not used
+     * @return window of the series
+     */
+    @Override
+    public Memory<double[]> createMemoryForProcessor(MemoryProvider memoryProvider) {
+        return new SlidingCovariance(Math.max(getSeriesNames().length, 1), getWindowLength());
+    }
+
+    @Override
+    public CompiledProcessor<double[]> compile() throws ValidationException {
+        validate();
+        CorrelationMatrixProcessor copy = copyOf();
+        return new CompiledMatrix(copy);
+    }
+
+    @Override
+    public <T extends AbstractProcessor> CompiledProcessor<double[]> compile(T processor) throws ValidationException {
+        return new CompiledMatrix((CorrelationMatrixProcessor) processor);
+    }
+
+    @Override
+    public Map<String, TransportReference> getReferences() {
+        return procrefs;
+    }
+
+    @Override
+    public void setReferences(Map<String, TransportReference> procrefs) {
+        this.procrefs = procrefs;
+    }
+
+    static class CompiledMatrix extends CompiledProcessor<double[]> {
+
+        private final CorrelationMatrixProcessor matrix;
+        private final String[] series;
+        private final boolean covariance;
+
+        private final double[] row;
+        private long sinceEmit;
+        private long lastEmit = Long.MIN_VALUE;
+        // top k pairs, highest absolute value first
+        private final int[] topFirst;
+        private final int[] topSecond;
+        private final double[] topValue;
+
+        protected CompiledMatrix(CorrelationMatrixProcessor matrix) {
+            super(matrix);
+            this.matrix = matrix;
+            this.series = matrix.getSeriesNames();
+            this.covariance = COVARIANCE.equalsIgnoreCase(matrix.getStatistic().trim());
+            this.row = new double[series.length];
+            int k = Math.min(matrix.getTopK(), series.length * (series.length - 1) / 2);
+            this.topFirst = new int[k];
+            this.topSecond = new int[k];
+            this.topValue = new double[k];
+        }
+
+        private double value(SlidingCovariance window, int i, int j) {
+            return covariance ? window.getCovariance(i, j) : window.getCorrelation(i, j);
+        }
+
+        private boolean shouldEmit(long time) {
+            int emitEvery = matrix.getEmitEvery();
+            int emitInterval = matrix.getEmitInterval();
+            sinceEmit++;
+            boolean emit = emitEvery == 0 && emitInterval == 0
+                    || emitEvery > 0 && sinceEmit >= emitEvery;
+            if (emitInterval > 0) {
+                if (lastEmit == Long.MIN_VALUE) {
+                    lastEmit = time;
+                } else if (time - lastEmit >= emitInterval) {
+                    emit = true;
+                }
+            }
+            if (emit) {
+                sinceEmit = 0;
+                if (emitInterval > 0) {
+                    lastEmit = time;
+                }
+            }
+            return emit;
+        }
+
+        /**
+         * Full matrix as one event: an attribute per pair, and per series for
+         * the covariance diagonal.
+         */
+        private void matrix(SlidingCovariance window, Map<String, Object> event) {
+            String prefix = matrix.getOutputAttributeName();
+            for (int i = 0; i < series.length; i++) {
+                for (int j = covariance ? i : i + 1; j < series.length; j++) {
+                    event.put(prefix + "_" + series[i] + "_" + series[j], value(window, i, j));
+                }
+            }
+        }
+
+        /**
+         * Selects the k pairs with the highest absolute value, insertion into
+         * a sorted array of k, O(N^2 * k) in the worst case.
+         *
+         * @return number of pairs selected
+         */
+        private int topPairs(SlidingCovariance window) {
+            int k = topValue.length;
+            int n = 0;
+            for (int i = 0; i < series.length; i++) {
+                for (int j = i + 1; j < series.length; j++) {
+                    double v = value(window, i, j);
+                    if (Double.isNaN(v) || n == k && Math.abs(v) <= Math.abs(topValue[k - 1])) {
+                        continue;
+                    }
+                    int at = n < k ? n++ : k - 1;
+                    while (at > 0 && Math.abs(topValue[at - 1]) < Math.abs(v)) {
+                        topFirst[at] = topFirst[at - 1];
+                        topSecond[at] = topSecond[at - 1];
+                        topValue[at] = topValue[at - 1];
+                        at--;
+                    }
+                    topFirst[at] = i;
+                    topSecond[at] = j;
+                    topValue[at] = v;
+                }
+            }
+            return n;
+        }
+
+        private void write(SlidingCovariance window, StreamWriter writer) {
+            Map<String, String> event = new HashMap<>();
+            if (topValue.length == 0) {
+                Map<String, Object> values = new HashMap<>();
+                matrix(window, values);
+                values.forEach((name, v) -> event.put(name, String.valueOf(v)));
+                writer.write(event);
+                return;
+            }
+            int n = topPairs(window);
+            for (int r = 0; r < n; r++) {
+                event.clear();
+                event.put("first", series[topFirst[r]]);
+                event.put("second", series[topSecond[r]]);
+                event.put("rank", String.valueOf(r + 1));
+                event.put(matrix.getOutputAttributeName(), String.valueOf(topValue[r]));
+                writer.write(event);
+            }
+        }
+
+        @Override
+        public Integer processEvent(Transport runtime) {
+            String inputName = matrix.getInputs().get(0).getName();
+            TransportReference ref = matrix.getReferences().get(inputName);
+            if (ref == null || series.length < 2) {
+                LOG.log(Level.SEVERE, "Correlation matrix needs an input and at least two series.");
+                return GraphVocabulary.CANCEL;
+            }
+            if (!StreamPartitions.checkUnpartitioned(runtime, matrix.getRedisUrl(), ref)) {
+                return GraphVocabulary.CANCEL;
+            }
+            String sourceClassName = ref.getReferenceClass();
+            String sourceId = ref.getReferenceId();
+
+            SlidingCovariance window = new SlidingCovariance(series.length, matrix.getWindowLength());
+            ColumnPage input = new ColumnPage(series);
+
+            runtime.start();
+            String outputKey = StreamGroupReader.streamKey(matrix.getClass().getCanonicalName(),
+                    matrix.getId().toString());
+            EntryCodec codec = EntryCodec.create(runtime, matrix.getRedisUrl());
+            StreamWriter writer = StreamWriter.create(runtime, matrix.getClass().getCanonicalName(),
+                    matrix.getId(), matrix.getRedisUrl(), matrix.getWriteBatchSize(),
+                    matrix.getWriteLinger(), matrix.getMaxStreamLength());
+
+            Consumer<List<StreamMessage<String, String>>> pageHandler = list -> {
+                input.decode(list, codec);
+                rows:
+                for (int r = 0; r < input.size(); r++) {
+                    for (int i = 0; i < series.length; i++) {
+                        double value = input.column(i)[r];
+                        if (Double.isNaN(value)) {
+                            continue rows;
+                        }
+                        row[i] = value;
+                    }
+                    window.add(row, 0);
+                    if (window.isFull() && shouldEmit(input.getTime(r, -1))) {
+                        write(window, writer);
+                    }
+                }
+            };
+
+            Integer status;
+            if (Boolean.TRUE.equals(matrix.isStreamingMode())) {
+                StreamGroupReader reader = new StreamGroupReader(matrix.getRedisUrl(),
+                        StreamGroupReader.streamKey(sourceClassName, sourceId), outputKey, matrix.getBlockTimeout());
+                status = reader.consumePages(StreamGroupReader.DEFAULT_PAGE_SIZE, pageHandler, writer::flush);
+            } else {
+                String offset = "0";
+                while (true) {
+                    List<StreamMessage<String, String>> list = runtime.readEvents(sourceClassName,
+                            UUID.fromString(sourceId), offset);
+                    if (list.isEmpty()) {
+                        break;
+                    }
+                    pageHandler.accept(list);
+                    offset = list.get(list.size() - 1).getId();
+                }
+                status = GraphVocabulary.COMPLETE;
+            }
+            writer.close();
+            codec.close();
+            runtime.shutdown();
+            return status;
+        }
+
+        /**
+         * The emit interval is measured in wall clock time on this path.
+         *
+         * @return the matrix, or the top k pairs under keys
+         * &lt;output&gt;_&lt;rank&gt;, null if not emitted
+         */
+        @Override
+        public Object processEvent(ProcessorContext<double[]> ctx, Map<Integer, Event> eventsByInputId) {
+            Event event = eventsByInputId.get(INPUT_ID);
+            for (int i = 0; i < series.length; i++) {
+                Double value = event.getAttributeAsDouble(series[i]);
+                if (value == null) {
+                    return null;
+                }
+                row[i] = value;
+            }
+            Memory processorMemory = ctx.getProcessorMemory();
+            SlidingCovariance window = (SlidingCovariance) processorMemory;
+            window.add(row, 0);
+            if (!window.isFull() || !shouldEmit(System.currentTimeMillis())) {
+                return null;
+            }
+            Map<String, Object> retMap = new HashMap<>();
+            if (topValue.length == 0) {
+                matrix(window, retMap);
+                return retMap;
+            }
+            String prefix = matrix.getOutputAttributeName();
+            int n = topPairs(window);
+            for (int r = 0; r < n; r++) {
+                retMap.put(prefix + "_" + (r + 1), series[topFirst[r]] + ":" + series[topSecond[r]] + "="
+                        + topValue[r]);
+            }
+            return retMap;
+        }
+    }
+}
@@ -17,14 +17,14 @@
 package org.lisapark.koctopus.processors.processor.correlation;
 
 import com.fasterxml.uuid.Generators;
-import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
-import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 import org.lisapark.koctopus.ProgrammerException;
 import org.lisapark.koctopus.core.ValidationException;
 import org.lisapark.koctopus.core.event.Event;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
 import org.lisapark.koctopus.core.memory.Memory;
 import org.lisapark.koctopus.core.memory.MemoryProvider;
 import org.lisapark.koctopus.core.parameter.Constraints;
@@ -37,6 +37,18 @@ import org.lisapark.koctopus.core.runtime.ProcessorContext;
 import org.lisapark.koctopus.core.transport.TransportReference;
 import org.lisapark.koctopus.util.Pair;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.processors.memory.KeyedState;
+import org.lisapark.koctopus.processors.memory.SlidingPairStatistics;
+import org.lisapark.koctopus.processors.memory.Snapshottable;
+import org.lisapark.koctopus.processors.memory.TimeWindow;
+import org.lisapark.koctopus.processors.memory.TimedPairWindow;
+import org.lisapark.koctopus.processors.transport.EntryCodec;
+import org.lisapark.koctopus.processors.transport.StateSnapshot;
+import org.lisapark.koctopus.processors.transport.StreamGroupReader;
+import org.lisapark.koctopus.processors.transport.StreamJoin;
+import org.lisapark.koctopus.processors.transport.StreamPartitions;
+import org.lisapark.koctopus.processors.transport.StreamWriter;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
 
 /**
  *
@@ -62,9 +74,26 @@ public class PearsonsCorrelationProcessor extends AbstractProcessor<Pair<Double,
     private static final int FIRST_INPUT_ID = 1;
     private static final int SECOND_INPUT_ID = 2;
     private static final int WINDOW_LENGTH_PARAMETER_ID = 3;
+    private static final int TRANSPORT_PARAMETER_ID = 4;
+    private static final int JOIN_ALIGNMENT_PARAMETER_ID = 5;
+    private static final int JOIN_TOLERANCE_PARAMETER_ID = 6;
+    private static final int JOIN_BUFFER_PARAMETER_ID = 7;
+    private static final int WINDOW_DURATION_PARAMETER_ID = 8;
+    private static final int WINDOW_HOP_PARAMETER_ID = 9;
+    private static final int TIME_ATTRIBUTE_PARAMETER_ID = 10;
+    private static final int KEY_ATTRIBUTE_PARAMETER_ID = 11;
+    private static final int IDLE_KEY_TTL_PARAMETER_ID = 12;
+    private static final int SNAPSHOT_INTERVAL_PARAMETER_ID = 13;
+    private static final int STREAMING_MODE_PARAMETER_ID = 14;
+    private static final int BLOCK_TIMEOUT_PARAMETER_ID = 15;
+    private static final int WRITE_BATCH_SIZE_PARAMETER_ID = 16;
+    private static final int WRITE_LINGER_PARAMETER_ID = 17;
+    private static final int MAX_STREAM_LENGTH_PARAMETER_ID = 18;
     
     private static final int OUTPUT_ID = 1;
     
+    protected Map<String, TransportReference> procrefs = new HashMap<>();
+
 
     protected PearsonsCorrelationProcessor(UUID id, String name, String description) {
         super(id, name, description);
@@ -87,7 +116,67 @@ public class PearsonsCorrelationProcessor extends AbstractProcessor<Pair<Double,
     public void setWindowLength(int windowLength) throws ValidationException {
         getParameter(WINDOW_LENGTH_PARAMETER_ID).setValue(windowLength);
     }
+
+    public String getRedisUrl() {
+        return getParameter(TRANSPORT_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getJoinAlignment() {
+        return getParameter(JOIN_ALIGNMENT_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getJoinTolerance() {
+        return getParameter(JOIN_TOLERANCE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getJoinBuffer() {
+        return getParameter(JOIN_BUFFER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Boolean isStreamingMode() {
+        return (Boolean) getParameter(STREAMING_MODE_PARAMETER_ID).getValue();
+    }
+
+    public int getBlockTimeout() {
+        return getParameter(BLOCK_TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
     
+    public Integer getWindowDuration() {
+        return getParameter(WINDOW_DURATION_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getWindowHop() {
+        return getParameter(WINDOW_HOP_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getTimeAttribute() {
+        return getParameter(TIME_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getKeyAttribute() {
+        return getParameter(KEY_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getIdleKeyTtl() {
+        return getParameter(IDLE_KEY_TTL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getSnapshotInterval() {
+        return getParameter(SNAPSHOT_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteBatchSize() {
+        return getParameter(WRITE_BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteLinger() {
+        return getParameter(WRITE_LINGER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getMaxStreamLength() {
+        return getParameter(MAX_STREAM_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
     public ProcessorInput getFirstInput() {
         // there are two inputs for pearsonsCorrelationProcessor
         return getInputs().get(0);
@@ -105,7 +194,11 @@ public class PearsonsCorrelationProcessor extends AbstractProcessor<Pair<Double,
 
     @Override
     public PearsonsCorrelationProcessor newInstance(Gnode gnode) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        PearsonsCorrelationProcessor correlation = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildProcessor(correlation, gnode);
+
+        return correlation;
     }
 
     @Override
@@ -116,14 +209,15 @@ public class PearsonsCorrelationProcessor extends AbstractProcessor<Pair<Double,
     /**
      * {@link Correlation}s need memory to store the prior events that will be used 
      * to calculate Pearsons correlation. We
-     * used a {@link MemoryProvider#createCircularBuffer(int)} to store this data.
+     * used a {@link SlidingPairStatistics} to store this data, it keeps the
+     * running moments so the coefficient is updated in constant time.
      *
      * @param memoryProvider used to create Correlation's memory
      * @return circular buffer
      */
     @Override
     public Memory<Pair<Double, Double>> createMemoryForProcessor(MemoryProvider memoryProvider) {
-        return memoryProvider.createCircularBuffer(getWindowLength());
+        return new SlidingPairStatistics(getWindowLength());
     }
     
     @Override
@@ -144,6 +238,10 @@ public class PearsonsCorrelationProcessor extends AbstractProcessor<Pair<Double,
      */
     public static PearsonsCorrelationProcessor newTemplate() {
         UUID processorId = Generators.timeBasedGenerator().generate();
+        return newTemplate(processorId);
+    }
+
+    public static PearsonsCorrelationProcessor newTemplate(UUID processorId) {
         PearsonsCorrelationProcessor correlation = new PearsonsCorrelationProcessor(processorId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
         
         correlation.addParameter(
@@ -152,6 +250,99 @@ public class PearsonsCorrelationProcessor extends AbstractProcessor<Pair<Double,
                         defaultValue(10).required(true).
                         constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Time window should be greater than 0."))
         );
+        correlation.addParameter(
+                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
+                        description("Redis URL.").
+                        defaultValue("redis://localhost"));
+        correlation.addParameter(
+                Parameter.stringParameterWithIdAndName(JOIN_ALIGNMENT_PARAMETER_ID, "Join alignment").
+                        description("How entries of the two input streams are paired: sequence - by position,"
+                                + " timestamp - by stream entry ID time within the join tolerance.").
+                        defaultValue(StreamJoin.SEQUENCE));
+        correlation.addParameter(
+                Parameter.integerParameterWithIdAndName(JOIN_TOLERANCE_PARAMETER_ID, "Join tolerance").
+                        description("Max difference in milliseconds between timestamps of paired entries.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Join tolerance cannot be negative.")));
+        correlation.addParameter(
+                Parameter.integerParameterWithIdAndName(JOIN_BUFFER_PARAMETER_ID, "Join buffer").
+                        description("Max number of entries buffered for the input stream that runs ahead.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Join buffer has to be greater than zero.")));
+        correlation.addParameter(
+                Parameter.booleanParameterWithIdAndName(STREAMING_MODE_PARAMETER_ID, "Streaming mode").
+                        description("If true, tails both input streams through consumer groups until stopped,"
+                                + " otherwise reads the streams from the beginning and completes at their end.").
+                        defaultValue(false));
+        correlation.addParameter(
+                Parameter.integerParameterWithIdAndName(BLOCK_TIMEOUT_PARAMETER_ID, "Block timeout").
+                        description("Streaming mode only. Milliseconds to wait for new entries on each read.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Block timeout should be greater than 0.")));
+
+        correlation.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_DURATION_PARAMETER_ID, "Window duration").
+                        description("Milliseconds of event time in the window instead of the Time-window count."
+                                + " 0 - count based window.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Window duration cannot be negative.")));
+
+        correlation.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_HOP_PARAMETER_ID, "Window hop").
+                        description("Milliseconds between ends of duration based windows, the result is written"
+                                + " once per window. Equal to duration - tumbling windows. 0 - sliding window.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Window hop cannot be negative.")));
+
+        correlation.addParameter(
+                Parameter.stringParameterWithIdAndName(TIME_ATTRIBUTE_PARAMETER_ID, "Time attribute").
+                        description("Attribute of the first input with the event time in epoch milliseconds."
+                                + " Empty - time of the stream entry ID.").
+                        defaultValue(""));
+
+        correlation.addParameter(
+                Parameter.stringParameterWithIdAndName(KEY_ATTRIBUTE_PARAMETER_ID, "Key attribute").
+                        description("Attribute of the first input; the correlation is computed per its value"
+                                + " and written with it. Empty - one window.").
+                        defaultValue(""));
+
+        correlation.addParameter(
+                Parameter.integerParameterWithIdAndName(IDLE_KEY_TTL_PARAMETER_ID, "Idle key TTL").
+                        description("Milliseconds of event time after which the window of a key that got no"
+                                + " pairs is dropped. 0 - windows are kept.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Idle key TTL cannot be negative.")));
+
+        correlation.addParameter(
+                Parameter.integerParameterWithIdAndName(SNAPSHOT_INTERVAL_PARAMETER_ID, "Snapshot interval").
+                        description("Milliseconds between snapshots of the windows with the last joined stream IDs,"
+                                + " a restart resumes from them with warm windows. 0 - no snapshots.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Snapshot interval cannot be negative.")));
+
+        correlation.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_BATCH_SIZE_PARAMETER_ID, "Write batch size").
+                        description("Number of output events sent to Redis in one pipelined batch. 1 - no batching.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Write batch size should be greater than 0.")));
+
+        correlation.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_LINGER_PARAMETER_ID, "Write linger").
+                        description("Max milliseconds an output event waits in a batch before it is sent.").
+                        defaultValue(10));
+
+        correlation.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_STREAM_LENGTH_PARAMETER_ID, "Max stream length").
+                        description("Approximate max length of the output stream (XADD MAXLEN ~). 0 - no trimming.").
+                        defaultValue(0));
 
         // two double inputs
         ProcessorInput<Double> firstInput = ProcessorInput.doubleInputWithId(FIRST_INPUT_ID).name("Sequence 1").description("Sequence 1.").build();
@@ -175,17 +366,17 @@ public class PearsonsCorrelationProcessor extends AbstractProcessor<Pair<Double,
 
     @Override
     public <T extends AbstractProcessor> CompiledProcessor<Pair<Double, Double>> compile(T processor) throws ValidationException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return new CompiledCorrelation((PearsonsCorrelationProcessor) processor);
     }
 
     @Override
     public Map<String, TransportReference> getReferences() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return procrefs;
     }
 
     @Override
-    public void setReferences(Map<String, TransportReference> sourceref) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public void setReferences(Map<String, TransportReference> procrefs) {
+        this.procrefs = procrefs;
     }
 
     static class CompiledCorrelation extends CompiledProcessor<Pair<Double, Double>> {
@@ -214,37 +405,135 @@ public class PearsonsCorrelationProcessor extends AbstractProcessor<Pair<Double,
             
             if (firstOperand != null && secondOperand != null) {
                 
-                Memory<Pair<Double, Double>> processorMemory = ctx.getProcessorMemory();
-                
-                Pair<Double, Double> newPair = new Pair<>(firstOperand, secondOperand);
-                processorMemory.add(newPair);
-               
-                int arraySize = correlation.getWindowLength(); 
-                double[] first = new double[arraySize];
-                double[] second = new double[arraySize];
-
-                final Collection<Pair<Double, Double>> memoryItems = processorMemory.values();
-               
-                if (memoryItems.size() >= arraySize) {
-
-                    int i = 0;
-                    for (Pair<Double, Double> memoryItem : memoryItems) {
-                        first[i] = memoryItem.getFirst();
-                        second[i] = memoryItem.getSecond();
-                        i++;
-                    }
-                    
-                    retValue = new PearsonsCorrelation().correlation(first, second);
-
-                }
+                SlidingPairStatistics processorMemory = (SlidingPairStatistics) ctx.getProcessorMemory();
+                retValue = correlate(processorMemory, firstOperand, secondOperand);
             }            
             
             return retValue;
         }
 
+        private Double correlate(SlidingPairStatistics processorMemory, double firstOperand, double secondOperand) {
+            processorMemory.add(firstOperand, secondOperand);
+
+            if (!processorMemory.isFull()) {
+                return null;
+            }
+            // NaN if one of the series is constant, as PearsonsCorrelation does
+            return processorMemory.getCorrelation();
+        }
+
+        private void writeTimed(StreamWriter writer, Map<String, Object> event, String outAttName, String key,
+                SlidingPairStatistics window) {
+            if (window.size() > 1) {
+                write(writer, event, outAttName, key, window.getCorrelation());
+            }
+        }
+
+        private void write(StreamWriter writer, Map<String, Object> event, String outAttName, String key,
+                double res) {
+            event.put(outAttName, String.valueOf(res));
+            if (key != null) {
+                event.put(correlation.getKeyAttribute(), key);
+            }
+            writer.write(event);
+        }
+
         @Override
         public Object processEvent(Transport runtime) {
-            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+            TransportReference firstRef = correlation.getReferences().get(correlation.getFirstInput().getName());
+            TransportReference secondRef = correlation.getReferences().get(correlation.getSecondInput().getName());
+            if (firstRef == null || secondRef == null) {
+                return GraphVocabulary.CANCEL;
+            }
+            String firstAttName = StreamJoin.attributeName(firstRef);
+            String secondAttName = StreamJoin.attributeName(secondRef);
+            if (firstAttName == null || secondAttName == null) {
+                return GraphVocabulary.CANCEL;
+            }
+            if (!StreamPartitions.checkUnpartitioned(runtime, correlation.getRedisUrl(), firstRef, secondRef)) {
+                return GraphVocabulary.CANCEL;
+            }
+            String outAttName = correlation.getOutputAttributeName();
+            int windowLength = correlation.getWindowLength();
+            int duration = correlation.getWindowDuration();
+            int hop = correlation.getWindowHop();
+            String timeAttName = correlation.getTimeAttribute();
+            String keyAttName = correlation.getKeyAttribute();
+            boolean keyed = keyAttName != null && !keyAttName.isEmpty();
+            boolean streaming = Boolean.TRUE.equals(correlation.isStreamingMode());
+            StateSnapshot snapshot = new StateSnapshot(correlation.getRedisUrl(), correlation.getId().toString(),
+                    "join", "pearson|" + windowLength + "|" + duration + "|" + hop + "|" + keyAttName,
+                    streaming ? 0 : correlation.getSnapshotInterval());
+            // windows per key, an ungrouped stream has the single key ""
+            KeyedState<SlidingPairStatistics> counted = duration > 0
+                    ? null : snapshot.restore(() -> new KeyedState<>(
+                            () -> new SlidingPairStatistics(windowLength), correlation.getIdleKeyTtl()));
+            KeyedState<TimedPairWindow> timedByKey = duration > 0
+                    ? snapshot.restore(() -> new KeyedState<>(
+                            () -> new TimedPairWindow(duration, hop), correlation.getIdleKeyTtl())) : null;
+            Snapshottable state = duration > 0 ? timedByKey : counted;
+            // IDs of the last joined pair
+            String[] offsets = StreamJoin.splitOffsets(snapshot.getRestoredOffset());
+
+            runtime.start();
+            EntryCodec codec = EntryCodec.create(runtime, correlation.getRedisUrl());
+            StreamJoin join = new StreamJoin(runtime, firstRef, secondRef, correlation.getJoinAlignment(),
+                    correlation.getJoinTolerance(), correlation.getJoinBuffer());
+            join.seek(offsets[0], offsets[1]);
+            StreamWriter writer = StreamWriter.create(runtime, correlation.getClass().getCanonicalName(),
+                    correlation.getId(), correlation.getRedisUrl(), correlation.getWriteBatchSize(),
+                    correlation.getWriteLinger(), correlation.getMaxStreamLength());
+            // writers copy the event, so the map serves all results
+            Map<String, Object> event = new HashMap<>();
+            StreamJoin.PairHandler handler = (first, second) -> {
+                // the state holds everything up to the previous pair
+                snapshot.update(StreamJoin.joinOffsets(offsets), state, writer::flush);
+                offsets[0] = first.getId();
+                offsets[1] = second.getId();
+                Double firstOperand = codec.getDouble(first.getBody(), firstAttName);
+                Double secondOperand = codec.getDouble(second.getBody(), secondAttName);
+                if (firstOperand == null || secondOperand == null) {
+                    return;
+                }
+                String key = null;
+                if (keyed) {
+                    key = codec.getString(first.getBody(), keyAttName);
+                    key = key == null ? "" : key;
+                }
+                if (timedByKey == null) {
+                    long now = correlation.getIdleKeyTtl() > 0 ? StreamJoin.eventTime(first, codec, timeAttName) : 0L;
+                    Double res = correlate(counted.get(key == null ? "" : key, now), firstOperand, secondOperand);
+                    if (res != null) {
+                        write(writer, event, outAttName, key, res);
+                    }
+                    return;
+                }
+                long time = StreamJoin.eventTime(first, codec, timeAttName);
+                TimedPairWindow timed = timedByKey.get(key == null ? "" : key, time);
+                while (timed.close(time) != TimeWindow.NONE) {
+                    writeTimed(writer, event, outAttName, key, timed.getStatistics());
+                }
+                timed.add(time, firstOperand, secondOperand);
+                if (!timed.isHopping()) {
+                    writeTimed(writer, event, outAttName, key, timed.getStatistics());
+                }
+            };
+            Integer status;
+            if (streaming) {
+                // one consumer group per processor, named after its output stream
+                String groupName = StreamGroupReader.streamKey(correlation.getClass().getCanonicalName(),
+                        correlation.getId().toString());
+                status = join.tail(correlation.getRedisUrl(), groupName, correlation.getBlockTimeout(), handler,
+                        writer::flush);
+            } else {
+                status = join.run(handler);
+            }
+            writer.close();
+            snapshot.commit(StreamJoin.joinOffsets(offsets), state);
+            snapshot.close();
+            codec.close();
+            runtime.shutdown();
+            return status;
         }
     }
 }
@@ -21,9 +21,7 @@ package org.lisapark.koctopus.processors.processor.crossing;
  * @author Alex Mylnikov (alexmy@lisa-park.com)
  */
 import com.fasterxml.uuid.Generators;
-import com.google.common.collect.Lists;
-import java.util.Collection;
-import java.util.List;
+import java.util.HashMap;
 import org.lisapark.koctopus.ProgrammerException;
 import org.lisapark.koctopus.core.Persistable;
 import org.lisapark.koctopus.core.ValidationException;
@@ -35,6 +33,8 @@ import java.util.UUID;
 import org.lisapark.koctopus.core.graph.Gnode;
 import org.lisapark.koctopus.core.memory.Memory;
 import org.lisapark.koctopus.core.memory.MemoryProvider;
+import org.lisapark.koctopus.core.parameter.Constraints;
+import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.processor.CompiledProcessor;
 import org.lisapark.koctopus.core.processor.AbstractProcessor;
 import org.lisapark.koctopus.core.processor.ProcessorInput;
@@ -42,6 +42,8 @@ import org.lisapark.koctopus.core.processor.ProcessorOutput;
 import org.lisapark.koctopus.core.transport.TransportReference;
 import org.lisapark.koctopus.util.Pair;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.processors.transport.StreamJoin;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
 
 /**
  * This {@link AbstractProcessor} is used to determine if two SMAs are crossed.
@@ -50,7 +52,7 @@ import org.lisapark.koctopus.core.transport.Transport;
  * @author dave sinclair(david.sinclair@lisa-park.com)
  */
 @Persistable
-public class CrossAbove extends AbstractProcessor<Pair> {
+public class CrossAbove extends AbstractProcessor<Pair> implements CrossingStream.Settings {
     
     private final static java.util.logging.Logger LOGGER 
             = java.util.logging.Logger.getLogger(CrossAbove.class.getName());
@@ -67,7 +69,19 @@ public class CrossAbove extends AbstractProcessor<Pair> {
     private static final int FIRST_INPUT_ID = 1;
     private static final int SECOND_INPUT_ID = 2;
     private static final int OUTPUT_ID = 1;
-    private static final int BUFFER_SIZE = 2;
+    private static final int TRANSPORT_PARAMETER_ID = 3;
+    private static final int JOIN_ALIGNMENT_PARAMETER_ID = 4;
+    private static final int JOIN_TOLERANCE_PARAMETER_ID = 5;
+    private static final int JOIN_BUFFER_PARAMETER_ID = 6;
+    private static final int HYSTERESIS_PARAMETER_ID = 7;
+    private static final int MIN_SIGNAL_GAP_PARAMETER_ID = 8;
+    private static final int STREAMING_MODE_PARAMETER_ID = 9;
+    private static final int BLOCK_TIMEOUT_PARAMETER_ID = 10;
+    private static final int WRITE_BATCH_SIZE_PARAMETER_ID = 11;
+    private static final int WRITE_LINGER_PARAMETER_ID = 12;
+    private static final int MAX_STREAM_LENGTH_PARAMETER_ID = 13;
+
+    protected Map<String, TransportReference> procrefs = new HashMap<>();
 
     protected CrossAbove(UUID id, String name, String description) {
         super(id, name, description);
@@ -81,6 +95,50 @@ public class CrossAbove extends AbstractProcessor<Pair> {
         super(crossAboveToCopy);
     }
 
+    public String getRedisUrl() {
+        return getParameter(TRANSPORT_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getJoinAlignment() {
+        return getParameter(JOIN_ALIGNMENT_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getJoinTolerance() {
+        return getParameter(JOIN_TOLERANCE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getJoinBuffer() {
+        return getParameter(JOIN_BUFFER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Boolean isStreamingMode() {
+        return (Boolean) getParameter(STREAMING_MODE_PARAMETER_ID).getValue();
+    }
+
+    public int getBlockTimeout() {
+        return getParameter(BLOCK_TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Double getHysteresis() {
+        return (Double) getParameter(HYSTERESIS_PARAMETER_ID).getValue();
+    }
+
+    public Integer getMinSignalGap() {
+        return getParameter(MIN_SIGNAL_GAP_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteBatchSize() {
+        return getParameter(WRITE_BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteLinger() {
+        return getParameter(WRITE_LINGER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getMaxStreamLength() {
+        return getParameter(MAX_STREAM_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
     public ProcessorInput getFirstInput() {
         // there are two inputs for crossAbove
         return getInputs().get(0);
@@ -104,14 +162,15 @@ public class CrossAbove extends AbstractProcessor<Pair> {
     /**
      * {@link CrossAbove}s need memory to store the prior events that will be used 
      * to determine if two SMAs are crossed. We
-     * used a {@link MemoryProvider#createCircularBuffer(int)} to store this data.
+     * used a {@link CrossingDetector} that keeps just the side of the last pair.
      *
      * @param memoryProvider used to create CrosAbove's memory
      * @return circular buffer
      */
     @Override
+    @SuppressWarnings("unchecked")
     public Memory<Pair> createMemoryForProcessor(MemoryProvider memoryProvider) {
-        return memoryProvider.createCircularBuffer(BUFFER_SIZE);
+        return (Memory) new CrossingDetector(getHysteresis(), getMinSignalGap());
     }
     
     @Override
@@ -132,8 +191,71 @@ public class CrossAbove extends AbstractProcessor<Pair> {
      */
     public static CrossAbove newTemplate() {
         UUID processorId = Generators.timeBasedGenerator().generate();
+        return newTemplate(processorId);
+    }
+
+    public static CrossAbove newTemplate(UUID processorId) {
         CrossAbove crossAbove = new CrossAbove(processorId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
 
+        crossAbove.addParameter(
+                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
+                        description("Redis URL.").
+                        defaultValue("redis://localhost"));
+        crossAbove.addParameter(
+                Parameter.stringParameterWithIdAndName(JOIN_ALIGNMENT_PARAMETER_ID, "Join alignment").
+                        description("How entries of the two input streams are paired: sequence - by position,"
+                                + " timestamp - by stream entry ID time within the join tolerance.").
+                        defaultValue(StreamJoin.SEQUENCE));
+        crossAbove.addParameter(
+                Parameter.integerParameterWithIdAndName(JOIN_TOLERANCE_PARAMETER_ID, "Join tolerance").
+                        description("Max difference in milliseconds between timestamps of paired entries.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Join tolerance cannot be negative.")));
+        crossAbove.addParameter(
+                Parameter.integerParameterWithIdAndName(JOIN_BUFFER_PARAMETER_ID, "Join buffer").
+                        description("Max number of entries buffered for the input stream that runs ahead.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Join buffer has to be greater than zero.")));
+        crossAbove.addParameter(
+                Parameter.booleanParameterWithIdAndName(STREAMING_MODE_PARAMETER_ID, "Streaming mode").
+                        description("If true, tails both input streams through consumer groups until stopped,"
+                                + " otherwise reads the streams from the beginning and completes at their end.").
+                        defaultValue(false));
+        crossAbove.addParameter(
+                Parameter.integerParameterWithIdAndName(BLOCK_TIMEOUT_PARAMETER_ID, "Block timeout").
+                        description("Streaming mode only. Milliseconds to wait for new entries on each read.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Block timeout should be greater than 0.")));
+        crossAbove.addParameter(
+                Parameter.doubleParameterWithIdAndName(HYSTERESIS_PARAMETER_ID, "Hysteresis").
+                        description("Difference of the series has to move beyond +/- this value for a new crossing"
+                                + " to be detected, so noise around the crossing point gives one signal.").
+                        defaultValue(0.0));
+        crossAbove.addParameter(
+                Parameter.integerParameterWithIdAndName(MIN_SIGNAL_GAP_PARAMETER_ID, "Min signal gap").
+                        description("Crossings closer than this number of events to the previous signal are"
+                                + " suppressed. 0 - no limit.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Min signal gap cannot be negative.")));
+        crossAbove.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_BATCH_SIZE_PARAMETER_ID, "Write batch size").
+                        description("Number of output events sent to Redis in one pipelined batch. 1 - no batching.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Write batch size should be greater than 0.")));
+        crossAbove.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_LINGER_PARAMETER_ID, "Write linger").
+                        description("Max milliseconds an output event waits in a batch before it is sent.").
+                        defaultValue(10));
+        crossAbove.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_STREAM_LENGTH_PARAMETER_ID, "Max stream length").
+                        description("Approximate max length of the output stream (XADD MAXLEN ~). 0 - no trimming.").
+                        defaultValue(0));
+
         // two double inputs
         ProcessorInput<Double> firstInput = ProcessorInput.doubleInputWithId(FIRST_INPUT_ID).name("Short SMA").description("Short Simple Moving Average.").build();
         crossAbove.addInput(firstInput);
@@ -156,30 +278,36 @@ public class CrossAbove extends AbstractProcessor<Pair> {
 
     @Override
     public CrossAbove newInstance(Gnode gnode) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        CrossAbove crossAbove = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildProcessor(crossAbove, gnode);
+
+        return crossAbove;
     }
 
     @Override
     public <T extends AbstractProcessor> CompiledProcessor<Pair> compile(T processor) throws ValidationException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return new CompiledCrossAbove((CrossAbove) processor);
     }
 
     @Override
     public Map<String, TransportReference> getReferences() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return procrefs;
     }
 
     @Override
-    public void setReferences(Map<String, TransportReference> sourceref) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public void setReferences(Map<String, TransportReference> procrefs) {
+        this.procrefs = procrefs;
     }
 
     static class CompiledCrossAbove extends CompiledProcessor<Pair> {
         private final String firstAttributeName;
         private final String secondAttributeName;
+        private final CrossAbove crossAbove;
 
         protected CompiledCrossAbove(CrossAbove crossAbove) {
             super(crossAbove);
+            this.crossAbove = crossAbove;
 
             firstAttributeName = crossAbove.getFirstInput().getSourceAttributeName();
             secondAttributeName = crossAbove.getSecondInput().getSourceAttributeName();
@@ -192,44 +320,21 @@ public class CrossAbove extends AbstractProcessor<Pair> {
 
             Double firstOperand = firstEvent.getAttributeAsDouble(firstAttributeName);
             Double secondOperand = secondEvent.getAttributeAsDouble(secondAttributeName);
-            
-            Double retValue = 0D;
-            
-            if (firstOperand != null && secondOperand != null) {
-                
-                Memory<Pair> processorMemory = ctx.getProcessorMemory();
-                
-                Pair<Double, Double> newPair = new Pair<Double, Double>(firstOperand, secondOperand);
-                processorMemory.add(newPair);
-                
-                List<Pair> list = Lists.newArrayList();
-
-                final Collection<Pair> memoryItems = processorMemory.values();
-                for (Pair memoryItem : memoryItems) {
-                    list.add(memoryItem);
-                }
-
-//logger.log(     Level.INFO, "list.add(memoryItem);{0}", list);
-                
-                if (list.size() >= BUFFER_SIZE) {
-                  
-                    Pair<Double, Double> firstPair = list.get(0);
-                    Pair<Double, Double> secondPair = list.get(1);
-
-                    if (firstPair.getFirst() >= firstPair.getSecond()
-                            && secondPair.getFirst() < secondPair.getSecond()) {
-                        retValue = firstOperand;
-                    }
-                }
-//                retValue = newPair.getFirst();
-            }            
-            
-            return retValue > 0 ? Boolean.TRUE : Boolean.FALSE;
+
+            Memory processorMemory = ctx.getProcessorMemory();
+            return cross((CrossingDetector) processorMemory, firstOperand, secondOperand);
+        }
+
+        private Object cross(CrossingDetector detector, Double firstOperand, Double secondOperand) {
+            if (firstOperand == null || secondOperand == null) {
+                return Boolean.FALSE;
+            }
+            return detector.update(firstOperand, secondOperand) == CrossingDetector.FROM_ABOVE ? Boolean.TRUE : Boolean.FALSE;
         }
 
         @Override
         public Object processEvent(Transport runtime) {
-            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+            return CrossingStream.process(runtime, crossAbove, CrossingDetector.FROM_ABOVE);
         }
     }
 }
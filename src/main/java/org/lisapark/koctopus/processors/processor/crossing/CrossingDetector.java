@@ -0,0 +1,123 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.processor.crossing;
+
+import java.util.Collection;
+import java.util.Collections;
+import org.lisapark.koctopus.core.memory.Memory;
+import org.lisapark.koctopus.util.Pair;
+
+/**
+ * Crossing state of two series kept in primitive fields: only the side the
+ * first series is on relative to the second is remembered, and a signal is
+ * produced when the side changes.
+ *
+ * The side changes only when the difference of the series leaves the
+ * hysteresis band [-hysteresis, hysteresis], so noise around the crossing
+ * point gives one signal instead of many. Signals closer than minGap pairs
+ * to the previous one are suppressed.
+ *
+ * @author alexmy
+ */
+public final class CrossingDetector implements Memory<Pair<Double, Double>> {
+
+    /**
+     * First series went from above the second to under it.
+     */
+    public static final int FROM_ABOVE = 1;
+    /**
+     * First series went from under the second to above it.
+     */
+    public static final int FROM_UNDER = -1;
+    public static final int NONE = 0;
+
+    private final double hysteresis;
+    private final long minGap;
+
+    // 1 - first is above second, -1 - under, 0 - not known yet
+    private int side;
+    private long sinceSignal;
+    private double lastFirst = Double.NaN;
+    private double lastSecond = Double.NaN;
+
+    /**
+     *
+     * @param hysteresis half width of the band around zero difference that
+     * does not change the side, 0 - any difference does
+     * @param minGap min number of pairs between two signals, 0 - no limit
+     */
+    public CrossingDetector(double hysteresis, long minGap) {
+        this.hysteresis = Math.abs(hysteresis);
+        this.minGap = minGap;
+        this.sinceSignal = Long.MAX_VALUE / 2;
+    }
+
+    /**
+     * Takes the next pair of values.
+     *
+     * @param first value of the first series
+     * @param second value of the second series
+     * @return {@link #FROM_ABOVE}, {@link #FROM_UNDER} or {@link #NONE}
+     */
+    public int update(double first, double second) {
+        lastFirst = first;
+        lastSecond = second;
+        sinceSignal++;
+
+        double diff = first - second;
+        int newSide = diff > hysteresis ? 1 : diff < -hysteresis ? -1 : side;
+        if (newSide == side || side == 0) {
+            side = newSide;
+            return NONE;
+        }
+        side = newSide;
+        if (sinceSignal < minGap) {
+            return NONE;
+        }
+        sinceSignal = 0;
+        return newSide < 0 ? FROM_ABOVE : FROM_UNDER;
+    }
+
+    public void clear() {
+        side = 0;
+        sinceSignal = Long.MAX_VALUE / 2;
+        lastFirst = Double.NaN;
+        lastSecond = Double.NaN;
+    }
+
+    @Override
+    public void add(Pair<Double, Double> pair) {
+        update(pair.getFirst(), pair.getSecond());
+    }
+
+    @Override
+    public boolean remove(Pair<Double, Double> pair) {
+        return false;
+    }
+
+    /**
+     *
+     * @return the last pair, empty before the first one
+     */
+    @Override
+    public Collection<Pair<Double, Double>> values() {
+        if (Double.isNaN(lastFirst) && Double.isNaN(lastSecond)) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(new Pair<>(lastFirst, lastSecond));
+    }
+}
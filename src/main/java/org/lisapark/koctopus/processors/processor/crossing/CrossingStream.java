@@ -0,0 +1,152 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.processor.crossing;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.processor.ProcessorInput;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.core.transport.TransportReference;
+import org.lisapark.koctopus.processors.transport.EntryCodec;
+import org.lisapark.koctopus.processors.transport.StreamGroupReader;
+import org.lisapark.koctopus.processors.transport.StreamJoin;
+import org.lisapark.koctopus.processors.transport.StreamPartitions;
+import org.lisapark.koctopus.processors.transport.StreamWriter;
+
+/**
+ * Joins the two input streams of a crossing processor, runs the pairs
+ * through a {@link CrossingDetector} and writes the signals, the same loop
+ * for {@link Crossing}, {@link CrossAbove} and {@link CrossUnder}.
+ *
+ * @author alexmy
+ */
+final class CrossingStream {
+
+    /**
+     * Parameters of a crossing processor.
+     */
+    interface Settings {
+
+        UUID getId();
+
+        String getOutputAttributeName();
+
+        Map<String, TransportReference> getReferences();
+
+        ProcessorInput getFirstInput();
+
+        ProcessorInput getSecondInput();
+
+        String getRedisUrl();
+
+        String getJoinAlignment();
+
+        Integer getJoinTolerance();
+
+        Integer getJoinBuffer();
+
+        Boolean isStreamingMode();
+
+        int getBlockTimeout();
+
+        Double getHysteresis();
+
+        Integer getMinSignalGap();
+
+        int getWriteBatchSize();
+
+        int getWriteLinger();
+
+        int getMaxStreamLength();
+    }
+
+    private CrossingStream() {
+    }
+
+    /**
+     * Processes the input streams of a crossing processor until they end,
+     * or until stopped in streaming mode.
+     *
+     * @param runtime processor transport
+     * @param crossing processor
+     * @param direction {@link CrossingDetector#FROM_ABOVE} or
+     * {@link CrossingDetector#FROM_UNDER} - only crossings in that direction
+     * are written, as true; {@link CrossingDetector#NONE} - every crossing is
+     * written as its signal
+     * @return GraphVocabulary status
+     */
+    static Integer process(Transport runtime, Settings crossing, int direction) {
+        TransportReference firstRef = crossing.getReferences().get(crossing.getFirstInput().getName());
+        TransportReference secondRef = crossing.getReferences().get(crossing.getSecondInput().getName());
+        if (firstRef == null || secondRef == null) {
+            return GraphVocabulary.CANCEL;
+        }
+        String firstAttName = StreamJoin.attributeName(firstRef);
+        String secondAttName = StreamJoin.attributeName(secondRef);
+        if (firstAttName == null || secondAttName == null) {
+            return GraphVocabulary.CANCEL;
+        }
+        if (!StreamPartitions.checkUnpartitioned(runtime, crossing.getRedisUrl(), firstRef, secondRef)) {
+            return GraphVocabulary.CANCEL;
+        }
+        String outAttName = crossing.getOutputAttributeName();
+        String className = crossing.getClass().getCanonicalName();
+        CrossingDetector detector = new CrossingDetector(crossing.getHysteresis(), crossing.getMinSignalGap());
+        // reused for every signal, only transitions are written
+        Map<String, String> e = new HashMap<>();
+
+        boolean streaming = Boolean.TRUE.equals(crossing.isStreamingMode());
+        runtime.start();
+        EntryCodec codec = EntryCodec.create(runtime, crossing.getRedisUrl());
+        StreamWriter writer = StreamWriter.create(runtime, className, crossing.getId(), crossing.getRedisUrl(),
+                crossing.getWriteBatchSize(), crossing.getWriteLinger(), crossing.getMaxStreamLength());
+        StreamJoin join = new StreamJoin(runtime, firstRef, secondRef, crossing.getJoinAlignment(),
+                crossing.getJoinTolerance(), crossing.getJoinBuffer());
+        StreamJoin.PairHandler handler = (first, second) -> {
+            Double firstOperand = codec.getDouble(first.getBody(), firstAttName);
+            Double secondOperand = codec.getDouble(second.getBody(), secondAttName);
+            if (firstOperand == null || secondOperand == null) {
+                return;
+            }
+            int signal = detector.update(firstOperand, secondOperand);
+            if (signal == CrossingDetector.NONE) {
+                return;
+            }
+            if (direction == CrossingDetector.NONE) {
+                e.put(outAttName, String.valueOf(signal));
+                writer.write(e);
+            } else if (signal == direction) {
+                e.put(outAttName, Boolean.TRUE.toString());
+                writer.write(e);
+            }
+        };
+        Integer status;
+        if (streaming) {
+            // one consumer group per processor, named after its output stream
+            String groupName = StreamGroupReader.streamKey(className, crossing.getId().toString());
+            status = join.tail(crossing.getRedisUrl(), groupName, crossing.getBlockTimeout(), handler, writer::flush);
+        } else {
+            status = join.run(handler);
+        }
+        writer.close();
+        codec.close();
+        runtime.shutdown();
+        return status;
+    }
+}
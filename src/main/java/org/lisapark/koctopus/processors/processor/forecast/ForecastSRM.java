@@ -17,20 +17,22 @@
 package org.lisapark.koctopus.processors.processor.forecast;
 
 import com.fasterxml.uuid.Generators;
-import com.google.common.collect.Maps;
-import com.google.gson.Gson;
-import java.util.Collection;
+import io.lettuce.core.StreamMessage;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.logging.Level;
-import org.apache.commons.math3.stat.regression.SimpleRegression;
+import org.apache.commons.math3.distribution.TDistribution;
 import org.lisapark.koctopus.ProgrammerException;
 import org.lisapark.koctopus.core.ValidationException;
 import org.lisapark.koctopus.core.event.Event;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
 import org.lisapark.koctopus.core.memory.Memory;
 import org.lisapark.koctopus.core.memory.MemoryProvider;
+import org.lisapark.koctopus.processors.memory.OffHeapMemoryProvider;
+import org.lisapark.koctopus.processors.memory.SlidingPairStatistics;
 import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.processor.CompiledProcessor;
@@ -40,13 +42,21 @@ import org.lisapark.koctopus.core.processor.ProcessorOutput;
 import org.lisapark.koctopus.core.runtime.ProcessorContext;
 import org.lisapark.koctopus.core.transport.TransportReference;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.processors.transport.ColumnPage;
+import org.lisapark.koctopus.processors.transport.EntryCodec;
+import org.lisapark.koctopus.processors.transport.StateSnapshot;
+import org.lisapark.koctopus.processors.transport.StreamJoin;
+import org.lisapark.koctopus.processors.transport.StreamPartitions;
+import org.lisapark.koctopus.processors.transport.StreamWriter;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
 
 /**
  *
  * @author Alex Mylnikov (alexmy@lisa-park.com)
  *
- * Calculates parameters for Simple Regression Model All model parameters are
- * packed in JSON and can be used to evaluate forecast.
+ * Calculates parameters for Simple Regression Model over a sliding window and
+ * optionally forecasts the next steps. Every model parameter goes to its own
+ * output field.
  *
  */
 public class ForecastSRM extends AbstractProcessor<Double> {
@@ -67,9 +77,10 @@ public class ForecastSRM extends AbstractProcessor<Double> {
     private static final String MSE_DESCRIPTION = "Sum of squared errors divided by the degrees of freedom (MSE).";
     private static final String SLS_DESCRIPTION = "Significance level of the slope (equiv) correlation (SLS).";
 
-    private static final String DEFAULT_OUTPUT_DESCRIPTION = "Result is JSON object that contains:"
-            + " (1) Linear regression formula;"
-            + " (2) list of accuracy parameters (ISE, PPM, SSE, SCI, MSE, SLS).";
+    private static final String DEFAULT_OUTPUT_DESCRIPTION = "Result contains:"
+            + " (1) intercept and slope of the linear regression, index of the oldest point in the window is 0;"
+            + " (2) accuracy parameters (ISE, PPM, SSE, SCI, MSE, SLS);"
+            + " (3) forecasts for the next steps, if Forecast horizon is set.";
 
     /**
      * LinearRegressionProcessor takes two inputs
@@ -77,8 +88,8 @@ public class ForecastSRM extends AbstractProcessor<Double> {
     private static final int INPUT_FIELD_NAME_PARAM_ID = 2;
     private static final int WINDOW_LENGTH_PARAMETER_ID = 3;
 
-    private static final int INDEX_FIELD_PARAM_ID = 6;
-    private static final int FORMULA_FIELD_PARAM_ID = 7;
+    private static final int INTERCEPT_NAME_PARAM_ID = 4;
+    private static final int SLOPE_NAME_PARAM_ID = 5;
 
     private static final int ISE_NAME_PARAM_ID = 8;
     private static final int PPM_NAME_PARAM_ID = 9;
@@ -87,8 +98,18 @@ public class ForecastSRM extends AbstractProcessor<Double> {
     private static final int MSE_NAME_PARAM_ID = 12;
     private static final int SLS_NAME_PARAM_ID = 13;
 
-    private static final String FORMULA_FIELD_NAME = "Formula Field name: ";
-    private static final String INDEX_FIELD_NAME = "Index Field name: ";
+    private static final int HORIZON_PARAMETER_ID = 14;
+    private static final int FORECAST_NAME_PARAM_ID = 15;
+    private static final int TRANSPORT_PARAMETER_ID = 16;
+    private static final int WRITE_BATCH_SIZE_PARAMETER_ID = 17;
+    private static final int WRITE_LINGER_PARAMETER_ID = 18;
+    private static final int MAX_STREAM_LENGTH_PARAMETER_ID = 19;
+    private static final int SNAPSHOT_INTERVAL_PARAMETER_ID = 20;
+    private static final int WINDOW_STORAGE_PARAMETER_ID = 21;
+
+    private static final String INTERCEPT_NAME = "Intercept name: ";
+    private static final String SLOPE_NAME = "Slope name: ";
+    private static final String FORECAST_NAME = "Forecast name: ";
 
     private static final String ISE_NAME = "Intersept Std Error name: ";
     private static final String PPM_NAME = "Pearson Prod Moment name: ";
@@ -99,6 +120,16 @@ public class ForecastSRM extends AbstractProcessor<Double> {
 
     private static final int OUTPUT_ID = 1;
 
+    // positions of the accuracy parameters in CompiledRegression
+    private static final int ISE = 0;
+    private static final int PPM = 1;
+    private static final int SSE = 2;
+    private static final int SCI = 3;
+    private static final int MSE = 4;
+    private static final int SLS = 5;
+
+    protected Map<String, TransportReference> procrefs = new HashMap<>();
+
     protected ForecastSRM(UUID id, String name, String description) {
         super(id, name, description);
     }
@@ -119,12 +150,12 @@ public class ForecastSRM extends AbstractProcessor<Double> {
         return getInputs().get(0);
     }
 
-    private String getFormulaFieldName() {
-        return getParameter(FORMULA_FIELD_PARAM_ID).getValueAsString();
+    private String getInterceptName() {
+        return getParameter(INTERCEPT_NAME_PARAM_ID).getValueAsString();
     }
 
-    private String getIndexFieldName() {
-        return getParameter(INDEX_FIELD_PARAM_ID).getValueAsString();
+    private String getSlopeName() {
+        return getParameter(SLOPE_NAME_PARAM_ID).getValueAsString();
     }
 
     private String getIseName() {
@@ -151,6 +182,52 @@ public class ForecastSRM extends AbstractProcessor<Double> {
         return getParameter(SLS_NAME_PARAM_ID).getValueAsString();
     }
 
+    public int getHorizon() {
+        return getParameter(HORIZON_PARAMETER_ID).getValueAsInteger();
+    }
+
+    private String getForecastName() {
+        return getParameter(FORECAST_NAME_PARAM_ID).getValueAsString();
+    }
+
+    public String getRedisUrl() {
+        return getParameter(TRANSPORT_PARAMETER_ID).getValueAsString();
+    }
+
+    public int getWriteBatchSize() {
+        return getParameter(WRITE_BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteLinger() {
+        return getParameter(WRITE_LINGER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getMaxStreamLength() {
+        return getParameter(MAX_STREAM_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getSnapshotInterval() {
+        return getParameter(SNAPSHOT_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getWindowStorage() {
+        String storage = getParameter(WINDOW_STORAGE_PARAMETER_ID).getValueAsString();
+        return storage == null ? "" : storage.trim();
+    }
+
+    /**
+     * Creates the window in the storage selected by the Window storage
+     * parameter. Mapped files always start empty, a restart restores the
+     * window from its snapshot.
+     *
+     * @param name window name, part of the mapped file name
+     * @return empty window
+     */
+    SlidingPairStatistics newWindow(String name) {
+        OffHeapMemoryProvider provider = new OffHeapMemoryProvider(getWindowStorage(), getId().toString());
+        return new SlidingPairStatistics(provider.createStorage(name, getWindowLength(), 2));
+    }
+
     @Override
     public ForecastSRM newInstance() {
         return new ForecastSRM(Generators.timeBasedGenerator().generate(), this);
@@ -158,7 +235,11 @@ public class ForecastSRM extends AbstractProcessor<Double> {
 
     @Override
     public ForecastSRM newInstance(Gnode gnode) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        ForecastSRM forecast = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildProcessor(forecast, gnode);
+
+        return forecast;
     }
 
     @Override
@@ -169,14 +250,17 @@ public class ForecastSRM extends AbstractProcessor<Double> {
     /**
      * {@link LinearRegressionProcessor}s need memory to store the prior events
      * that will be used to calculate parameters for Linear Regression. We used
-     * a {@link MemoryProvider#createCircularBuffer(int)} to store this data.
+     * a {@link SlidingPairStatistics} of (index, value) pairs to store this
+     * data, it keeps the running moments so the model is updated in constant
+     * time.
      *
      * @param memoryProvider used to create LinearRegressionProcessor's memory
      * @return circular buffer
      */
     @Override
+    @SuppressWarnings("unchecked")
     public Memory<Double> createMemoryForProcessor(MemoryProvider memoryProvider) {
-        return memoryProvider.createCircularBuffer(getWindowLength());
+        return (Memory) newWindow("window");
     }
 
     @Override
@@ -195,6 +279,10 @@ public class ForecastSRM extends AbstractProcessor<Double> {
      */
     public static ForecastSRM newTemplate() {
         UUID processorId = Generators.timeBasedGenerator().generate();
+        return newTemplate(processorId);
+    }
+
+    public static ForecastSRM newTemplate(UUID processorId) {
         ForecastSRM regression = new ForecastSRM(processorId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
 
         ProcessorInput<Double> inputFieldName = ProcessorInput.doubleInputWithId(INPUT_FIELD_NAME_PARAM_ID).name("Input field name: ")
@@ -211,57 +299,104 @@ public class ForecastSRM extends AbstractProcessor<Double> {
         );
 
         regression.addParameter(
-                Parameter.stringParameterWithIdAndName(FORMULA_FIELD_PARAM_ID, FORMULA_FIELD_NAME).
-                        description("Forecast formula field name.").
-                        defaultValue("formula").required(true)
+                Parameter.stringParameterWithIdAndName(INTERCEPT_NAME_PARAM_ID, INTERCEPT_NAME).
+                        description("Name of the intercept - coefficient A in Y = A + B*index.").
+                        defaultValue("intercept").required(true)
         );
 
         regression.addParameter(
-                Parameter.stringParameterWithIdAndName(INDEX_FIELD_PARAM_ID, INDEX_FIELD_NAME).
-                        description("Time or Index field name.").
-                        defaultValue("index").required(true)
+                Parameter.stringParameterWithIdAndName(SLOPE_NAME_PARAM_ID, SLOPE_NAME).
+                        description("Name of the slope - coefficient B in Y = A + B*index.").
+                        defaultValue("slope").required(true)
         );
 
         regression.addParameter(
                 Parameter.stringParameterWithIdAndName(ISE_NAME_PARAM_ID, ISE_NAME).
-                        description(ISE_DESCRIPTION).
-                        defaultValue("ISE").required(true)
+                        description(ISE_DESCRIPTION + " Empty - not emitted.").
+                        defaultValue("ISE")
         );
 
         regression.addParameter(
                 Parameter.stringParameterWithIdAndName(PPM_NAME_PARAM_ID, PPM_NAME).
-                        description(PPM_DESCRIPTION).
-                        defaultValue("PPM").required(true)
+                        description(PPM_DESCRIPTION + " Empty - not emitted.").
+                        defaultValue("PPM")
         );
 
         regression.addParameter(
                 Parameter.stringParameterWithIdAndName(SSE_NAME_PARAM_ID, SSE_NAME).
-                        description(SSE_DESCRIPTION).
-                        defaultValue("SSE").required(true)
+                        description(SSE_DESCRIPTION + " Empty - not emitted.").
+                        defaultValue("SSE")
         );
 
         regression.addParameter(
                 Parameter.stringParameterWithIdAndName(SCI_NAME_PARAM_ID, SCI_NAME).
-                        description(SCI_DESCRIPTION).
-                        defaultValue("SCI").required(true)
+                        description(SCI_DESCRIPTION + " Empty - not emitted.").
+                        defaultValue("SCI")
         );
 
         regression.addParameter(
                 Parameter.stringParameterWithIdAndName(MSE_NAME_PARAM_ID, MSE_NAME).
-                        description(MSE_DESCRIPTION).
-                        defaultValue("MSE").required(true)
+                        description(MSE_DESCRIPTION + " Empty - not emitted.").
+                        defaultValue("MSE")
         );
 
         regression.addParameter(
                 Parameter.stringParameterWithIdAndName(SLS_NAME_PARAM_ID, SLS_NAME).
-                        description(SLS_DESCRIPTION).
-                        defaultValue("SLS").required(true)
+                        description(SLS_DESCRIPTION + " Empty - not emitted.").
+                        defaultValue("SLS")
         );
 
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(HORIZON_PARAMETER_ID, "Forecast horizon").
+                        description("Number of steps ahead to forecast. 0 - no forecast.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Forecast horizon cannot be negative."))
+        );
+
+        regression.addParameter(
+                Parameter.stringParameterWithIdAndName(FORECAST_NAME_PARAM_ID, FORECAST_NAME).
+                        description("Forecast fields prefix, the forecast for step k is named <prefix>_k.").
+                        defaultValue("forecast")
+        );
+
+        regression.addParameter(
+                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
+                        description("Redis URL.").
+                        defaultValue("redis://localhost"));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_BATCH_SIZE_PARAMETER_ID, "Write batch size").
+                        description("Number of events sent to Redis in one pipelined batch. 1 - no batching.").defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Write batch size has to be greater than zero.")));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_LINGER_PARAMETER_ID, "Write linger").
+                        description("Max milliseconds an event waits in a batch before it is sent.").defaultValue(10));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_STREAM_LENGTH_PARAMETER_ID, "Max stream length").
+                        description("Approximate max length of the output stream (XADD MAXLEN ~). 0 - no trimming.").defaultValue(0));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(SNAPSHOT_INTERVAL_PARAMETER_ID, "Snapshot interval").
+                        description("Milliseconds between snapshots of the window with the last processed stream ID,"
+                                + " a restart resumes from them with a warm window. 0 - no snapshots.").defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Snapshot interval cannot be negative.")));
+
+        regression.addParameter(
+                Parameter.stringParameterWithIdAndName(WINDOW_STORAGE_PARAMETER_ID, "Window storage").
+                        description("heap - window on the Java heap, direct - off-heap memory, mapped - memory"
+                                + " mapped file in koctopus.memory.dir. Off-heap windows keep very long windows"
+                                + " out of the heap and GC pauses. Empty - the koctopus.memory.storage setting of"
+                                + " the service, heap by default.").
+                        defaultValue(""));
+
         // double output
         //======================================================================
         try {
-            regression.setOutput(ProcessorOutput.doubleOutputWithId(OUTPUT_ID).name("Regression").attributeName("JSON")
+            regression.setOutput(ProcessorOutput.doubleOutputWithId(OUTPUT_ID).name("Regression").attributeName("Forecast")
                     .description(DEFAULT_OUTPUT_DESCRIPTION));
         } catch (ValidationException ex) {
             // this should NOT happen. It means we created the LinearRegressionProcessor with an invalid attribute name
@@ -273,102 +408,208 @@ public class ForecastSRM extends AbstractProcessor<Double> {
 
     @Override
     public <T extends AbstractProcessor> CompiledProcessor<Double> compile(T processor) throws ValidationException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return new CompiledRegression((ForecastSRM) processor);
     }
 
     @Override
     public Map<String, TransportReference> getReferences() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return procrefs;
     }
 
     @Override
-    public void setReferences(Map<String, TransportReference> sourceref) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public void setReferences(Map<String, TransportReference> procrefs) {
+        this.procrefs = procrefs;
     }
 
     static class CompiledRegression extends CompiledProcessor<Double> {
 
-        private final static java.util.logging.Logger LOGGER
-                = java.util.logging.Logger.getLogger(CompiledRegression.class.getName());
-
-//        private final String firstAttributeName;
         private final String dataFieldName;
 
         private final ForecastSRM forecastSRM;
 
+        /**
+         * Names of the emitted fields, in the order {@link #update} fills
+         * them: intercept, slope, accuracy parameters with a name, forecasts.
+         */
+        private final String[] outNames;
+        private final boolean[] accuracy = new boolean[6];
+        // single row output of the ProcessorContext path
+        private final double[][] eventColumns;
+
+        /**
+         * Student's distribution with window - 2 degrees of freedom, null if
+         * the window is too short or SCI and SLS are not emitted.
+         */
+        private final TDistribution tDistribution;
+        private final double tCritical;
+
         protected CompiledRegression(ForecastSRM forecastSRM) {
             super(forecastSRM);
             this.forecastSRM = forecastSRM;
 
-//            firstAttributeName = regression.getFirstInput().getSourceAttributeName();
             dataFieldName = forecastSRM.getDataFieldName().getSourceAttributeName();
+
+            List<String> names = new ArrayList<>();
+            names.add(forecastSRM.getInterceptName());
+            names.add(forecastSRM.getSlopeName());
+            String[] accuracyNames = {forecastSRM.getIseName(), forecastSRM.getPpmName(), forecastSRM.getSseName(),
+                forecastSRM.getSciName(), forecastSRM.getMseName(), forecastSRM.getSlsName()};
+            for (int i = 0; i < accuracyNames.length; i++) {
+                accuracy[i] = isNamed(accuracyNames[i]);
+                if (accuracy[i]) {
+                    names.add(accuracyNames[i]);
+                }
+            }
+            // names are built once, not per event
+            for (int k = 1; k <= forecastSRM.getHorizon(); k++) {
+                names.add(forecastSRM.getForecastName() + "_" + k);
+            }
+            outNames = names.toArray(new String[names.size()]);
+            eventColumns = new double[outNames.length][1];
+
+            int degreesOfFreedom = forecastSRM.getWindowLength() - 2;
+            if (degreesOfFreedom > 0 && (accuracy[SCI] || accuracy[SLS])) {
+                tDistribution = new TDistribution(null, degreesOfFreedom);
+                tCritical = tDistribution.inverseCumulativeProbability(0.975);
+            } else {
+                tDistribution = null;
+                tCritical = Double.NaN;
+            }
         }
 
         @Override
         public Object processEvent(ProcessorContext<Double> ctx, Map<Integer, Event> events) {
-//            Event firstEvent = eventsByInputId.get(FIRST_INPUT_ID);
             Event event = events.get(INPUT_FIELD_NAME_PARAM_ID);
 
-//            Double firstOperand = firstEvent.getAttributeAsDouble(firstAttributeName);
-            Double secondOperand = event.getAttributeAsDouble(dataFieldName);
-
-//            Map<String, Object> retMap = Maps.newHashMap();
-            String json = null;
-
-            if (secondOperand != null) {
-
-                Memory<Double> processorMemory = ctx.getProcessorMemory();
-
-                Double newValue = secondOperand;
-                processorMemory.add(newValue);
-
-                int arraySize = forecastSRM.getWindowLength();
-
-                final Collection<Double> memoryItems = processorMemory.values();
-
-                SimpleRegression simpleRegression = new SimpleRegression();
-
-                if (memoryItems.size() >= arraySize) {
-
-                    int i = 0;
-                    for (Double memoryItem : memoryItems) {
-                        simpleRegression.addData(i, memoryItem);
-                        i++;
-                    }
-
-                    simpleRegression.regress();
-
-                    HashMap<String, Object> map = Maps.newHashMap();
-
-                    String formula = simpleRegression.getIntercept()
-                            + "+(" + simpleRegression.getSlope() + "*"
-                            + forecastSRM.getIndexFieldName() + ")";
-
-                    LOGGER.log(Level.INFO, "Formula:{0}", formula);
-
-                    map.put(forecastSRM.getFormulaFieldName(), formula);
-                    map.put(forecastSRM.getIseName(), simpleRegression.getInterceptStdErr());
-                    map.put(forecastSRM.getPpmName(), simpleRegression.getR());
-                    map.put(forecastSRM.getSseName(), simpleRegression.getSlopeStdErr());
-                    map.put(forecastSRM.getSciName(), simpleRegression.getSlopeConfidenceInterval());
-                    map.put(forecastSRM.getMseName(), simpleRegression.getMeanSquareError());
-                    map.put(forecastSRM.getSlsName(), simpleRegression.getSignificance());
+            Double value = event.getAttributeAsDouble(dataFieldName);
 
-                    Gson gson = new Gson();
-                    json = gson.toJson(map);
-                }
+            if (value == null) {
+                return null;
             }
+            Memory processorMemory = ctx.getProcessorMemory();
+            if (!update((SlidingPairStatistics) processorMemory, value, eventColumns, 0)) {
+                return null;
+            }
+            Map<String, Object> retMap = new HashMap<>();
+            for (int i = 0; i < outNames.length; i++) {
+                retMap.put(outNames[i], eventColumns[i][0]);
+            }
+            return retMap;
+        }
 
-            String encodedJson = json;
-
-            LOGGER.log(Level.INFO, "JSON: {0}", encodedJson);
+        /**
+         * Adds the next value to the window and, once the window is full,
+         * writes the model parameters and forecasts to columns[..][row] - one
+         * column per name in {@link #outNames}. Values are indexed by a
+         * running counter, the model is reported relative to the oldest point
+         * in the window.
+         *
+         * @return true if the row was filled
+         */
+        private boolean update(SlidingPairStatistics window, double value, double[][] columns, int row) {
+            double index = window.size() == 0 ? 0 : window.getFirst(window.size() - 1) + 1;
+            window.add(index, value);
+
+            if (!window.isFull()) {
+                return false;
+            }
+            double origin = window.getFirst(0);
+            double intercept = window.getInterceptAt(origin);
+            double slope = window.getSlope();
+            double slopeStdErr = window.getSlopeStdErr();
+
+            int c = 0;
+            columns[c++][row] = intercept;
+            columns[c++][row] = slope;
+            if (accuracy[ISE]) {
+                columns[c++][row] = window.getInterceptStdErrAt(origin);
+            }
+            if (accuracy[PPM]) {
+                columns[c++][row] = window.getCorrelation();
+            }
+            if (accuracy[SSE]) {
+                columns[c++][row] = slopeStdErr;
+            }
+            if (accuracy[SCI]) {
+                columns[c++][row] = tCritical * slopeStdErr;
+            }
+            if (accuracy[MSE]) {
+                columns[c++][row] = window.getMeanSquareError();
+            }
+            if (accuracy[SLS]) {
+                columns[c++][row] = tDistribution == null ? Double.NaN
+                        : 2.0 * (1.0 - tDistribution.cumulativeProbability(Math.abs(slope) / slopeStdErr));
+            }
+            double last = window.size() - 1;
+            for (int k = 1; c < outNames.length; k++) {
+                columns[c++][row] = intercept + slope * (last + k);
+            }
+            return true;
+        }
 
-            return encodedJson;
+        private static boolean isNamed(String name) {
+            return name != null && !name.isEmpty();
         }
 
         @Override
         public Object processEvent(Transport runtime) {
-            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+            String inputName = forecastSRM.getDataFieldName().getName();
+            TransportReference reference = forecastSRM.getReferences().get(inputName);
+            if (reference == null) {
+                return GraphVocabulary.CANCEL;
+            }
+            String inputAttName = StreamJoin.attributeName(reference);
+            if (inputAttName == null) {
+                return GraphVocabulary.CANCEL;
+            }
+            if (!StreamPartitions.checkUnpartitioned(runtime, forecastSRM.getRedisUrl(), reference)) {
+                return GraphVocabulary.CANCEL;
+            }
+            String sourceClassName = reference.getReferenceClass();
+            UUID sourceId = UUID.fromString(reference.getReferenceId());
+
+            StateSnapshot snapshot = new StateSnapshot(forecastSRM.getRedisUrl(), forecastSRM.getId().toString(),
+                    inputName, "srm|" + forecastSRM.getWindowLength(), forecastSRM.getSnapshotInterval());
+            SlidingPairStatistics window = snapshot.restore(() -> forecastSRM.newWindow(inputName));
+            ColumnPage input = new ColumnPage(inputAttName);
+            ColumnPage output = new ColumnPage(outNames);
+            double[][] columns = new double[outNames.length][];
+
+            runtime.start();
+            EntryCodec codec = EntryCodec.create(runtime, forecastSRM.getRedisUrl());
+            StreamWriter writer = StreamWriter.create(runtime, forecastSRM.getClass().getCanonicalName(),
+                    forecastSRM.getId(), forecastSRM.getRedisUrl(), forecastSRM.getWriteBatchSize(),
+                    forecastSRM.getWriteLinger(), forecastSRM.getMaxStreamLength());
+            String offset = snapshot.getRestoredOffset() == null ? "0" : snapshot.getRestoredOffset();
+            while (true) {
+                List<StreamMessage<String, String>> list = runtime.readEvents(sourceClassName, sourceId, offset);
+                if (list.isEmpty()) {
+                    break;
+                }
+                input.decode(list, codec);
+                output.setSize(input.size());
+                for (int k = 0; k < columns.length; k++) {
+                    columns[k] = output.column(k);
+                }
+                double[] values = input.column(0);
+                int rows = 0;
+                for (int i = 0; i < input.size(); i++) {
+                    if (!Double.isNaN(values[i]) && update(window, values[i], columns, rows)) {
+                        rows++;
+                    }
+                }
+                output.setSize(rows);
+                output.writeTo(writer, codec, null);
+                offset = list.get(list.size() - 1).getId();
+                snapshot.update(offset, window, writer::flush);
+            }
+            writer.close();
+            snapshot.commit(offset, window);
+            snapshot.close();
+            window.release();
+            codec.close();
+            runtime.shutdown();
+            return GraphVocabulary.COMPLETE;
         }
     }
 }
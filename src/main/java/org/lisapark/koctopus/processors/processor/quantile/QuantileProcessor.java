@@ -0,0 +1,736 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.processor.quantile;
+
+import com.fasterxml.uuid.Generators;
+import io.lettuce.core.StreamMessage;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.ProgrammerException;
+import org.lisapark.koctopus.core.Persistable;
+import org.lisapark.koctopus.core.ValidationException;
+import org.lisapark.koctopus.core.event.Event;
+import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.NodeAttribute;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.memory.Memory;
+import org.lisapark.koctopus.core.memory.MemoryProvider;
+import org.lisapark.koctopus.core.parameter.Constraints;
+import org.lisapark.koctopus.core.parameter.Parameter;
+import org.lisapark.koctopus.core.processor.AbstractProcessor;
+import org.lisapark.koctopus.core.processor.CompiledProcessor;
+import org.lisapark.koctopus.core.processor.ProcessorInput;
+import org.lisapark.koctopus.core.processor.ProcessorOutput;
+import org.lisapark.koctopus.core.runtime.ProcessorContext;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.core.transport.TransportReference;
+import org.lisapark.koctopus.processors.memory.KeyedState;
+import org.lisapark.koctopus.processors.memory.PanedQuantiles;
+import org.lisapark.koctopus.processors.memory.QuantileSketch;
+import org.lisapark.koctopus.processors.transport.ColumnPage;
+import org.lisapark.koctopus.processors.transport.EntryCodec;
+import org.lisapark.koctopus.processors.transport.ReorderBuffer;
+import org.lisapark.koctopus.processors.transport.StreamGroupReader;
+import org.lisapark.koctopus.processors.transport.StreamPartitions;
+import org.lisapark.koctopus.processors.transport.StreamWriter;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
+
+/**
+ * This {@link AbstractProcessor} computes quantiles, e.g. p50/p95/p99 of a
+ * latency, over a sliding window of a single input.
+ *
+ * Values are not kept: the window is a ring of mergeable
+ * {@link QuantileSketch}es (see {@link PanedQuantiles}), so memory does not
+ * depend on the event rate and quantiles are within the configured relative
+ * accuracy. Quantiles are written at a fixed cadence, every n values and/or
+ * every n milliseconds of event time, optionally per value of a key
+ * attribute.
+ *
+ * @author alexmy
+ */
+@Persistable
+public class QuantileProcessor extends AbstractProcessor<Double> {
+
+    static final Logger LOG = Logger.getLogger(QuantileProcessor.class.getName());
+
+    private static final String DEFAULT_NAME = "Quantiles";
+    private static final String DEFAULT_DESCRIPTION = "Sliding window quantiles (percentiles) of a single input.";
+    private static final String DEFAULT_INPUT_DESCRIPTION = "Attribute from the connected source which quantiles"
+            + " are computed.";
+    private static final String DEFAULT_OUTPUT_DESCRIPTION = "Prefix of the output attributes, every quantile is"
+            + " written as <prefix>_p<percent>, the number of values in the window as <prefix>_count.";
+
+    private static final int WINDOW_LENGTH_PARAMETER_ID = 2;
+    private static final int WINDOW_DURATION_PARAMETER_ID = 3;
+    private static final int WINDOW_PANES_PARAMETER_ID = 4;
+    private static final int QUANTILES_PARAMETER_ID = 5;
+    private static final int RELATIVE_ACCURACY_PARAMETER_ID = 6;
+    private static final int MAX_BUCKETS_PARAMETER_ID = 7;
+    private static final int EMIT_EVERY_PARAMETER_ID = 8;
+    private static final int EMIT_INTERVAL_PARAMETER_ID = 9;
+    private static final int TIME_ATTRIBUTE_PARAMETER_ID = 10;
+    private static final int KEY_ATTRIBUTE_PARAMETER_ID = 11;
+    private static final int IDLE_KEY_TTL_PARAMETER_ID = 12;
+    private static final int TRANSPORT_PARAMETER_ID = 13;
+    private static final int STREAMING_MODE_PARAMETER_ID = 14;
+    private static final int BLOCK_TIMEOUT_PARAMETER_ID = 15;
+    private static final int WRITE_BATCH_SIZE_PARAMETER_ID = 16;
+    private static final int WRITE_LINGER_PARAMETER_ID = 17;
+    private static final int MAX_STREAM_LENGTH_PARAMETER_ID = 18;
+    private static final int ALLOWED_LATENESS_PARAMETER_ID = 19;
+    private static final int REORDER_BUFFER_PARAMETER_ID = 20;
+    private static final int IDLE_TIMEOUT_PARAMETER_ID = 21;
+
+    private static final int INPUT_ID = 1;
+    private static final int OUTPUT_ID = 1;
+
+    protected Map<String, TransportReference> procrefs = new HashMap<>();
+
+    public QuantileProcessor() {
+        super(Generators.timeBasedGenerator().generate(), DEFAULT_NAME, DEFAULT_DESCRIPTION);
+    }
+
+    protected QuantileProcessor(UUID id, String name, String description) {
+        super(id, name, description);
+    }
+
+    protected QuantileProcessor(UUID id, QuantileProcessor copyFromQuantiles) {
+        super(id, copyFromQuantiles);
+    }
+
+    protected QuantileProcessor(QuantileProcessor copyFromQuantiles) {
+        super(copyFromQuantiles);
+    }
+
+    public int getWindowLength() {
+        return getParameter(WINDOW_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWindowDuration() {
+        return getParameter(WINDOW_DURATION_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWindowPanes() {
+        return getParameter(WINDOW_PANES_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getQuantiles() {
+        return getParameter(QUANTILES_PARAMETER_ID).getValueAsString();
+    }
+
+    public Double getRelativeAccuracy() {
+        return (Double) getParameter(RELATIVE_ACCURACY_PARAMETER_ID).getValue();
+    }
+
+    public int getMaxBuckets() {
+        return getParameter(MAX_BUCKETS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getEmitEvery() {
+        return getParameter(EMIT_EVERY_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getEmitInterval() {
+        return getParameter(EMIT_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getTimeAttribute() {
+        return getParameter(TIME_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getKeyAttribute() {
+        return getParameter(KEY_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public int getIdleKeyTtl() {
+        return getParameter(IDLE_KEY_TTL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getRedisUrl() {
+        return getParameter(TRANSPORT_PARAMETER_ID).getValueAsString();
+    }
+
+    public Boolean isStreamingMode() {
+        return (Boolean) getParameter(STREAMING_MODE_PARAMETER_ID).getValue();
+    }
+
+    public int getBlockTimeout() {
+        return getParameter(BLOCK_TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteBatchSize() {
+        return getParameter(WRITE_BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteLinger() {
+        return getParameter(WRITE_LINGER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getMaxStreamLength() {
+        return getParameter(MAX_STREAM_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getAllowedLateness() {
+        return getParameter(ALLOWED_LATENESS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getReorderBuffer() {
+        return getParameter(REORDER_BUFFER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getIdleTimeout() {
+        return getParameter(IDLE_TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public ProcessorInput getInput() {
+        return getInputs().get(0);
+    }
+
+    @Override
+    public QuantileProcessor copyOf() {
+        return new QuantileProcessor(this);
+    }
+
+    @Override
+    public QuantileProcessor newInstance() {
+        return new QuantileProcessor(Generators.timeBasedGenerator().generate(), this);
+    }
+
+    @Override
+    public QuantileProcessor newInstance(Gnode gnode) {
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        QuantileProcessor quantiles = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildProcessor(quantiles, gnode);
+
+        return quantiles;
+    }
+
+    public static QuantileProcessor newTemplate() {
+        UUID uuid = Generators.timeBasedGenerator().generate();
+        return newTemplate(uuid);
+    }
+
+    public static QuantileProcessor newTemplate(UUID uuid) {
+        QuantileProcessor quantiles = new QuantileProcessor(uuid, DEFAULT_NAME, DEFAULT_DESCRIPTION);
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_LENGTH_PARAMETER_ID, "Window length").
+                        description("Number of values in the window.").
+                        defaultValue(1000).required(true).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Window length should be greater than 0."))
+        );
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_DURATION_PARAMETER_ID, "Window duration").
+                        description("Milliseconds of event time in the window instead of the Window length"
+                                + " count. 0 - count based window.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Window duration cannot be negative."))
+        );
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_PANES_PARAMETER_ID, "Window panes").
+                        description("Number of sketches the window is split into, the window slides by one"
+                                + " pane. More panes - smoother sliding, more memory.").
+                        defaultValue(4).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Window panes should be greater than 0."))
+        );
+        quantiles.addParameter(
+                Parameter.stringParameterWithIdAndName(QUANTILES_PARAMETER_ID, "Quantiles").
+                        description("Comma separated quantiles, as fractions or percentiles,"
+                                + " e.g. 0.5,0.95,0.99 or p50,p95,p99.9.").
+                        defaultValue("0.5,0.95,0.99").required(true)
+        );
+        quantiles.addParameter(
+                Parameter.doubleParameterWithIdAndName(RELATIVE_ACCURACY_PARAMETER_ID, "Relative accuracy").
+                        description("Max relative error of a quantile, between 0 and 1.").
+                        defaultValue(0.01)
+        );
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_BUCKETS_PARAMETER_ID, "Max buckets").
+                        description("Max buckets of a sketch for each sign of values. With 1% accuracy 2048"
+                                + " buckets cover 17 orders of magnitude, beyond that the smallest values"
+                                + " are collapsed.").
+                        defaultValue(2048).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Max buckets should be greater than 0."))
+        );
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(EMIT_EVERY_PARAMETER_ID, "Emit every").
+                        description("Quantiles are written after every n values. 0 - by Emit interval only.").
+                        defaultValue(100).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Emit every cannot be negative."))
+        );
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(EMIT_INTERVAL_PARAMETER_ID, "Emit interval").
+                        description("Quantiles are written at most every n milliseconds of event time."
+                                + " 0 - by Emit every only. If both are 0, after every value.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Emit interval cannot be negative."))
+        );
+        quantiles.addParameter(
+                Parameter.stringParameterWithIdAndName(TIME_ATTRIBUTE_PARAMETER_ID, "Time attribute").
+                        description("Attribute with the event time in epoch milliseconds."
+                                + " Empty - time of the stream entry ID.").
+                        defaultValue("")
+        );
+        quantiles.addParameter(
+                Parameter.stringParameterWithIdAndName(KEY_ATTRIBUTE_PARAMETER_ID, "Key attribute").
+                        description("Quantiles are computed per value of this attribute and written with it."
+                                + " Empty - one window.").
+                        defaultValue("")
+        );
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(IDLE_KEY_TTL_PARAMETER_ID, "Idle key TTL").
+                        description("Milliseconds of event time after which the window of a key that got no"
+                                + " values is dropped. 0 - windows are kept.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Idle key TTL cannot be negative."))
+        );
+        quantiles.addParameter(
+                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
+                        description("Redis URL.").
+                        defaultValue("redis://localhost")
+        );
+        quantiles.addParameter(
+                Parameter.booleanParameterWithIdAndName(STREAMING_MODE_PARAMETER_ID, "Streaming mode").
+                        description("If true, tails the input stream through a consumer group until stopped,"
+                                + " otherwise reads the stream from the beginning and completes at its end.").
+                        defaultValue(false)
+        );
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(BLOCK_TIMEOUT_PARAMETER_ID, "Block timeout").
+                        description("Streaming mode only. Milliseconds to wait for new entries on each read.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Block timeout should be greater than 0."))
+        );
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_BATCH_SIZE_PARAMETER_ID, "Write batch size").
+                        description("Number of output events sent to Redis in one pipelined batch. 1 - no batching.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Write batch size should be greater than 0."))
+        );
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_LINGER_PARAMETER_ID, "Write linger").
+                        description("Max milliseconds an output event waits in a batch before it is sent.").
+                        defaultValue(10)
+        );
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_STREAM_LENGTH_PARAMETER_ID, "Max stream length").
+                        description("Approximate max length of the output stream (XADD MAXLEN ~). 0 - no trimming.").
+                        defaultValue(0)
+        );
+
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(ALLOWED_LATENESS_PARAMETER_ID, "Allowed lateness").
+                        description("Milliseconds of event time an entry waits for older ones, values go into"
+                                + " the time panes in event time order. Entries older than the watermark go to the"
+                                + " <output>:late stream. -1 - no reordering.").
+                        defaultValue(-1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(-1,
+                                "Allowed lateness has to be -1 or more."))
+        );
+
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(REORDER_BUFFER_PARAMETER_ID, "Reorder buffer").
+                        description("Max number of entries waiting for reordering, the oldest ones are"
+                                + " released early when it is full.").
+                        defaultValue(100000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Reorder buffer has to be greater than zero."))
+        );
+
+        quantiles.addParameter(
+                Parameter.integerParameterWithIdAndName(IDLE_TIMEOUT_PARAMETER_ID, "Idle timeout").
+                        description("Streaming mode only. Milliseconds without new entries after which the"
+                                + " entries waiting for reordering are released. 0 - wait for the next entry.").
+                        defaultValue(10000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Idle timeout cannot be negative."))
+        );
+
+        quantiles.addInput(
+                ProcessorInput.doubleInputWithId(INPUT_ID).name("Input").description(DEFAULT_INPUT_DESCRIPTION)
+        );
+        try {
+            quantiles.setOutput(
+                    ProcessorOutput.doubleOutputWithId(OUTPUT_ID).name("Quantiles").description(DEFAULT_OUTPUT_DESCRIPTION).attributeName("quantile")
+            );
+        } catch (ValidationException ex) {
+            // this should NOT happen. It means we created the processor with an invalid attribute name
+            throw new ProgrammerException(ex);
+        }
+        return quantiles;
+    }
+
+    /**
+     * The window of the processor is a {@link PanedQuantiles}, count based on
+     * this path.
+     *
+     * @param memoryProvider not used
+     * @return sketch window
+     */
+    @Override
+    public Memory<Double> createMemoryForProcessor(MemoryProvider memoryProvider) {
+        return new PanedQuantiles(getWindowLength(), 0, Math.min(getWindowPanes(), getWindowLength()),
+                getRelativeAccuracy(), getMaxBuckets());
+    }
+
+    @Override
+    public CompiledProcessor<Double> compile() throws ValidationException {
+        validate();
+        QuantileProcessor copy = copyOf();
+        return new CompiledQuantiles(copy);
+    }
+
+    @Override
+    public <T extends AbstractProcessor> CompiledProcessor<Double> compile(T processor) throws ValidationException {
+        return new CompiledQuantiles((QuantileProcessor) processor);
+    }
+
+    @Override
+    public Map<String, TransportReference> getReferences() {
+        return procrefs;
+    }
+
+    @Override
+    public void setReferences(Map<String, TransportReference> procrefs) {
+        this.procrefs = procrefs;
+    }
+
+    /**
+     * Parses the Quantiles parameter.
+     *
+     * @param spec e.g. 0.5,0.95,p99.9
+     * @return quantiles as fractions
+     * @throws IllegalArgumentException on a malformed or out of range entry
+     */
+    static double[] parseQuantiles(String spec) {
+        String[] items = spec == null ? new String[0] : spec.split(",");
+        double[] quantiles = new double[items.length];
+        int n = 0;
+        for (String item : items) {
+            String q = item.trim().toLowerCase();
+            if (q.isEmpty()) {
+                continue;
+            }
+            double value;
+            try {
+                value = q.startsWith("p") ? Double.parseDouble(q.substring(1)) / 100 : Double.parseDouble(q);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Malformed quantile: " + item.trim());
+            }
+            if (!(value >= 0 && value <= 1)) {
+                throw new IllegalArgumentException("Quantile out of range 0..1: " + item.trim());
+            }
+            quantiles[n++] = value;
+        }
+        if (n == 0) {
+            throw new IllegalArgumentException("No quantiles configured.");
+        }
+        return Arrays.copyOf(quantiles, n);
+    }
+
+    /**
+     *
+     * @return output attribute of a quantile, e.g. quantile_p99_9 for 0.999
+     */
+    static String quantileName(String prefix, double quantile) {
+        String percent = BigDecimal.valueOf(quantile).movePointRight(2).stripTrailingZeros().toPlainString();
+        return prefix + "_p" + percent.replace('.', '_');
+    }
+
+    /**
+     * Window of one key and the state of its emit cadence.
+     */
+    static final class QuantileWindow {
+
+        final PanedQuantiles window;
+        long sinceEmit;
+        long lastEmit = Long.MIN_VALUE;
+
+        QuantileWindow(PanedQuantiles window) {
+            this.window = window;
+        }
+    }
+
+    static class CompiledQuantiles extends CompiledProcessor<Double> {
+
+        private final String inputAttributeName;
+        private final QuantileProcessor quantiles;
+
+        // ctx path state
+        private QuantileWindow ctxWindow;
+        private double[] ctxQuantiles;
+
+        protected CompiledQuantiles(QuantileProcessor quantiles) {
+            super(quantiles);
+            this.quantiles = quantiles;
+            this.inputAttributeName = quantiles.getInput().getSourceAttributeName();
+        }
+
+        /**
+         * Decides whether quantiles are written after a value.
+         *
+         * @param state
+         * @param time event time of the value
+         * @return true if the window should be written
+         */
+        private boolean shouldEmit(QuantileWindow state, long time) {
+            int emitEvery = quantiles.getEmitEvery();
+            int emitInterval = quantiles.getEmitInterval();
+            state.sinceEmit++;
+            boolean emit = emitEvery == 0 && emitInterval == 0
+                    || emitEvery > 0 && state.sinceEmit >= emitEvery;
+            if (emitInterval > 0) {
+                if (state.lastEmit == Long.MIN_VALUE) {
+                    state.lastEmit = time;
+                } else if (time - state.lastEmit >= emitInterval) {
+                    emit = true;
+                }
+            }
+            if (emit) {
+                state.sinceEmit = 0;
+                if (emitInterval > 0) {
+                    state.lastEmit = time;
+                }
+            }
+            return emit;
+        }
+
+        private static int quantileRow(QuantileWindow state, double[] qs, String key, ColumnPage output, int row) {
+            if (row >= output.size()) {
+                output.setSize(row + 1);
+            }
+            if (key != null) {
+                output.setKey(row, key);
+            }
+            QuantileSketch sketch = state.window.getSketch();
+            for (int k = 0; k < qs.length; k++) {
+                output.column(k)[row] = sketch.getQuantile(qs[k]);
+            }
+            output.column(qs.length)[row] = sketch.getCount();
+            return row + 1;
+        }
+
+        @Override
+        public Integer processEvent(Transport runtime) {
+            String inputName = quantiles.getInputs().get(0).getName();
+            String outAttName = quantiles.getOutputAttributeName();
+            TransportReference ref = quantiles.getReferences().get(inputName);
+            if (ref == null) {
+                return GraphVocabulary.CANCEL;
+            }
+            if (!StreamPartitions.checkUnpartitioned(runtime, quantiles.getRedisUrl(), ref)) {
+                return GraphVocabulary.CANCEL;
+            }
+            String sourceClassName = ref.getReferenceClass();
+            String sourceId = ref.getReferenceId();
+
+            Map<String, NodeAttribute> event = ref.getAttributes();
+            String inputAttName;
+            if (event != null && event.size() == 1) {
+                inputAttName = event.keySet().iterator().next();
+            } else {
+                return GraphVocabulary.CANCEL;
+            }
+
+            double[] qs;
+            try {
+                qs = parseQuantiles(quantiles.getQuantiles());
+                // fail early on bad window settings
+                newWindow();
+            } catch (IllegalArgumentException ex) {
+                LOG.log(Level.SEVERE, ex.getMessage());
+                return GraphVocabulary.CANCEL;
+            }
+
+            String keyAttName = quantiles.getKeyAttribute();
+            boolean keyed = keyAttName != null && !keyAttName.isEmpty();
+            // windows per key, an ungrouped stream has the single key ""
+            KeyedState<QuantileWindow> windows = new KeyedState<>(() -> new QuantileWindow(newWindow()),
+                    quantiles.getIdleKeyTtl());
+
+            String timeAttName = quantiles.getTimeAttribute();
+            String[] inNames = timeAttName == null || timeAttName.isEmpty()
+                    ? new String[]{inputAttName} : new String[]{inputAttName, timeAttName};
+            int timeColumn = inNames.length > 1 ? 1 : -1;
+            String[] outNames = new String[qs.length + 1];
+            for (int k = 0; k < qs.length; k++) {
+                outNames[k] = quantileName(outAttName, qs[k]);
+            }
+            outNames[qs.length] = outAttName + "_count";
+            ColumnPage input = keyed ? ColumnPage.keyed(keyAttName, inNames) : new ColumnPage(inNames);
+            ColumnPage output = keyed ? ColumnPage.keyed(keyAttName, outNames) : new ColumnPage(outNames);
+
+            runtime.start();
+            String outputKey = StreamGroupReader.streamKey(quantiles.getClass().getCanonicalName(),
+                    quantiles.getId().toString());
+            EntryCodec codec = EntryCodec.create(runtime, quantiles.getRedisUrl());
+            StreamWriter writer = StreamWriter.create(runtime, quantiles.getClass().getCanonicalName(),
+                    quantiles.getId(), quantiles.getRedisUrl(), quantiles.getWriteBatchSize(),
+                    quantiles.getWriteLinger(), quantiles.getMaxStreamLength());
+
+            Consumer<List<StreamMessage<String, String>>> pageHandler = list -> {
+                input.decode(list, codec);
+                double[] values = input.column(0);
+                int rows = 0;
+                for (int i = 0; i < input.size(); i++) {
+                    double value = values[i];
+                    if (Double.isNaN(value)) {
+                        continue;
+                    }
+                    String key = null;
+                    if (keyed) {
+                        key = input.getKey(i) == null ? "" : input.getKey(i);
+                    }
+                    long time = input.getTime(i, timeColumn);
+                    QuantileWindow state = windows.get(key == null ? "" : key, time);
+                    state.window.add(time, value);
+                    if (shouldEmit(state, time)) {
+                        rows = quantileRow(state, qs, key, output, rows);
+                    }
+                }
+                output.setSize(rows);
+                output.writeTo(writer, codec, null);
+            };
+
+            boolean streaming = Boolean.TRUE.equals(quantiles.isStreamingMode());
+            // entries waiting for event time order, null if they are taken as they come
+            ReorderBuffer reorder = quantiles.getAllowedLateness() < 0 ? null : new ReorderBuffer(codec,
+                    timeAttName, quantiles.getAllowedLateness(), quantiles.getReorderBuffer(), "0",
+                    streaming ? quantiles.getIdleTimeout() : 0);
+            StreamWriter lateWriter = reorder == null ? null : StreamWriter.create(runtime, quantiles.getRedisUrl(),
+                    ReorderBuffer.lateKey(outputKey), quantiles.getWriteBatchSize(),
+                    quantiles.getWriteLinger(), quantiles.getMaxStreamLength());
+            List<StreamMessage<String, String>> ready = new ArrayList<>();
+            List<StreamMessage<String, String>> late = new ArrayList<>();
+            Consumer<List<StreamMessage<String, String>>> handler = reorder == null ? pageHandler : list -> {
+                ready.clear();
+                late.clear();
+                reorder.offer(list, ready, late);
+                late.forEach(msg -> lateWriter.write(msg.getBody()));
+                if (!ready.isEmpty()) {
+                    pageHandler.accept(ready);
+                }
+            };
+            Runnable flush = reorder == null ? writer::flush : () -> {
+                writer.flush();
+                lateWriter.flush();
+            };
+
+            Integer status;
+            if (streaming) {
+                StreamGroupReader reader = new StreamGroupReader(quantiles.getRedisUrl(),
+                        StreamGroupReader.streamKey(sourceClassName, sourceId), outputKey, quantiles.getBlockTimeout());
+                if (reorder == null) {
+                    status = reader.consumePages(StreamGroupReader.DEFAULT_PAGE_SIZE, handler, flush);
+                } else {
+                    // only released and late entries are acked, the waiting ones
+                    // stay pending and are re-delivered after a restart
+                    status = reader.consumeReleased(StreamGroupReader.DEFAULT_PAGE_SIZE, list -> {
+                        handler.accept(list);
+                        List<StreamMessage<String, String>> done = new ArrayList<>(ready);
+                        done.addAll(late);
+                        return done;
+                    }, flush);
+                }
+            } else {
+                String offset = "0";
+                while (true) {
+                    List<StreamMessage<String, String>> list = runtime.readEvents(sourceClassName,
+                            UUID.fromString(sourceId), offset);
+                    if (list.isEmpty()) {
+                        break;
+                    }
+                    handler.accept(list);
+                    offset = list.get(list.size() - 1).getId();
+                }
+                status = GraphVocabulary.COMPLETE;
+            }
+            if (reorder != null && !streaming) {
+                ready.clear();
+                reorder.drain(ready);
+                if (!ready.isEmpty()) {
+                    pageHandler.accept(ready);
+                }
+            }
+            if (reorder != null) {
+                if (reorder.getLateCount() > 0) {
+                    LOG.log(Level.INFO, "{0} entries came later than the watermark.", reorder.getLateCount());
+                }
+                lateWriter.close();
+            }
+            writer.close();
+            codec.close();
+            runtime.shutdown();
+            return status;
+        }
+
+        private PanedQuantiles newWindow() {
+            int duration = quantiles.getWindowDuration();
+            int span = duration > 0 ? duration : quantiles.getWindowLength();
+            return new PanedQuantiles(quantiles.getWindowLength(), duration,
+                    Math.min(quantiles.getWindowPanes(), span), quantiles.getRelativeAccuracy(),
+                    quantiles.getMaxBuckets());
+        }
+
+        /**
+         * Count based window, the emit interval is measured in wall clock
+         * time.
+         *
+         * @return map of quantiles and the count, null if not emitted
+         */
+        @Override
+        public Object processEvent(ProcessorContext<Double> ctx, Map<Integer, Event> eventsByInputId) {
+            Event event = eventsByInputId.get(INPUT_ID);
+            Double value = event.getAttributeAsDouble(inputAttributeName);
+            if (value == null) {
+                return null;
+            }
+            Memory processorMemory = ctx.getProcessorMemory();
+            PanedQuantiles window = (PanedQuantiles) processorMemory;
+            if (ctxWindow == null || ctxWindow.window != window) {
+                ctxWindow = new QuantileWindow(window);
+                ctxQuantiles = parseQuantiles(quantiles.getQuantiles());
+            }
+            window.add(value.doubleValue());
+            if (!shouldEmit(ctxWindow, System.currentTimeMillis())) {
+                return null;
+            }
+            String outAttName = quantiles.getOutputAttributeName();
+            QuantileSketch sketch = window.getSketch();
+            Map<String, Object> retMap = new HashMap<>();
+            for (double q : ctxQuantiles) {
+                retMap.put(quantileName(outAttName, q), sketch.getQuantile(q));
+            }
+            retMap.put(outAttName + "_count", sketch.getCount());
+            return retMap;
+        }
+    }
+}
@@ -18,15 +18,18 @@ package org.lisapark.koctopus.processors.processor.regression;
 
 import com.fasterxml.uuid.Generators;
 import com.google.common.collect.Maps;
-import java.util.Collection;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.logging.Level;
-import org.apache.commons.math3.stat.regression.SimpleRegression;
 import org.lisapark.koctopus.ProgrammerException;
 import org.lisapark.koctopus.core.ValidationException;
 import org.lisapark.koctopus.core.event.Event;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
 import org.lisapark.koctopus.core.memory.Memory;
 import org.lisapark.koctopus.core.memory.MemoryProvider;
 import org.lisapark.koctopus.core.parameter.Constraints;
@@ -39,6 +42,19 @@ import org.lisapark.koctopus.core.runtime.ProcessorContext;
 import org.lisapark.koctopus.core.transport.TransportReference;
 import org.lisapark.koctopus.util.Pair;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.processors.memory.KeyedState;
+import org.lisapark.koctopus.processors.memory.OffHeapMemoryProvider;
+import org.lisapark.koctopus.processors.memory.SlidingPairStatistics;
+import org.lisapark.koctopus.processors.memory.Snapshottable;
+import org.lisapark.koctopus.processors.memory.TimeWindow;
+import org.lisapark.koctopus.processors.memory.TimedPairWindow;
+import org.lisapark.koctopus.processors.transport.EntryCodec;
+import org.lisapark.koctopus.processors.transport.StateSnapshot;
+import org.lisapark.koctopus.processors.transport.StreamGroupReader;
+import org.lisapark.koctopus.processors.transport.StreamJoin;
+import org.lisapark.koctopus.processors.transport.StreamPartitions;
+import org.lisapark.koctopus.processors.transport.StreamWriter;
+import org.lisapark.koctopus.repo.graph.GraphUtils;
 
 /**
  *
@@ -64,12 +80,35 @@ public class LinearRegressionProcessor extends AbstractProcessor<Pair<Double, Do
 
     private static final int A_COEFFICIENT_NAME_PARAM_ID = 4;
     private static final int B_COEFFICIENT_NAME_PARAM_ID = 5;
+    private static final int TRANSPORT_PARAMETER_ID = 6;
+    private static final int JOIN_ALIGNMENT_PARAMETER_ID = 7;
+    private static final int JOIN_TOLERANCE_PARAMETER_ID = 8;
+    private static final int JOIN_BUFFER_PARAMETER_ID = 9;
+    private static final int R_SQUARE_NAME_PARAM_ID = 10;
+    private static final int SLOPE_STD_ERR_NAME_PARAM_ID = 11;
+    private static final int INTERCEPT_STD_ERR_NAME_PARAM_ID = 12;
+    private static final int EMIT_EVERY_PARAMETER_ID = 13;
+    private static final int EMIT_INTERVAL_PARAMETER_ID = 14;
+    private static final int WINDOW_DURATION_PARAMETER_ID = 15;
+    private static final int WINDOW_HOP_PARAMETER_ID = 16;
+    private static final int TIME_ATTRIBUTE_PARAMETER_ID = 17;
+    private static final int KEY_ATTRIBUTE_PARAMETER_ID = 18;
+    private static final int IDLE_KEY_TTL_PARAMETER_ID = 19;
+    private static final int SNAPSHOT_INTERVAL_PARAMETER_ID = 20;
+    private static final int WINDOW_STORAGE_PARAMETER_ID = 21;
+    private static final int STREAMING_MODE_PARAMETER_ID = 22;
+    private static final int BLOCK_TIMEOUT_PARAMETER_ID = 23;
+    private static final int WRITE_BATCH_SIZE_PARAMETER_ID = 24;
+    private static final int WRITE_LINGER_PARAMETER_ID = 25;
+    private static final int MAX_STREAM_LENGTH_PARAMETER_ID = 26;
 
     private static final String A_COEFFICIENT_NAME = "Intercept name: ";
     private static final String B_COEFFICIENT_NAME = "Slope name: ";
 
     private static final int OUTPUT_ID = 1;
 
+    protected Map<String, TransportReference> procrefs = new HashMap<>();
+
     protected LinearRegressionProcessor(UUID id, String name, String description) {
         super(id, name, description);
     }
@@ -123,6 +162,104 @@ public class LinearRegressionProcessor extends AbstractProcessor<Pair<Double, Do
         getParameter(B_COEFFICIENT_NAME_PARAM_ID).setValue(coefficientB);
     }
 
+    public String getRedisUrl() {
+        return getParameter(TRANSPORT_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getJoinAlignment() {
+        return getParameter(JOIN_ALIGNMENT_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getJoinTolerance() {
+        return getParameter(JOIN_TOLERANCE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getJoinBuffer() {
+        return getParameter(JOIN_BUFFER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Boolean isStreamingMode() {
+        return (Boolean) getParameter(STREAMING_MODE_PARAMETER_ID).getValue();
+    }
+
+    public int getBlockTimeout() {
+        return getParameter(BLOCK_TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getRSquareName() {
+        return getParameter(R_SQUARE_NAME_PARAM_ID).getValueAsString();
+    }
+
+    public String getSlopeStdErrName() {
+        return getParameter(SLOPE_STD_ERR_NAME_PARAM_ID).getValueAsString();
+    }
+
+    public String getInterceptStdErrName() {
+        return getParameter(INTERCEPT_STD_ERR_NAME_PARAM_ID).getValueAsString();
+    }
+
+    public Integer getEmitEvery() {
+        return getParameter(EMIT_EVERY_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getEmitInterval() {
+        return getParameter(EMIT_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getWindowDuration() {
+        return getParameter(WINDOW_DURATION_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getWindowHop() {
+        return getParameter(WINDOW_HOP_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getTimeAttribute() {
+        return getParameter(TIME_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getKeyAttribute() {
+        return getParameter(KEY_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getIdleKeyTtl() {
+        return getParameter(IDLE_KEY_TTL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getSnapshotInterval() {
+        return getParameter(SNAPSHOT_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteBatchSize() {
+        return getParameter(WRITE_BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteLinger() {
+        return getParameter(WRITE_LINGER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getMaxStreamLength() {
+        return getParameter(MAX_STREAM_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getWindowStorage() {
+        String storage = getParameter(WINDOW_STORAGE_PARAMETER_ID).getValueAsString();
+        return storage == null ? "" : storage.trim();
+    }
+
+    /**
+     * Creates a window of Time-window pairs in the storage selected by the
+     * Window storage parameter. Mapped files always start empty, a restart
+     * restores the windows from their snapshot.
+     *
+     * @param name window name, part of the mapped file name
+     * @return empty window
+     */
+    SlidingPairStatistics newWindow(String name) {
+        OffHeapMemoryProvider provider = new OffHeapMemoryProvider(getWindowStorage(), getId().toString());
+        return new SlidingPairStatistics(provider.createStorage(name, getWindowLength(), 2));
+    }
+
     public ProcessorInput getFirstInput() {
         // there are two inputs for linearRegressionProcessor
         return getInputs().get(0);
@@ -140,7 +277,11 @@ public class LinearRegressionProcessor extends AbstractProcessor<Pair<Double, Do
 
     @Override
     public LinearRegressionProcessor newInstance(Gnode gnode) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        String uuid = gnode.getId() == null ? Generators.timeBasedGenerator().generate().toString() : gnode.getId();
+        LinearRegressionProcessor regression = newTemplate(UUID.fromString(uuid));
+        GraphUtils.buildProcessor(regression, gnode);
+
+        return regression;
     }
 
     @Override
@@ -151,14 +292,15 @@ public class LinearRegressionProcessor extends AbstractProcessor<Pair<Double, Do
     /**
      * {@link LinearRegressionProcessor}s need memory to store the prior events
      * that will be used to calculate parameters for Linear Regression. We used
-     * a {@link MemoryProvider#createCircularBuffer(int)} to store this data.
+     * a {@link SlidingPairStatistics} to store this data, it keeps the running
+     * moments so the coefficients are updated in constant time.
      *
      * @param memoryProvider used to create LinearRegressionProcessor's memory
      * @return circular buffer
      */
     @Override
     public Memory<Pair<Double, Double>> createMemoryForProcessor(MemoryProvider memoryProvider) {
-        return memoryProvider.createCircularBuffer(getWindowLength());
+        return newWindow("window");
     }
 
     @Override
@@ -182,6 +324,10 @@ public class LinearRegressionProcessor extends AbstractProcessor<Pair<Double, Do
      */
     public static LinearRegressionProcessor newTemplate() {
         UUID processorId = Generators.timeBasedGenerator().generate();
+        return newTemplate(processorId);
+    }
+
+    public static LinearRegressionProcessor newTemplate(UUID processorId) {
         LinearRegressionProcessor regression = new LinearRegressionProcessor(processorId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
 
         regression.addParameter(
@@ -203,6 +349,144 @@ public class LinearRegressionProcessor extends AbstractProcessor<Pair<Double, Do
                         defaultValue("B").required(true)
         );
 
+        regression.addParameter(
+                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
+                        description("Redis URL.").
+                        defaultValue("redis://localhost"));
+
+        regression.addParameter(
+                Parameter.stringParameterWithIdAndName(JOIN_ALIGNMENT_PARAMETER_ID, "Join alignment").
+                        description("How entries of the two input streams are paired: sequence - by position,"
+                                + " timestamp - by stream entry ID time within the join tolerance.").
+                        defaultValue(StreamJoin.SEQUENCE));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(JOIN_TOLERANCE_PARAMETER_ID, "Join tolerance").
+                        description("Max difference in milliseconds between timestamps of paired entries.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Join tolerance cannot be negative.")));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(JOIN_BUFFER_PARAMETER_ID, "Join buffer").
+                        description("Max number of entries buffered for the input stream that runs ahead.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Join buffer has to be greater than zero.")));
+        regression.addParameter(
+                Parameter.booleanParameterWithIdAndName(STREAMING_MODE_PARAMETER_ID, "Streaming mode").
+                        description("If true, tails both input streams through consumer groups until stopped,"
+                                + " otherwise reads the streams from the beginning and completes at their end.").
+                        defaultValue(false));
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(BLOCK_TIMEOUT_PARAMETER_ID, "Block timeout").
+                        description("Streaming mode only. Milliseconds to wait for new entries on each read.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Block timeout should be greater than 0.")));
+
+        regression.addParameter(
+                Parameter.stringParameterWithIdAndName(R_SQUARE_NAME_PARAM_ID, "R square name").
+                        description("Name of the coefficient of determination. Empty - not emitted.").
+                        defaultValue("RSquare")
+        );
+
+        regression.addParameter(
+                Parameter.stringParameterWithIdAndName(SLOPE_STD_ERR_NAME_PARAM_ID, "Slope std error name").
+                        description("Name of the standard error of the slope. Empty - not emitted.").
+                        defaultValue("")
+        );
+
+        regression.addParameter(
+                Parameter.stringParameterWithIdAndName(INTERCEPT_STD_ERR_NAME_PARAM_ID, "Intercept std error name").
+                        description("Name of the standard error of the intercept. Empty - not emitted.").
+                        defaultValue("")
+        );
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(EMIT_EVERY_PARAMETER_ID, "Emit every").
+                        description("Emit coefficients every Nth event once the window is full. 0 - only on Emit interval.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Emit every cannot be negative.")));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(EMIT_INTERVAL_PARAMETER_ID, "Emit interval").
+                        description("Also emit coefficients when this many milliseconds passed since the last emit."
+                                + " 0 - no timer.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Emit interval cannot be negative.")));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_DURATION_PARAMETER_ID, "Window duration").
+                        description("Milliseconds of event time in the window instead of the Time-window count."
+                                + " 0 - count based window.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Window duration cannot be negative.")));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_HOP_PARAMETER_ID, "Window hop").
+                        description("Milliseconds between ends of duration based windows, the result is written"
+                                + " once per window. Equal to duration - tumbling windows. 0 - sliding window.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Window hop cannot be negative.")));
+
+        regression.addParameter(
+                Parameter.stringParameterWithIdAndName(TIME_ATTRIBUTE_PARAMETER_ID, "Time attribute").
+                        description("Attribute of the first input with the event time in epoch milliseconds."
+                                + " Empty - time of the stream entry ID.").
+                        defaultValue(""));
+
+        regression.addParameter(
+                Parameter.stringParameterWithIdAndName(KEY_ATTRIBUTE_PARAMETER_ID, "Key attribute").
+                        description("Attribute of the first input; the regression is computed per its value"
+                                + " and written with it. Empty - one window.").
+                        defaultValue(""));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(IDLE_KEY_TTL_PARAMETER_ID, "Idle key TTL").
+                        description("Milliseconds of event time after which the window of a key that got no"
+                                + " pairs is dropped. 0 - windows are kept.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Idle key TTL cannot be negative.")));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(SNAPSHOT_INTERVAL_PARAMETER_ID, "Snapshot interval").
+                        description("Milliseconds between snapshots of the windows with the last joined stream IDs,"
+                                + " a restart resumes from them with warm windows. 0 - no snapshots.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Snapshot interval cannot be negative.")));
+
+        regression.addParameter(
+                Parameter.stringParameterWithIdAndName(WINDOW_STORAGE_PARAMETER_ID, "Window storage").
+                        description("Storage of Time-window based windows. heap - Java heap, direct - off-heap"
+                                + " memory, mapped - memory mapped files in koctopus.memory.dir. Off-heap windows"
+                                + " keep very long windows out of the heap and GC pauses. Empty - the"
+                                + " koctopus.memory.storage setting of the service, heap by default.").
+                        defaultValue(""));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_BATCH_SIZE_PARAMETER_ID, "Write batch size").
+                        description("Number of output events sent to Redis in one pipelined batch. 1 - no batching.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Write batch size should be greater than 0.")));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_LINGER_PARAMETER_ID, "Write linger").
+                        description("Max milliseconds an output event waits in a batch before it is sent.").
+                        defaultValue(10));
+
+        regression.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_STREAM_LENGTH_PARAMETER_ID, "Max stream length").
+                        description("Approximate max length of the output stream (XADD MAXLEN ~). 0 - no trimming.").
+                        defaultValue(0));
+
         ProcessorInput<Double> firstInput = ProcessorInput.doubleInputWithId(FIRST_INPUT_ID).name("Sequence 1")
                 .description("Sequence 1 data array.").build();
         regression.addInput(firstInput);
@@ -224,17 +508,67 @@ public class LinearRegressionProcessor extends AbstractProcessor<Pair<Double, Do
 
     @Override
     public <T extends AbstractProcessor> CompiledProcessor<Pair<Double, Double>> compile(T processor) throws ValidationException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return new CompiledRegression((LinearRegressionProcessor) processor);
     }
 
     @Override
     public Map<String, TransportReference> getReferences() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        return procrefs;
     }
 
     @Override
-    public void setReferences(Map<String, TransportReference> sourceref) {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public void setReferences(Map<String, TransportReference> procrefs) {
+        this.procrefs = procrefs;
+    }
+
+    /**
+     * Emit trigger state of a window: events since the last emit and the
+     * wall clock time of the last emit.
+     */
+    static final class EmitState implements Snapshottable {
+
+        int sinceEmit;
+        long lastEmit = Long.MIN_VALUE;
+
+        @Override
+        public void writeState(DataOutput out) throws IOException {
+            out.writeInt(sinceEmit);
+            out.writeLong(lastEmit);
+        }
+
+        @Override
+        public void readState(DataInput in) throws IOException {
+            sinceEmit = in.readInt();
+            lastEmit = in.readLong();
+        }
+    }
+
+    /**
+     * Window of a key together with its emit trigger, so that every key
+     * emits on its own Nth event.
+     *
+     * @param <W> window type
+     */
+    static final class KeyWindow<W extends Snapshottable> implements Snapshottable {
+
+        final W window;
+        final EmitState emit = new EmitState();
+
+        KeyWindow(W window) {
+            this.window = window;
+        }
+
+        @Override
+        public void writeState(DataOutput out) throws IOException {
+            emit.writeState(out);
+            window.writeState(out);
+        }
+
+        @Override
+        public void readState(DataInput in) throws IOException {
+            emit.readState(in);
+            window.readState(in);
+        }
     }
 
     static class CompiledRegression extends CompiledProcessor<Pair<Double, Double>> {
@@ -243,6 +577,10 @@ public class LinearRegressionProcessor extends AbstractProcessor<Pair<Double, Do
         private final String secondAttributeName;
 
         private final LinearRegressionProcessor regression;
+        private final int emitEvery;
+        private final long emitInterval;
+        // ctx path trigger, the Transport path keeps one per key
+        private final EmitState ctxEmit = new EmitState();
         private static final String INTRERSEPT = "intersept";
         private static final String SLOPE = "slope";
 
@@ -252,6 +590,10 @@ public class LinearRegressionProcessor extends AbstractProcessor<Pair<Double, Do
 
             firstAttributeName = regression.getFirstInput().getSourceAttributeName();
             secondAttributeName = regression.getSecondInput().getSourceAttributeName();
+
+            emitInterval = regression.getEmitInterval();
+            // both triggers off - every event
+            emitEvery = regression.getEmitEvery() == 0 && emitInterval == 0 ? 1 : regression.getEmitEvery();
         }
 
         @Override
@@ -266,35 +608,61 @@ public class LinearRegressionProcessor extends AbstractProcessor<Pair<Double, Do
 
             if (firstOperand != null && secondOperand != null) {
 
-                Memory<Pair<Double, Double>> processorMemory = ctx.getProcessorMemory();
-
-                Pair<Double, Double> newPair = new Pair<>(firstOperand, secondOperand);
-                processorMemory.add(newPair);
-
-                int arraySize = regression.getWindowLength();
-                double[] first = new double[arraySize];
-                double[] second = new double[arraySize];
-
-                final Collection<Pair<Double, Double>> memoryItems = processorMemory.values();
+                SlidingPairStatistics processorMemory = (SlidingPairStatistics) ctx.getProcessorMemory();
+                regress(processorMemory, ctxEmit, firstOperand, secondOperand, retMap);
+            }
 
-                SimpleRegression simpleRegression = new SimpleRegression();
+            return retMap;
+        }
 
-                if (memoryItems.size() >= arraySize) {
+        private boolean regress(SlidingPairStatistics processorMemory, EmitState emit, double firstOperand,
+                double secondOperand, Map<String, Object> retMap) {
+            processorMemory.add(firstOperand, secondOperand);
 
-                    int i = 0;
-                    memoryItems.forEach((memoryItem) -> {
-                        simpleRegression.addData(memoryItem.getFirst(), memoryItem.getSecond());
-                    });
+            if (!processorMemory.isFull()) {
+                return false;
+            }
+            if (!shouldEmit(emit)) {
+                return false;
+            }
+            coefficients(processorMemory, retMap);
+            return true;
+        }
 
-                    simpleRegression.regress();
+        private void coefficients(SlidingPairStatistics processorMemory, Map<String, Object> retMap) {
+            // y = a + bx; a - intersept; b - slope;
+            retMap.put(regression.getCoefficientAname(), processorMemory.getIntercept());
+            retMap.put(regression.getCoefficientBname(), processorMemory.getSlope());
+            putIfNamed(retMap, regression.getRSquareName(), processorMemory.getRSquare());
+            putIfNamed(retMap, regression.getSlopeStdErrName(), processorMemory.getSlopeStdErr());
+            putIfNamed(retMap, regression.getInterceptStdErrName(), processorMemory.getInterceptStdErr());
+        }
 
-                    // y = a + bx; a - intersept; b - slope;
-                    retMap.put(regression.getCoefficientAname(), simpleRegression.getIntercept());
-                    retMap.put(regression.getCoefficientBname(), simpleRegression.getSlope());
-                }
+        /**
+         * Batch mode: true on every Nth full window of the key or when the
+         * emit interval has passed since the key last emitted coefficients.
+         */
+        private boolean shouldEmit(EmitState state) {
+            long now = System.currentTimeMillis();
+            if (state.lastEmit == Long.MIN_VALUE) {
+                state.lastEmit = now;
+            }
+            state.sinceEmit++;
+            boolean emit = emitEvery > 0 && state.sinceEmit >= emitEvery;
+            if (!emit && emitInterval > 0) {
+                emit = now - state.lastEmit >= emitInterval;
+            }
+            if (emit) {
+                state.sinceEmit = 0;
+                state.lastEmit = now;
             }
+            return emit;
+        }
 
-            return retMap;
+        private void putIfNamed(Map<String, Object> retMap, String name, double value) {
+            if (name != null && !name.isEmpty()) {
+                retMap.put(name, value);
+            }
         }
 
         private String getGssListEntryFromEvent(Map<String, Object> map) {
@@ -328,9 +696,127 @@ public class LinearRegressionProcessor extends AbstractProcessor<Pair<Double, Do
             return builder.toString();
         }
 
+        private void writeTimed(StreamWriter writer, Map<String, Object> event, String key,
+                SlidingPairStatistics window) {
+            if (window.size() > 1) {
+                coefficients(window, event);
+                write(writer, event, key);
+            }
+        }
+
+        /**
+         * Writes the coefficients put into the event, as strings.
+         */
+        private void write(StreamWriter writer, Map<String, Object> event, String key) {
+            event.replaceAll((name, value) -> String.valueOf(value));
+            if (key != null) {
+                event.put(regression.getKeyAttribute(), key);
+            }
+            writer.write(event);
+        }
+
         @Override
         public Object processEvent(Transport runtime) {
-            throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+            TransportReference firstRef = regression.getReferences().get(regression.getFirstInput().getName());
+            TransportReference secondRef = regression.getReferences().get(regression.getSecondInput().getName());
+            if (firstRef == null || secondRef == null) {
+                return GraphVocabulary.CANCEL;
+            }
+            String firstAttName = StreamJoin.attributeName(firstRef);
+            String secondAttName = StreamJoin.attributeName(secondRef);
+            if (firstAttName == null || secondAttName == null) {
+                return GraphVocabulary.CANCEL;
+            }
+            if (!StreamPartitions.checkUnpartitioned(runtime, regression.getRedisUrl(), firstRef, secondRef)) {
+                return GraphVocabulary.CANCEL;
+            }
+            int windowLength = regression.getWindowLength();
+            int duration = regression.getWindowDuration();
+            int hop = regression.getWindowHop();
+            String timeAttName = regression.getTimeAttribute();
+            String keyAttName = regression.getKeyAttribute();
+            boolean keyed = keyAttName != null && !keyAttName.isEmpty();
+            boolean streaming = Boolean.TRUE.equals(regression.isStreamingMode());
+            StateSnapshot snapshot = new StateSnapshot(regression.getRedisUrl(), regression.getId().toString(),
+                    "join", "regression|" + windowLength + "|" + duration + "|" + hop + "|" + keyAttName + "|emit",
+                    streaming ? 0 : regression.getSnapshotInterval());
+            // windows per key, an ungrouped stream has the single key ""
+            int[] windows = {0};
+            KeyedState<KeyWindow<SlidingPairStatistics>> counted = duration > 0
+                    ? null : snapshot.restore(() -> new KeyedState<>(
+                            () -> new KeyWindow<>(regression.newWindow("window-" + windows[0]++)),
+                            regression.getIdleKeyTtl(), current -> current.window.release()));
+            KeyedState<KeyWindow<TimedPairWindow>> timedByKey = duration > 0
+                    ? snapshot.restore(() -> new KeyedState<>(
+                            () -> new KeyWindow<>(new TimedPairWindow(duration, hop)), regression.getIdleKeyTtl())) : null;
+            Snapshottable state = duration > 0 ? timedByKey : counted;
+            // IDs of the last joined pair
+            String[] offsets = StreamJoin.splitOffsets(snapshot.getRestoredOffset());
+
+            runtime.start();
+            EntryCodec codec = EntryCodec.create(runtime, regression.getRedisUrl());
+            StreamJoin join = new StreamJoin(runtime, firstRef, secondRef, regression.getJoinAlignment(),
+                    regression.getJoinTolerance(), regression.getJoinBuffer());
+            join.seek(offsets[0], offsets[1]);
+            StreamWriter writer = StreamWriter.create(runtime, regression.getClass().getCanonicalName(),
+                    regression.getId(), regression.getRedisUrl(), regression.getWriteBatchSize(),
+                    regression.getWriteLinger(), regression.getMaxStreamLength());
+            // writers copy the event, so the map serves all results
+            Map<String, Object> event = new HashMap<>();
+            StreamJoin.PairHandler handler = (first, second) -> {
+                // the state holds everything up to the previous pair
+                snapshot.update(StreamJoin.joinOffsets(offsets), state, writer::flush);
+                offsets[0] = first.getId();
+                offsets[1] = second.getId();
+                Double firstOperand = codec.getDouble(first.getBody(), firstAttName);
+                Double secondOperand = codec.getDouble(second.getBody(), secondAttName);
+                if (firstOperand == null || secondOperand == null) {
+                    return;
+                }
+                String key = null;
+                if (keyed) {
+                    key = codec.getString(first.getBody(), keyAttName);
+                    key = key == null ? "" : key;
+                }
+                if (timedByKey == null) {
+                    long now = regression.getIdleKeyTtl() > 0 ? StreamJoin.eventTime(first, codec, timeAttName) : 0L;
+                    KeyWindow<SlidingPairStatistics> current = counted.get(key == null ? "" : key, now);
+                    if (regress(current.window, current.emit, firstOperand, secondOperand, event)) {
+                        write(writer, event, key);
+                    }
+                    return;
+                }
+                long time = StreamJoin.eventTime(first, codec, timeAttName);
+                KeyWindow<TimedPairWindow> current = timedByKey.get(key == null ? "" : key, time);
+                TimedPairWindow timed = current.window;
+                while (timed.close(time) != TimeWindow.NONE) {
+                    writeTimed(writer, event, key, timed.getStatistics());
+                }
+                timed.add(time, firstOperand, secondOperand);
+                if (!timed.isHopping() && shouldEmit(current.emit)) {
+                    writeTimed(writer, event, key, timed.getStatistics());
+                }
+            };
+            Integer status;
+            if (streaming) {
+                // one consumer group per processor, named after its output stream
+                String groupName = StreamGroupReader.streamKey(regression.getClass().getCanonicalName(),
+                        regression.getId().toString());
+                status = join.tail(regression.getRedisUrl(), groupName, regression.getBlockTimeout(), handler,
+                        writer::flush);
+            } else {
+                status = join.run(handler);
+            }
+            writer.close();
+            snapshot.commit(StreamJoin.joinOffsets(offsets), state);
+            snapshot.close();
+            if (counted != null) {
+                // releases the windows, e.g. deletes mapped files
+                counted.clear();
+            }
+            codec.close();
+            runtime.shutdown();
+            return status;
         }
     }
 }
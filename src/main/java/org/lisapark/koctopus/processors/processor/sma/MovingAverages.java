@@ -0,0 +1,500 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.processor.sma;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.lisapark.koctopus.processors.memory.DoubleCircularBuffer;
+import org.lisapark.koctopus.processors.memory.Snapshottable;
+import org.lisapark.koctopus.processors.memory.TimeWindow;
+
+/**
+ * Computes several moving averages of one series in a single pass, each in
+ * O(1) per value and without boxing.
+ *
+ * Supported averages: simple (sma), exponential (ema, alpha = 2 / (n + 1))
+ * and linearly weighted (wma, the newest value has weight n). Running sums
+ * are Kahan compensated and recomputed from the window every n values, so
+ * rounding errors cannot accumulate.
+ *
+ * The primary SMA can also be duration based, see {@link TimeWindow}: it then
+ * averages the values of the last duration milliseconds of event time, or of
+ * hopping / tumbling windows reported by {@link #close(long)}.
+ *
+ * @author alexmy
+ */
+public final class MovingAverages implements Snapshottable {
+
+    public static final String SMA = "sma";
+    public static final String EMA = "ema";
+    public static final String WMA = "wma";
+
+    private final List<String> names = new ArrayList<>();
+    private final List<Average> averages = new ArrayList<>();
+    private TimeSma timed;
+
+    private MovingAverages() {
+    }
+
+    /**
+     * Builds averages from the primary window and a comma separated list of
+     * additional ones, each &lt;type&gt;&lt;length&gt;, e.g. "sma50,ema20".
+     * The primary average is an SMA named primaryName, the others are named
+     * primaryName_&lt;type&gt;&lt;length&gt;.
+     *
+     * @param primaryName name of the primary average
+     * @param window length of the primary SMA
+     * @param spec additional averages, may be null or empty
+     * @return MovingAverages
+     */
+    public static MovingAverages parse(String primaryName, int window, String spec) {
+        MovingAverages averages = new MovingAverages();
+        averages.add(primaryName, SMA, window);
+        if (spec == null) {
+            return averages;
+        }
+        for (String item : spec.split(",")) {
+            String token = item.trim().toLowerCase();
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (token.length() < 4) {
+                throw new IllegalArgumentException("Wrong moving average: " + item);
+            }
+            String type = token.substring(0, 3);
+            int length;
+            try {
+                length = Integer.parseInt(token.substring(3));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Wrong moving average length: " + item, ex);
+            }
+            averages.add(primaryName + "_" + token, type, length);
+        }
+        return averages;
+    }
+
+    /**
+     * Same as {@link #parse(String, int, String)}, with a duration based
+     * primary SMA if duration is greater than 0.
+     *
+     * @param primaryName name of the primary average
+     * @param window length of the primary SMA, if duration is 0
+     * @param spec additional averages, may be null or empty
+     * @param duration primary window duration in milliseconds, 0 - count
+     * based window
+     * @param hop window hop in milliseconds, 0 - sliding window
+     * @return MovingAverages
+     */
+    public static MovingAverages parse(String primaryName, int window, String spec, long duration, long hop) {
+        MovingAverages averages = parse(primaryName, window, spec);
+        if (duration > 0) {
+            averages.timed = new TimeSma(new TimeWindow(duration, hop));
+            averages.averages.set(0, averages.timed);
+        }
+        return averages;
+    }
+
+    private void add(String name, String type, int length) {
+        if (length < 1) {
+            throw new IllegalArgumentException("Moving average length should be greater than 0: " + name);
+        }
+        switch (type) {
+            case SMA:
+                averages.add(new Sma(length));
+                break;
+            case EMA:
+                averages.add(new Ema(length));
+                break;
+            case WMA:
+                averages.add(new Wma(length));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown moving average type: " + type);
+        }
+        names.add(name);
+    }
+
+    /**
+     * Adds the next value of the series to all averages.
+     *
+     * @param value
+     */
+    public void add(double value) {
+        for (int i = 0; i < averages.size(); i++) {
+            averages.get(i).add(value);
+        }
+    }
+
+    /**
+     * Adds the next value with its event time. Time matters for a duration
+     * based primary SMA only.
+     *
+     * @param time event time in milliseconds
+     * @param value
+     */
+    public void add(long time, double value) {
+        if (timed != null) {
+            timed.time = timed.window.time(time);
+        }
+        add(value);
+    }
+
+    /**
+     *
+     * @return true if the averages are reported per hopping or tumbling
+     * window rather than per value
+     */
+    public boolean isHopping() {
+        return timed != null && !timed.window.isSliding();
+    }
+
+    /**
+     * Hopping windows: call before {@link #add(long, double)} until it
+     * returns {@link TimeWindow#NONE}; every other result is the end of a
+     * window closed by the value at time, and the primary SMA holds the
+     * average of that window until the next call.
+     *
+     * @param time event time of the next value
+     * @return window end or TimeWindow.NONE
+     */
+    public long close(long time) {
+        if (!isHopping()) {
+            return TimeWindow.NONE;
+        }
+        long end = timed.window.nextClosed(timed.window.time(time));
+        if (end != TimeWindow.NONE) {
+            timed.drop(timed.window.expire(end - timed.window.getDuration()));
+        }
+        return end;
+    }
+
+    public int size() {
+        return averages.size();
+    }
+
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    /**
+     *
+     * @param index average index, 0 is the primary one
+     * @return current value, NaN before the first value
+     */
+    public double get(int index) {
+        return averages.get(index).value();
+    }
+
+    /**
+     * Writes the window of every average.
+     */
+    @Override
+    public void writeState(DataOutput out) throws IOException {
+        for (Average average : averages) {
+            average.writeState(out);
+        }
+    }
+
+    @Override
+    public void readState(DataInput in) throws IOException {
+        for (Average average : averages) {
+            average.readState(in);
+        }
+    }
+
+    private interface Average extends Snapshottable {
+
+        void add(double value);
+
+        double value();
+    }
+
+    /**
+     * Window of an SMA or WMA, oldest value first.
+     */
+    private static void writeWindow(double[] window, int count, int next, DataOutput out) throws IOException {
+        out.writeInt(count);
+        int oldest = count == window.length ? next : 0;
+        for (int i = 0; i < count; i++) {
+            out.writeDouble(window[(oldest + i) % window.length]);
+        }
+    }
+
+    private static int readCount(double[] window, DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > window.length) {
+            throw new IOException("Wrong number of values: " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Kahan compensated sum.
+     */
+    private static final class Sum {
+
+        private double sum;
+        private double compensation;
+
+        void add(double value) {
+            double y = value - compensation;
+            double t = sum + y;
+            compensation = (t - sum) - y;
+            sum = t;
+        }
+
+        void reset() {
+            sum = 0;
+            compensation = 0;
+        }
+
+        double get() {
+            return sum;
+        }
+    }
+
+    private static final class Sma implements Average {
+
+        private final double[] window;
+        private final Sum sum = new Sum();
+        private int count;
+        private int next;
+        private int sinceResync;
+
+        Sma(int length) {
+            this.window = new double[length];
+        }
+
+        @Override
+        public void add(double value) {
+            if (count == window.length) {
+                sum.add(-window[next]);
+            } else {
+                count++;
+            }
+            window[next] = value;
+            next = next + 1 == window.length ? 0 : next + 1;
+            sum.add(value);
+
+            if (++sinceResync >= window.length) {
+                sinceResync = 0;
+                sum.reset();
+                for (int i = 0; i < count; i++) {
+                    sum.add(window[i]);
+                }
+            }
+        }
+
+        @Override
+        public double value() {
+            return count == 0 ? Double.NaN : sum.get() / count;
+        }
+
+        @Override
+        public void writeState(DataOutput out) throws IOException {
+            writeWindow(window, count, next, out);
+        }
+
+        @Override
+        public void readState(DataInput in) throws IOException {
+            int n = readCount(window, in);
+            count = 0;
+            next = 0;
+            sinceResync = 0;
+            sum.reset();
+            for (int i = 0; i < n; i++) {
+                add(in.readDouble());
+            }
+        }
+    }
+
+    /**
+     * SMA of a duration based window. The window grows and shrinks with the
+     * event rate, values and their times are kept in parallel primitive
+     * buffers.
+     */
+    private static final class TimeSma implements Average {
+
+        private final TimeWindow window;
+        private final DoubleCircularBuffer values = new DoubleCircularBuffer(16);
+        private final Sum sum = new Sum();
+        private int sinceResync;
+        // event time of the value being added
+        private long time;
+
+        TimeSma(TimeWindow window) {
+            this.window = window;
+        }
+
+        @Override
+        public void add(double value) {
+            if (window.isSliding()) {
+                drop(window.slide(time));
+            }
+            if (values.isFull()) {
+                values.ensureCapacity(values.capacity() * 2);
+            }
+            values.add(value);
+            window.add(time);
+            sum.add(value);
+            if (++sinceResync >= Math.max(values.size(), 16)) {
+                resync();
+            }
+        }
+
+        void drop(int count) {
+            for (int i = 0; i < count; i++) {
+                sum.add(-values.getOldest());
+                values.removeOldest();
+            }
+            if (count > 0 && values.size() == 0) {
+                sum.reset();
+            }
+        }
+
+        private void resync() {
+            sinceResync = 0;
+            sum.reset();
+            for (int i = 0; i < values.size(); i++) {
+                sum.add(values.get(i));
+            }
+        }
+
+        @Override
+        public double value() {
+            return values.size() == 0 ? Double.NaN : sum.get() / values.size();
+        }
+
+        @Override
+        public void writeState(DataOutput out) throws IOException {
+            window.writeState(out);
+            values.writeState(out);
+        }
+
+        @Override
+        public void readState(DataInput in) throws IOException {
+            window.readState(in);
+            values.readState(in);
+            resync();
+        }
+    }
+
+    private static final class Ema implements Average {
+
+        private final double alpha;
+        private double value = Double.NaN;
+
+        Ema(int length) {
+            this.alpha = 2.0 / (length + 1);
+        }
+
+        @Override
+        public void add(double x) {
+            value = Double.isNaN(value) ? x : value + alpha * (x - value);
+        }
+
+        @Override
+        public double value() {
+            return value;
+        }
+
+        @Override
+        public void writeState(DataOutput out) throws IOException {
+            out.writeDouble(value);
+        }
+
+        @Override
+        public void readState(DataInput in) throws IOException {
+            value = in.readDouble();
+        }
+    }
+
+    /**
+     * Weighted sum is updated as numerator + n * x - total, where total is the
+     * plain sum of the window before x is added.
+     */
+    private static final class Wma implements Average {
+
+        private final double[] window;
+        private final Sum total = new Sum();
+        private final Sum numerator = new Sum();
+        private int count;
+        private int next;
+        private int sinceResync;
+
+        Wma(int length) {
+            this.window = new double[length];
+        }
+
+        @Override
+        public void add(double value) {
+            if (count == window.length) {
+                numerator.add(count * value - total.get());
+                total.add(-window[next]);
+            } else {
+                count++;
+                numerator.add(count * value);
+            }
+            total.add(value);
+            window[next] = value;
+            next = next + 1 == window.length ? 0 : next + 1;
+
+            if (++sinceResync >= window.length) {
+                sinceResync = 0;
+                resync();
+            }
+        }
+
+        private void resync() {
+            total.reset();
+            numerator.reset();
+            // oldest value has weight 1, newest - count
+            int oldest = count == window.length ? next : 0;
+            for (int i = 0; i < count; i++) {
+                double value = window[(oldest + i) % window.length];
+                total.add(value);
+                numerator.add((i + 1) * value);
+            }
+        }
+
+        @Override
+        public double value() {
+            return count == 0 ? Double.NaN : numerator.get() / (count * (count + 1) / 2.0);
+        }
+
+        @Override
+        public void writeState(DataOutput out) throws IOException {
+            writeWindow(window, count, next, out);
+        }
+
+        @Override
+        public void readState(DataInput in) throws IOException {
+            int n = readCount(window, in);
+            count = 0;
+            next = 0;
+            sinceResync = 0;
+            total.reset();
+            numerator.reset();
+            for (int i = 0; i < n; i++) {
+                add(in.readDouble());
+            }
+        }
+    }
+}
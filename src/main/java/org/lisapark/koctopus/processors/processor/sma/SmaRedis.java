@@ -30,22 +30,39 @@ import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.runtime.ProcessorContext;
 
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import org.lisapark.koctopus.core.graph.Gnode;
 import org.lisapark.koctopus.repo.graph.GraphUtils;
 import org.lisapark.koctopus.core.graph.NodeAttribute;
 import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
-import org.lisapark.koctopus.core.memory.heap.HeapCircularBuffer;
 import org.lisapark.koctopus.core.processor.CompiledProcessor;
 import org.lisapark.koctopus.core.processor.AbstractProcessor;
 import org.lisapark.koctopus.core.processor.ProcessorInput;
 import org.lisapark.koctopus.core.processor.ProcessorOutput;
 import org.lisapark.koctopus.core.transport.TransportReference;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.processors.memory.DoubleCircularBuffer;
+import org.lisapark.koctopus.processors.memory.KeyedState;
+import org.lisapark.koctopus.processors.memory.Snapshottable;
+import org.lisapark.koctopus.processors.memory.TimeWindow;
+import org.lisapark.koctopus.processors.transport.ColumnPage;
+import org.lisapark.koctopus.processors.transport.EntryCodec;
+import org.lisapark.koctopus.processors.transport.EntrySchema;
+import org.lisapark.koctopus.processors.transport.OffsetCheckpoint;
+import org.lisapark.koctopus.processors.transport.ReorderBuffer;
+import org.lisapark.koctopus.processors.transport.StateSnapshot;
+import org.lisapark.koctopus.processors.transport.StreamGroupReader;
+import org.lisapark.koctopus.processors.transport.StreamPageReader;
+import org.lisapark.koctopus.processors.transport.StreamPartitions;
+import org.lisapark.koctopus.processors.transport.StreamWriter;
 
 /**
  * This {@link AbstractProcessor} is used for computing a Simple Moving Average
@@ -64,6 +81,8 @@ import org.lisapark.koctopus.core.transport.Transport;
 @Persistable
 public class SmaRedis extends AbstractProcessor<Double> {
 
+    static final Logger LOG = Logger.getLogger(SmaRedis.class.getName());
+
     private static final String DEFAULT_NAME = "SMA Redis";
     private static final String DEFAULT_DESCRIPTION = "Simple Moving Average from Redis.";
     private static final String DEFAULT_WINDOW_LENGTH_DESCRIPTION = "Number of data points to consider when calculating the average.";
@@ -77,6 +96,24 @@ public class SmaRedis extends AbstractProcessor<Double> {
      * identifier of the parameter.
      */
     private static final int WINDOW_LENGTH_PARAMETER_ID = 2;
+    private static final int TRANSPORT_PARAMETER_ID = 3;
+    private static final int STREAMING_MODE_PARAMETER_ID = 4;
+    private static final int BLOCK_TIMEOUT_PARAMETER_ID = 5;
+    private static final int WRITE_BATCH_SIZE_PARAMETER_ID = 6;
+    private static final int WRITE_LINGER_PARAMETER_ID = 7;
+    private static final int MAX_STREAM_LENGTH_PARAMETER_ID = 8;
+    private static final int CHECKPOINT_INTERVAL_PARAMETER_ID = 9;
+    private static final int BINARY_ENCODING_PARAMETER_ID = 10;
+    private static final int ADDITIONAL_AVERAGES_PARAMETER_ID = 11;
+    private static final int WINDOW_DURATION_PARAMETER_ID = 12;
+    private static final int WINDOW_HOP_PARAMETER_ID = 13;
+    private static final int TIME_ATTRIBUTE_PARAMETER_ID = 14;
+    private static final int KEY_ATTRIBUTE_PARAMETER_ID = 15;
+    private static final int IDLE_KEY_TTL_PARAMETER_ID = 16;
+    private static final int SNAPSHOT_INTERVAL_PARAMETER_ID = 17;
+    private static final int ALLOWED_LATENESS_PARAMETER_ID = 18;
+    private static final int REORDER_BUFFER_PARAMETER_ID = 19;
+    private static final int IDLE_TIMEOUT_PARAMETER_ID = 20;
 
     /**
      * Sma takes a single input
@@ -111,6 +148,78 @@ public class SmaRedis extends AbstractProcessor<Double> {
         getParameter(WINDOW_LENGTH_PARAMETER_ID).setValue(windowLength);
     }
 
+    public String getRedisUrl() {
+        return getParameter(TRANSPORT_PARAMETER_ID).getValueAsString();
+    }
+
+    public Boolean isStreamingMode() {
+        return (Boolean) getParameter(STREAMING_MODE_PARAMETER_ID).getValue();
+    }
+
+    public int getBlockTimeout() {
+        return getParameter(BLOCK_TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteBatchSize() {
+        return getParameter(WRITE_BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWriteLinger() {
+        return getParameter(WRITE_LINGER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getMaxStreamLength() {
+        return getParameter(MAX_STREAM_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getCheckpointInterval() {
+        return getParameter(CHECKPOINT_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Boolean isBinaryEncoding() {
+        return (Boolean) getParameter(BINARY_ENCODING_PARAMETER_ID).getValue();
+    }
+
+    public String getAdditionalAverages() {
+        return getParameter(ADDITIONAL_AVERAGES_PARAMETER_ID).getValueAsString();
+    }
+
+    public int getWindowDuration() {
+        return getParameter(WINDOW_DURATION_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getWindowHop() {
+        return getParameter(WINDOW_HOP_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getTimeAttribute() {
+        return getParameter(TIME_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public String getKeyAttribute() {
+        return getParameter(KEY_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public int getIdleKeyTtl() {
+        return getParameter(IDLE_KEY_TTL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getSnapshotInterval() {
+        return getParameter(SNAPSHOT_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getAllowedLateness() {
+        return getParameter(ALLOWED_LATENESS_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getReorderBuffer() {
+        return getParameter(REORDER_BUFFER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public int getIdleTimeout() {
+        return getParameter(IDLE_TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
+
     public ProcessorInput getInput() {
         // there is only one input for an Sma
         return getInputs().get(0);
@@ -156,7 +265,138 @@ public class SmaRedis extends AbstractProcessor<Double> {
                         defaultValue(10).required(true).
                         constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Time window should be greater than 1."))
         );
-        
+        sma.addParameter(
+                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
+                        description("Redis URL.").
+                        defaultValue("redis://localhost")
+        );
+        sma.addParameter(
+                Parameter.booleanParameterWithIdAndName(STREAMING_MODE_PARAMETER_ID, "Streaming mode").
+                        description("If true, tails the input stream through a consumer group until stopped,"
+                                + " otherwise reads the stream from the beginning and completes at its end.").
+                        defaultValue(false)
+        );
+        sma.addParameter(
+                Parameter.integerParameterWithIdAndName(BLOCK_TIMEOUT_PARAMETER_ID, "Block timeout").
+                        description("Streaming mode only. Milliseconds to wait for new entries on each read.").
+                        defaultValue(1000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Block timeout should be greater than 0."))
+        );
+        sma.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_BATCH_SIZE_PARAMETER_ID, "Write batch size").
+                        description("Number of output events sent to Redis in one pipelined batch. 1 - no batching.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Write batch size should be greater than 0."))
+        );
+        sma.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_LINGER_PARAMETER_ID, "Write linger").
+                        description("Max milliseconds an output event waits in a batch before it is sent.").
+                        defaultValue(10)
+        );
+        sma.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_STREAM_LENGTH_PARAMETER_ID, "Max stream length").
+                        description("Approximate max length of the output stream (XADD MAXLEN ~). 0 - no trimming.").
+                        defaultValue(0)
+        );
+        sma.addParameter(
+                Parameter.integerParameterWithIdAndName(CHECKPOINT_INTERVAL_PARAMETER_ID, "Checkpoint interval").
+                        description("Batch mode only. Milliseconds between commits of the last processed stream ID,"
+                                + " a restart resumes from it. 0 - no checkpoints, always read from the beginning.").
+                        defaultValue(0)
+        );
+        sma.addParameter(
+                Parameter.booleanParameterWithIdAndName(BINARY_ENCODING_PARAMETER_ID, "Binary encoding").
+                        description("If true, output entries are written in the compact binary format"
+                                + " (schema ID and packed doubles) instead of text.").
+                        defaultValue(false)
+        );
+        sma.addParameter(
+                Parameter.stringParameterWithIdAndName(ADDITIONAL_AVERAGES_PARAMETER_ID, "Additional averages").
+                        description("Comma separated averages computed in the same pass, each <type><length>,"
+                                + " type is sma, ema or wma, e.g. sma50,sma200,ema20. Written as <output>_<type><length>.").
+                        defaultValue("")
+        );
+
+        sma.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_DURATION_PARAMETER_ID, "Window duration").
+                        description("Milliseconds of event time averaged by the primary SMA instead of"
+                                + " the Time window count. 0 - count based window.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Window duration cannot be negative."))
+        );
+
+        sma.addParameter(
+                Parameter.integerParameterWithIdAndName(WINDOW_HOP_PARAMETER_ID, "Window hop").
+                        description("Milliseconds between ends of duration based windows, averages are written"
+                                + " once per window. Equal to duration - tumbling windows. 0 - sliding window,"
+                                + " averages are written for every value.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Window hop cannot be negative."))
+        );
+
+        sma.addParameter(
+                Parameter.stringParameterWithIdAndName(TIME_ATTRIBUTE_PARAMETER_ID, "Time attribute").
+                        description("Attribute with the event time in epoch milliseconds."
+                                + " Empty - time of the stream entry ID.").
+                        defaultValue("")
+        );
+
+        sma.addParameter(
+                Parameter.stringParameterWithIdAndName(KEY_ATTRIBUTE_PARAMETER_ID, "Key attribute").
+                        description("Averages are computed per value of this attribute, e.g. per symbol of"
+                                + " a multiplexed stream, and written with it. Empty - one window.").
+                        defaultValue("")
+        );
+
+        sma.addParameter(
+                Parameter.integerParameterWithIdAndName(IDLE_KEY_TTL_PARAMETER_ID, "Idle key TTL").
+                        description("Milliseconds of event time after which the window of a key that got no"
+                                + " values is dropped. 0 - windows are kept.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Idle key TTL cannot be negative."))
+        );
+
+        sma.addParameter(
+                Parameter.integerParameterWithIdAndName(SNAPSHOT_INTERVAL_PARAMETER_ID, "Snapshot interval").
+                        description("Batch mode only. Milliseconds between snapshots of the windows with the last"
+                                + " processed stream ID, a restart resumes from them with warm windows. Takes"
+                                + " precedence over Checkpoint interval. 0 - no snapshots.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Snapshot interval cannot be negative."))
+        );
+
+        sma.addParameter(
+                Parameter.integerParameterWithIdAndName(ALLOWED_LATENESS_PARAMETER_ID, "Allowed lateness").
+                        description("Milliseconds of event time an entry waits for older ones, entries are"
+                                + " averaged in event time order. Entries older than the watermark go to the"
+                                + " <output>:late stream. -1 - no reordering.").
+                        defaultValue(-1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(-1,
+                                "Allowed lateness has to be -1 or more."))
+        );
+
+        sma.addParameter(
+                Parameter.integerParameterWithIdAndName(REORDER_BUFFER_PARAMETER_ID, "Reorder buffer").
+                        description("Max number of entries waiting for reordering, the oldest ones are"
+                                + " released early when it is full.").
+                        defaultValue(100000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Reorder buffer has to be greater than zero."))
+        );
+
+        sma.addParameter(
+                Parameter.integerParameterWithIdAndName(IDLE_TIMEOUT_PARAMETER_ID, "Idle timeout").
+                        description("Streaming mode only. Milliseconds without new entries after which the"
+                                + " entries waiting for reordering are released. 0 - wait for the next entry.").
+                        defaultValue(10000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Idle timeout cannot be negative."))
+        );
+
         // only a single double input
         sma.addInput(
                 ProcessorInput.doubleInputWithId(INPUT_ID).name("Input").description(DEFAULT_INPUT_DESCRIPTION)
@@ -176,14 +416,14 @@ public class SmaRedis extends AbstractProcessor<Double> {
     /**
      * {@link Sma}s need memory to store the prior events that will be used to
      * calculate the average based on. We used a
-     * {@link MemoryProvider#createCircularBuffer(int)} to store this data.
+     * {@link DoubleCircularBuffer} to store this data.
      *
      * @param memoryProvider used to create sma's memory
      * @return circular buffer
      */
     @Override
     public Memory<Double> createMemoryForProcessor(MemoryProvider memoryProvider) {
-        return memoryProvider.createCircularBuffer(getWindowLength());
+        return new DoubleCircularBuffer(getWindowLength());
     }
 
     /**
@@ -233,6 +473,15 @@ public class SmaRedis extends AbstractProcessor<Double> {
             this.inputAttributeName = sma.getInput().getSourceAttributeName();
         }
 
+        /**
+         * If the input stream is partitioned, every partition is processed by
+         * its own thread with its own window, and the averages go to the
+         * partition with the same index of the output stream, so per-key
+         * ordering is preserved down the model.
+         *
+         * @param runtime
+         * @return status
+         */
         @Override
         public Integer processEvent(Transport runtime) {
             String inputName = sma.getInputs().get(0).getName();
@@ -250,48 +499,266 @@ public class SmaRedis extends AbstractProcessor<Double> {
                 return status;
             }
 
-            HeapCircularBuffer<Double> processorMemory = new HeapCircularBuffer<>(sma.getWindowLength());
+            MovingAverages averages;
+            try {
+                averages = MovingAverages.parse(outAttName, sma.getWindowLength(), sma.getAdditionalAverages(),
+                        sma.getWindowDuration(), sma.getWindowHop());
+            } catch (IllegalArgumentException ex) {
+                LOG.log(Level.SEVERE, ex.getMessage());
+                return GraphVocabulary.CANCEL;
+            }
 
             runtime.start();
-            String offset = "0";
+            String inputKey = StreamGroupReader.streamKey(sourceClassName, sourceId);
+            String outputKey = StreamGroupReader.streamKey(sma.getClass().getCanonicalName(), sma.getId().toString());
+            int partitions = StreamPartitions.count(runtime, sma.getRedisUrl(), inputKey);
+            StreamPartitions.register(runtime, sma.getRedisUrl(), outputKey, partitions);
+
+            EntryCodec codec = EntryCodec.create(runtime, sma.getRedisUrl());
+            EntrySchema.Builder builder = EntrySchema.builder();
+            for (int i = 0; i < averages.size(); i++) {
+                builder.addDouble(averages.getName(i));
+            }
+            if (isKeyed()) {
+                builder.addString(sma.getKeyAttribute());
+            }
+            EntrySchema schema = builder.build();
+            if (Boolean.TRUE.equals(sma.isBinaryEncoding())) {
+                codec.register(schema);
+            }
+
+            if (partitions > 1) {
+                status = StreamPartitions.runAll(partitions,
+                        partition -> processStream(runtime, codec, schema, inputAttName, partition));
+            } else {
+                status = processStream(runtime, codec, schema, inputAttName, -1);
+            }
+            codec.close();
+            runtime.shutdown();
+            return status;
+        }
+
+        /**
+         * Averages one input stream or one partition of it.
+         *
+         * @param partition partition index, -1 if the input is not
+         * partitioned
+         */
+        private Integer processStream(Transport runtime, EntryCodec codec, EntrySchema schema,
+                String inputAttName, int partition) {
+            String inputName = sma.getInputs().get(0).getName();
+            String outAttName = sma.getOutputAttributeName();
+            String sourceClassName = sma.getReferences().get(inputName).getReferenceClass();
+            String sourceId = sma.getReferences().get(inputName).getReferenceId();
+            String inputKey = StreamGroupReader.streamKey(sourceClassName, sourceId);
+            String outputKey = StreamGroupReader.streamKey(sma.getClass().getCanonicalName(), sma.getId().toString());
+
+            boolean streaming = Boolean.TRUE.equals(sma.isStreamingMode());
+            String stateName = partition < 0 ? inputName : StreamPartitions.partitionKey(inputName, partition);
+            StateSnapshot snapshot = new StateSnapshot(sma.getRedisUrl(), sma.getId().toString(), stateName,
+                    stateSignature(), streaming ? 0 : sma.getSnapshotInterval());
+            OffsetCheckpoint checkpoint = streaming ? null : new OffsetCheckpoint(sma.getRedisUrl(),
+                    sma.getId().toString(), stateName, sma.getCheckpointInterval());
+            String offset = streaming ? "0" : checkpoint.load();
+
+            Supplier<MovingAverages> factory = () -> MovingAverages.parse(outAttName, sma.getWindowLength(),
+                    sma.getAdditionalAverages(), sma.getWindowDuration(), sma.getWindowHop());
+            MovingAverages averages = factory.get();
+            // windows of all keys, null if the stream is not grouped
+            KeyedState<MovingAverages> keyed = isKeyed() ? new KeyedState<>(factory, sma.getIdleKeyTtl()) : null;
+            // entries waiting for event time order, null if they are taken as they come
+            ReorderBuffer reorder = sma.getAllowedLateness() < 0 ? null : new ReorderBuffer(codec,
+                    sma.getTimeAttribute(), sma.getAllowedLateness(), sma.getReorderBuffer(), offset,
+                    streaming ? sma.getIdleTimeout() : 0);
+            Snapshottable state = snapshot.restore(() -> Snapshottable.all(keyed == null ? averages : keyed, reorder));
+            if (snapshot.getRestoredOffset() != null) {
+                offset = snapshot.getRestoredOffset();
+            }
+            String keyAttName = sma.getKeyAttribute();
+
+            StreamWriter writer;
+            if (partition < 0) {
+                writer = StreamWriter.create(runtime, sma.getClass().getCanonicalName(), sma.getId(),
+                        sma.getRedisUrl(), sma.getWriteBatchSize(), sma.getWriteLinger(), sma.getMaxStreamLength());
+            } else {
+                inputKey = StreamPartitions.partitionKey(inputKey, partition);
+                outputKey = StreamPartitions.partitionKey(outputKey, partition);
+                writer = StreamWriter.create(runtime, sma.getRedisUrl(), outputKey,
+                        sma.getWriteBatchSize(), sma.getWriteLinger(), sma.getMaxStreamLength());
+            }
+            StreamWriter lateWriter = reorder == null ? null : StreamWriter.create(runtime, sma.getRedisUrl(),
+                    ReorderBuffer.lateKey(outputKey), sma.getWriteBatchSize(), sma.getWriteLinger(),
+                    sma.getMaxStreamLength());
+            EntrySchema outputSchema = Boolean.TRUE.equals(sma.isBinaryEncoding()) ? schema : null;
+
+            String timeAttName = sma.getTimeAttribute();
+            boolean timed = sma.getWindowDuration() > 0;
+            String[] inNames = timeAttName == null || timeAttName.isEmpty()
+                    ? new String[]{inputAttName} : new String[]{inputAttName, timeAttName};
+            int timeColumn = inNames.length > 1 ? 1 : -1;
+            String[] outNames = new String[averages.size()];
+            for (int k = 0; k < outNames.length; k++) {
+                outNames[k] = averages.getName(k);
+            }
+            ColumnPage input = keyed == null ? new ColumnPage(inNames) : ColumnPage.keyed(keyAttName, inNames);
+            ColumnPage output = keyed == null ? new ColumnPage(outNames) : ColumnPage.keyed(keyAttName, outNames);
+
+            // every page is decoded into a column, averaged in a plain loop
+            // and written back as a batch
+            Consumer<List<StreamMessage<String, String>>> pageHandler = list -> {
+                input.decode(list, codec);
+                output.setSize(input.size());
+                double[] values = input.column(0);
+                int rows = 0;
+                for (int i = 0; i < input.size(); i++) {
+                    double value = values[i];
+                    if (Double.isNaN(value)) {
+                        continue;
+                    }
+                    MovingAverages current = averages;
+                    String key = null;
+                    if (keyed != null) {
+                        key = input.getKey(i) == null ? "" : input.getKey(i);
+                        current = keyed.get(key, input.getTime(i, timeColumn));
+                    }
+                    if (!timed) {
+                        current.add(value);
+                        rows = averageRow(current, key, output, rows);
+                        continue;
+                    }
+                    long time = input.getTime(i, timeColumn);
+                    // a value may close several hopping windows
+                    while (current.close(time) != TimeWindow.NONE) {
+                        rows = averageRow(current, key, output, rows);
+                    }
+                    current.add(time, value);
+                    if (!current.isHopping()) {
+                        rows = averageRow(current, key, output, rows);
+                    }
+                }
+                output.setSize(rows);
+                output.writeTo(writer, codec, outputSchema);
+            };
+            Consumer<List<StreamMessage<String, String>>> handler = pageHandler;
+            List<StreamMessage<String, String>> ready = new ArrayList<>();
+            List<StreamMessage<String, String>> late = new ArrayList<>();
+            if (reorder != null) {
+                handler = list -> {
+                    ready.clear();
+                    late.clear();
+                    reorder.offer(list, ready, late);
+                    late.forEach(msg -> lateWriter.write(msg.getBody()));
+                    if (!ready.isEmpty()) {
+                        pageHandler.accept(ready);
+                    }
+                };
+            }
+            Runnable flush = reorder == null ? writer::flush : () -> {
+                writer.flush();
+                lateWriter.flush();
+            };
+
+            Integer status;
+            if (streaming) {
+                StreamGroupReader reader = new StreamGroupReader(sma.getRedisUrl(), inputKey, outputKey,
+                        sma.getBlockTimeout());
+                if (reorder == null) {
+                    status = reader.consumePages(StreamGroupReader.DEFAULT_PAGE_SIZE, handler, flush);
+                } else {
+                    // only released and late entries are acked, the waiting ones
+                    // stay pending and are re-delivered after a restart
+                    Consumer<List<StreamMessage<String, String>>> reordering = handler;
+                    status = reader.consumeReleased(StreamGroupReader.DEFAULT_PAGE_SIZE, list -> {
+                        reordering.accept(list);
+                        List<StreamMessage<String, String>> done = new ArrayList<>(ready);
+                        done.addAll(late);
+                        return done;
+                    }, flush);
+                    lateWriter.close();
+                }
+                writer.close();
+                return status;
+            }
+            StreamPageReader pageReader = partition < 0 ? null : new StreamPageReader(sma.getRedisUrl(), inputKey);
             status = GraphVocabulary.BACK_LOG;
             while (true) {
                 // Read messagesfrom the Redis stream
                 List<StreamMessage<String, String>> list;
-                list = runtime.readEvents(sourceClassName, UUID.fromString(sourceId), offset);
+                if (pageReader == null) {
+                    list = runtime.readEvents(sourceClassName, UUID.fromString(sourceId), offset);
+                } else {
+                    list = pageReader.read(offset, StreamGroupReader.DEFAULT_PAGE_SIZE);
+                }
                 if (list.size() > 0) { // a message was read                    
-                    list.forEach(msg -> {
-                        if (msg != null) {
-                            String value = msg.getBody().get(inputAttName);
-                            Double valueDouble = Double.valueOf(value);
-                            processorMemory.add(valueDouble);
-                            double total = 0;
-                            long numberItems = 0;
-                            final Collection<Double> memoryItems = processorMemory.values();
-                            for (Double memoryItem : memoryItems) {
-                                total += memoryItem;
-                                numberItems++;
-                            }
-                            runtime.getStandardOut().println(msg);
-                            // Write calculated sma to the output strim
-                            Map<String, String> e = new HashMap<>();
-                            Double res = total / numberItems;
-                            e.put(outAttName, String.valueOf(res));
-                            runtime.writeEvents(e, sma.getClass().getCanonicalName(), sma.getId());
-                        } else {
-                            runtime.getStandardOut().println("event is null");
-                        }
-                    });
+                    handler.accept(list);
                     offset = list.get(list.size() - 1).getId();
+                    // waiting entries are not in the windows yet, the checkpoint stays before them
+                    checkpoint.update(reorder == null ? offset : reorder.getSafeOffset(), flush);
+                    snapshot.update(offset, state, flush);
                 } else {
                     status = GraphVocabulary.COMPLETE;
-                    runtime.shutdown();
+                    drain(reorder, ready, pageHandler, lateWriter);
+                    writer.close();
+                    checkpoint.update(offset);
+                    checkpoint.close();
+                    snapshot.commit(offset, state);
+                    snapshot.close();
+                    if (pageReader != null) {
+                        pageReader.close();
+                    }
                     break;
                 }
             }
             return status;
         }
 
+        /**
+         * End of the input: passes the waiting entries to the windows.
+         */
+        private void drain(ReorderBuffer reorder, List<StreamMessage<String, String>> ready,
+                Consumer<List<StreamMessage<String, String>>> pageHandler, StreamWriter lateWriter) {
+            if (reorder == null) {
+                return;
+            }
+            ready.clear();
+            reorder.drain(ready);
+            if (!ready.isEmpty()) {
+                pageHandler.accept(ready);
+            }
+            if (reorder.getLateCount() > 0) {
+                LOG.log(Level.INFO, "{0} entries came later than the watermark.", reorder.getLateCount());
+            }
+            lateWriter.close();
+        }
+
+        /**
+         * Settings the windows depend on, a snapshot taken with other ones is
+         * not restored.
+         */
+        private String stateSignature() {
+            return "sma|" + sma.getOutputAttributeName() + "|" + sma.getWindowLength() + "|"
+                    + sma.getAdditionalAverages() + "|" + sma.getWindowDuration() + "|" + sma.getWindowHop()
+                    + "|" + sma.getKeyAttribute() + "|" + sma.getAllowedLateness();
+        }
+
+        private boolean isKeyed() {
+            String keyAttName = sma.getKeyAttribute();
+            return keyAttName != null && !keyAttName.isEmpty();
+        }
+
+        private static int averageRow(MovingAverages averages, String key, ColumnPage output, int row) {
+            if (row >= output.size()) {
+                output.setSize(row + 1);
+            }
+            if (key != null) {
+                output.setKey(row, key);
+            }
+            for (int k = 0; k < averages.size(); k++) {
+                output.column(k)[row] = averages.get(k);
+            }
+            return row + 1;
+        }
+
         @Override
         public Object processEvent(ProcessorContext<Double> ctx, Map<Integer, Event> eventsByInputId) {
             throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
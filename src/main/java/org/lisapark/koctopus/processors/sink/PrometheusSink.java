@@ -33,6 +33,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.function.Consumer;
 import org.lisapark.koctopus.core.graph.Gnode;
 import org.lisapark.koctopus.repo.graph.GraphUtils;
 import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
@@ -42,6 +43,9 @@ import org.lisapark.koctopus.core.sink.external.CompiledExternalSink;
 import org.lisapark.koctopus.core.sink.external.ExternalSink;
 import org.lisapark.koctopus.core.sink.external.AbstractExternalSink;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.processors.transport.OffsetCheckpoint;
+import org.lisapark.koctopus.processors.transport.StreamGroupReader;
+import org.lisapark.koctopus.processors.transport.StreamPartitions;
 
 /**
  * @author alexmy
@@ -55,6 +59,10 @@ public class PrometheusSink extends AbstractExternalSink {
 
     private static final int ATTRIBUTE_LIST_PARAMETER_ID = 1;
     private static final int PAGE_SIZE_PARAMETER_ID = 2;
+    private static final int TRANSPORT_PARAMETER_ID = 3;
+    private static final int STREAMING_MODE_PARAMETER_ID = 4;
+    private static final int BLOCK_TIMEOUT_PARAMETER_ID = 5;
+    private static final int CHECKPOINT_INTERVAL_PARAMETER_ID = 6;
     private static final String ATTRIBUTE_LIST = "Submit Attributes";
     private static final String ATTRIBUTE_LIST_DESCRIPTION
             = "List comma separated attribute names that you would like to submit to Prometheus. Empty - will submit all attributes.";
@@ -63,6 +71,20 @@ public class PrometheusSink extends AbstractExternalSink {
     private static final String BATCH_SIZE_DESCRIPTION
             = "The microbatch size that will be sent to Prometheus.";
     
+    private static final String STREAMING_MODE = "Streaming mode";
+    private static final String STREAMING_MODE_DESCRIPTION
+            = "If true, tails the input stream through a consumer group until stopped,"
+            + " otherwise reads the stream from the beginning and completes at its end.";
+
+    private static final String BLOCK_TIMEOUT = "Block timeout";
+    private static final String BLOCK_TIMEOUT_DESCRIPTION
+            = "Streaming mode only. Milliseconds to wait for new entries on each read.";
+
+    private static final String CHECKPOINT_INTERVAL = "Checkpoint interval";
+    private static final String CHECKPOINT_INTERVAL_DESCRIPTION
+            = "Batch mode only. Milliseconds between commits of the last processed stream ID,"
+            + " a restart resumes from it. 0 - no checkpoints, always read from the beginning.";
+
     private static final int INPUT_ID = 0;
     
     private final Input<Event> input;
@@ -111,6 +133,22 @@ public class PrometheusSink extends AbstractExternalSink {
         return getParameter(PAGE_SIZE_PARAMETER_ID).getValueAsInteger();
     }
  
+    public String getRedisUrl() {
+        return getParameter(TRANSPORT_PARAMETER_ID).getValueAsString();
+    }
+
+    public Boolean isStreamingMode() {
+        return (Boolean) getParameter(STREAMING_MODE_PARAMETER_ID).getValue();
+    }
+
+    public Integer getBlockTimeout() {
+        return getParameter(BLOCK_TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getCheckpointInterval() {
+        return getParameter(CHECKPOINT_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
     @Override
     public List<? extends Input> getInputs() {
         return ImmutableList.of(input);
@@ -167,6 +205,23 @@ public class PrometheusSink extends AbstractExternalSink {
                         .description(BATCH_SIZE_DESCRIPTION).defaultValue(100)
         );
      
+        consoleSink.addParameter(
+                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL")
+                        .description("Redis URL.").defaultValue("redis://localhost")
+        );
+        consoleSink.addParameter(
+                Parameter.booleanParameterWithIdAndName(STREAMING_MODE_PARAMETER_ID, STREAMING_MODE)
+                        .description(STREAMING_MODE_DESCRIPTION).defaultValue(false)
+        );
+        consoleSink.addParameter(
+                Parameter.integerParameterWithIdAndName(BLOCK_TIMEOUT_PARAMETER_ID, BLOCK_TIMEOUT)
+                        .description(BLOCK_TIMEOUT_DESCRIPTION).defaultValue(1000)
+        );
+        consoleSink.addParameter(
+                Parameter.integerParameterWithIdAndName(CHECKPOINT_INTERVAL_PARAMETER_ID, CHECKPOINT_INTERVAL)
+                        .description(CHECKPOINT_INTERVAL_DESCRIPTION).defaultValue(0)
+        );
+     
         return consoleSink;
     }
 
@@ -214,28 +269,49 @@ public class PrometheusSink extends AbstractExternalSink {
             String inputName = sink.getInput().getName();
             String sourceClassName = sink.getReferences().get(inputName).getReferenceClass();
             String sourceId = sink.getReferences().get(inputName).getReferenceId();
+            if (!StreamPartitions.checkUnpartitioned(transport, sink.getRedisUrl(),
+                    sink.getReferences().get(inputName))) {
+                transport.shutdown();
+                return GraphVocabulary.CANCEL;
+            }
             int pageSize = sink.getPageSize();
             
-            String offset = "0";
+            Consumer<StreamMessage<String, String>> handler = msg -> {
+                if (msg != null) {
+                    transport.getStandardOut().println(msg);
+                } else {
+                    transport.getStandardOut().println("event is null");
+                }
+            };
+
+            if (Boolean.TRUE.equals(sink.isStreamingMode())) {
+                StreamGroupReader reader = new StreamGroupReader(sink.getRedisUrl(),
+                        StreamGroupReader.streamKey(sourceClassName, sourceId),
+                        StreamGroupReader.streamKey(sink.getClass().getCanonicalName(), sink.getId().toString()),
+                        sink.getBlockTimeout());
+                Integer status = reader.consume(pageSize, handler);
+                transport.shutdown();
+                return status;
+            }
+
+            OffsetCheckpoint checkpoint = new OffsetCheckpoint(sink.getRedisUrl(), sink.getId().toString(),
+                    inputName, sink.getCheckpointInterval());
+            String offset = checkpoint.load();
             Integer status = GraphVocabulary.CANCEL;
             while (true) {
                 List<StreamMessage<String, String>> list;               
                 list = transport.readEvents(sourceClassName, UUID.fromString(sourceId), offset, pageSize);
                 if (list.size() > 0) { // a message was read                    
-                    list.forEach(msg -> {
-                        if (msg != null) {
-                            transport.getStandardOut().println(msg);
-                        } else {
-                            transport.getStandardOut().println("event is null");
-                        }
-                    });
+                    list.forEach(handler);
                     offset = list.get(list.size() - 1).getId();
+                    checkpoint.update(offset);
                     status = GraphVocabulary.BACK_LOG;
                 } else {
                     status = GraphVocabulary.COMPLETE;
                     break;
                 }
             }  
+            checkpoint.close();
             transport.shutdown();
             
             return status;          
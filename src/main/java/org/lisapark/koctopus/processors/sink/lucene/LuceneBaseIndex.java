@@ -38,6 +38,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.lucene.analysis.Analyzer;
@@ -57,6 +58,9 @@ import org.lisapark.koctopus.core.sink.external.CompiledExternalSink;
 import org.lisapark.koctopus.core.sink.external.ExternalSink;
 import org.lisapark.koctopus.core.sink.external.AbstractExternalSink;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.processors.transport.OffsetCheckpoint;
+import org.lisapark.koctopus.processors.transport.StreamGroupReader;
+import org.lisapark.koctopus.processors.transport.StreamPartitions;
 
 /**
  * @author alexmy
@@ -69,13 +73,30 @@ public class LuceneBaseIndex extends AbstractExternalSink {
     private static final String DEFAULT_INPUT = "Input";
 
 //    private static final int LUCENE_INDEX_ID = 0;
-//    private static final int TRANSPORT_PARAMETER_ID = 1;
+    private static final int TRANSPORT_PARAMETER_ID = 1;
     private static final int PAGE_SIZE_PARAMETER_ID = 2;
     private static final int FILE_ATTRIBUTE_ID = 3;
+    private static final int STREAMING_MODE_PARAMETER_ID = 4;
+    private static final int BLOCK_TIMEOUT_PARAMETER_ID = 5;
+    private static final int CHECKPOINT_INTERVAL_PARAMETER_ID = 6;
 
     private static final String PAGE_SIZE = "Page size";
     private static final String PAGE_SIZE_DESCRIPTION = "Page size description goes here.";
 
+    private static final String STREAMING_MODE = "Streaming mode";
+    private static final String STREAMING_MODE_DESCRIPTION
+            = "If true, tails the input stream through a consumer group until stopped,"
+            + " otherwise reads the stream from the beginning and completes at its end.";
+
+    private static final String BLOCK_TIMEOUT = "Block timeout";
+    private static final String BLOCK_TIMEOUT_DESCRIPTION
+            = "Streaming mode only. Milliseconds to wait for new entries on each read.";
+
+    private static final String CHECKPOINT_INTERVAL = "Checkpoint interval";
+    private static final String CHECKPOINT_INTERVAL_DESCRIPTION
+            = "Batch mode only. Milliseconds between commits of the last processed stream ID,"
+            + " a restart resumes from it. 0 - no checkpoints, always read from the beginning.";
+
     private static final int INPUT_ID = 0;
 
     private final Input<Event> input;
@@ -124,6 +145,22 @@ public class LuceneBaseIndex extends AbstractExternalSink {
         return getParameter(FILE_ATTRIBUTE_ID).getValueAsString();
     }
 
+    public String getRedisUrl() {
+        return getParameter(TRANSPORT_PARAMETER_ID).getValueAsString();
+    }
+
+    public Boolean isStreamingMode() {
+        return (Boolean) getParameter(STREAMING_MODE_PARAMETER_ID).getValue();
+    }
+
+    public Integer getBlockTimeout() {
+        return getParameter(BLOCK_TIMEOUT_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getCheckpointInterval() {
+        return getParameter(CHECKPOINT_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
     @Override
     public List<? extends Input> getInputs() {
         return ImmutableList.of(input);
@@ -170,10 +207,10 @@ public class LuceneBaseIndex extends AbstractExternalSink {
 
     public static LuceneBaseIndex newTemplate(UUID sinkId) {
         LuceneBaseIndex luceneBaseIndex = new LuceneBaseIndex(sinkId, DEFAULT_NAME, DEFAULT_DESCRIPTION);
-//        luceneBaseIndex.addParameter(
-//                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
-//                        description("Redis URL.").
-//                        defaultValue("redis://localhost"));
+        luceneBaseIndex.addParameter(
+                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
+                        description("Redis URL.").
+                        defaultValue("redis://localhost"));
 //        luceneBaseIndex.addParameter(Parameter.stringParameterWithIdAndName(LUCENE_INDEX_ID, "Docs Lucene Index")
 //                .description("Path to Document Lucene Index Directory.").required(true).defaultValue("")
 //        );
@@ -184,6 +221,18 @@ public class LuceneBaseIndex extends AbstractExternalSink {
         luceneBaseIndex.addParameter(Parameter.stringParameterWithIdAndName(FILE_ATTRIBUTE_ID, "File Attribute Name")
                 .description("Attribute name in the stream that holds file names.").required(true).defaultValue("")
         );
+        luceneBaseIndex.addParameter(
+                Parameter.booleanParameterWithIdAndName(STREAMING_MODE_PARAMETER_ID, STREAMING_MODE)
+                        .description(STREAMING_MODE_DESCRIPTION).defaultValue(false)
+        );
+        luceneBaseIndex.addParameter(
+                Parameter.integerParameterWithIdAndName(BLOCK_TIMEOUT_PARAMETER_ID, BLOCK_TIMEOUT)
+                        .description(BLOCK_TIMEOUT_DESCRIPTION).defaultValue(1000)
+        );
+        luceneBaseIndex.addParameter(
+                Parameter.integerParameterWithIdAndName(CHECKPOINT_INTERVAL_PARAMETER_ID, CHECKPOINT_INTERVAL)
+                        .description(CHECKPOINT_INTERVAL_DESCRIPTION).defaultValue(0)
+        );
         return luceneBaseIndex;
     }
 
@@ -229,38 +278,59 @@ public class LuceneBaseIndex extends AbstractExternalSink {
 
             String sourceClassName = luceneSink.getReferences().get(inputName).getReferenceClass();
             String sourceId = luceneSink.getReferences().get(inputName).getReferenceId();
+            if (!StreamPartitions.checkUnpartitioned(runtime, luceneSink.getRedisUrl(),
+                    luceneSink.getReferences().get(inputName))) {
+                runtime.shutdown();
+                return GraphVocabulary.CANCEL;
+            }
             int pageSize = luceneSink.getPageSize();
 
-            String offset = "0";
+            Consumer<StreamMessage<String, String>> handler = (StreamMessage<String, String> msg) -> {
+                if (msg != null) {
+                    String file = msg.getBody().get(attrName);
+                    if (file != null) {
+                        try {
+                            indexDoc(indexPath, file);
+                            runtime.getStandardOut().println(msg);
+                        } catch (URISyntaxException | UnsupportedEncodingException ex) {
+                            LOG.log(Level.SEVERE, ex.getMessage());
+                        }
+                    } else {
+                        runtime.getStandardOut().println("file name is null");
+                    }
+                } else {
+                    runtime.getStandardOut().println("event is null");
+                }
+            };
+
+            if (Boolean.TRUE.equals(luceneSink.isStreamingMode())) {
+                StreamGroupReader reader = new StreamGroupReader(luceneSink.getRedisUrl(),
+                        StreamGroupReader.streamKey(sourceClassName, sourceId),
+                        StreamGroupReader.streamKey(luceneSink.getClass().getCanonicalName(), luceneSink.getId().toString()),
+                        luceneSink.getBlockTimeout());
+                Integer status = reader.consume(pageSize, handler);
+                runtime.shutdown();
+                return status;
+            }
+
+            OffsetCheckpoint checkpoint = new OffsetCheckpoint(luceneSink.getRedisUrl(), luceneSink.getId().toString(),
+                    inputName, luceneSink.getCheckpointInterval());
+            String offset = checkpoint.load();
             Integer status = GraphVocabulary.CANCEL;
             while (true) {
                 List<StreamMessage<String, String>> list;
                 list = runtime.readEvents(sourceClassName, UUID.fromString(sourceId), offset, pageSize);
                 if (list.size() > 0) { // a message was read                    
-                    list.forEach((StreamMessage<String, String> msg) -> {
-                        if (msg != null) {
-                            String file = msg.getBody().get(attrName);
-                            if (file != null) {
-                                try {
-                                    indexDoc(indexPath, file);
-                                    runtime.getStandardOut().println(msg);
-                                } catch (URISyntaxException | UnsupportedEncodingException ex) {
-                                    LOG.log(Level.SEVERE, ex.getMessage());
-                                }
-                            } else {
-                                runtime.getStandardOut().println("file name is null");
-                            }
-                        } else {
-                            runtime.getStandardOut().println("event is null");
-                        }
-                    });
+                    list.forEach(handler);
                     offset = list.get(list.size() - 1).getId();
+                    checkpoint.update(offset);
                     status = GraphVocabulary.BACK_LOG;
                 } else {
                     status = GraphVocabulary.COMPLETE;
                     break;
                 }
             }
+            checkpoint.close();
             runtime.shutdown();
 
             return status;
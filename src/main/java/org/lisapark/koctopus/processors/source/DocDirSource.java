@@ -27,6 +27,7 @@ import org.lisapark.koctopus.core.ValidationException;
 import org.lisapark.koctopus.core.event.Attribute;
 import org.lisapark.koctopus.core.event.Event;
 import org.lisapark.koctopus.core.event.EventType;
+import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
 
@@ -44,6 +45,7 @@ import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
 import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
 
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.processors.transport.StreamWriter;
 
 /**
  * @author dave sinclair(david.sinclair@lisa-park.com)
@@ -60,6 +62,9 @@ public class DocDirSource extends AbstractExternalSource {
     private static final int FILE_NAME_FILTER = 2;
     private static final int FILE_EXTENTION_FILTER = 3;
     private static final int TRANSPORT_PARAMETER_ID = 4;
+    private static final int WRITE_BATCH_SIZE_PARAMETER_ID = 5;
+    private static final int WRITE_LINGER_PARAMETER_ID = 6;
+    private static final int MAX_STREAM_LENGTH_PARAMETER_ID = 7;
 
     private static void initAttributeList(DocDirSource fileDirSource) throws ValidationException {
         fileDirSource.getOutput().addAttribute(Attribute.newAttribute(String.class, "Att"));
@@ -97,6 +102,18 @@ public class DocDirSource extends AbstractExternalSource {
         return getParameterValueAsString(TRANSPORT_PARAMETER_ID);
     }
 
+    public Integer getWriteBatchSize() {
+        return getParameter(WRITE_BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getWriteLinger() {
+        return getParameter(WRITE_LINGER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getMaxStreamLength() {
+        return getParameter(MAX_STREAM_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
     @Override
     public DocDirSource copyOf() {
         return new DocDirSource(this);
@@ -138,6 +155,16 @@ public class DocDirSource extends AbstractExternalSource {
             dirSource.addParameter(Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
                     description("Redis URL.").
                     defaultValue("redis://localhost"));
+
+            dirSource.addParameter(Parameter.integerParameterWithIdAndName(WRITE_BATCH_SIZE_PARAMETER_ID, "Write batch size").
+                    description("Number of events sent to Redis in one pipelined batch. 1 - no batching.").defaultValue(1).
+                    constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Write batch size has to be greater than zero.")));
+
+            dirSource.addParameter(Parameter.integerParameterWithIdAndName(WRITE_LINGER_PARAMETER_ID, "Write linger").
+                    description("Max milliseconds an event waits in a batch before it is sent.").defaultValue(10));
+
+            dirSource.addParameter(Parameter.integerParameterWithIdAndName(MAX_STREAM_LENGTH_PARAMETER_ID, "Max stream length").
+                    description("Approximate max length of the output stream (XADD MAXLEN ~). 0 - no trimming.").defaultValue(0));
             initAttributeList(dirSource);
 
         } catch (ValidationException ex) {
@@ -183,6 +210,9 @@ public class DocDirSource extends AbstractExternalSource {
             String filepattern = createRegexFromGlob(source.getFileFilter());
             String extpattern = createRegexFromGlob(source.getExtFilter());
 
+            StreamWriter writer = StreamWriter.create(runtime, source.getClass().getCanonicalName(), source.getId(),
+                    source.getRedisUrl(), source.getWriteBatchSize(), source.getWriteLinger(), source.getMaxStreamLength());
+
             try (Stream<Path> paths = Files.walk(Paths.get(source.getDirPath()))) {
                 paths.filter(Files::isRegularFile)
                         .forEach((file) -> {
@@ -191,19 +221,21 @@ public class DocDirSource extends AbstractExternalSource {
                             if (split.length == 2 && split[0].matches(filepattern) && split[1].matches(extpattern)
                                     || split.length < 2 && fileName.matches(filepattern)) {
                                 String _fileName = file.toAbsolutePath().toString();
-                                write(attributes, _fileName, runtime);
+                                write(attributes, _fileName, writer);
                             }
                         });
             } catch (Exception e) {
                 status = GraphVocabulary.CANCEL;
 
+            } finally {
+                writer.close();
             }
             return status;
         }
 
-        private void write(List<Attribute> attributes, String fileName, Transport runtime) {
+        private void write(List<Attribute> attributes, String fileName, StreamWriter writer) {
             Event e = createEvent(attributes, fileName);
-            runtime.writeEvents(e.getData(), source.getClass().getCanonicalName(), source.getId());
+            writer.write(e.getData());
         }
 
         private Event createEvent(List<Attribute> attributes, String fileName) {
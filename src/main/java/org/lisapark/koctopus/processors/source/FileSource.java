@@ -18,6 +18,8 @@ package org.lisapark.koctopus.processors.source;
 
 import com.fasterxml.uuid.Generators;
 import com.google.common.collect.Maps;
+import java.io.IOException;
+import java.nio.file.Paths;
 import org.lisapark.koctopus.core.Output;
 import org.lisapark.koctopus.core.Persistable;
 import org.lisapark.koctopus.core.ValidationException;
@@ -28,6 +30,7 @@ import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -40,6 +43,10 @@ import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
 import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
 import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.processors.transport.BackpressureController;
+import org.lisapark.koctopus.processors.transport.StreamGroupReader;
+import org.lisapark.koctopus.processors.transport.StreamWriter;
+import org.lisapark.koctopus.processors.util.Booleans;
 
 /**
  * @author dave sinclair(david.sinclair@lisa-park.com)
@@ -49,11 +56,24 @@ public class FileSource extends AbstractExternalSource {
     
     static final Logger LOG = Logger.getLogger(FileSource.class.getName());
     
-    private static final String DEFAULT_NAME = "Test data source for Redis";
-    private static final String DEFAULT_DESCRIPTION = "Generate source data according to the provided attribute list.";
+    private static final String DEFAULT_NAME = "File source";
+    private static final String DEFAULT_DESCRIPTION = "Read records of a delimited (CSV, TSV) file according to the provided"
+            + " attribute list.";
     
     private static final int NUMBER_OF_EVENTS_PARAMETER_ID = 1;
     private static final int TRANSPORT_PARAMETER_ID = 2;
+    private static final int WRITE_BATCH_SIZE_PARAMETER_ID = 3;
+    private static final int WRITE_LINGER_PARAMETER_ID = 4;
+    private static final int MAX_STREAM_LENGTH_PARAMETER_ID = 5;
+    private static final int MAX_CONSUMER_LAG_PARAMETER_ID = 6;
+    private static final int LAG_CHECK_INTERVAL_PARAMETER_ID = 7;
+    private static final int PARTITIONS_PARAMETER_ID = 8;
+    private static final int PARTITION_KEY_PARAMETER_ID = 9;
+    private static final int FILE_PATH_PARAMETER_ID = 10;
+    private static final int DELIMITER_PARAMETER_ID = 11;
+    private static final int HEADER_PARAMETER_ID = 12;
+    private static final int PARSER_THREADS_PARAMETER_ID = 13;
+    private static final int CHUNK_SIZE_PARAMETER_ID = 14;
     
     private static void initAttributeList(FileSource testSource) throws ValidationException {
         testSource.getOutput().addAttribute(Attribute.newAttribute(Integer.class, "Att"));
@@ -83,6 +103,64 @@ public class FileSource extends AbstractExternalSource {
         return getParameterValueAsString(TRANSPORT_PARAMETER_ID);
     }
     
+    public Integer getWriteBatchSize() {
+        return getParameter(WRITE_BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+    
+    public Integer getWriteLinger() {
+        return getParameter(WRITE_LINGER_PARAMETER_ID).getValueAsInteger();
+    }
+    
+    public Integer getMaxStreamLength() {
+        return getParameter(MAX_STREAM_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+    
+    public Integer getMaxConsumerLag() {
+        return getParameter(MAX_CONSUMER_LAG_PARAMETER_ID).getValueAsInteger();
+    }
+    
+    public Integer getLagCheckInterval() {
+        return getParameter(LAG_CHECK_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+    
+    public Integer getPartitions() {
+        return getParameter(PARTITIONS_PARAMETER_ID).getValueAsInteger();
+    }
+    
+    public String getPartitionKey() {
+        return getParameter(PARTITION_KEY_PARAMETER_ID).getValueAsString();
+    }
+    
+    public String getFilePath() {
+        return getParameter(FILE_PATH_PARAMETER_ID).getValueAsString();
+    }
+    
+    /**
+     * 
+     * @return delimiter character, "\t" and "tab" stand for the tab character
+     */
+    public char getDelimiter() {
+        String delimiter = getParameter(DELIMITER_PARAMETER_ID).getValueAsString();
+        if (delimiter == null || delimiter.isEmpty()) {
+            return ',';
+        } else if ("\\t".equals(delimiter) || "tab".equalsIgnoreCase(delimiter)) {
+            return '\t';
+        }
+        return delimiter.charAt(0);
+    }
+    
+    public Boolean getHeader() {
+        return Booleans.parseBoolean(getParameter(HEADER_PARAMETER_ID).getValueAsString());
+    }
+    
+    public Integer getParserThreads() {
+        return getParameter(PARSER_THREADS_PARAMETER_ID).getValueAsInteger();
+    }
+    
+    public Integer getChunkSize() {
+        return getParameter(CHUNK_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+    
     @Override
     public FileSource copyOf() {
         return new FileSource(this);
@@ -113,7 +191,7 @@ public class FileSource extends AbstractExternalSource {
         testSource.setOutput(Output.outputWithId(1).setName("Output"));
         testSource.addParameter(
                 Parameter.integerParameterWithIdAndName(NUMBER_OF_EVENTS_PARAMETER_ID, "Number of Events").
-                        description("Number of test events to generate.").
+                        description("Number of test events to generate when no file is set.").
                         defaultValue(100).
                         constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
                                 "Number of events has to be greater than zero.")));
@@ -121,6 +199,70 @@ public class FileSource extends AbstractExternalSource {
                 Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
                         description("Redis URL.").
                         defaultValue("redis://localhost"));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_BATCH_SIZE_PARAMETER_ID, "Write batch size").
+                        description("Number of events sent to Redis in one pipelined batch. 1 - no batching.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Write batch size has to be greater than zero.")));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_LINGER_PARAMETER_ID, "Write linger").
+                        description("Max milliseconds an event waits in a batch before it is sent.").
+                        defaultValue(10));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_STREAM_LENGTH_PARAMETER_ID, "Max stream length").
+                        description("Approximate max length of the output stream (XADD MAXLEN ~). 0 - no trimming.").
+                        defaultValue(0));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_CONSUMER_LAG_PARAMETER_ID, "Max consumer lag").
+                        description("Number of entries the slowest consumer group may fall behind before"
+                                + " the source is throttled. 0 - no backpressure.").
+                        defaultValue(10000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Max consumer lag cannot be negative.")));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(LAG_CHECK_INTERVAL_PARAMETER_ID, "Lag check interval").
+                        description("How often consumer lag is checked, in milliseconds.").
+                        defaultValue(50).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Lag check interval has to be greater than zero.")));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(PARTITIONS_PARAMETER_ID, "Partitions").
+                        description("Number of sub-streams the output is hash partitioned into."
+                                + " Downstream processors start one consumer per partition. 1 - not partitioned.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Partitions has to be greater than zero.")));
+        testSource.addParameter(
+                Parameter.stringParameterWithIdAndName(PARTITION_KEY_PARAMETER_ID, "Partition key").
+                        description("Attribute whose value selects the partition; events with the same value"
+                                + " stay in order.").
+                        defaultValue(""));
+        testSource.addParameter(
+                Parameter.stringParameterWithIdAndName(FILE_PATH_PARAMETER_ID, "File path").
+                        description("Delimited text file to read. Empty - generate test events.").
+                        defaultValue(""));
+        testSource.addParameter(
+                Parameter.stringParameterWithIdAndName(DELIMITER_PARAMETER_ID, "Delimiter").
+                        description("Field delimiter, \\t or tab for TSV files.").
+                        defaultValue(","));
+        testSource.addParameter(
+                Parameter.stringParameterWithIdAndName(HEADER_PARAMETER_ID, "Header").
+                        description("true - the first line holds column names and fields are matched to"
+                                + " attributes by name; false - fields are taken in attribute order.").
+                        defaultValue("true"));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(PARSER_THREADS_PARAMETER_ID, "Parser threads").
+                        description("Number of threads parsing file chunks. 0 - number of processors.").
+                        defaultValue(0).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Parser threads cannot be negative.")));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(CHUNK_SIZE_PARAMETER_ID, "Chunk size").
+                        description("Size of the memory mapped file chunks handed to parser threads, in KB.").
+                        defaultValue(4096).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Chunk size has to be greater than zero.")));
         try {
             initAttributeList(testSource);
         } catch (ValidationException ex) {
@@ -149,7 +291,6 @@ public class FileSource extends AbstractExternalSource {
          * threads
          */
         private volatile boolean running;
-        private final long SLIEEP_TIME = 1L;
         
         public CompiledTestSource(FileSource source) {
             this.source = source;
@@ -167,22 +308,125 @@ public class FileSource extends AbstractExternalSource {
             EventType eventType = source.getOutput().getEventType();
             List<Attribute> attributes = eventType.getAttributes();
             int numberEventsCreated = 0;
+            StreamWriter writer = StreamWriter.create(runtime, source.getClass().getCanonicalName(), source.getId(),
+                    source.getRedisUrl(), source.getWriteBatchSize(), source.getWriteLinger(), source.getMaxStreamLength(),
+                    source.getPartitions(), source.getPartitionKey());
+            BackpressureController backpressure = BackpressureController.create(runtime, source.getRedisUrl(),
+                    StreamGroupReader.streamKey(source.getClass().getCanonicalName(), source.getId().toString()),
+                    source.getMaxConsumerLag(), source.getLagCheckInterval());
+            
+            String filePath = source.getFilePath();
+            if (filePath != null && !filePath.trim().isEmpty()) {
+                try {
+                    status = readFile(filePath.trim(), attributes, writer, backpressure);
+                } finally {
+                    writer.close();
+                    backpressure.close();
+                }
+                return status;
+            }
             
             while (!thread.isInterrupted() && running && numberEventsCreated < source.getNumberOfEvents()) {
                 Event e = createEvent(attributes, numberEventsCreated++);
                 
-                runtime.writeEvents(e.getData(), source.getClass().getCanonicalName(), source.getId());
+                writer.write(e.getData());
                 
-                try {
-                    Thread.sleep(SLIEEP_TIME);
-                } catch (InterruptedException ex) {
+                if (!backpressure.pace()) {
                     status = GraphVocabulary.CANCEL;
-                    LOG.log(Level.SEVERE, ex.getMessage());
+                    LOG.log(Level.SEVERE, "Interrupted after {0} events.", numberEventsCreated);
                 }
             }
+            writer.close();
+            backpressure.close();
             return status;
         }
         
+        private Integer readFile(String filePath, List<Attribute> attributes, StreamWriter writer,
+                BackpressureController backpressure) {
+            int threads = source.getParserThreads() > 0 ? source.getParserThreads()
+                    : Runtime.getRuntime().availableProcessors();
+            boolean[] interrupted = {false};
+            
+            try (MappedFileReader reader = new MappedFileReader(Paths.get(filePath), source.getDelimiter(),
+                    threads, source.getChunkSize() * 1024L)) {
+                int[] columns = new int[attributes.size()];
+                if (source.getHeader()) {
+                    List<String> header = Arrays.asList(reader.readHeader());
+                    for (int i = 0; i < columns.length; i++) {
+                        columns[i] = header.indexOf(attributes.get(i).getName());
+                        if (columns[i] < 0) {
+                            LOG.log(Level.WARNING, "No column for attribute {0} in {1}.",
+                                    new Object[]{attributes.get(i).getName(), filePath});
+                        }
+                    }
+                } else {
+                    for (int i = 0; i < columns.length; i++) {
+                        columns[i] = i;
+                    }
+                }
+                
+                long count = reader.read((fields) -> createEventFromFields(fields, attributes, columns),
+                        (data) -> {
+                            writer.write(data);
+                            if (!backpressure.pace()) {
+                                interrupted[0] = true;
+                            }
+                            return running && !interrupted[0];
+                        });
+                LOG.log(Level.INFO, "{0} records read from {1}.", new Object[]{count, filePath});
+            } catch (IOException | IllegalArgumentException ex) {
+                LOG.log(Level.SEVERE, "Cannot read {0}: {1}", new Object[]{filePath, ex.getMessage()});
+                return GraphVocabulary.CANCEL;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                interrupted[0] = true;
+            }
+            if (interrupted[0]) {
+                LOG.log(Level.SEVERE, "Interrupted while reading {0}.", filePath);
+                return GraphVocabulary.CANCEL;
+            }
+            return GraphVocabulary.COMPLETE;
+        }
+        
+        /**
+         * Runs on parser threads.
+         */
+        private static Map<String, Object> createEventFromFields(String[] fields, List<Attribute> attributes,
+                int[] columns) {
+            Map<String, Object> attributeData = Maps.newHashMap();
+            for (int i = 0; i < columns.length; i++) {
+                Attribute attribute = attributes.get(i);
+                String field = columns[i] < 0 || columns[i] >= fields.length ? null : fields[columns[i]].trim();
+                attributeData.put(attribute.getName(), field == null || field.isEmpty() ? null
+                        : parseField(field, attribute.getType()));
+            }
+            return attributeData;
+        }
+        
+        private static Object parseField(String field, Class type) {
+            try {
+                if (type == String.class) {
+                    return field;
+                } else if (type == Integer.class) {
+                    return Integer.valueOf(field);
+                } else if (type == Short.class) {
+                    return Short.valueOf(field);
+                } else if (type == Long.class) {
+                    return Long.valueOf(field);
+                } else if (type == Double.class) {
+                    return Double.valueOf(field);
+                } else if (type == Float.class) {
+                    return Float.valueOf(field);
+                } else if (type == Boolean.class) {
+                    return Booleans.parseBoolean(field);
+                }
+                LOG.log(Level.FINE, "Unknown attribute type {0}", type);
+            } catch (NumberFormatException e) {
+                LOG.log(Level.FINE, "NumberFormatException: {0}", e.getMessage());
+            }
+            return null;
+        }
+        
         private Event createEvent(List<Attribute> attributes, int eventNumber) {
             Map<String, Object> attributeData = Maps.newHashMap();
             
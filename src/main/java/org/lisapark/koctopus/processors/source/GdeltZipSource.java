@@ -30,6 +30,7 @@ import org.lisapark.koctopus.core.ValidationException;
 import org.lisapark.koctopus.core.event.Attribute;
 import org.lisapark.koctopus.core.event.Event;
 import org.lisapark.koctopus.core.event.EventType;
+import org.lisapark.koctopus.core.parameter.Constraints;
 import org.lisapark.koctopus.core.parameter.Parameter;
 import org.lisapark.koctopus.core.runtime.ProcessingRuntime;
 
@@ -45,7 +46,10 @@ import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
 import org.lisapark.koctopus.processors.util.Booleans;
 import org.lisapark.koctopus.core.ProcessingException;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.processors.transport.StreamWriter;
+import org.lisapark.koctopus.processors.transport.WatermarkGenerator;
 
 /**
  * @author alexmy (alexmy@lisa-park.com)
@@ -61,6 +65,12 @@ public class GdeltZipSource extends AbstractExternalSource {
     private static final int ZIP_FILE_DIR_PARAMETER_ID = 1;
     private static final int FILE_NAME_PARAMETER_ID = 2;
     private static final int READ_LIMIT_PARAMETER_ID = 3;
+    private static final int TRANSPORT_PARAMETER_ID = 4;
+    private static final int WRITE_BATCH_SIZE_PARAMETER_ID = 5;
+    private static final int WRITE_LINGER_PARAMETER_ID = 6;
+    private static final int MAX_STREAM_LENGTH_PARAMETER_ID = 7;
+    private static final int TIME_ATTRIBUTE_PARAMETER_ID = 8;
+    private static final int MAX_OUT_OF_ORDERNESS_PARAMETER_ID = 9;
 
     private static void initAttributeList(GdeltZipSource gdeltZipSource) throws ValidationException {
 
@@ -148,6 +158,30 @@ public class GdeltZipSource extends AbstractExternalSource {
         return getParameter(ZIP_FILE_DIR_PARAMETER_ID).getValueAsString();
     }
 
+    public String getRedisUrl() {
+        return getParameter(TRANSPORT_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getWriteBatchSize() {
+        return getParameter(WRITE_BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getWriteLinger() {
+        return getParameter(WRITE_LINGER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getMaxStreamLength() {
+        return getParameter(MAX_STREAM_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getTimeAttribute() {
+        return getParameter(TIME_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getMaxOutOfOrderness() {
+        return getParameter(MAX_OUT_OF_ORDERNESS_PARAMETER_ID).getValueAsInteger();
+    }
+
     @Override
     public GdeltZipSource copyOf() {
         return new GdeltZipSource(this);
@@ -184,6 +218,41 @@ public class GdeltZipSource extends AbstractExternalSource {
                 Parameter.stringParameterWithIdAndName(ZIP_FILE_DIR_PARAMETER_ID, "Zip Dir").
                 description("Zip directory on the server.").
                 defaultValue("/home/alexmy/GDELT/"));
+
+        gdeltZipSource.addParameter(
+                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
+                description("Redis URL.").
+                defaultValue("redis://localhost"));
+
+        gdeltZipSource.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_BATCH_SIZE_PARAMETER_ID, "Write batch size").
+                description("Number of events sent to Redis in one pipelined batch. 1 - no batching.").
+                defaultValue(1).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Write batch size has to be greater than zero.")));
+
+        gdeltZipSource.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_LINGER_PARAMETER_ID, "Write linger").
+                description("Max milliseconds an event waits in a batch before it is sent.").
+                defaultValue(10));
+
+        gdeltZipSource.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_STREAM_LENGTH_PARAMETER_ID, "Max stream length").
+                description("Approximate max length of the output stream (XADD MAXLEN ~). 0 - no trimming.").
+                defaultValue(0));
+
+        gdeltZipSource.addParameter(
+                Parameter.stringParameterWithIdAndName(TIME_ATTRIBUTE_PARAMETER_ID, "Time attribute").
+                description("Attribute with the event time, written to the stream as watermarks for"
+                        + " downstream reordering. Empty - no watermarks.").
+                defaultValue("DATEADDED"));
+
+        gdeltZipSource.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_OUT_OF_ORDERNESS_PARAMETER_ID, "Max out-of-orderness").
+                description("Max milliseconds an event can be older than the newest one before it, the"
+                        + " watermark lags the newest event time by it. -1 - no watermarks.").
+                defaultValue(-1).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(-1,
+                        "Max out-of-orderness has to be -1 or more.")));
         try {
             initAttributeList(gdeltZipSource);
         } catch (ValidationException ex) {
@@ -321,7 +390,44 @@ public class GdeltZipSource extends AbstractExternalSource {
 
         @Override
         public Object startProcessingEvents(Transport runtime) throws ProcessingException {
-            return null;
+            runtime.start();
+            running = true;
+            Integer status = GraphVocabulary.COMPLETE;
+            EventType eventType = source.getOutput().getEventType();
+            Integer readLimit = source.getReadLimit();
+            String zipDir = source.getZipDir();
+            String fileName = source.getFileName();
+            StreamWriter writer = StreamWriter.create(runtime, source.getClass().getCanonicalName(), source.getId(),
+                    source.getRedisUrl(), source.getWriteBatchSize(), source.getWriteLinger(), source.getMaxStreamLength());
+            // lines are in file order, downstream reorder buffers release them by the watermark
+            WatermarkGenerator watermarks = new WatermarkGenerator(source.getTimeAttribute(),
+                    source.getMaxOutOfOrderness());
+            int count = 0;
+            String line;
+            try (ZipFile zipFile = new ZipFile(zipDir.endsWith("/") ? zipDir + fileName : zipDir + "/" + fileName)) {
+                final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (running && entries.hasMoreElements()) {
+                    final ZipEntry zipEntry = entries.nextElement();
+                    if (zipEntry.isDirectory()) {
+                        continue;
+                    }
+                    try (BufferedReader br = new BufferedReader(
+                            new InputStreamReader(zipFile.getInputStream(zipEntry), "UTF-8"))) {
+                        while (running && (readLimit <= 0 || count < readLimit) && (line = br.readLine()) != null) {
+                            Event newEvent = createEventFromLine(line, eventType);
+                            watermarks.stamp(newEvent.getData());
+                            writer.write(newEvent.getData());
+                            count++;
+                        }
+                    }
+                }
+            } catch (IOException | IllegalArgumentException ex) {
+                LOG.log(Level.SEVERE, "Unhandled exception: {0}", ex.getMessage());
+                status = GraphVocabulary.CANCEL;
+            } finally {
+                writer.close();
+            }
+            return status;
         }
     }
 }
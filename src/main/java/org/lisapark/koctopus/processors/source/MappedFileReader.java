@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.source;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Reads records of a delimited (CSV, TSV) text file in parallel.
+ *
+ * The file is cut into chunks of about chunkSize bytes that always end at a
+ * line break. Every chunk is memory mapped and split into records by a worker
+ * thread, which also converts the fields with the given converter. Converted
+ * chunks are handed to the sink on the calling thread in file order; no more
+ * than threads + 1 chunks are in flight at a time.
+ *
+ * Fields may be enclosed in double quotes ("" inside quotes is a quote), but
+ * a record cannot span several lines. The file is read as UTF-8.
+ *
+ * @author alexmy
+ */
+public class MappedFileReader implements AutoCloseable {
+
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    private static final byte QUOTE = '"';
+
+    private final FileChannel channel;
+    private final long size;
+    private final byte delimiter;
+    private final int threads;
+    private final long chunkSize;
+    private final ExecutorService workers;
+
+    private long position;
+
+    /**
+     *
+     * @param file
+     * @param delimiter field delimiter, an ASCII character
+     * @param threads number of parser threads
+     * @param chunkSize approximate chunk size in bytes
+     * @throws IOException
+     */
+    public MappedFileReader(Path file, char delimiter, int threads, long chunkSize) throws IOException {
+        if (delimiter > 127) {
+            throw new IllegalArgumentException("Delimiter has to be an ASCII character: " + delimiter);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.delimiter = (byte) delimiter;
+        this.threads = Math.max(1, threads);
+        this.chunkSize = Math.max(1, Math.min(chunkSize, Integer.MAX_VALUE / 2));
+        this.workers = Executors.newFixedThreadPool(this.threads, (r) -> {
+            Thread thread = new Thread(r, "file-reader-" + file.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Reads the first line of the file as a header. Must be called before
+     * {@link #read}, the header is not passed to the sink then.
+     *
+     * @return header fields, empty if the file is empty
+     * @throws IOException
+     */
+    public String[] readHeader() throws IOException {
+        long end = lineEnd(position + 1);
+        if (end == position) {
+            return new String[0];
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, end - position);
+        List<String> fields = new ArrayList<>();
+        int start = 0;
+        // UTF-8 byte order mark
+        if (buffer.limit() >= 3 && (buffer.get(0) & 0xFF) == 0xEF
+                && (buffer.get(1) & 0xFF) == 0xBB && (buffer.get(2) & 0xFF) == 0xBF) {
+            start = 3;
+        }
+        new ChunkParser(buffer).split(start, trimLine(buffer, start, buffer.limit()), fields);
+        position = end;
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    /**
+     * Reads all (remaining) records.
+     *
+     * @param converter turns fields of a record into event data, runs on
+     * worker threads; may return null to skip the record
+     * @param sink receives converted records in file order, returns false to
+     * stop reading
+     * @return number of records passed to the sink
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public long read(Function<String[], Map<String, Object>> converter,
+            Predicate<Map<String, Object>> sink) throws IOException, InterruptedException {
+        Deque<Future<List<Map<String, Object>>>> pending = new ArrayDeque<>();
+        long count = 0;
+        try {
+            while (position < size || !pending.isEmpty()) {
+                while (position < size && pending.size() <= threads) {
+                    long from = position;
+                    long to = lineEnd(position + chunkSize);
+                    pending.add(workers.submit(() -> new ChunkParser(
+                            channel.map(FileChannel.MapMode.READ_ONLY, from, to - from)).parse(converter)));
+                    position = to;
+                }
+                List<Map<String, Object>> records = pending.poll().get();
+                for (Map<String, Object> record : records) {
+                    count++;
+                    if (!sink.test(record)) {
+                        return count;
+                    }
+                }
+            }
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            pending.forEach((future) -> future.cancel(true));
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        workers.shutdownNow();
+        channel.close();
+    }
+
+    /**
+     * Position right after the first line break at or after from - 1, so that
+     * a line starting at from is not split.
+     */
+    private long lineEnd(long from) throws IOException {
+        if (from >= size) {
+            return size;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long pos = from - 1;
+        while (pos < size) {
+            buffer.clear();
+            int read = channel.read(buffer, pos);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+        return size;
+    }
+
+    /**
+     * End of a line without the line break.
+     */
+    private static int trimLine(ByteBuffer buffer, int start, int end) {
+        if (end > start && buffer.get(end - 1) == '\n') {
+            end--;
+        }
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        return end;
+    }
+
+    private class ChunkParser {
+
+        private final MappedByteBuffer buffer;
+        private byte[] scratch = new byte[256];
+
+        ChunkParser(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        List<Map<String, Object>> parse(Function<String[], Map<String, Object>> converter) {
+            List<Map<String, Object>> records = new ArrayList<>();
+            List<String> fields = new ArrayList<>();
+            int limit = buffer.limit();
+            int start = 0;
+            while (start < limit) {
+                int next = start;
+                while (next < limit && buffer.get(next) != '\n') {
+                    next++;
+                }
+                next = Math.min(limit, next + 1);
+                int end = trimLine(buffer, start, next);
+                if (end > start) {
+                    fields.clear();
+                    split(start, end, fields);
+                    Map<String, Object> record = converter.apply(fields.toArray(new String[fields.size()]));
+                    if (record != null) {
+                        records.add(record);
+                    }
+                }
+                start = next;
+            }
+            return records;
+        }
+
+        void split(int start, int end, List<String> fields) {
+            if (scratch.length < end - start) {
+                scratch = new byte[end - start];
+            }
+            int i = start;
+            while (true) {
+                int n = 0;
+                if (i < end && buffer.get(i) == QUOTE) {
+                    i++;
+                    while (i < end) {
+                        byte b = buffer.get(i++);
+                        if (b == QUOTE) {
+                            if (i < end && buffer.get(i) == QUOTE) {
+                                i++;
+                            } else {
+                                break;
+                            }
+                        }
+                        scratch[n++] = b;
+                    }
+                    while (i < end && buffer.get(i) != delimiter) {
+                        i++;
+                    }
+                } else {
+                    while (i < end && buffer.get(i) != delimiter) {
+                        scratch[n++] = buffer.get(i++);
+                    }
+                }
+                fields.add(new String(scratch, 0, n, StandardCharsets.UTF_8));
+                if (i >= end) {
+                    break;
+                }
+                i++;
+            }
+        }
+    }
+}
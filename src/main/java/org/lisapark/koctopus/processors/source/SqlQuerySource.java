@@ -45,7 +45,10 @@ import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
 import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
 import static com.google.common.base.Preconditions.checkState;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.processors.transport.StreamWriter;
+import org.lisapark.koctopus.processors.transport.WatermarkGenerator;
 
 /**
  * This class is an {@link AbstractExternalSource} that is used to access relational databases. It can be configured with
@@ -66,6 +69,12 @@ public class SqlQuerySource extends AbstractExternalSource {
     private static final int PASSWORD_PARAMETER_ID = 3;
     private static final int DRIVER_PARAMETER_ID = 4;
     private static final int QUERY_PARAMETER_ID = 5;
+    private static final int TRANSPORT_PARAMETER_ID = 6;
+    private static final int WRITE_BATCH_SIZE_PARAMETER_ID = 7;
+    private static final int WRITE_LINGER_PARAMETER_ID = 8;
+    private static final int MAX_STREAM_LENGTH_PARAMETER_ID = 9;
+    private static final int TIME_ATTRIBUTE_PARAMETER_ID = 10;
+    private static final int MAX_OUT_OF_ORDERNESS_PARAMETER_ID = 11;
 
     private SqlQuerySource(UUID sourceId, String name, String description) {
         super(sourceId, name, description);
@@ -124,6 +133,30 @@ public class SqlQuerySource extends AbstractExternalSource {
         return getParameter(QUERY_PARAMETER_ID).getValueAsString();
     }
 
+    public String getRedisUrl() {
+        return getParameter(TRANSPORT_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getWriteBatchSize() {
+        return getParameter(WRITE_BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getWriteLinger() {
+        return getParameter(WRITE_LINGER_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getMaxStreamLength() {
+        return getParameter(MAX_STREAM_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public String getTimeAttribute() {
+        return getParameter(TIME_ATTRIBUTE_PARAMETER_ID).getValueAsString();
+    }
+
+    public Integer getMaxOutOfOrderness() {
+        return getParameter(MAX_OUT_OF_ORDERNESS_PARAMETER_ID).getValueAsInteger();
+    }
+
     public EventType getEventType() {
         return getOutput().getEventType();
     }
@@ -153,6 +186,23 @@ public class SqlQuerySource extends AbstractExternalSource {
         jdbc.addParameter(Parameter.stringParameterWithIdAndName(DRIVER_PARAMETER_ID, "Driver class name:").required(true).
                 constraint(Constraints.classConstraintWithMessage("%s is not a valid Driver Class")));
         jdbc.addParameter(Parameter.stringParameterWithIdAndName(QUERY_PARAMETER_ID, "SQL query:").required(true));
+        jdbc.addParameter(Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
+                description("Redis URL.").defaultValue("redis://localhost"));
+        jdbc.addParameter(Parameter.integerParameterWithIdAndName(WRITE_BATCH_SIZE_PARAMETER_ID, "Write batch size").
+                description("Number of events sent to Redis in one pipelined batch. 1 - no batching.").defaultValue(1).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(1, "Write batch size has to be greater than zero.")));
+        jdbc.addParameter(Parameter.integerParameterWithIdAndName(WRITE_LINGER_PARAMETER_ID, "Write linger").
+                description("Max milliseconds an event waits in a batch before it is sent.").defaultValue(10));
+        jdbc.addParameter(Parameter.integerParameterWithIdAndName(MAX_STREAM_LENGTH_PARAMETER_ID, "Max stream length").
+                description("Approximate max length of the output stream (XADD MAXLEN ~). 0 - no trimming.").defaultValue(0));
+        jdbc.addParameter(Parameter.stringParameterWithIdAndName(TIME_ATTRIBUTE_PARAMETER_ID, "Time attribute").
+                description("Column with the event time, written to the stream as watermarks for"
+                        + " downstream reordering. Empty - no watermarks.").defaultValue(""));
+        jdbc.addParameter(Parameter.integerParameterWithIdAndName(MAX_OUT_OF_ORDERNESS_PARAMETER_ID, "Max out-of-orderness").
+                description("Max milliseconds a row can be older than the newest one before it, the"
+                        + " watermark lags the newest event time by it. -1 - no watermarks.").defaultValue(-1).
+                constraint(Constraints.integerConstraintWithMinimumAndMessage(-1,
+                        "Max out-of-orderness has to be -1 or more.")));
         jdbc.setOutput(Output.outputWithId(1).setName("Output data:"));
         return jdbc;
     }
@@ -288,7 +338,38 @@ public class SqlQuerySource extends AbstractExternalSource {
 
         @Override
         public Object startProcessingEvents(Transport runtime) throws ProcessingException {
-            return null;
+            synchronized (this) {
+                checkState(!running, "Source is already processing events. Cannot call processEvents again");
+                running = true;
+            }
+            runtime.start();
+            EventType eventType = source.getEventType();
+            Connection connection = getConnection(source.getDriverClass(), source.getUrl(), source.getUsername(), source.getPassword());
+            StreamWriter writer = StreamWriter.create(runtime, source.getClass().getCanonicalName(), source.getId(),
+                    source.getRedisUrl(), source.getWriteBatchSize(), source.getWriteLinger(), source.getMaxStreamLength());
+            // rows are in query order, downstream reorder buffers release them by the watermark
+            WatermarkGenerator watermarks = new WatermarkGenerator(source.getTimeAttribute(),
+                    source.getMaxOutOfOrderness());
+            Statement statement = null;
+            ResultSet rs = null;
+            try {
+                statement = connection.createStatement();
+                rs = statement.executeQuery(source.getQuery());
+                Thread thread = Thread.currentThread();
+                while (!thread.isInterrupted() && running && rs.next()) {
+                    Event newEvent = createEventFromResultSet(rs, eventType);
+                    watermarks.stamp(newEvent.getData());
+                    writer.write(newEvent.getData());
+                }
+            } catch (SQLException e) {
+                throw new ProcessingException("Problem processing result set from database. Please check your settings.", e);
+            } finally {
+                writer.close();
+                ResultSets.closeQuietly(rs);
+                Statements.closeQuietly(statement);
+                Connections.closeQuietly(connection);
+            }
+            return GraphVocabulary.COMPLETE;
         }
     }
 }
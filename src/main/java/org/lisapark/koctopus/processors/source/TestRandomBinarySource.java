@@ -35,9 +35,12 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.lisapark.koctopus.core.ProcessingException;
 import org.lisapark.koctopus.core.graph.Gnode;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
 import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
 import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.processors.transport.BackpressureController;
+import org.lisapark.koctopus.processors.transport.StreamGroupReader;
 
 /**
  * @author dave sinclair(david.sinclair@lisa-park.com)
@@ -53,6 +56,9 @@ public class TestRandomBinarySource extends AbstractExternalSource {
 
     private static final int NUMBER_OF_EVENTS_PARAMETER_ID = 1;
     private static final int BREAK_POINT_PARAMETER_ID = 2;
+    private static final int TRANSPORT_PARAMETER_ID = 3;
+    private static final int MAX_CONSUMER_LAG_PARAMETER_ID = 4;
+    private static final int LAG_CHECK_INTERVAL_PARAMETER_ID = 5;
 
     public TestRandomBinarySource(UUID id, String name, String description) {
         super(id, name, description);
@@ -75,6 +81,18 @@ public class TestRandomBinarySource extends AbstractExternalSource {
         return (Double) getParameter(BREAK_POINT_PARAMETER_ID).getValue();
     }
 
+    public String getRedisUrl() {
+        return getParameterValueAsString(TRANSPORT_PARAMETER_ID);
+    }
+
+    public Integer getMaxConsumerLag() {
+        return getParameter(MAX_CONSUMER_LAG_PARAMETER_ID).getValueAsInteger();
+    }
+
+    public Integer getLagCheckInterval() {
+        return getParameter(LAG_CHECK_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+
     @Override
     public TestRandomBinarySource copyOf() {
         return new TestRandomBinarySource(this);
@@ -110,6 +128,24 @@ public class TestRandomBinarySource extends AbstractExternalSource {
                         defaultValue(.5).
                         required(true));
         
+        testSource.addParameter(
+                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
+                        description("Redis URL.").
+                        defaultValue("redis://localhost"));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_CONSUMER_LAG_PARAMETER_ID, "Max consumer lag").
+                        description("Number of entries the slowest consumer group may fall behind before"
+                                + " the source is throttled. 0 - no backpressure.").
+                        defaultValue(10000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                        "Max consumer lag cannot be negative.")));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(LAG_CHECK_INTERVAL_PARAMETER_ID, "Lag check interval").
+                        description("How often consumer lag is checked, in milliseconds.").
+                        defaultValue(50).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                        "Lag check interval has to be greater than zero.")));
+        
         return testSource;
     }
 
@@ -131,7 +167,6 @@ public class TestRandomBinarySource extends AbstractExternalSource {
          * Running is declared volatile because it may be access my different threads
          */
         private volatile boolean running;
-        private final long SLIEEP_TIME = 1L;
 
         public CompiledTestSource(TestRandomBinarySource source) {
             this.source = source;
@@ -154,12 +189,6 @@ public class TestRandomBinarySource extends AbstractExternalSource {
                 runtime.sendEventFromSource(e, source);
                 
                 numberEventsCreated++;
-                
-                try {
-                    Thread.sleep(SLIEEP_TIME);
-                } catch (InterruptedException ex) {
-                    LOG.log(Level.SEVERE, ex.getMessage());
-                }
             }
         }
 
@@ -180,7 +209,34 @@ public class TestRandomBinarySource extends AbstractExternalSource {
 
         @Override
         public Object startProcessingEvents(Transport runtime) throws ProcessingException {
-            return null;
+            Thread thread = Thread.currentThread();
+            runtime.start();
+            running = true;
+            Integer status = GraphVocabulary.COMPLETE;
+
+            EventType eventType = source.getOutput().getEventType();
+            List<Attribute> attributes = eventType.getAttributes();
+            int numberEventsCreated = 0;
+            BackpressureController backpressure = BackpressureController.create(runtime, source.getRedisUrl(),
+                    StreamGroupReader.streamKey(source.getClass().getCanonicalName(), source.getId().toString()),
+                    source.getMaxConsumerLag(), source.getLagCheckInterval());
+
+            while (!thread.isInterrupted() && running && numberEventsCreated < source.getNumberOfEvents()) {
+
+                int x = (Math.random() < source.getBreakPoint())? 0 : 1;
+                Event e = createEvent(attributes, x);
+
+                runtime.writeEvents(e.getData(), source.getClass().getCanonicalName(), source.getId());
+
+                numberEventsCreated++;
+
+                if (!backpressure.pace()) {
+                    status = GraphVocabulary.CANCEL;
+                    LOG.log(Level.SEVERE, "Interrupted after {0} events.", numberEventsCreated);
+                }
+            }
+            backpressure.close();
+            return status;
         }
     }
 }
@@ -40,6 +40,11 @@ import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
 import org.lisapark.koctopus.core.source.external.CompiledExternalSource;
 import org.lisapark.koctopus.core.source.external.AbstractExternalSource;
 import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.processors.transport.BackpressureController;
+import org.lisapark.koctopus.processors.transport.EntryCodec;
+import org.lisapark.koctopus.processors.transport.EntrySchema;
+import org.lisapark.koctopus.processors.transport.StreamGroupReader;
+import org.lisapark.koctopus.processors.transport.StreamWriter;
 
 /**
  * @author dave sinclair(david.sinclair@lisa-park.com)
@@ -53,6 +58,15 @@ public class TestSourceRedis extends AbstractExternalSource {
     private static final String DEFAULT_DESCRIPTION = "Generate source data according to the provided attribute list.";
     
     private static final int NUMBER_OF_EVENTS_PARAMETER_ID = 1;
+    private static final int TRANSPORT_PARAMETER_ID = 2;
+    private static final int WRITE_BATCH_SIZE_PARAMETER_ID = 3;
+    private static final int WRITE_LINGER_PARAMETER_ID = 4;
+    private static final int MAX_STREAM_LENGTH_PARAMETER_ID = 5;
+    private static final int BINARY_ENCODING_PARAMETER_ID = 6;
+    private static final int MAX_CONSUMER_LAG_PARAMETER_ID = 7;
+    private static final int LAG_CHECK_INTERVAL_PARAMETER_ID = 8;
+    private static final int PARTITIONS_PARAMETER_ID = 9;
+    private static final int PARTITION_KEY_PARAMETER_ID = 10;
     
     private static void initAttributeList(TestSourceRedis testSource) throws ValidationException {
         testSource.getOutput().addAttribute(Attribute.newAttribute(Integer.class, "Att"));
@@ -78,6 +92,42 @@ public class TestSourceRedis extends AbstractExternalSource {
         return getParameter(NUMBER_OF_EVENTS_PARAMETER_ID).getValueAsInteger();
     }
     
+    public String getRedisUrl() {
+        return getParameterValueAsString(TRANSPORT_PARAMETER_ID);
+    }
+    
+    public Integer getWriteBatchSize() {
+        return getParameter(WRITE_BATCH_SIZE_PARAMETER_ID).getValueAsInteger();
+    }
+    
+    public Integer getWriteLinger() {
+        return getParameter(WRITE_LINGER_PARAMETER_ID).getValueAsInteger();
+    }
+    
+    public Integer getMaxStreamLength() {
+        return getParameter(MAX_STREAM_LENGTH_PARAMETER_ID).getValueAsInteger();
+    }
+    
+    public Integer getMaxConsumerLag() {
+        return getParameter(MAX_CONSUMER_LAG_PARAMETER_ID).getValueAsInteger();
+    }
+    
+    public Integer getLagCheckInterval() {
+        return getParameter(LAG_CHECK_INTERVAL_PARAMETER_ID).getValueAsInteger();
+    }
+    
+    public Integer getPartitions() {
+        return getParameter(PARTITIONS_PARAMETER_ID).getValueAsInteger();
+    }
+    
+    public String getPartitionKey() {
+        return getParameter(PARTITION_KEY_PARAMETER_ID).getValueAsString();
+    }
+    
+    public Boolean isBinaryEncoding() {
+        return (Boolean) getParameter(BINARY_ENCODING_PARAMETER_ID).getValue();
+    }
+    
     @Override
     public TestSourceRedis copyOf() {
         return new TestSourceRedis(this);
@@ -112,6 +162,54 @@ public class TestSourceRedis extends AbstractExternalSource {
                         defaultValue(100).
                         constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
                                 "Number of events has to be greater than zero.")));
+        testSource.addParameter(
+                Parameter.stringParameterWithIdAndName(TRANSPORT_PARAMETER_ID, "Redis URL").
+                        description("Redis URL.").
+                        defaultValue("redis://localhost"));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_BATCH_SIZE_PARAMETER_ID, "Write batch size").
+                        description("Number of events sent to Redis in one pipelined batch. 1 - no batching.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Write batch size has to be greater than zero.")));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(WRITE_LINGER_PARAMETER_ID, "Write linger").
+                        description("Max milliseconds an event waits in a batch before it is sent.").
+                        defaultValue(10));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_STREAM_LENGTH_PARAMETER_ID, "Max stream length").
+                        description("Approximate max length of the output stream (XADD MAXLEN ~). 0 - no trimming.").
+                        defaultValue(0));
+        testSource.addParameter(
+                Parameter.booleanParameterWithIdAndName(BINARY_ENCODING_PARAMETER_ID, "Binary encoding").
+                        description("If true, events are written in the compact binary format"
+                                + " (schema ID and packed values) instead of text.").
+                        defaultValue(false));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(MAX_CONSUMER_LAG_PARAMETER_ID, "Max consumer lag").
+                        description("Number of entries the slowest consumer group may fall behind before"
+                                + " the source is throttled. 0 - no backpressure.").
+                        defaultValue(10000).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(0,
+                                "Max consumer lag cannot be negative.")));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(LAG_CHECK_INTERVAL_PARAMETER_ID, "Lag check interval").
+                        description("How often consumer lag is checked, in milliseconds.").
+                        defaultValue(50).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Lag check interval has to be greater than zero.")));
+        testSource.addParameter(
+                Parameter.integerParameterWithIdAndName(PARTITIONS_PARAMETER_ID, "Partitions").
+                        description("Number of sub-streams the output is hash partitioned into."
+                                + " Downstream processors start one consumer per partition. 1 - not partitioned.").
+                        defaultValue(1).
+                        constraint(Constraints.integerConstraintWithMinimumAndMessage(1,
+                                "Partitions has to be greater than zero.")));
+        testSource.addParameter(
+                Parameter.stringParameterWithIdAndName(PARTITION_KEY_PARAMETER_ID, "Partition key").
+                        description("Attribute whose value selects the partition; events with the same value"
+                                + " stay in order.").
+                        defaultValue(""));
         try {
             initAttributeList(testSource);
         } catch (ValidationException ex) {
@@ -140,7 +238,6 @@ public class TestSourceRedis extends AbstractExternalSource {
          * threads
          */
         private volatile boolean running;
-        private final long SLIEEP_TIME = 1L;
         
         public CompiledTestSource(TestSourceRedis source) {
             this.source = source;
@@ -157,19 +254,33 @@ public class TestSourceRedis extends AbstractExternalSource {
             EventType eventType = source.getOutput().getEventType();
             List<Attribute> attributes = eventType.getAttributes();
             int numberEventsCreated = 0;
+            StreamWriter writer = StreamWriter.create(runtime, source.getClass().getCanonicalName(), source.getId(),
+                    source.getRedisUrl(), source.getWriteBatchSize(), source.getWriteLinger(), source.getMaxStreamLength(),
+                    source.getPartitions(), source.getPartitionKey());
+            BackpressureController backpressure = BackpressureController.create(runtime, source.getRedisUrl(),
+                    StreamGroupReader.streamKey(source.getClass().getCanonicalName(), source.getId().toString()),
+                    source.getMaxConsumerLag(), source.getLagCheckInterval());
+            EntryCodec codec = EntryCodec.create(runtime, source.getRedisUrl());
+            EntrySchema schema = EntrySchema.of(eventType);
+            boolean binary = Boolean.TRUE.equals(source.isBinaryEncoding());
+            if (binary) {
+                codec.register(schema);
+            }
             
             while (!thread.isInterrupted() && running && numberEventsCreated < source.getNumberOfEvents()) {
                 Event e = createEvent(attributes, numberEventsCreated++);
                 
-                runtime.writeEvents(e.getData(), source.getClass().getCanonicalName(), source.getId());
+                writer.write(e.getData().get(source.getPartitionKey()),
+                        binary ? codec.encode(schema, e.getData()) : e.getData());
                 
-                try {
-                    Thread.sleep(SLIEEP_TIME);
-                } catch (InterruptedException ex) {
+                if (!backpressure.pace()) {
                     status = GraphVocabulary.CANCEL;
-                    LOG.log(Level.SEVERE, ex.getMessage());
+                    LOG.log(Level.SEVERE, "Interrupted after {0} events.", numberEventsCreated);
                 }
             }
+            writer.close();
+            backpressure.close();
+            codec.close();
             return status;
         }
         
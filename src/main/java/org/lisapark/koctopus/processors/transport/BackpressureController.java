@@ -0,0 +1,269 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.output.ArrayOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.CommandType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.core.transport.Transport;
+
+/**
+ * Paces a source by the lag of the consumer groups reading its output
+ * stream.
+ *
+ * Lag of a group is the number of entries not yet delivered to it plus the
+ * number of entries delivered but not acknowledged; the slowest group counts.
+ * Lag is sampled every checkInterval ms, not on every event. While it stays
+ * under maxLag / 2 the source runs without any pause; once it reaches maxLag
+ * the pause after each event is doubled (up to 100 ms), and it is halved
+ * again as the lag drains. A source is thus throttled down to the rate of its
+ * slowest consumer and bursts back to full speed as soon as consumers catch
+ * up. A sample that fails, e.g. on a dropped connection, is skipped and the
+ * pause stays as it is.
+ *
+ * Batch readers that page from offset "0" are not visible to Redis, so a
+ * stream without consumer groups is never throttled. For a partitioned stream
+ * (see {@link StreamPartitions}) the lag of every partition is checked.
+ *
+ * @author alexmy
+ */
+public class BackpressureController implements AutoCloseable {
+
+    static final Logger LOG = Logger.getLogger(BackpressureController.class.getName());
+
+    public static final long DEFAULT_CHECK_INTERVAL = 50L;
+
+    private static final long MIN_PAUSE_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final long MAX_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Max entries counted with XRANGE for servers that do not report the
+     * lag of a group.
+     */
+    static final int SCAN_COUNT = 128;
+
+    /**
+     * Lag of a sample that failed.
+     */
+    private static final long UNKNOWN = -1L;
+
+    private final List<String> streamKeys = new ArrayList<>();
+    private final long maxLag;
+    private final long checkIntervalNanos;
+
+    private RedisConnections.Lease lease;
+    private RedisCommands<String, String> commands;
+
+    private long pauseNanos = 0;
+    private long lastCheck = System.nanoTime();
+
+    /**
+     *
+     * @param redisUrl Redis URL, e.g. redis://localhost
+     * @param streamKey key of the output stream of the source
+     * @param maxLag lag that starts throttling; 0 - no backpressure, the
+     * source runs at full speed
+     * @param checkInterval how often the lag is sampled (ms)
+     */
+    public BackpressureController(String redisUrl, String streamKey, long maxLag, long checkInterval) {
+        this.maxLag = maxLag;
+        this.checkIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L, checkInterval));
+        if (maxLag > 0) {
+            this.lease = RedisConnections.acquire(redisUrl);
+            try {
+                RedisCommands<String, String> sync = lease.shared().sync();
+                String partitions = sync.hget(StreamPartitions.PARTITIONS_KEY, streamKey);
+                if (partitions == null) {
+                    streamKeys.add(streamKey);
+                } else {
+                    for (int i = 0; i < Integer.parseInt(partitions); i++) {
+                        streamKeys.add(StreamPartitions.partitionKey(streamKey, i));
+                    }
+                }
+                this.commands = sync;
+            } catch (RedisException ex) {
+                LOG.log(Level.WARNING, "Backpressure is off, cannot connect to {0}: {1}",
+                        new Object[]{redisUrl, ex.getMessage()});
+                lease.close();
+                this.lease = null;
+            }
+        }
+    }
+
+    /**
+     * Creates the controller for the output stream of a source. The in-memory
+     * transport makes writers wait for their slowest reader by itself, so
+     * the controller is off there and Redis is never asked.
+     *
+     * @param runtime source transport
+     * @param redisUrl Redis URL, e.g. redis://localhost
+     * @param streamKey key of the output stream of the source
+     * @param maxLag lag that starts throttling; 0 - no backpressure
+     * @param checkInterval how often the lag is sampled (ms)
+     * @return BackpressureController
+     */
+    public static BackpressureController create(Transport runtime, String redisUrl, String streamKey,
+            long maxLag, long checkInterval) {
+        return new BackpressureController(redisUrl, streamKey,
+                runtime instanceof MemoryTransport ? 0 : maxLag, checkInterval);
+    }
+
+    public boolean isEnabled() {
+        return commands != null;
+    }
+
+    /**
+     * Called by the source after each event. Samples the lag if the check
+     * interval has passed and pauses if consumers are behind.
+     *
+     * @return false if the thread was interrupted while pausing
+     */
+    public boolean pace() {
+        if (!isEnabled()) {
+            return !Thread.currentThread().isInterrupted();
+        }
+        long now = System.nanoTime();
+        if (now - lastCheck >= checkIntervalNanos) {
+            lastCheck = now;
+            long lag = 0;
+            for (String streamKey : streamKeys) {
+                long streamLag = lag(streamKey);
+                if (streamLag == UNKNOWN) {
+                    lag = UNKNOWN;
+                    break;
+                }
+                lag = Math.max(lag, streamLag);
+            }
+            // a failed sample keeps the current pause
+            if (lag != UNKNOWN) {
+                adjust(lag);
+            }
+        }
+        if (pauseNanos > 0) {
+            LockSupport.parkNanos(pauseNanos);
+        }
+        return !Thread.currentThread().isInterrupted();
+    }
+
+    private void adjust(long lag) {
+        if (lag >= maxLag) {
+            pauseNanos = pauseNanos == 0 ? MIN_PAUSE_NANOS : Math.min(pauseNanos * 2, MAX_PAUSE_NANOS);
+            LOG.log(Level.FINE, "Lag {0}, pause {1} ns.", new Object[]{lag, pauseNanos});
+        } else if (lag <= maxLag / 2) {
+            pauseNanos = pauseNanos / 2 < MIN_PAUSE_NANOS ? 0 : pauseNanos / 2;
+        }
+    }
+
+    /**
+     * Lag of the slowest consumer group, from XINFO GROUPS. Redis 7 reports
+     * the undelivered count as "lag". For older servers a group whose
+     * last-delivered-id is the last-generated-id of the stream has nothing
+     * undelivered; otherwise up to {@link #SCAN_COUNT} entries after it are
+     * counted with XRANGE, and a full page is taken as over the limit.
+     *
+     * @param streamKey
+     * @return lag, 0 if the stream has no groups or does not exist yet,
+     * UNKNOWN if Redis could not be asked
+     */
+    long lag(String streamKey) {
+        try {
+            StringCodec codec = StringCodec.UTF8;
+            List<Object> groups = commands.dispatch(CommandType.XINFO, new ArrayOutput<>(codec),
+                    new CommandArgs<>(codec).add("GROUPS").addKey(streamKey));
+            String lastGenerated = null;
+            long max = 0;
+            for (Object group : groups) {
+                long pending = 0;
+                Long undelivered = null;
+                String lastDelivered = null;
+                List<?> fields = (List<?>) group;
+                for (int i = 0; i + 1 < fields.size(); i += 2) {
+                    String name = String.valueOf(fields.get(i));
+                    Object value = fields.get(i + 1);
+                    if ("pending".equals(name) && value instanceof Number) {
+                        pending = ((Number) value).longValue();
+                    } else if ("lag".equals(name) && value instanceof Number) {
+                        undelivered = ((Number) value).longValue();
+                    } else if ("last-delivered-id".equals(name) && value != null) {
+                        lastDelivered = value.toString();
+                    }
+                }
+                if (undelivered == null) {
+                    if (lastGenerated == null) {
+                        lastGenerated = lastGenerated(streamKey);
+                    }
+                    undelivered = lastGenerated.equals(lastDelivered) ? 0 : countAfter(streamKey, lastDelivered);
+                }
+                max = Math.max(max, pending + undelivered);
+            }
+            return max;
+        } catch (RedisCommandExecutionException ex) {
+            // ERR no such key - nothing was written yet
+            return 0;
+        } catch (RedisException ex) {
+            LOG.log(Level.WARNING, "Lag of {0} is not known, the sample is skipped: {1}",
+                    new Object[]{streamKey, ex.getMessage()});
+            return UNKNOWN;
+        }
+    }
+
+    private String lastGenerated(String streamKey) {
+        StringCodec codec = StringCodec.UTF8;
+        List<Object> info = commands.dispatch(CommandType.XINFO, new ArrayOutput<>(codec),
+                new CommandArgs<>(codec).add("STREAM").addKey(streamKey));
+        for (int i = 0; i + 1 < info.size(); i += 2) {
+            if ("last-generated-id".equals(String.valueOf(info.get(i)))) {
+                return String.valueOf(info.get(i + 1));
+            }
+        }
+        return "";
+    }
+
+    private long countAfter(String streamKey, String lastDelivered) {
+        if (lastDelivered == null) {
+            return 0;
+        }
+        List<StreamMessage<String, String>> list = commands.xrange(streamKey,
+                Range.create(lastDelivered, "+"), Limit.from(SCAN_COUNT + 1));
+        long count = list.size();
+        if (!list.isEmpty() && list.get(0).getId().equals(lastDelivered)) {
+            count--;
+        }
+        return count >= SCAN_COUNT ? Math.max(maxLag, count) : count;
+    }
+
+    @Override
+    public void close() {
+        if (lease != null) {
+            lease.close();
+            lease = null;
+        }
+    }
+}
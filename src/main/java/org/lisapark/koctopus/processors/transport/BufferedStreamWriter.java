@@ -0,0 +1,200 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.XAddArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link StreamWriter} that collects events and sends them to Redis as one
+ * pipelined batch of XADD commands.
+ *
+ * A batch is sent when it reaches batchSize events or when the oldest event in
+ * it is lingerMillis old, whichever comes first. The connection is used
+ * exclusively by this writer with auto-flush turned off, so all XADDs of a
+ * batch go out in a single write and cost one round trip. The connection
+ * is borrowed from the {@link RedisConnections} pool.
+ *
+ * @author alexmy
+ */
+public class BufferedStreamWriter implements StreamWriter {
+
+    static final Logger LOG = Logger.getLogger(BufferedStreamWriter.class.getName());
+
+    private static final long FLUSH_TIMEOUT_SECONDS = 30L;
+
+    private final RedisConnections.Lease lease;
+    private final StatefulRedisConnection<String, String> connection;
+    private final RedisAsyncCommands<String, String> commands;
+    private final ScheduledExecutorService scheduler;
+
+    private final String streamKey;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final XAddArgs xaddArgs;
+
+    private final List<Map<String, String>> buffer;
+    private long firstBufferedAt;
+    private boolean closed;
+
+    /**
+     *
+     * @param redisUrl Redis URL, e.g. redis://localhost
+     * @param streamKey output stream key
+     * @param batchSize max number of events per batch
+     * @param lingerMillis max time an event waits in the buffer
+     * @param maxLength approximate MAXLEN for the stream, 0 - no trimming
+     */
+    public BufferedStreamWriter(String redisUrl, String streamKey, int batchSize, long lingerMillis, long maxLength) {
+        this.lease = RedisConnections.acquire(redisUrl);
+        this.connection = lease.borrow();
+        this.connection.setAutoFlushCommands(false);
+        this.commands = connection.async();
+        this.streamKey = streamKey;
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.xaddArgs = maxLength > 0 ? XAddArgs.Builder.maxlen(maxLength).approximateTrimming() : new XAddArgs();
+        this.buffer = new ArrayList<>(batchSize);
+
+        // flushes batches that did not fill up while the producer is idle
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stream-writer:" + streamKey);
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (lingerMillis > 0) {
+            scheduler.scheduleWithFixedDelay(this::flushIfExpired, lingerMillis, lingerMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void write(Map<String, ?> event) {
+        if (closed) {
+            throw new IllegalStateException("Writer for " + streamKey + " is closed.");
+        }
+        Map<String, String> body = new HashMap<>(event.size());
+        event.forEach((key, value) -> {
+            if (value != null) {
+                body.put(key, String.valueOf(value));
+            }
+        });
+        if (buffer.isEmpty()) {
+            firstBufferedAt = System.currentTimeMillis();
+        }
+        buffer.add(body);
+        if (buffer.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private synchronized void flushIfExpired() {
+        if (!buffer.isEmpty() && System.currentTimeMillis() - firstBufferedAt >= lingerMillis) {
+            try {
+                flush();
+            } catch (RedisException ex) {
+                // kept in the buffer, the next flush retries
+                LOG.log(Level.WARNING, ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sends buffered events and waits until Redis has stored them.
+     *
+     * Events whose XADD timed out or failed stay in the buffer and the
+     * exception is passed on, so that callers using flush as a before-ack or
+     * checkpoint hook do not ack input whose output was not written. A retry
+     * may write an event twice if its XADD succeeded after the timeout.
+     *
+     * @throws RedisException if not all events were written
+     */
+    @Override
+    public synchronized void flush() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        List<RedisFuture<String>> futures = new ArrayList<>(buffer.size());
+        buffer.forEach(body -> futures.add(commands.xadd(streamKey, xaddArgs, body)));
+        connection.flushCommands();
+        RedisException failure = null;
+        try {
+            if (!LettuceFutures.awaitAll(FLUSH_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                    futures.toArray(new RedisFuture[futures.size()]))) {
+                failure = new RedisException(String.format("Timeout writing %d events to %s",
+                        buffer.size(), streamKey));
+            }
+        } catch (RedisException ex) {
+            failure = ex;
+        }
+        if (failure == null) {
+            buffer.clear();
+            return;
+        }
+        List<Map<String, String>> unwritten = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            CompletableFuture<String> future = futures.get(i).toCompletableFuture();
+            if (!future.isDone() || future.isCompletedExceptionally()) {
+                unwritten.add(buffer.get(i));
+            }
+        }
+        buffer.clear();
+        buffer.addAll(unwritten);
+        throw failure;
+    }
+
+    /**
+     * Flushes and releases the connection. Runs with the interrupt flag
+     * cleared, since it is usually called right after an interrupted read
+     * and an interrupted wait would give up on the last batch.
+     *
+     * @throws RedisException if the last batch could not be written; the
+     * connection is released anyway
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        boolean interrupted = Thread.interrupted();
+        try {
+            scheduler.shutdownNow();
+            flush();
+        } finally {
+            closed = true;
+            connection.setAutoFlushCommands(true);
+            lease.release(connection);
+            lease.close();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
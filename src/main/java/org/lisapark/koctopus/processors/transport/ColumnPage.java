@@ -0,0 +1,227 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.StreamMessage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A page of stream entries in columnar form: one double[] per numeric
+ * attribute, NaN for missing values. Lets numeric processors decode a page
+ * read from Redis once, run their calculation as plain loops over the
+ * arrays and write the results back as a batch.
+ *
+ * A page may also carry a string key per row, the value of the attribute
+ * a multiplexed stream is grouped by.
+ *
+ * Pages are meant to be reused from one read to the next, arrays only grow.
+ * Not thread safe.
+ *
+ * @author alexmy
+ */
+public final class ColumnPage {
+
+    private static final int INITIAL_CAPACITY = StreamGroupReader.DEFAULT_PAGE_SIZE;
+
+    private final String[] names;
+    private final String keyName;
+    private double[][] columns;
+    private String[] ids;
+    private String[] keys;
+    private int size;
+
+    /**
+     *
+     * @param names attribute names, one column each
+     */
+    public ColumnPage(String... names) {
+        this(null, names);
+    }
+
+    private ColumnPage(String keyName, String[] names) {
+        this.names = names.clone();
+        this.keyName = keyName;
+        this.columns = new double[names.length][INITIAL_CAPACITY];
+        this.ids = new String[INITIAL_CAPACITY];
+        this.keys = new String[keyName == null ? 0 : INITIAL_CAPACITY];
+    }
+
+    /**
+     * Page with a key per row.
+     *
+     * @param keyName key attribute name
+     * @param names numeric attribute names, one column each
+     * @return ColumnPage
+     */
+    public static ColumnPage keyed(String keyName, String... names) {
+        return new ColumnPage(keyName, names);
+    }
+
+    /**
+     *
+     * @return key attribute name, null if the page has no keys
+     */
+    public String getKeyName() {
+        return keyName;
+    }
+
+    /**
+     *
+     * @param row
+     * @return key of the row, null if the entry had no key
+     */
+    public String getKey(int row) {
+        return keys[row];
+    }
+
+    public void setKey(int row, String key) {
+        keys[row] = key;
+    }
+
+    public int width() {
+        return names.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getName(int column) {
+        return names[column];
+    }
+
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Column array, valid for rows below {@link #size()}. The array may be
+     * replaced by {@link #setSize(int)}, do not keep it across calls.
+     *
+     * @param column
+     * @return values of the column
+     */
+    public double[] column(int column) {
+        return columns[column];
+    }
+
+    /**
+     *
+     * @param row
+     * @return stream entry ID of the row, null for pages that were not
+     * decoded from a stream
+     */
+    public String getId(int row) {
+        return ids[row];
+    }
+
+    /**
+     * Event time of a row.
+     *
+     * @param row
+     * @param timeColumn column holding epoch milliseconds, -1 - use the
+     * stream entry ID time
+     * @return time in milliseconds
+     */
+    public long getTime(int row, int timeColumn) {
+        if (timeColumn >= 0) {
+            double time = columns[timeColumn][row];
+            if (!Double.isNaN(time)) {
+                return (long) time;
+            }
+        }
+        return StreamJoin.timestamp(ids[row]);
+    }
+
+    /**
+     * Sets the number of rows, growing the columns if needed. Values of new
+     * rows are undefined.
+     *
+     * @param size
+     */
+    public void setSize(int size) {
+        if (size > ids.length) {
+            int capacity = Math.max(size, ids.length * 2);
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = Arrays.copyOf(columns[i], capacity);
+            }
+            ids = Arrays.copyOf(ids, capacity);
+            if (keyName != null) {
+                keys = Arrays.copyOf(keys, capacity);
+            }
+        }
+        this.size = size;
+    }
+
+    /**
+     * Replaces the content of the page with the entries.
+     *
+     * @param page entries read from a stream
+     * @param codec decodes both plain and binary encoded entries
+     */
+    public void decode(List<StreamMessage<String, String>> page, EntryCodec codec) {
+        setSize(page.size());
+        for (int row = 0; row < size; row++) {
+            StreamMessage<String, String> msg = page.get(row);
+            ids[row] = msg.getId();
+            codec.readDoubles(msg.getBody(), names, columns, row);
+            if (keyName != null) {
+                keys[row] = codec.getString(msg.getBody(), keyName);
+            }
+        }
+    }
+
+    /**
+     * Writes every row as a stream entry, NaN values are left out. Does not
+     * flush the writer.
+     *
+     * @param writer
+     * @param codec used if schema is not null
+     * @param schema binary encodes the entries, null - plain entries
+     */
+    public void writeTo(StreamWriter writer, EntryCodec codec, EntrySchema schema) {
+        if (schema != null) {
+            for (int row = 0; row < size; row++) {
+                writer.write(codec.encode(schema, this, row));
+            }
+            return;
+        }
+        // writers copy the event, so one map serves the whole page
+        Map<String, String> event = new HashMap<>(names.length * 2);
+        for (int row = 0; row < size; row++) {
+            event.clear();
+            if (keyName != null && keys[row] != null) {
+                event.put(keyName, keys[row]);
+            }
+            for (int i = 0; i < names.length; i++) {
+                double value = columns[i][row];
+                if (!Double.isNaN(value)) {
+                    event.put(names[i], Double.toString(value));
+                }
+            }
+            writer.write(event);
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.lisapark.koctopus.core.transport.Transport;
+
+/**
+ * Binary encoding of stream entries.
+ *
+ * An encoded entry has a single field, {@link #PAYLOAD_FIELD}, holding the
+ * Base64 of: schema ID (int), numeric fields (8 bytes each, NaN /
+ * Long.MIN_VALUE for null), then strings (int length, -1 for null, and UTF-8
+ * bytes). Field names are not repeated in the entries, the schema is stored
+ * once in the Redis hash {@link #SCHEMAS_KEY} and cached by every reader.
+ *
+ * Base64 keeps entries valid for any Transport, the Redis one included, that
+ * handles bodies as Map&lt;String, String&gt;.
+ *
+ * Readers do not have to know whether the producer encodes: all getters
+ * fall back to the plain text representation.
+ *
+ * A codec without a Redis URL keeps schemas in this JVM only. That is enough
+ * for the in-memory transport, whose producers and consumers share the
+ * process, and saves the Redis round trips.
+ *
+ * @author alexmy
+ */
+public class EntryCodec implements AutoCloseable {
+
+    public static final String PAYLOAD_FIELD = "_bin";
+    public static final String SCHEMAS_KEY = "k-octopus:schemas";
+
+    private static final ConcurrentMap<Integer, EntrySchema> SCHEMAS = new ConcurrentHashMap<>();
+
+    private final String redisUrl;
+    private RedisConnections.Lease lease;
+    private StatefulRedisConnection<String, String> connection;
+
+    /**
+     *
+     * @param redisUrl Redis URL used to publish and look up schemas, null -
+     * schemas are not published
+     */
+    public EntryCodec(String redisUrl) {
+        this.redisUrl = redisUrl;
+    }
+
+    /**
+     * Creates the codec for a processor's transport: with the in-memory
+     * transport schemas stay in the JVM, otherwise they go to Redis.
+     *
+     * @param runtime processor transport
+     * @param redisUrl Redis URL
+     * @return EntryCodec
+     */
+    public static EntryCodec create(Transport runtime, String redisUrl) {
+        return new EntryCodec(runtime instanceof MemoryTransport ? null : redisUrl);
+    }
+
+    private synchronized StatefulRedisConnection<String, String> connection() {
+        if (connection == null) {
+            lease = RedisConnections.acquire(redisUrl);
+            connection = lease.shared();
+        }
+        return connection;
+    }
+
+    /**
+     * Publishes schema, so readers in other processes can decode entries
+     * written with it. Has to be called once before the first
+     * {@link #encode}.
+     *
+     * @param schema
+     */
+    public void register(EntrySchema schema) {
+        EntrySchema known = SCHEMAS.putIfAbsent(schema.getId(), schema);
+        if (known != null) {
+            checkSame(known, schema.getDefinition());
+        } else if (redisUrl != null) {
+            String id = Integer.toString(schema.getId());
+            RedisCommands<String, String> commands = connection().sync();
+            if (!commands.hsetnx(SCHEMAS_KEY, id, schema.getDefinition())) {
+                String published = commands.hget(SCHEMAS_KEY, id);
+                if (published != null && !published.equals(schema.getDefinition())) {
+                    SCHEMAS.remove(schema.getId(), schema);
+                    checkSame(schema, published);
+                }
+            }
+        }
+    }
+
+    private EntrySchema lookup(int id) {
+        EntrySchema schema = SCHEMAS.get(id);
+        if (schema == null) {
+            if (redisUrl == null) {
+                throw new IllegalStateException(String.format("Unknown entry schema %s", id));
+            }
+            String definition = connection().sync().hget(SCHEMAS_KEY, Integer.toString(id));
+            if (definition == null) {
+                throw new IllegalStateException(String.format("Unknown entry schema %s", id));
+            }
+            schema = EntrySchema.parse(definition);
+            if (schema.getId() != id) {
+                throw new IllegalStateException(String.format("Entry schema %s is published with the definition"
+                        + " \"%s\" of schema %s.", id, definition, schema.getId()));
+            }
+            EntrySchema known = SCHEMAS.putIfAbsent(id, schema);
+            if (known != null) {
+                checkSame(known, definition);
+                schema = known;
+            }
+        }
+        return schema;
+    }
+
+    /**
+     * Two definitions with the same CRC32 can not share the ID, entries of
+     * one would be decoded with the other.
+     */
+    private static void checkSame(EntrySchema known, String definition) {
+        if (!known.getDefinition().equals(definition)) {
+            throw new IllegalStateException(String.format("Entry schema ID %s of \"%s\" is already used by \"%s\","
+                    + " rename an attribute of one of them.", known.getId(), definition, known.getDefinition()));
+        }
+    }
+
+    /**
+     * Encodes an event. Values are converted to the schema types, attributes
+     * not in the schema are dropped.
+     *
+     * @param schema
+     * @param event
+     * @return entry body
+     */
+    public Map<String, String> encode(EntrySchema schema, Map<String, ?> event) {
+        byte[][] strings = new byte[schema.size() - schema.getNumericCount()][];
+        int length = 4 + 8 * schema.getNumericCount();
+        for (int i = schema.getNumericCount(); i < schema.size(); i++) {
+            Object value = event.get(schema.getName(i));
+            byte[] bytes = value == null ? null : String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+            strings[i - schema.getNumericCount()] = bytes;
+            length += 4 + (bytes == null ? 0 : bytes.length);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(schema.getId());
+        for (int i = 0; i < schema.getNumericCount(); i++) {
+            Object value = event.get(schema.getName(i));
+            if (schema.getType(i) == EntrySchema.DOUBLE) {
+                buffer.putDouble(value == null ? Double.NaN : toDouble(value));
+            } else {
+                buffer.putLong(value == null ? Long.MIN_VALUE : toLong(value));
+            }
+        }
+        for (byte[] bytes : strings) {
+            if (bytes == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+        return Collections.singletonMap(PAYLOAD_FIELD, Base64.getEncoder().encodeToString(buffer.array()));
+    }
+
+    private static double toDouble(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+    }
+
+    private static long toLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1L : 0L;
+        }
+        String text = value.toString();
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException ex) {
+            // e.g. "12.0" of a plain text entry
+            return (long) Double.parseDouble(text);
+        }
+    }
+
+    public static boolean isEncoded(Map<String, String> body) {
+        return body.containsKey(PAYLOAD_FIELD);
+    }
+
+    /**
+     * Reads a double attribute without any string parsing if the entry is
+     * encoded.
+     *
+     * @param body entry body
+     * @param name attribute name
+     * @return value, null if the attribute is missing or null
+     */
+    public Double getDouble(Map<String, String> body, String name) {
+        String payload = body.get(PAYLOAD_FIELD);
+        if (payload == null) {
+            String value = body.get(name);
+            return value == null ? null : Double.valueOf(value);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(payload));
+        EntrySchema schema = lookup(buffer.getInt());
+        int index = schema.indexOf(name);
+        if (index < 0) {
+            return null;
+        } else if (index >= schema.getNumericCount()) {
+            Object value = decode(schema, buffer).get(name);
+            return value == null ? null : Double.valueOf(value.toString());
+        }
+        double value = readNumeric(schema, buffer, index);
+        return Double.isNaN(value) ? null : value;
+    }
+
+    /**
+     * Reads a string attribute.
+     *
+     * @param body entry body
+     * @param name attribute name
+     * @return value as a string, null if the attribute is missing or null
+     */
+    public String getString(Map<String, String> body, String name) {
+        String payload = body.get(PAYLOAD_FIELD);
+        if (payload == null) {
+            return body.get(name);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(payload));
+        EntrySchema schema = lookup(buffer.getInt());
+        int index = schema.indexOf(name);
+        if (index < 0) {
+            return null;
+        } else if (index < schema.getNumericCount()) {
+            if (schema.getType(index) == EntrySchema.LONG) {
+                long value = buffer.getLong(4 + 8 * index);
+                return value == Long.MIN_VALUE ? null : Long.toString(value);
+            }
+            double value = buffer.getDouble(4 + 8 * index);
+            return Double.isNaN(value) ? null : Double.toString(value);
+        }
+        Object value = decode(schema, buffer).get(name);
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Reads an integral attribute. Long fields of an encoded entry are read
+     * as they are, without going through a double, so values beyond 2^53
+     * stay exact.
+     *
+     * @param body entry body
+     * @param name attribute name
+     * @return value, null if the attribute is missing or null
+     */
+    public Long getLong(Map<String, String> body, String name) {
+        String payload = body.get(PAYLOAD_FIELD);
+        if (payload == null) {
+            String value = body.get(name);
+            return value == null ? null : toLong(value);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(payload));
+        EntrySchema schema = lookup(buffer.getInt());
+        int index = schema.indexOf(name);
+        if (index < 0) {
+            return null;
+        } else if (index >= schema.getNumericCount()) {
+            Object value = decode(schema, buffer).get(name);
+            return value == null ? null : toLong(value);
+        } else if (schema.getType(index) == EntrySchema.LONG) {
+            long value = buffer.getLong(4 + 8 * index);
+            return value == Long.MIN_VALUE ? null : value;
+        }
+        double value = buffer.getDouble(4 + 8 * index);
+        return Double.isNaN(value) ? null : (long) value;
+    }
+
+    /**
+     * Reads several double attributes of an entry into a row of columns,
+     * decoding the payload once.
+     *
+     * @param body entry body
+     * @param names attribute names
+     * @param columns one column per name
+     * @param row row to fill, missing and null values are NaN
+     */
+    public void readDoubles(Map<String, String> body, String[] names, double[][] columns, int row) {
+        String payload = body.get(PAYLOAD_FIELD);
+        if (payload == null) {
+            for (int i = 0; i < names.length; i++) {
+                String value = body.get(names[i]);
+                columns[i][row] = value == null ? Double.NaN : Double.parseDouble(value);
+            }
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(payload));
+        EntrySchema schema = lookup(buffer.getInt());
+        Map<String, Object> strings = null;
+        for (int i = 0; i < names.length; i++) {
+            int index = schema.indexOf(names[i]);
+            if (index < 0) {
+                columns[i][row] = Double.NaN;
+            } else if (index < schema.getNumericCount()) {
+                columns[i][row] = readNumeric(schema, buffer, index);
+            } else {
+                if (strings == null) {
+                    strings = decode(schema, buffer);
+                }
+                Object value = strings.get(names[i]);
+                columns[i][row] = value == null ? Double.NaN : Double.parseDouble(value.toString());
+            }
+        }
+    }
+
+    /**
+     * Numeric field as a double, for double consumers only: longs beyond
+     * 2^53 lose precision, exact values come from {@link #getLong}.
+     */
+    private static double readNumeric(EntrySchema schema, ByteBuffer buffer, int index) {
+        int position = 4 + 8 * index;
+        if (schema.getType(index) == EntrySchema.DOUBLE) {
+            return buffer.getDouble(position);
+        }
+        long value = buffer.getLong(position);
+        return value == Long.MIN_VALUE ? Double.NaN : (double) value;
+    }
+
+    /**
+     * Encodes a row of a page. Schema attributes are taken from the page
+     * columns with the same names and the row key, attributes without a
+     * column are null.
+     *
+     * @param schema
+     * @param page
+     * @param row
+     * @return entry body
+     */
+    public Map<String, String> encode(EntrySchema schema, ColumnPage page, int row) {
+        String key = page.getKeyName() == null ? null : page.getKey(row);
+        byte[] keyBytes = key == null ? null : key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 * schema.getNumericCount()
+                + 4 * (schema.size() - schema.getNumericCount()) + (keyBytes == null ? 0 : keyBytes.length));
+        buffer.putInt(schema.getId());
+        for (int i = 0; i < schema.getNumericCount(); i++) {
+            int column = page.indexOf(schema.getName(i));
+            double value = column < 0 ? Double.NaN : page.column(column)[row];
+            if (schema.getType(i) == EntrySchema.DOUBLE) {
+                buffer.putDouble(value);
+            } else {
+                buffer.putLong(Double.isNaN(value) ? Long.MIN_VALUE : (long) value);
+            }
+        }
+        for (int i = schema.getNumericCount(); i < schema.size(); i++) {
+            if (keyBytes != null && schema.getName(i).equals(page.getKeyName())) {
+                buffer.putInt(keyBytes.length);
+                buffer.put(keyBytes);
+            } else {
+                buffer.putInt(-1);
+            }
+        }
+        return Collections.singletonMap(PAYLOAD_FIELD, Base64.getEncoder().encodeToString(buffer.array()));
+    }
+
+    /**
+     * Decodes the whole entry.
+     *
+     * @param body entry body
+     * @return attribute name to value map, the body itself if it is not
+     * encoded
+     */
+    public Map<String, Object> decode(Map<String, String> body) {
+        String payload = body.get(PAYLOAD_FIELD);
+        if (payload == null) {
+            return new HashMap<>(body);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(payload));
+        return decode(lookup(buffer.getInt()), buffer);
+    }
+
+    private static Map<String, Object> decode(EntrySchema schema, ByteBuffer buffer) {
+        Map<String, Object> event = new HashMap<>(schema.size() * 2);
+        buffer.position(4);
+        for (int i = 0; i < schema.size(); i++) {
+            switch (schema.getType(i)) {
+                case EntrySchema.DOUBLE:
+                    double d = buffer.getDouble();
+                    event.put(schema.getName(i), Double.isNaN(d) ? null : d);
+                    break;
+                case EntrySchema.LONG:
+                    long l = buffer.getLong();
+                    event.put(schema.getName(i), l == Long.MIN_VALUE ? null : l);
+                    break;
+                default:
+                    int length = buffer.getInt();
+                    if (length < 0) {
+                        event.put(schema.getName(i), null);
+                    } else {
+                        byte[] bytes = new byte[length];
+                        buffer.get(bytes);
+                        event.put(schema.getName(i), new String(bytes, StandardCharsets.UTF_8));
+                    }
+            }
+        }
+        return event;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (lease != null) {
+            lease.close();
+            lease = null;
+            connection = null;
+        }
+    }
+}
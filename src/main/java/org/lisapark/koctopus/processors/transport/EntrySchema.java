@@ -0,0 +1,196 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import org.lisapark.koctopus.core.event.Attribute;
+import org.lisapark.koctopus.core.event.EventType;
+
+/**
+ * Ordered list of typed fields of a binary encoded stream entry.
+ *
+ * Numeric fields (doubles and longs, 8 bytes each) always come first, in the
+ * order they were added, strings follow. So every numeric field sits at a
+ * fixed position in the payload and can be read without decoding the rest of
+ * the entry.
+ *
+ * The schema ID is the CRC32 of the schema definition, e.g.
+ * "average:D;count:L;name:S", so equal schemas get equal IDs in every JVM.
+ * {@link EntryCodec} compares the full definitions when an ID is already in
+ * use and rejects a second schema with the same CRC32.
+ *
+ * @author alexmy
+ */
+public final class EntrySchema {
+
+    public static final char DOUBLE = 'D';
+    public static final char LONG = 'L';
+    public static final char STRING = 'S';
+
+    private final String[] names;
+    private final char[] types;
+    private final int numericCount;
+    private final String definition;
+    private final int id;
+
+    private EntrySchema(List<String> names, List<Character> types) {
+        int size = names.size();
+        this.names = new String[size];
+        this.types = new char[size];
+        int index = 0;
+        // numeric fields first
+        for (int i = 0; i < size; i++) {
+            if (types.get(i) != STRING) {
+                this.names[index] = names.get(i);
+                this.types[index++] = types.get(i);
+            }
+        }
+        this.numericCount = index;
+        for (int i = 0; i < size; i++) {
+            if (types.get(i) == STRING) {
+                this.names[index] = names.get(i);
+                this.types[index++] = STRING;
+            }
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                builder.append(';');
+            }
+            builder.append(this.names[i]).append(':').append(this.types[i]);
+        }
+        this.definition = builder.toString();
+        CRC32 crc = new CRC32();
+        crc.update(definition.getBytes(StandardCharsets.UTF_8));
+        this.id = (int) crc.getValue();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Derives a schema from the event type of a processor or source output.
+     * Floating point attributes become doubles, integral and boolean ones
+     * longs, everything else strings.
+     *
+     * @param eventType
+     * @return EntrySchema
+     */
+    public static EntrySchema of(EventType eventType) {
+        Builder builder = builder();
+        for (Attribute attribute : eventType.getAttributes()) {
+            Class type = attribute.getType();
+            if (type == Double.class || type == Float.class) {
+                builder.addDouble(attribute.getName());
+            } else if (type == Integer.class || type == Long.class || type == Short.class || type == Boolean.class) {
+                builder.addLong(attribute.getName());
+            } else {
+                builder.addString(attribute.getName());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Parses a schema definition produced by {@link #getDefinition()}.
+     *
+     * @param definition
+     * @return EntrySchema
+     */
+    public static EntrySchema parse(String definition) {
+        Builder builder = builder();
+        if (!definition.isEmpty()) {
+            for (String field : definition.split(";")) {
+                int colon = field.lastIndexOf(':');
+                builder.add(field.substring(0, colon), field.charAt(colon + 1));
+            }
+        }
+        return builder.build();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getDefinition() {
+        return definition;
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public int getNumericCount() {
+        return numericCount;
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public char getType(int index) {
+        return types[index];
+    }
+
+    /**
+     * @param name field name
+     * @return field index, -1 if there is no such field
+     */
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static class Builder {
+
+        private final List<String> names = new ArrayList<>();
+        private final List<Character> types = new ArrayList<>();
+
+        public Builder addDouble(String name) {
+            return add(name, DOUBLE);
+        }
+
+        public Builder addLong(String name) {
+            return add(name, LONG);
+        }
+
+        public Builder addString(String name) {
+            return add(name, STRING);
+        }
+
+        private Builder add(String name, char type) {
+            if (type != DOUBLE && type != LONG && type != STRING) {
+                throw new IllegalArgumentException(String.format("Unknown field type %s", type));
+            }
+            names.add(name);
+            types.add(type);
+            return this;
+        }
+
+        public EntrySchema build() {
+            return new EntrySchema(names, types);
+        }
+    }
+}
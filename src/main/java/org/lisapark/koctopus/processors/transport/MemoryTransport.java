@@ -0,0 +1,172 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.StreamMessage;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.lisapark.koctopus.core.transport.Transport;
+
+/**
+ * {@link Transport} that keeps streams in memory, for models where every
+ * processor runs in the same JVM.
+ *
+ * Selected by a transport URL with the mem scheme, e.g.
+ * mem://model-name?capacity=65536&amp;consumerTimeout=30000. All
+ * MemoryTransports created for the same URL share the same streams, so a
+ * processor reads what another one has written without any network I/O or
+ * serialization. Every stream is a {@link MessageRing} of the given capacity
+ * (rounded up to a power of 2, 65536 by default); a writer waits while the
+ * slowest reader is that far behind. A reader that has not read for
+ * consumerTimeout milliseconds (30000 by default) no longer holds writers
+ * back. Streams live until {@link #release(String)} is called for the URL.
+ *
+ * Output streams are never batched or partitioned with this transport, a
+ * write is already just a slot in the ring. Consumer groups and offset
+ * checkpoints talk to Redis directly and are not available.
+ *
+ * @author alexmy
+ */
+public class MemoryTransport implements Transport {
+
+    public static final String SCHEME = "mem";
+
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final long DEFAULT_CONSUMER_TIMEOUT = 30000L;
+    private static final String CAPACITY_PARAM = "capacity=";
+    private static final String CONSUMER_TIMEOUT_PARAM = "consumerTimeout=";
+
+    private static final ConcurrentMap<String, ConcurrentMap<String, MessageRing>> STREAMS = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, MessageRing> streams;
+    private final int capacity;
+    private final long consumerTimeout;
+
+    public MemoryTransport(String url) {
+        this.streams = STREAMS.computeIfAbsent(url, key -> new ConcurrentHashMap<>());
+        this.capacity = (int) paramOf(url, CAPACITY_PARAM, DEFAULT_CAPACITY);
+        this.consumerTimeout = paramOf(url, CONSUMER_TIMEOUT_PARAM, DEFAULT_CONSUMER_TIMEOUT);
+    }
+
+    /**
+     * @param url transport URL
+     * @return true if url selects the in-memory transport
+     */
+    public static boolean supports(String url) {
+        return url != null && url.startsWith(SCHEME + "://");
+    }
+
+    /**
+     * Drops all streams of the given URL, call it when the model is done.
+     *
+     * @param url transport URL
+     */
+    public static void release(String url) {
+        STREAMS.remove(url);
+    }
+
+    private static long paramOf(String url, String name, long defaultValue) {
+        String query = URI.create(url).getQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                if (param.startsWith(name)) {
+                    return Long.parseLong(param.substring(name.length()));
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+    private MessageRing ring(String className, UUID id) {
+        return ring(StreamGroupReader.streamKey(className, id.toString()));
+    }
+
+    private MessageRing ring(String streamKey) {
+        return streams.computeIfAbsent(streamKey, key -> new MessageRing(key, capacity, consumerTimeout));
+    }
+
+    /**
+     * Writer for any stream of this transport, e.g. the late entries of a
+     * processor.
+     *
+     * @param streamKey stream key
+     * @return StreamWriter
+     */
+    public StreamWriter writer(String streamKey) {
+        MessageRing ring = ring(streamKey);
+        return new StreamWriter() {
+            @Override
+            public void write(Map<String, ?> event) {
+                ring.publish(body(event));
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static Map<String, String> body(Map<String, ?> event) {
+        Map<String, String> body = new HashMap<>(event.size());
+        event.forEach((key, value) -> {
+            if (value != null) {
+                body.put(key, String.valueOf(value));
+            }
+        });
+        return body;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public PrintStream getStandardOut() {
+        return System.out;
+    }
+
+    @Override
+    public List<StreamMessage<String, String>> readEvents(String className, UUID id, String offset) {
+        return readEvents(className, id, offset, DEFAULT_PAGE_SIZE);
+    }
+
+    @Override
+    public List<StreamMessage<String, String>> readEvents(String className, UUID id, String offset, int pageSize) {
+        return ring(className, id).read(offset, pageSize);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public String writeEvents(Map event, String className, UUID id) {
+        return ring(className, id).publish(body((Map<String, ?>) event));
+    }
+}
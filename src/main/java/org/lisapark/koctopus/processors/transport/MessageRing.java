@@ -0,0 +1,232 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.StreamMessage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded, preallocated ring of stream entries with one producer and any
+ * number of consumers.
+ *
+ * The producer publishes by writing the slot and then advancing the cursor.
+ * Every consumer thread gets its own sequence (the last entry it has read)
+ * on its first read, and the producer never overwrites an entry the slowest
+ * consumer has not read yet: it waits until that consumer catches up. A
+ * consumer that has not read for the consumer timeout is considered gone and
+ * stops holding the producer back; if it reads again after its entries were
+ * overwritten the read fails instead of skipping them.
+ *
+ * Entry IDs follow the Redis format &lt;millis&gt;-&lt;sequence&gt;, so
+ * offsets can be passed around exactly like Redis stream IDs.
+ *
+ * @author alexmy
+ */
+final class MessageRing {
+
+    static final Logger LOG = Logger.getLogger(MessageRing.class.getName());
+
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final String streamKey;
+    private final StreamMessage<String, String>[] slots;
+    private final int mask;
+    private final long consumerTimeoutNanos;
+
+    /**
+     * Sequence of the last published entry, -1 if nothing was published.
+     */
+    private final AtomicLong cursor = new AtomicLong(-1L);
+
+    /**
+     * Sequence of the entry the producer is writing, ahead of the cursor
+     * while the slot is being written.
+     */
+    private volatile long claimed = -1L;
+
+    private final ConcurrentMap<Thread, Consumer> consumers = new ConcurrentHashMap<>();
+
+    /**
+     * Lowest consumer sequence seen by the producer, only recomputed when
+     * the producer reaches it.
+     */
+    private long gate = Long.MAX_VALUE;
+
+    /**
+     * Number of consumer registrations, a change makes the producer recompute
+     * its gate.
+     */
+    private final AtomicLong registrations = new AtomicLong();
+    private long gateRegistrations;
+
+    private static final class Consumer {
+
+        volatile long sequence;
+        volatile long lastReadAt;
+
+        Consumer(long sequence) {
+            this.sequence = sequence;
+            this.lastReadAt = System.nanoTime();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    MessageRing(String streamKey, int capacity, long consumerTimeoutMillis) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.streamKey = streamKey;
+        this.slots = new StreamMessage[size];
+        this.mask = size - 1;
+        this.consumerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(consumerTimeoutMillis);
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Publishes an entry, waits while the ring is full. Must be called from a
+     * single thread per ring, the processor owning the stream.
+     *
+     * @param body
+     * @return entry ID
+     */
+    String publish(Map<String, String> body) {
+        long sequence = cursor.get() + 1;
+        awaitSlot(sequence);
+        claimed = sequence;
+        String id = System.currentTimeMillis() + "-" + sequence;
+        slots[(int) (sequence & mask)] = new StreamMessage<>(streamKey, id, body);
+        cursor.lazySet(sequence);
+        return id;
+    }
+
+    /**
+     * Waits until the slot of the given sequence is read by every live
+     * consumer.
+     */
+    private void awaitSlot(long sequence) {
+        long wrap = sequence - slots.length;
+        long registered = registrations.get();
+        if (wrap <= gate && registered == gateRegistrations) {
+            return;
+        }
+        gateRegistrations = registered;
+        long parkNanos = 1;
+        while (wrap > (gate = slowestConsumer())) {
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos << 1, MAX_PARK_NANOS);
+        }
+    }
+
+    /**
+     * @return lowest sequence of the live consumers, Long.MAX_VALUE if there
+     * are none
+     */
+    private long slowestConsumer() {
+        long now = System.nanoTime();
+        long min = Long.MAX_VALUE;
+        for (Map.Entry<Thread, Consumer> entry : consumers.entrySet()) {
+            Consumer consumer = entry.getValue();
+            if (!entry.getKey().isAlive() || now - consumer.lastReadAt > consumerTimeoutNanos) {
+                if (consumers.remove(entry.getKey(), consumer)) {
+                    LOG.log(Level.WARNING, "Consumer {0} of {1} has not read for {2} ms and no longer holds the producer.",
+                            new Object[]{entry.getKey().getName(), streamKey,
+                                TimeUnit.NANOSECONDS.toMillis(now - consumer.lastReadAt)});
+                }
+                continue;
+            }
+            min = Math.min(min, consumer.sequence);
+        }
+        return min;
+    }
+
+    /**
+     * Reads up to count entries published after the given offset and moves
+     * the sequence of the calling consumer thread past them.
+     *
+     * @param offset ID of the last entry seen, "0" to start from the oldest
+     * retained one
+     * @param count max number of entries
+     * @return entries, empty list if there is nothing new
+     * @throws IllegalStateException if entries after offset were already
+     * overwritten
+     */
+    List<StreamMessage<String, String>> read(String offset, int count) {
+        long next = sequenceOf(offset) + 1;
+        Consumer consumer = consumers.get(Thread.currentThread());
+        if (consumer == null) {
+            // hold the producer before looking at the ring, so nothing
+            // between next and the cursor gets overwritten from now on
+            consumer = new Consumer(next - 1);
+            consumers.put(Thread.currentThread(), consumer);
+            registrations.incrementAndGet();
+        }
+        consumer.lastReadAt = System.nanoTime();
+        long oldest = claimed - slots.length + 1;
+        if (next < oldest) {
+            if (!OffsetCheckpoint.START_OFFSET.equals(offset)) {
+                throw overwritten(consumer, oldest - next);
+            }
+            next = oldest;
+        }
+        consumer.sequence = next - 1;
+
+        long last = cursor.get();
+        if (next > last) {
+            return Collections.emptyList();
+        }
+        long end = Math.min(last, next + count - 1);
+        List<StreamMessage<String, String>> list = new ArrayList<>((int) (end - next + 1));
+        for (long sequence = next; sequence <= end; sequence++) {
+            list.add(slots[(int) (sequence & mask)]);
+        }
+        // a start offset may have raced the producer past the oldest entries
+        long overwritten = claimed - slots.length + 1 - next;
+        if (overwritten > 0) {
+            if (!OffsetCheckpoint.START_OFFSET.equals(offset)) {
+                throw overwritten(consumer, overwritten);
+            }
+            list = list.subList((int) Math.min(overwritten, list.size()), list.size());
+        }
+        consumer.sequence = end;
+        return list;
+    }
+
+    private IllegalStateException overwritten(Consumer consumer, long count) {
+        consumers.remove(Thread.currentThread(), consumer);
+        return new IllegalStateException(String.format(
+                "Consumer of %s is %d entries behind, they were overwritten.", streamKey, count));
+    }
+
+    private static long sequenceOf(String offset) {
+        if (offset == null || OffsetCheckpoint.START_OFFSET.equals(offset)) {
+            return -1L;
+        }
+        int dash = offset.indexOf('-');
+        return Long.parseLong(dash < 0 ? offset : offset.substring(dash + 1));
+    }
+}
@@ -0,0 +1,243 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.RedisException;
+import io.lettuce.core.api.StatefulRedisConnection;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable offset of a processor input: the ID of the last stream entry the
+ * processor has processed.
+ *
+ * Offsets are kept in the Redis hash k-octopus:offsets:&lt;processor UUID&gt;,
+ * one field per input name. If Redis can not be reached the offset goes to a
+ * local properties file instead (directory is set by the
+ * koctopus.checkpoint.dir system property, java.io.tmpdir by default). The
+ * file is shared by all inputs and partitions of the processor, commits to it
+ * are serialized within the JVM.
+ *
+ * The offset is committed at most once per interval and on close, so a
+ * restarted processor re-reads at most one interval worth of entries.
+ *
+ * @author alexmy
+ */
+public class OffsetCheckpoint implements AutoCloseable {
+
+    static final Logger LOG = Logger.getLogger(OffsetCheckpoint.class.getName());
+
+    public static final String START_OFFSET = "0";
+
+    private static final String KEY_PREFIX = "k-octopus:offsets:";
+    private static final String DIR_PROPERTY = "koctopus.checkpoint.dir";
+
+    // one lock per offsets file, checkpoints of all partitions of a
+    // processor read-modify-write the same file
+    private static final ConcurrentMap<Path, Object> FILE_LOCKS = new ConcurrentHashMap<>();
+
+    private final String key;
+    private final String inputName;
+    private final long intervalMillis;
+    private final Path file;
+
+    private RedisConnections.Lease lease;
+    private StatefulRedisConnection<String, String> connection;
+
+    private String offset;
+    private String committedOffset;
+    private long lastCommitAt;
+
+    /**
+     *
+     * @param redisUrl Redis URL, e.g. redis://localhost
+     * @param processorId processor UUID
+     * @param inputName processor input name
+     * @param intervalMillis commit interval, 0 or less - checkpoints are
+     * turned off and the processor always starts from offset "0"
+     */
+    public OffsetCheckpoint(String redisUrl, String processorId, String inputName, long intervalMillis) {
+        this.key = KEY_PREFIX + processorId;
+        this.inputName = inputName;
+        this.intervalMillis = intervalMillis;
+        this.file = Paths.get(System.getProperty(DIR_PROPERTY, System.getProperty("java.io.tmpdir")),
+                "k-octopus-" + processorId + ".offsets").toAbsolutePath().normalize();
+        this.lastCommitAt = System.currentTimeMillis();
+
+        if (isEnabled()) {
+            try {
+                lease = RedisConnections.acquire(redisUrl);
+                connection = lease.shared();
+            } catch (RedisException ex) {
+                LOG.log(Level.WARNING, "Redis is not available, offsets go to {0}: {1}",
+                        new Object[]{file, ex.getMessage()});
+                if (lease != null) {
+                    lease.close();
+                    lease = null;
+                }
+                connection = null;
+            }
+        }
+    }
+
+    public final boolean isEnabled() {
+        return intervalMillis > 0;
+    }
+
+    /**
+     * Returns the offset to start reading from.
+     *
+     * @return last committed offset, or "0" if there is none
+     */
+    public String load() {
+        if (!isEnabled()) {
+            return START_OFFSET;
+        }
+        String stored = null;
+        if (connection != null) {
+            try {
+                stored = connection.sync().hget(key, inputName);
+            } catch (RedisException ex) {
+                LOG.log(Level.WARNING, "Can not read offset from Redis: {0}", ex.getMessage());
+            }
+        }
+        if (stored == null) {
+            stored = loadFromFile();
+        }
+        offset = stored == null ? START_OFFSET : stored;
+        committedOffset = offset;
+        return offset;
+    }
+
+    /**
+     * Records the offset of the last processed entry and commits it if the
+     * interval has passed.
+     *
+     * @param offset stream entry ID
+     */
+    public void update(String offset) {
+        update(offset, () -> {
+        });
+    }
+
+    /**
+     * Same as {@link #update(String)}, beforeCommit runs right before the
+     * offset is committed. Use it to flush buffered output, so the offset
+     * never gets ahead of the written results.
+     *
+     * @param offset stream entry ID
+     * @param beforeCommit
+     */
+    public void update(String offset, Runnable beforeCommit) {
+        this.offset = offset;
+        if (isEnabled() && System.currentTimeMillis() - lastCommitAt >= intervalMillis) {
+            beforeCommit.run();
+            commit();
+        }
+    }
+
+    /**
+     * Stores the last recorded offset.
+     */
+    public void commit() {
+        lastCommitAt = System.currentTimeMillis();
+        if (!isEnabled() || offset == null || offset.equals(committedOffset)) {
+            return;
+        }
+        boolean stored = false;
+        if (connection != null) {
+            try {
+                connection.sync().hset(key, inputName, offset);
+                stored = true;
+            } catch (RedisException ex) {
+                LOG.log(Level.WARNING, "Can not write offset to Redis: {0}", ex.getMessage());
+            }
+        }
+        if (!stored) {
+            storeToFile();
+        }
+        committedOffset = offset;
+    }
+
+    private String loadFromFile() {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        Properties properties = new Properties();
+        synchronized (fileLock()) {
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Can not read offsets from {0}: {1}", new Object[]{file, ex.getMessage()});
+            }
+        }
+        return properties.getProperty(inputName);
+    }
+
+    private Object fileLock() {
+        return FILE_LOCKS.computeIfAbsent(file, path -> new Object());
+    }
+
+    private void storeToFile() {
+        synchronized (fileLock()) {
+            storeToFileLocked();
+        }
+    }
+
+    private void storeToFileLocked() {
+        Properties properties = new Properties();
+        try {
+            if (Files.exists(file)) {
+                try (InputStream in = Files.newInputStream(file)) {
+                    properties.load(in);
+                }
+            }
+            properties.setProperty(inputName, offset);
+            // write aside and move, so a crash never leaves a half written file
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                properties.store(out, key);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, "Can not write offsets to {0}: {1}", new Object[]{file, ex.getMessage()});
+        }
+    }
+
+    /**
+     * Commits the last recorded offset and releases the connection.
+     */
+    @Override
+    public void close() {
+        commit();
+        if (lease != null) {
+            lease.close();
+            lease = null;
+            connection = null;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import java.util.Map;
+
+/**
+ * {@link StreamWriter} that routes each event to a partition of the output
+ * stream by the hash of its key attribute. Every partition has its own
+ * {@link BufferedStreamWriter}.
+ *
+ * @author alexmy
+ */
+public class PartitionedStreamWriter implements StreamWriter {
+
+    private final String keyAttribute;
+    private final StreamWriter[] writers;
+
+    /**
+     *
+     * @param redisUrl Redis URL, e.g. redis://localhost
+     * @param streamKey key of the whole output stream
+     * @param partitions number of partitions
+     * @param keyAttribute attribute whose value selects the partition
+     * @param batchSize max number of events per batch and partition
+     * @param lingerMillis max time an event waits in the buffer
+     * @param maxLength approximate MAXLEN for each partition, 0 - no trimming
+     */
+    public PartitionedStreamWriter(String redisUrl, String streamKey, int partitions, String keyAttribute,
+            int batchSize, long lingerMillis, long maxLength) {
+        this.keyAttribute = keyAttribute;
+        this.writers = new StreamWriter[partitions];
+        for (int i = 0; i < partitions; i++) {
+            writers[i] = new BufferedStreamWriter(redisUrl, StreamPartitions.partitionKey(streamKey, i),
+                    Math.max(1, batchSize), lingerMillis, maxLength);
+        }
+    }
+
+    @Override
+    public void write(Map<String, ?> event) {
+        write(event.get(keyAttribute), event);
+    }
+
+    @Override
+    public void write(Object partitionKey, Map<String, ?> event) {
+        writers[StreamPartitions.partition(partitionKey, writers.length)].write(event);
+    }
+
+    @Override
+    public void flush() {
+        for (StreamWriter writer : writers) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        RuntimeException failure = null;
+        for (StreamWriter writer : writers) {
+            try {
+                writer.close();
+            } catch (RuntimeException ex) {
+                // close the other partitions anyway
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
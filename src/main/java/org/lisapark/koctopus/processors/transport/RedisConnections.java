@@ -0,0 +1,373 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.support.ConnectionPoolSupport;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+/**
+ * Process-wide Redis clients and connections, one set per Redis URL, shared
+ * by all processors of all models.
+ *
+ * A processor acquires a {@link Lease} for its Redis URL and closes it when it
+ * stops. A lease gives access to a shared connection for ordinary commands
+ * (Lettuce connections are thread safe and pipeline commands of all callers)
+ * and to a pool of exclusive connections for blocking reads and manual
+ * flushing. Clients are reference counted: without {@link #keepAlive()} a
+ * client is shut down when its last lease is closed; the compute service
+ * calls keepAlive() so clients stay warm between runs and closes them with
+ * {@link #shutdown()}.
+ *
+ * Readers and writers hold a pooled connection for their whole life, so the
+ * pool grows by one connection for every connection borrowed and shrinks
+ * when it is released. Up to koctopus.redis.pool.size (default 16) released
+ * connections are kept idle for reuse. koctopus.redis.pool.max (default 256)
+ * caps the number of connections per Redis URL; a borrow beyond the cap waits
+ * koctopus.redis.pool.wait ms (default 10000) for a release and then fails
+ * with a RedisException. The health check interval is set with
+ * koctopus.redis.health.interval (ms, default 30000).
+ *
+ * @author alexmy
+ */
+public final class RedisConnections {
+
+    static final Logger LOG = Logger.getLogger(RedisConnections.class.getName());
+
+    public static final String POOL_SIZE_PROPERTY = "koctopus.redis.pool.size";
+    public static final String POOL_MAX_PROPERTY = "koctopus.redis.pool.max";
+    public static final String POOL_WAIT_PROPERTY = "koctopus.redis.pool.wait";
+    public static final String HEALTH_INTERVAL_PROPERTY = "koctopus.redis.health.interval";
+
+    private static final Map<String, Entry> ENTRIES = new HashMap<>();
+    private static ScheduledExecutorService healthCheck;
+    private static boolean keepAlive;
+
+    private RedisConnections() {
+    }
+
+    /**
+     * Acquires a lease on the client for a Redis URL, creating the client on
+     * first use.
+     *
+     * @param redisUrl Redis URL, e.g. redis://localhost
+     * @return lease, has to be closed
+     */
+    public static synchronized Lease acquire(String redisUrl) {
+        Entry entry = ENTRIES.get(redisUrl);
+        if (entry == null) {
+            entry = new Entry(redisUrl);
+            ENTRIES.put(redisUrl, entry);
+            startHealthCheck();
+        }
+        entry.references++;
+        entry.leases.incrementAndGet();
+        return new Lease(entry);
+    }
+
+    /**
+     * Keeps clients open when no processor uses them.
+     */
+    public static synchronized void keepAlive() {
+        keepAlive = true;
+    }
+
+    /**
+     * Closes all clients and connections.
+     */
+    public static synchronized void shutdown() {
+        ENTRIES.values().forEach(Entry::close);
+        ENTRIES.clear();
+        if (healthCheck != null) {
+            healthCheck.shutdownNow();
+            healthCheck = null;
+        }
+    }
+
+    /**
+     *
+     * @return per Redis URL counters
+     */
+    public static synchronized Map<String, Map<String, Long>> metrics() {
+        Map<String, Map<String, Long>> metrics = new LinkedHashMap<>();
+        ENTRIES.forEach((url, entry) -> metrics.put(url, entry.metrics()));
+        return metrics;
+    }
+
+    private static synchronized void release(Entry entry) {
+        entry.references--;
+        if (entry.references <= 0 && !keepAlive) {
+            ENTRIES.remove(entry.redisUrl);
+            entry.close();
+        }
+    }
+
+    private static void startHealthCheck() {
+        if (healthCheck != null) {
+            return;
+        }
+        long interval = Long.getLong(HEALTH_INTERVAL_PROPERTY, 30000L);
+        healthCheck = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "redis-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthCheck.scheduleWithFixedDelay(RedisConnections::checkAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private static void checkAll() {
+        Entry[] entries;
+        synchronized (RedisConnections.class) {
+            entries = ENTRIES.values().toArray(new Entry[ENTRIES.size()]);
+        }
+        for (Entry entry : entries) {
+            entry.check();
+        }
+    }
+
+    /**
+     * Client, shared connection and pool for one Redis URL.
+     */
+    private static class Entry {
+
+        private final String redisUrl;
+        private final RedisClient client;
+        private final GenericObjectPool<StatefulRedisConnection<String, String>> pool;
+        private final int maxConnections;
+        private final long maxWait;
+        private StatefulRedisConnection<String, String> shared;
+        private int references;
+        private int reserved;
+
+        private final AtomicLong leases = new AtomicLong();
+        private final AtomicLong borrowed = new AtomicLong();
+        private final AtomicLong healthFailures = new AtomicLong();
+
+        Entry(String redisUrl) {
+            this.redisUrl = redisUrl;
+            this.client = RedisClient.create(redisUrl);
+
+            this.maxConnections = Math.max(1, Integer.getInteger(POOL_MAX_PROPERTY, 256));
+            this.maxWait = Long.getLong(POOL_WAIT_PROPERTY, 10000L);
+
+            long interval = Long.getLong(HEALTH_INTERVAL_PROPERTY, 30000L);
+            GenericObjectPoolConfig<StatefulRedisConnection<String, String>> config = new GenericObjectPoolConfig<>();
+            config.setMaxTotal(1);
+            config.setMaxIdle(Integer.getInteger(POOL_SIZE_PROPERTY, 16));
+            config.setMaxWaitMillis(maxWait);
+            config.setTestOnBorrow(true);
+            config.setTestWhileIdle(true);
+            config.setTimeBetweenEvictionRunsMillis(interval);
+            // not wrapped: connections go back with returnObject(), so that
+            // invalidateObject() gets the pooled instance itself
+            this.pool = ConnectionPoolSupport.createGenericObjectPool(client::connect, config, false);
+        }
+
+        synchronized StatefulRedisConnection<String, String> shared() {
+            if (shared == null || !shared.isOpen()) {
+                shared = client.connect();
+            }
+            return shared;
+        }
+
+        StatefulRedisConnection<String, String> borrow() {
+            reserve(1);
+            try {
+                StatefulRedisConnection<String, String> connection = pool.borrowObject();
+                borrowed.incrementAndGet();
+                return connection;
+            } catch (NoSuchElementException ex) {
+                reserve(-1);
+                throw new RedisException(String.format("No connection to %s within %d ms: all %d connections"
+                        + " are held by readers and writers. Raise %s or run fewer streaming processors.",
+                        redisUrl, maxWait, maxConnections, POOL_MAX_PROPERTY), ex);
+            } catch (RedisException ex) {
+                reserve(-1);
+                throw ex;
+            } catch (Exception ex) {
+                reserve(-1);
+                throw new RedisException("Cannot borrow a connection to " + redisUrl, ex);
+            }
+        }
+
+        void giveBack(StatefulRedisConnection<String, String> connection) {
+            try {
+                pool.returnObject(connection);
+            } catch (RuntimeException ex) {
+                LOG.log(Level.WARNING, "Returning connection to {0}: {1}", new Object[]{redisUrl, ex.getMessage()});
+            } finally {
+                reserve(-1);
+            }
+        }
+
+        void invalidate(StatefulRedisConnection<String, String> connection) {
+            try {
+                pool.invalidateObject(connection);
+            } catch (Exception ex) {
+                LOG.log(Level.WARNING, "Invalidating connection to {0}: {1}", new Object[]{redisUrl, ex.getMessage()});
+                connection.close();
+            } finally {
+                reserve(-1);
+            }
+        }
+
+        /**
+         * Sizes the pool to the connections held by readers and writers.
+         */
+        private synchronized void reserve(int delta) {
+            reserved += delta;
+            pool.setMaxTotal(Math.max(1, Math.min(maxConnections, reserved)));
+        }
+
+        void check() {
+            StatefulRedisConnection<String, String> connection;
+            synchronized (this) {
+                connection = shared;
+            }
+            if (connection == null) {
+                return;
+            }
+            try {
+                connection.sync().ping();
+            } catch (RedisException ex) {
+                healthFailures.incrementAndGet();
+                LOG.log(Level.WARNING, "Health check of {0} failed: {1}", new Object[]{redisUrl, ex.getMessage()});
+            }
+        }
+
+        synchronized Map<String, Long> metrics() {
+            Map<String, Long> metrics = new LinkedHashMap<>();
+            metrics.put("references", (long) references);
+            metrics.put("leases", leases.get());
+            metrics.put("borrowed", borrowed.get());
+            metrics.put("reserved", (long) reserved);
+            metrics.put("active", (long) pool.getNumActive());
+            metrics.put("idle", (long) pool.getNumIdle());
+            metrics.put("created", pool.getCreatedCount());
+            metrics.put("destroyed", pool.getDestroyedCount());
+            metrics.put("healthFailures", healthFailures.get());
+            return metrics;
+        }
+
+        synchronized void close() {
+            pool.close();
+            if (shared != null) {
+                shared.close();
+                shared = null;
+            }
+            client.shutdown();
+        }
+    }
+
+    /**
+     * A processor's hold on the client for a Redis URL.
+     */
+    public static final class Lease implements AutoCloseable {
+
+        private final Entry entry;
+        private final Set<StatefulRedisConnection<String, String>> held = new HashSet<>();
+        private boolean closed;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public RedisClient client() {
+            return entry.client;
+        }
+
+        /**
+         * Connection shared by all leases of the URL. Must not be closed, nor
+         * used for blocking commands or with auto-flush turned off.
+         *
+         * @return shared connection
+         */
+        public StatefulRedisConnection<String, String> shared() {
+            return entry.shared();
+        }
+
+        /**
+         * Exclusive connection from the pool. Must not be closed; it goes back
+         * with {@link #release} or when the lease is closed.
+         *
+         * @return pooled connection
+         * @throws RedisException if no connection is free within
+         * koctopus.redis.pool.wait ms
+         */
+        public StatefulRedisConnection<String, String> borrow() {
+            StatefulRedisConnection<String, String> connection = entry.borrow();
+            synchronized (this) {
+                held.add(connection);
+            }
+            return connection;
+        }
+
+        /**
+         * Returns a borrowed connection to the pool.
+         *
+         * @param connection borrowed connection
+         */
+        public void release(StatefulRedisConnection<String, String> connection) {
+            synchronized (this) {
+                if (!held.remove(connection)) {
+                    return;
+                }
+            }
+            entry.giveBack(connection);
+        }
+
+        /**
+         * Drops a pooled connection left in an unknown state, e.g. by an
+         * interrupted blocking command, instead of returning it.
+         *
+         * @param connection borrowed connection
+         */
+        public void invalidate(StatefulRedisConnection<String, String> connection) {
+            synchronized (this) {
+                if (!held.remove(connection)) {
+                    return;
+                }
+            }
+            entry.invalidate(connection);
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                held.forEach(entry::giveBack);
+                held.clear();
+                RedisConnections.release(entry);
+            }
+        }
+    }
+}
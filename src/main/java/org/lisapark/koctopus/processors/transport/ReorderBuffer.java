@@ -0,0 +1,328 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.StreamMessage;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import org.lisapark.koctopus.processors.memory.Snapshottable;
+
+/**
+ * Bounded lateness reorder buffer that puts stream entries back into event
+ * time order in front of a windowed processor, so time windows are right
+ * without pre-sorting the input.
+ *
+ * Entries wait in a min-heap keyed by event time until the watermark passes
+ * them. The watermark is the newest event time seen minus the allowed
+ * lateness, or the watermark stamped by the source
+ * ({@link WatermarkGenerator}) if that one is further; it never goes back.
+ * An entry older than the watermark is late: it is handed to the caller
+ * apart, e.g. for a side output, instead of breaking the order. If more than
+ * maxBuffered entries wait, the oldest ones are released early. On a live
+ * stream that goes quiet, an empty page offered idleTimeout ms after the last
+ * entry moves the watermark up to the newest event time, so the waiting
+ * entries do not wait for the next entry.
+ *
+ * Released entries leave in event time order, entries with the same time in
+ * arrival order.
+ *
+ * @author alexmy
+ */
+public class ReorderBuffer implements Snapshottable {
+
+    private final EntryCodec codec;
+    private final String timeAttribute;
+    private final long allowedLateness;
+    private final int maxBuffered;
+    private final long idleTimeout;
+
+    private final PriorityQueue<Item> heap = new PriorityQueue<>();
+    // arrival number of every waiting entry -> ID of the entry before it
+    private final TreeMap<Long, String> waiting = new TreeMap<>();
+    private long arrivals;
+    private String lastId;
+    private long maxTime = WatermarkGenerator.NONE;
+    private long watermark = WatermarkGenerator.NONE;
+    private long lateCount;
+    private long lastArrival;
+
+    /**
+     *
+     * @param codec decodes the time attribute
+     * @param timeAttribute attribute with the event time, null or empty -
+     * stream entry ID time
+     * @param allowedLateness milliseconds an entry may wait for older ones
+     * @param maxBuffered max number of waiting entries
+     * @param offset ID of the entry read before the first offered one
+     */
+    public ReorderBuffer(EntryCodec codec, String timeAttribute, long allowedLateness, int maxBuffered, String offset) {
+        this(codec, timeAttribute, allowedLateness, maxBuffered, offset, 0);
+    }
+
+    /**
+     *
+     * @param codec decodes the time attribute
+     * @param timeAttribute attribute with the event time, null or empty -
+     * stream entry ID time
+     * @param allowedLateness milliseconds an entry may wait for older ones
+     * @param maxBuffered max number of waiting entries
+     * @param offset ID of the entry read before the first offered one
+     * @param idleTimeout wall clock milliseconds without new entries after
+     * which all waiting entries are released, 0 - never
+     */
+    public ReorderBuffer(EntryCodec codec, String timeAttribute, long allowedLateness, int maxBuffered, String offset,
+            long idleTimeout) {
+        this.codec = codec;
+        this.timeAttribute = timeAttribute;
+        this.allowedLateness = Math.max(0, allowedLateness);
+        this.maxBuffered = Math.max(1, maxBuffered);
+        this.lastId = offset;
+        this.idleTimeout = Math.max(0, idleTimeout);
+    }
+
+    /**
+     *
+     * @param streamKey key of the processor output stream
+     * @return key of the side stream late entries are written to
+     */
+    public static String lateKey(String streamKey) {
+        return streamKey + ":late";
+    }
+
+    /**
+     * Takes a page of entries in stream order. Entries passed to ready or
+     * late are done with and can be acknowledged; the other ones are still
+     * waiting.
+     *
+     * @param page entries read from the stream, may be empty
+     * @param ready receives the released entries in event time order
+     * @param late receives the late entries in stream order
+     */
+    public void offer(List<StreamMessage<String, String>> page, List<StreamMessage<String, String>> ready,
+            List<StreamMessage<String, String>> late) {
+        offer(page, ready, late, System.currentTimeMillis());
+    }
+
+    /**
+     * Same as {@link #offer(List, List, List)} at the given wall clock time.
+     *
+     * @param page entries read from the stream, may be empty
+     * @param ready receives the released entries in event time order
+     * @param late receives the late entries in stream order
+     * @param now wall clock time, ms
+     */
+    public void offer(List<StreamMessage<String, String>> page, List<StreamMessage<String, String>> ready,
+            List<StreamMessage<String, String>> late, long now) {
+        if (!page.isEmpty() || heap.isEmpty()) {
+            lastArrival = now;
+        } else if (idleTimeout > 0 && now - lastArrival >= idleTimeout) {
+            // the input went quiet, nothing older is expected any more
+            advance(maxTime);
+        }
+        for (StreamMessage<String, String> msg : page) {
+            String previous = lastId;
+            lastId = msg.getId();
+            long time = eventTime(msg);
+            advance(WatermarkGenerator.watermark(msg.getBody()));
+            if (watermark != WatermarkGenerator.NONE && time < watermark) {
+                lateCount++;
+                late.add(msg);
+                continue;
+            }
+            if (time > maxTime) {
+                maxTime = time;
+                advance(maxTime - allowedLateness);
+            }
+            long arrival = arrivals++;
+            heap.add(new Item(time, arrival, msg));
+            waiting.put(arrival, previous);
+        }
+        while (!heap.isEmpty() && (heap.peek().time <= watermark || heap.size() > maxBuffered)) {
+            Item item = release();
+            advance(item.time);
+            ready.add(item.msg);
+        }
+    }
+
+    /**
+     * Releases all waiting entries, at the end of the input.
+     *
+     * @param ready receives the entries in event time order
+     */
+    public void drain(List<StreamMessage<String, String>> ready) {
+        while (!heap.isEmpty()) {
+            Item item = release();
+            advance(item.time);
+            ready.add(item.msg);
+        }
+    }
+
+    private Item release() {
+        Item item = heap.poll();
+        waiting.remove(item.arrival);
+        return item;
+    }
+
+    private void advance(long time) {
+        if (time > watermark) {
+            watermark = time;
+        }
+    }
+
+    private long eventTime(StreamMessage<String, String> msg) {
+        if (timeAttribute != null && !timeAttribute.isEmpty()) {
+            long time = WatermarkGenerator.toMillis(codec.getString(msg.getBody(), timeAttribute));
+            if (time != WatermarkGenerator.NONE) {
+                return time;
+            }
+        }
+        return StreamJoin.timestamp(msg.getId());
+    }
+
+    public long getWatermark() {
+        return watermark;
+    }
+
+    public int size() {
+        return heap.size();
+    }
+
+    /**
+     *
+     * @return number of late entries so far
+     */
+    public long getLateCount() {
+        return lateCount;
+    }
+
+    /**
+     * Offset a reader can restart from without losing waiting entries: the
+     * ID before the oldest waiting one, or of the last offered entry if none
+     * waits. Entries released after it are read again.
+     *
+     * @return stream entry ID
+     */
+    public String getSafeOffset() {
+        return waiting.isEmpty() ? lastId : waiting.firstEntry().getValue();
+    }
+
+    /**
+     * Writes the watermark and the waiting entries, so the restored buffer
+     * continues after the last offered entry.
+     */
+    @Override
+    public void writeState(DataOutput out) throws IOException {
+        out.writeLong(maxTime);
+        out.writeLong(watermark);
+        out.writeLong(lateCount);
+        writeString(out, lastId);
+        // in arrival order, so the restored entries keep it
+        List<Item> items = new ArrayList<>(heap);
+        items.sort((a, b) -> Long.compare(a.arrival, b.arrival));
+        out.writeInt(items.size());
+        for (Item item : items) {
+            out.writeLong(item.time);
+            writeString(out, waiting.get(item.arrival));
+            writeString(out, item.msg.getStream());
+            writeString(out, item.msg.getId());
+            Map<String, String> body = item.msg.getBody();
+            out.writeInt(body.size());
+            for (Map.Entry<String, String> field : body.entrySet()) {
+                writeString(out, field.getKey());
+                writeString(out, field.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void readState(DataInput in) throws IOException {
+        heap.clear();
+        waiting.clear();
+        maxTime = in.readLong();
+        watermark = in.readLong();
+        lateCount = in.readLong();
+        lastId = readString(in);
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Wrong number of entries: " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            long time = in.readLong();
+            String previous = readString(in);
+            String stream = readString(in);
+            String id = readString(in);
+            int fields = in.readInt();
+            Map<String, String> body = new HashMap<>();
+            for (int j = 0; j < fields; j++) {
+                body.put(readString(in), readString(in));
+            }
+            long arrival = arrivals++;
+            heap.add(new Item(time, arrival, new StreamMessage<>(stream, id, body)));
+            waiting.put(arrival, previous);
+        }
+    }
+
+    /**
+     * Strings of any length and null, writeUTF takes up to 64K.
+     */
+    private static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Item implements Comparable<Item> {
+
+        final long time;
+        final long arrival;
+        final StreamMessage<String, String> msg;
+
+        Item(long time, long arrival, StreamMessage<String, String> msg) {
+            this.time = time;
+            this.arrival = arrival;
+            this.msg = msg;
+        }
+
+        @Override
+        public int compareTo(Item other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(arrival, other.arrival);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.RedisException;
+import io.lettuce.core.api.StatefulRedisConnection;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.processors.memory.Snapshottable;
+
+/**
+ * Durable snapshot of the windowed state of a processor together with the
+ * offset of the last stream entry that went into it. A restarted processor
+ * reads the state back and continues after that offset, so its windows are
+ * warm at once instead of after re-reading a window worth of history. The
+ * state and its offset are written as one value, so they never disagree.
+ *
+ * Snapshots are kept in the Redis hash k-octopus:snapshots:&lt;processor
+ * UUID&gt;, one field per name, or in a local file if Redis can not be
+ * reached (directory is set by the koctopus.checkpoint.dir system property,
+ * java.io.tmpdir by default), like {@link OffsetCheckpoint}.
+ *
+ * Every snapshot carries a signature of the processor settings that shape
+ * the state, e.g. window lengths; a snapshot with another signature is
+ * ignored and the processor starts cold from the beginning of its input.
+ *
+ * @author alexmy
+ */
+public class StateSnapshot implements AutoCloseable {
+
+    static final Logger LOG = Logger.getLogger(StateSnapshot.class.getName());
+
+    private static final String KEY_PREFIX = "k-octopus:snapshots:";
+    private static final String DIR_PROPERTY = "koctopus.checkpoint.dir";
+    private static final int MAGIC = 0x6B6F5353;
+    private static final int VERSION = 1;
+
+    private final String key;
+    private final String name;
+    private final String signature;
+    private final long intervalMillis;
+    private final Path file;
+
+    private RedisConnections.Lease lease;
+    private StatefulRedisConnection<String, String> connection;
+
+    private long lastCommitAt;
+    private String restoredOffset;
+
+    /**
+     *
+     * @param redisUrl Redis URL, e.g. redis://localhost
+     * @param processorId processor UUID
+     * @param name snapshot name, e.g. the input or partition name
+     * @param signature settings the state depends on
+     * @param intervalMillis snapshot interval, 0 or less - snapshots are
+     * turned off
+     */
+    public StateSnapshot(String redisUrl, String processorId, String name, String signature, long intervalMillis) {
+        this.key = KEY_PREFIX + processorId;
+        this.name = name;
+        this.signature = signature;
+        this.intervalMillis = intervalMillis;
+        this.file = Paths.get(System.getProperty(DIR_PROPERTY, System.getProperty("java.io.tmpdir")),
+                "k-octopus-" + processorId + "-" + name.replaceAll("[^A-Za-z0-9_.-]", "_") + ".snapshot");
+        this.lastCommitAt = System.currentTimeMillis();
+
+        if (isEnabled()) {
+            try {
+                lease = RedisConnections.acquire(redisUrl);
+                connection = lease.shared();
+            } catch (RedisException ex) {
+                LOG.log(Level.WARNING, "Redis is not available, snapshots go to {0}: {1}",
+                        new Object[]{file, ex.getMessage()});
+                if (lease != null) {
+                    lease.close();
+                    lease = null;
+                }
+                connection = null;
+            }
+        }
+    }
+
+    public final boolean isEnabled() {
+        return intervalMillis > 0;
+    }
+
+    /**
+     * Creates the state and reads the last snapshot into it.
+     *
+     * @param <S> state type
+     * @param factory creates a state configured the same way as the one
+     * that was written
+     * @return restored state, or a new one if there is no usable snapshot
+     */
+    public <S extends Snapshottable> S restore(Supplier<S> factory) {
+        restoredOffset = null;
+        if (!isEnabled()) {
+            return factory.get();
+        }
+        byte[] bytes = load();
+        if (bytes == null) {
+            return factory.get();
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                LOG.log(Level.WARNING, "Unknown snapshot format of {0}, starting cold.", name);
+                return factory.get();
+            }
+            if (!signature.equals(in.readUTF())) {
+                LOG.log(Level.INFO, "Settings of {0} have changed since the snapshot, starting cold.", name);
+                return factory.get();
+            }
+            String offset = in.readUTF();
+            S state = factory.get();
+            state.readState(in);
+            restoredOffset = offset;
+            return state;
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Can not read snapshot of {0}, starting cold: {1}",
+                    new Object[]{name, ex.getMessage()});
+            return factory.get();
+        }
+    }
+
+    /**
+     *
+     * @return offset of the state returned by {@link #restore}, null if it
+     * was started cold
+     */
+    public String getRestoredOffset() {
+        return restoredOffset;
+    }
+
+    /**
+     * Writes a snapshot if the interval has passed.
+     *
+     * @param offset ID of the last stream entry in the state
+     * @param state
+     * @param beforeCommit runs right before the snapshot is written, use it
+     * to flush buffered output, so the snapshot never gets ahead of the
+     * written results
+     */
+    public void update(String offset, Snapshottable state, Runnable beforeCommit) {
+        if (isEnabled() && System.currentTimeMillis() - lastCommitAt >= intervalMillis) {
+            beforeCommit.run();
+            commit(offset, state);
+        }
+    }
+
+    /**
+     * Writes a snapshot.
+     *
+     * @param offset ID of the last stream entry in the state
+     * @param state
+     */
+    public void commit(String offset, Snapshottable state) {
+        lastCommitAt = System.currentTimeMillis();
+        if (!isEnabled() || offset == null) {
+            return;
+        }
+        byte[] bytes;
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(signature);
+            out.writeUTF(offset);
+            state.writeState(out);
+            out.flush();
+            bytes = buffer.toByteArray();
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, "Can not write snapshot of {0}: {1}", new Object[]{name, ex.getMessage()});
+            return;
+        }
+        if (connection != null) {
+            try {
+                connection.sync().hset(key, name, Base64.getEncoder().encodeToString(bytes));
+                return;
+            } catch (RedisException ex) {
+                LOG.log(Level.WARNING, "Can not write snapshot to Redis: {0}", ex.getMessage());
+            }
+        }
+        storeToFile(bytes);
+    }
+
+    private byte[] load() {
+        if (connection != null) {
+            try {
+                String stored = connection.sync().hget(key, name);
+                if (stored != null) {
+                    return Base64.getDecoder().decode(stored);
+                }
+            } catch (RedisException | IllegalArgumentException ex) {
+                LOG.log(Level.WARNING, "Can not read snapshot from Redis: {0}", ex.getMessage());
+            }
+        }
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(file);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Can not read snapshot from {0}: {1}", new Object[]{file, ex.getMessage()});
+            return null;
+        }
+    }
+
+    private void storeToFile(byte[] bytes) {
+        try {
+            // write aside and move, so a crash never leaves a half written file
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                out.write(bytes);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, "Can not write snapshot to {0}: {1}", new Object[]{file, ex.getMessage()});
+        }
+    }
+
+    /**
+     * Releases the connection. Does not write a snapshot, call
+     * {@link #commit} with the final offset first.
+     */
+    @Override
+    public void close() {
+        if (lease != null) {
+            lease.close();
+            lease = null;
+            connection = null;
+        }
+    }
+}
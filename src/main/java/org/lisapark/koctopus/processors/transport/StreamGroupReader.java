@@ -0,0 +1,429 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.Consumer;
+import io.lettuce.core.Limit;
+import io.lettuce.core.Range;
+import io.lettuce.core.RedisBusyException;
+import io.lettuce.core.RedisCommandInterruptedException;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XClaimArgs;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.XReadArgs.StreamOffset;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.models.stream.PendingParser;
+import io.lettuce.core.output.ArrayOutput;
+import io.lettuce.core.output.StatusOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.CommandType;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+
+/**
+ * Reads a Redis stream as a member of a consumer group (XREADGROUP) instead of
+ * paging through it from offset "0".
+ *
+ * Each compiled processor reads with its own group, so every processor still
+ * sees the whole stream, while several replicas of the same processor share
+ * the group and split the entries between them. Entries are acknowledged
+ * (XACK) only after the handler has processed them, so entries of a crashed
+ * consumer stay pending. A replica that restarts under the same consumer name
+ * (see {@link #REPLICA_ID_PROPERTY}) gets them re-delivered; in addition, on
+ * start and every claimIdle ms, a reader takes over (XCLAIM) entries that are
+ * pending for other consumers longer than claimIdle ms, so that entries of a
+ * replica that came back under a new name, e.g. a Deployment pod, or never
+ * came back are not stuck. Consumers idle that long without pending entries
+ * are removed from the group (XGROUP DELCONSUMER).
+ *
+ * @author alexmy
+ */
+public class StreamGroupReader {
+
+    static final Logger LOG = Logger.getLogger(StreamGroupReader.class.getName());
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * System property (or KOCTOPUS_REPLICA_ID environment variable) with the
+     * consumer name of this replica, e.g. a StatefulSet pod name. HOSTNAME is
+     * used when it is not set, pid@host outside k8s.
+     */
+    public static final String REPLICA_ID_PROPERTY = "koctopus.replica.id";
+
+    /**
+     * System property with the default claimIdle, ms.
+     */
+    public static final String CLAIM_IDLE_PROPERTY = "koctopus.stream.claim.idle";
+
+    /**
+     * Special ID that asks for entries never delivered to any consumer of the
+     * group.
+     */
+    private static final String NEW_ENTRIES = ">";
+
+    private final RedisConnections.Lease lease;
+    private final StatefulRedisConnection<String, String> connection;
+    private final RedisCommands<String, String> commands;
+
+    private final String streamKey;
+    private final String groupName;
+    private final Consumer<String> consumer;
+    private final long blockTimeout;
+    private final long claimIdle;
+    private long lastClaim;
+
+    /**
+     * Starts with "0" to re-read entries delivered to this consumer but never
+     * acknowledged, switches to ">" as soon as they are drained.
+     */
+    private String offset = "0";
+
+    private boolean interrupted;
+
+    /**
+     *
+     * @param redisUrl Redis URL, e.g. redis://localhost
+     * @param streamKey key of the stream to read
+     * @param groupName consumer group, one per processor
+     * @param blockTimeout how long XREADGROUP blocks waiting for new entries
+     * (ms)
+     */
+    public StreamGroupReader(String redisUrl, String streamKey, String groupName, long blockTimeout) {
+        this(redisUrl, streamKey, groupName, blockTimeout, Long.getLong(CLAIM_IDLE_PROPERTY, 300000L));
+    }
+
+    /**
+     *
+     * @param redisUrl Redis URL, e.g. redis://localhost
+     * @param streamKey key of the stream to read
+     * @param groupName consumer group, one per processor
+     * @param blockTimeout how long XREADGROUP blocks waiting for new entries
+     * (ms)
+     * @param claimIdle how long an entry has to be pending for another
+     * consumer before this one takes it over (ms), 0 - never; has to be well
+     * above the time a live consumer needs to process and ack a page
+     */
+    public StreamGroupReader(String redisUrl, String streamKey, String groupName, long blockTimeout,
+            long claimIdle) {
+        // blocking XREADGROUP needs a connection of its own
+        this.lease = RedisConnections.acquire(redisUrl);
+        this.connection = lease.borrow();
+        this.commands = connection.sync();
+        this.streamKey = streamKey;
+        this.groupName = groupName;
+        this.consumer = Consumer.from(groupName, consumerName());
+        this.blockTimeout = blockTimeout;
+        this.claimIdle = claimIdle;
+
+        createGroup();
+        claimIdleEntries();
+    }
+
+    /**
+     * Builds the stream key the same way Transport does:
+     * &lt;canonical class name&gt;:&lt;UUID&gt;.
+     *
+     * @param className
+     * @param id
+     * @return stream key
+     */
+    public static String streamKey(String className, String id) {
+        return className + ":" + id;
+    }
+
+    /**
+     * Consumer name has to be unique across replicas and should survive a
+     * restart of the replica, see {@link #REPLICA_ID_PROPERTY}.
+     *
+     * @return consumer name
+     */
+    static String consumerName() {
+        String name = System.getProperty(REPLICA_ID_PROPERTY);
+        if (name == null || name.isEmpty()) {
+            name = System.getenv("KOCTOPUS_REPLICA_ID");
+        }
+        if (name == null || name.isEmpty()) {
+            name = System.getenv("HOSTNAME");
+        }
+        if (name == null || name.isEmpty()) {
+            name = ManagementFactory.getRuntimeMXBean().getName();
+        }
+        return name;
+    }
+
+    /**
+     * XGROUP CREATE key group 0 MKSTREAM. MKSTREAM allows the group to be
+     * created before the upstream processor has written anything.
+     */
+    private void createGroup() {
+        StringCodec codec = StringCodec.UTF8;
+        try {
+            commands.dispatch(CommandType.XGROUP, new StatusOutput<>(codec),
+                    new CommandArgs<>(codec).add("CREATE").addKey(streamKey).addValue(groupName).add("0").add("MKSTREAM"));
+        } catch (RedisBusyException ex) {
+            // BUSYGROUP - the group already exists, another replica or a previous run created it
+            LOG.log(Level.FINE, "Group {0} already exists.", groupName);
+        }
+    }
+
+    /**
+     * Reads next page of entries for this consumer. Pending entries are
+     * returned first; after that the call blocks up to blockTimeout ms waiting
+     * for new ones and returns an empty list if nothing arrived.
+     *
+     * @param count max number of entries
+     * @return list of entries, never null
+     */
+    public List<StreamMessage<String, String>> read(int count) {
+        return read(count, true);
+    }
+
+    /**
+     * Same as {@link #read(int)}, without block the call returns at once
+     * when there are no new entries.
+     *
+     * @param count max number of entries
+     * @param block wait up to blockTimeout ms for new entries
+     * @return list of entries, never null
+     */
+    public List<StreamMessage<String, String>> read(int count, boolean block) {
+        if (claimIdle > 0 && System.currentTimeMillis() - lastClaim >= claimIdle) {
+            claimIdleEntries();
+        }
+        List<StreamMessage<String, String>> list;
+        if (NEW_ENTRIES.equals(offset)) {
+            list = commands.xreadgroup(consumer, block ? XReadArgs.Builder.count(count).block(blockTimeout)
+                    : XReadArgs.Builder.count(count), StreamOffset.lastConsumed(streamKey));
+        } else {
+            list = commands.xreadgroup(consumer, XReadArgs.Builder.count(count),
+                    StreamOffset.from(streamKey, offset));
+            if (list.isEmpty()) {
+                offset = NEW_ENTRIES;
+            } else {
+                offset = list.get(list.size() - 1).getId();
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Takes over entries pending for other consumers longer than claimIdle ms
+     * and removes consumers that have been idle that long without pending
+     * entries. Claimed entries are re-read from "0".
+     *
+     * @return number of claimed entries
+     */
+    int claimIdleEntries() {
+        lastClaim = System.currentTimeMillis();
+        if (claimIdle <= 0) {
+            return 0;
+        }
+        int claimed = 0;
+        for (String name : pendingConsumers()) {
+            if (name.equals(consumer.getName())) {
+                continue;
+            }
+            Consumer<String> other = Consumer.from(groupName, name);
+            while (true) {
+                List<String> ids = new ArrayList<>();
+                PendingParser.parseRange(commands.xpending(streamKey, other, Range.unbounded(),
+                        Limit.from(DEFAULT_PAGE_SIZE))).forEach((message) -> {
+                    if (message.getMsSinceLastDelivery() >= claimIdle) {
+                        ids.add(message.getId());
+                    }
+                });
+                if (ids.isEmpty()) {
+                    break;
+                }
+                // MIN-IDLE-TIME makes sure an entry another replica claimed
+                // meanwhile is not taken twice
+                claimed += commands.xclaim(streamKey, consumer, XClaimArgs.Builder.minIdleTime(claimIdle),
+                        ids.toArray(new String[ids.size()])).size();
+            }
+        }
+        if (claimed > 0) {
+            LOG.log(Level.INFO, "Consumer {0} claimed {1} idle entries of {2}.",
+                    new Object[]{consumer.getName(), claimed, streamKey});
+            offset = "0";
+        }
+        removeIdleConsumers();
+        return claimed;
+    }
+
+    /**
+     * Consumers with pending entries, from the XPENDING summary
+     * [count, first ID, last ID, [[consumer, count], ...]]; the last element
+     * is nil when nothing is pending.
+     */
+    private List<String> pendingConsumers() {
+        List<String> names = new ArrayList<>();
+        List<Object> summary = commands.xpending(streamKey, groupName);
+        if (summary.size() > 3 && summary.get(3) instanceof List) {
+            for (Object entry : (List<?>) summary.get(3)) {
+                names.add(String.valueOf(((List<?>) entry).get(0)));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * XINFO CONSUMERS, then XGROUP DELCONSUMER for consumers without pending
+     * entries idle longer than claimIdle.
+     */
+    private void removeIdleConsumers() {
+        StringCodec codec = StringCodec.UTF8;
+        List<Object> consumers = commands.dispatch(CommandType.XINFO, new ArrayOutput<>(codec),
+                new CommandArgs<>(codec).add("CONSUMERS").addKey(streamKey).addValue(groupName));
+        for (Object info : consumers) {
+            Map<String, Object> fields = new HashMap<>();
+            List<?> list = (List<?>) info;
+            for (int i = 0; i + 1 < list.size(); i += 2) {
+                fields.put(String.valueOf(list.get(i)), list.get(i + 1));
+            }
+            String name = String.valueOf(fields.get("name"));
+            if (!name.equals(consumer.getName()) && Long.valueOf(0L).equals(fields.get("pending"))
+                    && fields.get("idle") instanceof Long && (Long) fields.get("idle") >= claimIdle) {
+                commands.xgroupDelconsumer(streamKey, Consumer.from(groupName, name));
+                LOG.log(Level.INFO, "Removed idle consumer {0} from group {1}.", new Object[]{name, groupName});
+            }
+        }
+    }
+
+    /**
+     * Acknowledges processed entries (XACK).
+     *
+     * @param list
+     */
+    public void ack(List<StreamMessage<String, String>> list) {
+        if (list.isEmpty()) {
+            return;
+        }
+        String[] ids = new String[list.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = list.get(i).getId();
+        }
+        commands.xack(streamKey, groupName, ids);
+    }
+
+    /**
+     * Tails the stream until the calling thread is interrupted. Every page is
+     * passed to the handler message by message and acknowledged afterwards.
+     *
+     * @param pageSize
+     * @param handler
+     * @return GraphVocabulary.COMPLETE when stopped
+     */
+    public Integer consume(int pageSize, java.util.function.Consumer<StreamMessage<String, String>> handler) {
+        return consume(pageSize, handler, () -> {
+        });
+    }
+
+    /**
+     * Same as {@link #consume(int, java.util.function.Consumer)}, beforeAck
+     * runs after each page is handled and before it is acknowledged. Use it to
+     * flush buffered output, so an entry is never acknowledged before the
+     * results computed from it are written.
+     *
+     * @param pageSize
+     * @param handler
+     * @param beforeAck
+     * @return GraphVocabulary.COMPLETE when stopped
+     */
+    public Integer consume(int pageSize, java.util.function.Consumer<StreamMessage<String, String>> handler,
+            Runnable beforeAck) {
+        return consumePages(pageSize, list -> list.forEach(handler), beforeAck);
+    }
+
+    /**
+     * Same as {@link #consume(int, java.util.function.Consumer, Runnable)},
+     * but the handler gets the whole page at once, e.g. to decode it into a
+     * {@link ColumnPage}.
+     *
+     * @param pageSize
+     * @param pageHandler
+     * @param beforeAck
+     * @return GraphVocabulary.COMPLETE when stopped
+     */
+    public Integer consumePages(int pageSize, java.util.function.Consumer<List<StreamMessage<String, String>>> pageHandler,
+            Runnable beforeAck) {
+        return consumeReleased(pageSize, list -> {
+            pageHandler.accept(list);
+            return list;
+        }, beforeAck);
+    }
+
+    /**
+     * Same as {@link #consumePages}, but only the entries the handler returns
+     * are acknowledged, e.g. the ones a {@link ReorderBuffer} has released
+     * from this or earlier pages. Entries the handler still holds stay pending
+     * and are re-delivered if the consumer stops before returning them. Empty
+     * pages are passed to the handler too.
+     *
+     * @param pageSize
+     * @param pageHandler returns the entries that are done with
+     * @param beforeAck
+     * @return GraphVocabulary.COMPLETE when stopped
+     */
+    public Integer consumeReleased(int pageSize,
+            Function<List<StreamMessage<String, String>>, List<StreamMessage<String, String>>> pageHandler,
+            Runnable beforeAck) {
+        Thread thread = Thread.currentThread();
+        try {
+            while (!thread.isInterrupted()) {
+                List<StreamMessage<String, String>> list = read(pageSize);
+                List<StreamMessage<String, String>> done = pageHandler.apply(list);
+                beforeAck.run();
+                ack(done);
+            }
+        } catch (RedisCommandInterruptedException ex) {
+            LOG.log(Level.INFO, "Consumer {0} interrupted.", consumer.getName());
+            interrupted = true;
+        } finally {
+            close();
+        }
+        return GraphVocabulary.COMPLETE;
+    }
+
+    /**
+     * Marks the connection as left with an interrupted XREADGROUP, so close()
+     * drops it instead of returning it to the pool. For callers that read
+     * with {@link #read} themselves.
+     */
+    void interrupted() {
+        interrupted = true;
+    }
+
+    public void close() {
+        if (interrupted) {
+            // the reply of the interrupted XREADGROUP may still arrive
+            lease.invalidate(connection);
+        } else {
+            lease.release(connection);
+        }
+        lease.close();
+    }
+}
@@ -0,0 +1,334 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.RedisCommandInterruptedException;
+import io.lettuce.core.StreamMessage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.core.graph.NodeAttribute;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.core.transport.TransportReference;
+
+/**
+ * Joins two input streams of a processor into a stream of aligned pairs.
+ *
+ * Both streams are read page by page in turns. Entries are paired either by
+ * position (the n-th entry of the first stream with the n-th entry of the
+ * second one) or by the millisecond timestamp of their stream IDs: heads of
+ * both streams are paired when they are no more than tolerance ms apart,
+ * otherwise the older head has no partner and is dropped.
+ *
+ * The side that runs ahead is buffered, but never more than maxBuffered
+ * entries: once its buffer is full it is not read again until the other side
+ * catches up.
+ *
+ * {@link #run} reads both streams to their current ends through the
+ * Transport. {@link #tail} reads them with consumer groups until the thread is
+ * interrupted; an entry is acknowledged only after it was paired or dropped,
+ * so buffered entries are re-delivered after a restart.
+ *
+ * @author alexmy
+ */
+public class StreamJoin {
+
+    static final Logger LOG = Logger.getLogger(StreamJoin.class.getName());
+
+    public static final String SEQUENCE = "sequence";
+    public static final String TIMESTAMP = "timestamp";
+
+    private static final int PAGE_SIZE = 100;
+
+    /**
+     * Receives aligned pairs.
+     */
+    public interface PairHandler {
+
+        void onPair(StreamMessage<String, String> first, StreamMessage<String, String> second);
+    }
+
+    private final Transport runtime;
+    private final Side first;
+    private final Side second;
+    private final boolean byTimestamp;
+    private final long tolerance;
+    private final int maxBuffered;
+
+    private long unmatched;
+
+    /**
+     *
+     * @param runtime
+     * @param firstRef reference to the first input stream
+     * @param secondRef reference to the second input stream
+     * @param alignment {@link #SEQUENCE} or {@link #TIMESTAMP}
+     * @param tolerance max timestamp difference of a pair (ms), timestamp
+     * alignment only
+     * @param maxBuffered max number of entries buffered per side
+     */
+    public StreamJoin(Transport runtime, TransportReference firstRef, TransportReference secondRef,
+            String alignment, long tolerance, int maxBuffered) {
+        this.runtime = runtime;
+        this.first = new Side(firstRef);
+        this.second = new Side(secondRef);
+        this.byTimestamp = TIMESTAMP.equalsIgnoreCase(alignment);
+        this.tolerance = tolerance;
+        this.maxBuffered = Math.max(1, maxBuffered);
+    }
+
+    /**
+     * Returns the name of the only attribute a referenced processor produces.
+     *
+     * @param ref
+     * @return attribute name, null if the reference does not have exactly one
+     * attribute
+     */
+    public static String attributeName(TransportReference ref) {
+        Map<String, NodeAttribute> attributes = ref.getAttributes();
+        if (attributes != null && attributes.size() == 1) {
+            return attributes.keySet().iterator().next();
+        }
+        return null;
+    }
+
+    /**
+     * Millisecond part of a stream entry ID (&lt;millis&gt;-&lt;sequence&gt;).
+     *
+     * @param id
+     * @return timestamp
+     */
+    public static long timestamp(String id) {
+        int dash = id.indexOf('-');
+        return Long.parseLong(dash < 0 ? id : id.substring(0, dash));
+    }
+
+    /**
+     * Event time of an entry.
+     *
+     * @param msg stream entry
+     * @param codec
+     * @param timeAttName attribute with epoch milliseconds, null or empty -
+     * use the entry ID time
+     * @return time in milliseconds
+     */
+    public static long eventTime(StreamMessage<String, String> msg, EntryCodec codec, String timeAttName) {
+        if (timeAttName != null && !timeAttName.isEmpty()) {
+            Long time = codec.getLong(msg.getBody(), timeAttName);
+            if (time != null) {
+                return time;
+            }
+        }
+        return timestamp(msg.getId());
+    }
+
+    /**
+     * Offsets of both sides as one string, e.g. for a {@link StateSnapshot}.
+     *
+     * @param offsets first and second side entry IDs
+     * @return "&lt;first&gt;,&lt;second&gt;"
+     */
+    public static String joinOffsets(String[] offsets) {
+        return offsets[0] + "," + offsets[1];
+    }
+
+    /**
+     * Reverse of {@link #joinOffsets}.
+     *
+     * @param offsets joined offsets, null - start of both streams
+     * @return first and second side entry IDs
+     */
+    public static String[] splitOffsets(String offsets) {
+        if (offsets == null || offsets.indexOf(',') < 0) {
+            return new String[]{"0", "0"};
+        }
+        return offsets.split(",", 2);
+    }
+
+    /**
+     * Sets the entry IDs both sides start reading after (exclusive). Used to
+     * resume a join from a restored snapshot.
+     *
+     * @param firstOffset
+     * @param secondOffset
+     */
+    public void seek(String firstOffset, String secondOffset) {
+        first.offset = firstOffset;
+        second.offset = secondOffset;
+    }
+
+    /**
+     * Tails both streams with consumer groups until the calling thread is
+     * interrupted and passes aligned pairs to the handler. Waits (XREADGROUP
+     * BLOCK) on the side the next pair is missing from, the other side is
+     * polled without blocking.
+     *
+     * @param redisUrl
+     * @param groupName consumer group, one per processor
+     * @param blockTimeout how long a read waits for new entries (ms)
+     * @param handler
+     * @param beforeAck runs before paired and dropped entries are
+     * acknowledged, e.g. to flush buffered output
+     * @return GraphVocabulary.COMPLETE when stopped
+     */
+    public Integer tail(String redisUrl, String groupName, long blockTimeout, PairHandler handler,
+            Runnable beforeAck) {
+        Thread thread = Thread.currentThread();
+        first.reader = new StreamGroupReader(redisUrl, first.streamKey(), groupName, blockTimeout);
+        try {
+            second.reader = new StreamGroupReader(redisUrl, second.streamKey(), groupName, blockTimeout);
+            while (!thread.isInterrupted()) {
+                first.poll(first.buffer.isEmpty());
+                second.poll(second.buffer.isEmpty() && !first.buffer.isEmpty());
+                match(handler);
+                beforeAck.run();
+                first.ack();
+                second.ack();
+            }
+        } catch (RedisCommandInterruptedException ex) {
+            LOG.log(Level.INFO, "Join of {0} and {1} interrupted.", new Object[]{first.streamKey(), second.streamKey()});
+            first.reader.interrupted();
+            if (second.reader != null) {
+                second.reader.interrupted();
+            }
+        } finally {
+            first.reader.close();
+            if (second.reader != null) {
+                second.reader.close();
+            }
+        }
+        return GraphVocabulary.COMPLETE;
+    }
+
+    /**
+     * Reads both streams to their ends and passes aligned pairs to the
+     * handler.
+     *
+     * @param handler
+     * @return GraphVocabulary.COMPLETE
+     */
+    public Integer run(PairHandler handler) {
+        while (true) {
+            boolean read = first.fill() | second.fill();
+            match(handler);
+            if (!read) {
+                break;
+            }
+        }
+        unmatched += first.buffer.size() + second.buffer.size();
+        if (unmatched > 0) {
+            LOG.log(Level.INFO, "{0} entries without a partner.", unmatched);
+        }
+        return GraphVocabulary.COMPLETE;
+    }
+
+    private void match(PairHandler handler) {
+        while (!first.buffer.isEmpty() && !second.buffer.isEmpty()) {
+            StreamMessage<String, String> firstMsg = first.buffer.peekFirst();
+            StreamMessage<String, String> secondMsg = second.buffer.peekFirst();
+            if (byTimestamp) {
+                long diff = timestamp(firstMsg.getId()) - timestamp(secondMsg.getId());
+                if (diff > tolerance) {
+                    second.take();
+                    unmatched++;
+                    continue;
+                } else if (-diff > tolerance) {
+                    first.take();
+                    unmatched++;
+                    continue;
+                }
+            }
+            first.take();
+            second.take();
+            handler.onPair(firstMsg, secondMsg);
+        }
+    }
+
+    private class Side {
+
+        private final String className;
+        private final UUID id;
+        private final Deque<StreamMessage<String, String>> buffer = new ArrayDeque<>();
+        private String offset = "0";
+        // tailing only: the group reader and entries taken from the buffer
+        private StreamGroupReader reader;
+        private final List<StreamMessage<String, String>> done = new ArrayList<>();
+
+        Side(TransportReference ref) {
+            this.className = ref.getReferenceClass();
+            this.id = UUID.fromString(ref.getReferenceId());
+        }
+
+        String streamKey() {
+            return StreamGroupReader.streamKey(className, id.toString());
+        }
+
+        /**
+         * Removes the head of the buffer, a tailing side acknowledges it
+         * with the next {@link #ack}.
+         */
+        void take() {
+            StreamMessage<String, String> msg = buffer.pollFirst();
+            if (reader != null) {
+                done.add(msg);
+            }
+        }
+
+        /**
+         * Reads next page from the consumer group if there is room in the
+         * buffer.
+         *
+         * @param block wait for new entries
+         */
+        void poll(boolean block) {
+            int room = maxBuffered - buffer.size();
+            if (room > 0) {
+                buffer.addAll(reader.read(Math.min(room, PAGE_SIZE), block));
+            }
+        }
+
+        void ack() {
+            reader.ack(done);
+            done.clear();
+        }
+
+        /**
+         * Reads next page if there is room in the buffer.
+         *
+         * @return true if anything was read
+         */
+        boolean fill() {
+            int room = maxBuffered - buffer.size();
+            if (room <= 0) {
+                return false;
+            }
+            List<StreamMessage<String, String>> list = runtime.readEvents(className, id, offset, Math.min(room, PAGE_SIZE));
+            if (list.isEmpty()) {
+                return false;
+            }
+            buffer.addAll(list);
+            offset = list.get(list.size() - 1).getId();
+            return true;
+        }
+    }
+}
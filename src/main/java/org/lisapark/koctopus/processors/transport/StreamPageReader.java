@@ -0,0 +1,58 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XReadArgs;
+import io.lettuce.core.XReadArgs.StreamOffset;
+import io.lettuce.core.api.sync.RedisCommands;
+import java.util.List;
+
+/**
+ * Pages through a stream by key, the way Transport.readEvents does for
+ * processor streams. Used for streams Transport cannot address, such as
+ * partitions of a processor stream.
+ *
+ * @author alexmy
+ */
+public class StreamPageReader implements AutoCloseable {
+
+    private final RedisConnections.Lease lease;
+    private final RedisCommands<String, String> commands;
+    private final String streamKey;
+
+    public StreamPageReader(String redisUrl, String streamKey) {
+        this.lease = RedisConnections.acquire(redisUrl);
+        this.commands = lease.shared().sync();
+        this.streamKey = streamKey;
+    }
+
+    /**
+     *
+     * @param offset ID of the last entry already read, "0" for the beginning
+     * @param count max number of entries
+     * @return entries after offset, empty at the end of the stream
+     */
+    public List<StreamMessage<String, String>> read(String offset, int count) {
+        return commands.xread(XReadArgs.Builder.count(count), StreamOffset.from(streamKey, offset));
+    }
+
+    @Override
+    public void close() {
+        lease.close();
+    }
+}
@@ -0,0 +1,235 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.RedisException;
+import io.lettuce.core.api.sync.RedisCommands;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+import org.lisapark.koctopus.core.transport.Transport;
+import org.lisapark.koctopus.core.transport.TransportReference;
+
+/**
+ * Hash partitioning of processor output streams.
+ *
+ * A partitioned output stream &lt;key&gt; is split into sub-streams
+ * &lt;key&gt;:0 ... &lt;key&gt;:N-1. All events with the same value of the
+ * partition key attribute go to the same sub-stream, so their order is
+ * preserved. The number of partitions of each stream is published in the
+ * {@link #PARTITIONS_KEY} hash, that is how downstream processors find out
+ * they have to start one consumer per partition. Processors that read only
+ * whole streams check their inputs with {@link #checkUnpartitioned} and
+ * refuse to start on a partitioned one instead of waiting on an empty stream.
+ *
+ * @author alexmy
+ */
+public final class StreamPartitions {
+
+    static final Logger LOG = Logger.getLogger(StreamPartitions.class.getName());
+
+    public static final String PARTITIONS_KEY = "k-octopus:partitions";
+
+    private StreamPartitions() {
+    }
+
+    /**
+     *
+     * @param streamKey key of the whole stream
+     * @param partition partition index
+     * @return key of the sub-stream
+     */
+    public static String partitionKey(String streamKey, int partition) {
+        return streamKey + ":" + partition;
+    }
+
+    /**
+     * Partition for a key value. Uses String.hashCode, which is the same in
+     * every JVM, so all writers agree on the partition of a key.
+     *
+     * @param key partition key value, null goes to partition 0
+     * @param partitions number of partitions
+     * @return partition index
+     */
+    public static int partition(Object key, int partitions) {
+        if (key == null || partitions <= 1) {
+            return 0;
+        }
+        int hash = String.valueOf(key).hashCode();
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, partitions);
+    }
+
+    /**
+     * Publishes the number of partitions of a stream; 1 or less removes the
+     * stream from the hash, so readers do not look for stale partitions of a
+     * previous run.
+     *
+     * @param redisUrl
+     * @param streamKey
+     * @param partitions
+     */
+    public static void register(String redisUrl, String streamKey, int partitions) {
+        try (RedisConnections.Lease lease = RedisConnections.acquire(redisUrl)) {
+            RedisCommands<String, String> commands = lease.shared().sync();
+            if (partitions > 1) {
+                commands.hset(PARTITIONS_KEY, streamKey, String.valueOf(partitions));
+            } else {
+                commands.hdel(PARTITIONS_KEY, streamKey);
+            }
+        }
+    }
+
+    /**
+     * Publishes the number of partitions of a processor output stream.
+     * Streams of the in-memory transport are never partitioned, nothing is
+     * published for them.
+     *
+     * @param runtime processor transport
+     * @param redisUrl
+     * @param streamKey
+     * @param partitions
+     */
+    public static void register(Transport runtime, String redisUrl, String streamKey, int partitions) {
+        if (!(runtime instanceof MemoryTransport)) {
+            register(redisUrl, streamKey, partitions);
+        } else if (partitions > 1) {
+            LOG.log(Level.INFO, "Streams of the in-memory transport are not partitioned, {0} is written as one stream.",
+                    streamKey);
+        }
+    }
+
+    /**
+     *
+     * @param redisUrl
+     * @param streamKey
+     * @return number of partitions, 1 if the stream is not partitioned
+     */
+    public static int count(String redisUrl, String streamKey) {
+        try (RedisConnections.Lease lease = RedisConnections.acquire(redisUrl)) {
+            String value = lease.shared().sync().hget(PARTITIONS_KEY, streamKey);
+            return value == null ? 1 : Math.max(1, Integer.parseInt(value));
+        }
+    }
+
+    /**
+     * Number of partitions of a processor input stream. Streams of the
+     * in-memory transport are never partitioned, Redis is not asked then.
+     *
+     * @param runtime processor transport
+     * @param redisUrl
+     * @param streamKey
+     * @return number of partitions, 1 if the stream is not partitioned
+     */
+    public static int count(Transport runtime, String redisUrl, String streamKey) {
+        return runtime instanceof MemoryTransport ? 1 : count(redisUrl, streamKey);
+    }
+
+    /**
+     * Checks that a processor input stream is not partitioned. A partitioned
+     * stream is never written under its own key, a reader of the whole stream
+     * would wait for entries forever.
+     *
+     * @param runtime processor transport
+     * @param redisUrl
+     * @param streamKey key of the input stream
+     * @return false if the stream is partitioned, true otherwise or if Redis
+     * can not be asked
+     */
+    public static boolean checkUnpartitioned(Transport runtime, String redisUrl, String streamKey) {
+        int partitions;
+        try {
+            partitions = count(runtime, redisUrl, streamKey);
+        } catch (RedisException ex) {
+            LOG.log(Level.WARNING, "Can not read partitions of {0}: {1}", new Object[]{streamKey, ex.getMessage()});
+            return true;
+        }
+        if (partitions > 1) {
+            LOG.log(Level.SEVERE, "{0} is partitioned into {1} streams, this processor reads whole streams only;"
+                    + " set Partitions to 1 in the upstream processor.", new Object[]{streamKey, partitions});
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Same as {@link #checkUnpartitioned(Transport, String, String)} for the
+     * streams of referenced processors.
+     *
+     * @param runtime processor transport
+     * @param redisUrl
+     * @param refs processor inputs
+     * @return false if one of the streams is partitioned
+     */
+    public static boolean checkUnpartitioned(Transport runtime, String redisUrl, TransportReference... refs) {
+        for (TransportReference ref : refs) {
+            String streamKey = StreamGroupReader.streamKey(ref.getReferenceClass(), ref.getReferenceId());
+            if (!checkUnpartitioned(runtime, redisUrl, streamKey)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs a task per partition, each in its own thread, and waits for all of
+     * them. Interrupting the calling thread interrupts all tasks.
+     *
+     * @param partitions number of partitions
+     * @param task takes the partition index, returns GraphVocabulary status
+     * @return COMPLETE if all tasks completed, CANCEL otherwise
+     */
+    public static Integer runAll(int partitions, IntFunction<Integer> task) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(partitions, r -> {
+            Thread thread = new Thread(r, "partition-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<Integer>> futures = new ArrayList<>(partitions);
+        for (int i = 0; i < partitions; i++) {
+            final int partition = i;
+            futures.add(executor.submit(() -> task.apply(partition)));
+        }
+        executor.shutdown();
+        Integer status = GraphVocabulary.COMPLETE;
+        try {
+            for (Future<Integer> future : futures) {
+                if (!GraphVocabulary.COMPLETE.equals(future.get())) {
+                    status = GraphVocabulary.CANCEL;
+                }
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            status = GraphVocabulary.CANCEL;
+        } catch (ExecutionException ex) {
+            LOG.log(Level.SEVERE, "Partition task failed.", ex.getCause());
+            executor.shutdownNow();
+            status = GraphVocabulary.CANCEL;
+        }
+        return status;
+    }
+}
@@ -0,0 +1,132 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import java.util.Map;
+import java.util.UUID;
+import org.lisapark.koctopus.core.transport.Transport;
+
+/**
+ * Writes processor output events to the processor's output stream.
+ *
+ * @author alexmy
+ */
+public interface StreamWriter extends AutoCloseable {
+
+    /**
+     * Writes (or buffers) a single event.
+     *
+     * @param event attribute name to value map
+     */
+    void write(Map<String, ?> event);
+
+    /**
+     * Writes an event whose partition key is not among its attributes, e.g.
+     * a binary encoded one. Writers of unpartitioned streams ignore the key.
+     *
+     * @param partitionKey value that selects the partition
+     * @param event attribute name to value map
+     */
+    default void write(Object partitionKey, Map<String, ?> event) {
+        write(event);
+    }
+
+    /**
+     * Sends all buffered events.
+     */
+    void flush();
+
+    /**
+     * Flushes buffered events and releases resources. Has to be called when
+     * the processor stops, otherwise buffered events are lost.
+     */
+    @Override
+    void close();
+
+    /**
+     * Creates a writer for the output stream of a processor.
+     *
+     * @param runtime transport used when batching is off, and always with the
+     * in-memory transport
+     * @param className processor class name
+     * @param id processor id
+     * @param redisUrl Redis URL, used by the batched writer only
+     * @param batchSize number of events per XADD batch, 1 or less - no
+     * batching
+     * @param lingerMillis max time an event can stay in the buffer
+     * @param maxLength approximate MAXLEN for the stream, 0 - no trimming
+     * @return StreamWriter
+     */
+    static StreamWriter create(Transport runtime, String className, UUID id,
+            String redisUrl, int batchSize, long lingerMillis, long maxLength) {
+        if (batchSize <= 1 || runtime instanceof MemoryTransport) {
+            return new TransportStreamWriter(runtime, className, id);
+        }
+        return new BufferedStreamWriter(redisUrl, StreamGroupReader.streamKey(className, id.toString()),
+                batchSize, lingerMillis, maxLength);
+    }
+
+    /**
+     * Creates a writer for an output stream that is optionally hash
+     * partitioned by a key attribute, see {@link StreamPartitions}. Publishes
+     * the number of partitions for downstream processors.
+     *
+     * @param runtime transport used when neither batching nor partitioning is
+     * on, and always with the in-memory transport
+     * @param className processor class name
+     * @param id processor id
+     * @param redisUrl Redis URL
+     * @param batchSize number of events per XADD batch, 1 or less - no
+     * batching
+     * @param lingerMillis max time an event can stay in the buffer
+     * @param maxLength approximate MAXLEN for the stream, 0 - no trimming
+     * @param partitions number of partitions, 1 or less - not partitioned
+     * @param keyAttribute attribute whose value selects the partition
+     * @return StreamWriter
+     */
+    static StreamWriter create(Transport runtime, String className, UUID id,
+            String redisUrl, int batchSize, long lingerMillis, long maxLength, int partitions, String keyAttribute) {
+        String streamKey = StreamGroupReader.streamKey(className, id.toString());
+        StreamPartitions.register(runtime, redisUrl, streamKey, partitions);
+        if (partitions <= 1 || runtime instanceof MemoryTransport) {
+            return create(runtime, className, id, redisUrl, batchSize, lingerMillis, maxLength);
+        }
+        return new PartitionedStreamWriter(redisUrl, streamKey, partitions, keyAttribute,
+                batchSize, lingerMillis, maxLength);
+    }
+
+    /**
+     * Creates a writer for a stream other than the processor output, e.g. its
+     * late entries. Goes to the in-memory transport if that is the processor
+     * transport, to Redis otherwise.
+     *
+     * @param runtime processor transport
+     * @param redisUrl Redis URL
+     * @param streamKey stream key
+     * @param batchSize number of events per XADD batch
+     * @param lingerMillis max time an event can stay in the buffer
+     * @param maxLength approximate MAXLEN for the stream, 0 - no trimming
+     * @return StreamWriter
+     */
+    static StreamWriter create(Transport runtime, String redisUrl, String streamKey,
+            int batchSize, long lingerMillis, long maxLength) {
+        if (runtime instanceof MemoryTransport) {
+            return ((MemoryTransport) runtime).writer(streamKey);
+        }
+        return new BufferedStreamWriter(redisUrl, streamKey, Math.max(1, batchSize), lingerMillis, maxLength);
+    }
+}
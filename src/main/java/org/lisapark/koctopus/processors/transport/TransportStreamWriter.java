@@ -0,0 +1,53 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import java.util.Map;
+import java.util.UUID;
+import org.lisapark.koctopus.core.transport.Transport;
+
+/**
+ * Unbuffered {@link StreamWriter}, every event goes straight to
+ * {@link Transport#writeEvents}.
+ *
+ * @author alexmy
+ */
+public class TransportStreamWriter implements StreamWriter {
+
+    private final Transport runtime;
+    private final String className;
+    private final UUID id;
+
+    public TransportStreamWriter(Transport runtime, String className, UUID id) {
+        this.runtime = runtime;
+        this.className = className;
+        this.id = id;
+    }
+
+    @Override
+    public void write(Map<String, ?> event) {
+        runtime.writeEvents(event, className, id);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
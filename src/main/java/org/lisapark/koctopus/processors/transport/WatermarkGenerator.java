@@ -0,0 +1,175 @@
+/* 
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Source side of event time processing. Sources that read files or query
+ * results emit events in file or row order, not in event time order; the
+ * generator assumes events are at most maxOutOfOrderness milliseconds out of
+ * order and stamps entries with the watermark, the event time no later event
+ * is expected to be older than. {@link ReorderBuffer}s of downstream
+ * processors use it to release buffered entries.
+ *
+ * The watermark is written into the {@link #WATERMARK_FIELD} field of an
+ * entry, next to its attributes, each time it has moved by an eighth of the
+ * out-of-orderness bound, so most entries do not carry it.
+ *
+ * @author alexmy
+ */
+public class WatermarkGenerator {
+
+    public static final String WATERMARK_FIELD = "_watermark";
+
+    /**
+     * No watermark.
+     */
+    public static final long NONE = Long.MIN_VALUE;
+
+    private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final DateTimeFormatter SECOND = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+
+    private final String timeAttribute;
+    private final long maxOutOfOrderness;
+    private final long step;
+    private long maxTime = NONE;
+    private long stamped = NONE;
+
+    /**
+     *
+     * @param timeAttribute attribute with the event time, null or empty -
+     * watermarks are turned off
+     * @param maxOutOfOrderness max milliseconds an event can be older than
+     * the newest one written before it, less than 0 - watermarks are turned
+     * off
+     */
+    public WatermarkGenerator(String timeAttribute, long maxOutOfOrderness) {
+        this.timeAttribute = timeAttribute;
+        this.maxOutOfOrderness = maxOutOfOrderness;
+        this.step = Math.max(1, maxOutOfOrderness / 8);
+    }
+
+    public final boolean isEnabled() {
+        return timeAttribute != null && !timeAttribute.isEmpty() && maxOutOfOrderness >= 0;
+    }
+
+    /**
+     * Takes the event time of an event and adds the watermark to it if the
+     * watermark has moved far enough.
+     *
+     * @param event event data, changed in place
+     */
+    public void stamp(Map<String, Object> event) {
+        if (!isEnabled()) {
+            return;
+        }
+        long time = toMillis(event.get(timeAttribute));
+        if (time == NONE || time <= maxTime) {
+            return;
+        }
+        maxTime = time;
+        long watermark = getWatermark();
+        if (stamped == NONE || watermark - stamped >= step) {
+            event.put(WATERMARK_FIELD, watermark);
+            stamped = watermark;
+        }
+    }
+
+    /**
+     *
+     * @return current watermark, NONE before the first event
+     */
+    public long getWatermark() {
+        return maxTime == NONE ? NONE : maxTime - maxOutOfOrderness;
+    }
+
+    /**
+     * Watermark written into an entry.
+     *
+     * @param body entry body
+     * @return watermark, NONE if the entry does not carry one
+     */
+    public static long watermark(Map<String, String> body) {
+        String value = body.get(WATERMARK_FIELD);
+        if (value == null) {
+            return NONE;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException ex) {
+            return NONE;
+        }
+    }
+
+    /**
+     * Event time of an attribute value: a Date (java.sql.Timestamp
+     * included), epoch milliseconds as a number or text, yyyyMMdd and
+     * yyyyMMddHHmmss numbers (GDELT SQLDATE and DATEADDED), ISO-8601 or SQL
+     * timestamp text. The text may end with Z or a +hh:mm or -hh:mm offset,
+     * dates without a zone are UTC.
+     *
+     * @param value attribute value
+     * @return epoch milliseconds, NONE if the value is not a time
+     */
+    public static long toMillis(Object value) {
+        if (value == null) {
+            return NONE;
+        } else if (value instanceof Date) {
+            return ((Date) value).getTime();
+        } else if (value instanceof Number) {
+            return fromDigits(((Number) value).longValue());
+        }
+        String text = value.toString().trim();
+        try {
+            if (!text.isEmpty() && text.chars().allMatch(Character::isDigit)) {
+                return fromDigits(Long.parseLong(text));
+            }
+            if (text.indexOf('-') > 0 && (text.indexOf('T') > 0 || text.indexOf(' ') > 0)) {
+                String iso = text.replace(' ', 'T');
+                // Z, +hh:mm or -hh:mm after the time
+                int time = iso.indexOf('T');
+                return iso.endsWith("Z") || iso.indexOf('+', time) > 0 || iso.indexOf('-', time) > 0
+                        ? OffsetDateTime.parse(iso).toInstant().toEpochMilli()
+                        : LocalDateTime.parse(iso).toInstant(ZoneOffset.UTC).toEpochMilli();
+            }
+            return (long) Double.parseDouble(text);
+        } catch (NumberFormatException | DateTimeParseException ex) {
+            return NONE;
+        }
+    }
+
+    private static long fromDigits(long value) {
+        try {
+            if (value >= 10_000_000L && value <= 99_999_999L) {
+                return LocalDate.parse(Long.toString(value), DAY).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli();
+            } else if (value >= 10_000_000_000_000L && value <= 99_999_999_999_999L) {
+                return LocalDateTime.parse(Long.toString(value), SECOND).toInstant(ZoneOffset.UTC).toEpochMilli();
+            }
+        } catch (DateTimeParseException ex) {
+            // not a calendar date, epoch milliseconds
+        }
+        return value;
+    }
+}
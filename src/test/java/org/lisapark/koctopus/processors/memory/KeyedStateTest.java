@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ *
+ * @author alexmy
+ */
+public class KeyedStateTest {
+
+    // initial table size of KeyedState
+    private static final int MASK = 15;
+
+    /**
+     * Keys whose home slot in the initial table is the given one, same hash
+     * as KeyedState uses.
+     */
+    private static List<String> keysAt(int slot, int count) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; keys.size() < count; i++) {
+            String key = "key-" + i;
+            int h = key.hashCode();
+            if (((h ^ (h >>> 16)) & MASK) == slot) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void deleteAtTableEndShiftsWrappedEntriesBack() {
+        List<String> last = keysAt(MASK, 3);
+        String first = keysAt(0, 1).get(0);
+        List<Object> dropped = new ArrayList<>();
+        KeyedState<Object> state = new KeyedState<>(Object::new, 50, dropped::add);
+
+        // cluster from slot 15 over the table end: last[0..2] in 15, 0, 1 and first in 2
+        Object expired = state.get(last.get(0), 0);
+        Object[] kept = {state.get(last.get(1), 40), state.get(last.get(2), 40), state.get(first, 40)};
+
+        assertEquals(1, state.expire(60));
+        assertEquals(1, dropped.size());
+        assertSame(expired, dropped.get(0));
+        assertEquals(3, state.size());
+        assertSame(kept[0], state.get(last.get(1), 60));
+        assertSame(kept[1], state.get(last.get(2), 60));
+        assertSame(kept[2], state.get(first, 60));
+        assertEquals(3, state.size());
+    }
+
+    @Test
+    public void deleteInWrappedPartMovesOnlyEntriesWhoseProbePathCrossesTheGap() {
+        List<String> last = keysAt(MASK, 3);
+        String home1 = keysAt(1, 1).get(0);
+        KeyedState<Object> state = new KeyedState<>(Object::new, 50);
+
+        // last[0] in 15, last[1] in 0, home1 in its home 1, last[2] in 2
+        Object a = state.get(last.get(0), 40);
+        state.get(last.get(1), 0);
+        Object b = state.get(home1, 40);
+        Object c = state.get(last.get(2), 40);
+
+        // home1 stays in 1, last[2] moves into the gap in 0
+        assertEquals(1, state.expire(60));
+        assertSame(a, state.get(last.get(0), 60));
+        assertSame(b, state.get(home1, 60));
+        assertSame(c, state.get(last.get(2), 60));
+        assertEquals(3, state.size());
+    }
+
+    @Test
+    public void deleteEveryKeyOfWrappedCluster() {
+        List<String> last = keysAt(MASK, 4);
+        KeyedState<Object> state = new KeyedState<>(Object::new, 50);
+        for (String key : last) {
+            state.get(key, 0);
+        }
+
+        assertEquals(4, state.expire(100));
+        assertEquals(0, state.size());
+        Object fresh = state.get(last.get(3), 100);
+        assertNotSame(fresh, state.get(last.get(2), 100));
+        assertEquals(2, state.size());
+    }
+
+    @Test
+    public void idleKeysExpireThroughGet() {
+        KeyedState<Object> state = new KeyedState<>(Object::new, 100);
+        for (int i = 0; i < 50; i++) {
+            state.get("key-" + i, 1000 + i);
+        }
+        // the sweep is due 100 ms after the first access, drops key-0
+        state.get("other", 1100);
+
+        assertEquals(50, state.size());
+        state.get("other", 1250);
+        assertEquals(1, state.size());
+    }
+}
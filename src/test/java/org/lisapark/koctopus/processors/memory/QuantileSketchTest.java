@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author alexmy
+ */
+public class QuantileSketchTest {
+
+    private static final double ACCURACY = 0.01;
+    private static final double[] QUANTILES = {0, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1};
+
+    /**
+     * Lower quantile of sorted values, same rank as the sketch uses.
+     */
+    private static double exact(double[] sorted, double q) {
+        return sorted[(int) (q * (sorted.length - 1))];
+    }
+
+    private static void assertWithinAccuracy(String message, double expected, double actual) {
+        assertEquals(message, expected, actual, ACCURACY * Math.abs(expected) + 1e-12);
+    }
+
+    private static double[] values(Random random, int count) {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            switch (i % 10) {
+                case 0:
+                    values[i] = 0;
+                    break;
+                case 1:
+                case 2:
+                    values[i] = -Math.exp(3 * random.nextGaussian());
+                    break;
+                default:
+                    values[i] = Math.exp(3 * random.nextGaussian());
+            }
+        }
+        return values;
+    }
+
+    @Test
+    public void quantilesAreWithinTheRelativeAccuracy() {
+        double[] values = values(new Random(19), 20000);
+        QuantileSketch sketch = new QuantileSketch(ACCURACY, 2048);
+        for (double value : values) {
+            sketch.add(value);
+        }
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        assertEquals(values.length, sketch.getCount());
+        assertEquals(sorted[0], sketch.getMin(), 0);
+        assertEquals(sorted[sorted.length - 1], sketch.getMax(), 0);
+        for (double q : QUANTILES) {
+            assertWithinAccuracy("q " + q, exact(sorted, q), sketch.getQuantile(q));
+        }
+    }
+
+    @Test
+    public void mergedSketchAnswersLikeOneSketchOfAllValues() {
+        Random random = new Random(3);
+        double[] first = values(random, 5000);
+        double[] second = new double[3000];
+        for (int i = 0; i < second.length; i++) {
+            // a range the first sketch has no buckets for
+            second[i] = 1e6 * (1 + random.nextDouble());
+        }
+        QuantileSketch a = new QuantileSketch(ACCURACY, 2048);
+        QuantileSketch b = new QuantileSketch(ACCURACY, 2048);
+        QuantileSketch all = new QuantileSketch(ACCURACY, 2048);
+        for (double value : first) {
+            a.add(value);
+            all.add(value);
+        }
+        for (double value : second) {
+            b.add(value);
+            all.add(value);
+        }
+
+        a.merge(b);
+        a.merge(new QuantileSketch(ACCURACY, 16));
+
+        assertEquals(all.getCount(), a.getCount());
+        assertEquals(all.getMin(), a.getMin(), 0);
+        assertEquals(all.getMax(), a.getMax(), 0);
+        for (double q : QUANTILES) {
+            assertEquals("q " + q, all.getQuantile(q), a.getQuantile(q), 0);
+        }
+    }
+
+    @Test
+    public void collapsedBucketsKeepTheCountAndTheHighQuantiles() {
+        int maxBuckets = 64;
+        QuantileSketch sketch = new QuantileSketch(ACCURACY, maxBuckets);
+        double[] values = new double[10000];
+        // many orders of magnitude, far more than 64 buckets
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.pow(10, -6 + 12.0 * i / values.length);
+        }
+        // descending, so the lowest buckets are collapsed while adding
+        for (int i = values.length - 1; i >= 0; i--) {
+            sketch.add(values[i]);
+        }
+
+        assertEquals(values.length, sketch.getCount());
+        // the top 64 buckets cover the highest factor gamma^64 of magnitudes
+        double gamma = (1 + ACCURACY) / (1 - ACCURACY);
+        double covered = values[values.length - 1] / Math.pow(gamma, maxBuckets - 1);
+        for (double q : new double[]{0.99, 0.995, 0.999}) {
+            double expected = exact(values, q);
+            assertTrue(expected > covered);
+            assertWithinAccuracy("q " + q, expected, sketch.getQuantile(q));
+        }
+        // everything below the kept range is reported from the lowest bucket
+        double low = sketch.getQuantile(0.5);
+        assertTrue(low >= covered / gamma && low <= values[values.length - 1]);
+    }
+
+    @Test
+    public void ascendingAndDescendingValuesGiveTheSameQuantiles() {
+        QuantileSketch ascending = new QuantileSketch(ACCURACY, 128);
+        QuantileSketch descending = new QuantileSketch(ACCURACY, 128);
+        for (int i = 1; i <= 1000; i++) {
+            ascending.add(i);
+            descending.add(1001 - i);
+        }
+
+        for (double q : QUANTILES) {
+            assertEquals("q " + q, ascending.getQuantile(q), descending.getQuantile(q), 0);
+        }
+    }
+
+    @Test
+    public void emptySketchAndNaN() {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY, 16);
+        sketch.add(Double.NaN);
+
+        assertEquals(0, sketch.getCount());
+        assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+        assertTrue(Double.isNaN(sketch.getMin()));
+        assertTrue(Double.isNaN(sketch.getMax()));
+    }
+
+    @Test
+    public void clearedSketchStartsOver() {
+        QuantileSketch sketch = new QuantileSketch(ACCURACY, 16);
+        sketch.add(-5);
+        sketch.add(1e9);
+        sketch.clear();
+        sketch.add(2);
+        sketch.add(3);
+        sketch.add(4);
+
+        assertEquals(3, sketch.getCount());
+        assertEquals(2.0, sketch.getMin(), 0);
+        assertWithinAccuracy("median", 3, sketch.getQuantile(0.5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sketchesWithDifferentAccuracyDoNotMerge() {
+        new QuantileSketch(0.01, 16).merge(new QuantileSketch(0.02, 16));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void quantileOutsideZeroToOne() {
+        new QuantileSketch(ACCURACY, 16).getQuantile(1.5);
+    }
+}
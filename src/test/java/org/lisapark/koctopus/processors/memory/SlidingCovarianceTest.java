@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.memory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author alexmy
+ */
+public class SlidingCovarianceTest {
+
+    private static final double EPS = 1e-9;
+
+    private static double mean(Deque<double[]> window, int series) {
+        double sum = 0;
+        for (double[] row : window) {
+            sum += row[series];
+        }
+        return sum / window.size();
+    }
+
+    /**
+     * Two pass sample covariance of the rows in the window.
+     */
+    private static double covariance(Deque<double[]> window, int i, int j) {
+        double mi = mean(window, i);
+        double mj = mean(window, j);
+        double sum = 0;
+        for (double[] row : window) {
+            sum += (row[i] - mi) * (row[j] - mj);
+        }
+        return sum / (window.size() - 1);
+    }
+
+    @Test
+    public void matchesTwoPassStatisticsOfTheWindow() {
+        int dimension = 4;
+        int capacity = 7;
+        SlidingCovariance covariance = new SlidingCovariance(dimension, capacity);
+        Deque<double[]> window = new ArrayDeque<>();
+        Random random = new Random(7);
+
+        // long enough to evict and resync several times
+        for (int n = 0; n < 60; n++) {
+            double[] row = new double[dimension];
+            row[0] = 1000 + random.nextGaussian();
+            row[1] = 2 * row[0] + random.nextGaussian();
+            row[2] = -row[0] + 0.1 * random.nextGaussian();
+            row[3] = random.nextDouble();
+            covariance.add(row);
+            window.addLast(row);
+            if (window.size() > capacity) {
+                window.removeFirst();
+            }
+
+            assertEquals(window.size(), covariance.size());
+            if (window.size() < 2) {
+                continue;
+            }
+            for (int i = 0; i < dimension; i++) {
+                assertEquals(mean(window, i), covariance.getMean(i), EPS);
+                for (int j = 0; j < dimension; j++) {
+                    double cij = covariance(window, i, j);
+                    assertEquals("cov " + i + "," + j + " at " + n, cij, covariance.getCovariance(i, j), 1e-6);
+                    double r = cij / Math.sqrt(covariance(window, i, i) * covariance(window, j, j));
+                    assertEquals("r " + i + "," + j + " at " + n, r, covariance.getCorrelation(i, j), 1e-6);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rowsAreTakenFromTheOffset() {
+        SlidingCovariance covariance = new SlidingCovariance(2, 3);
+        double[] data = {9, 1, 2, 9};
+
+        covariance.add(data, 1);
+
+        assertEquals(1.0, covariance.get(0, 0), 0);
+        assertEquals(2.0, covariance.get(0, 1), 0);
+    }
+
+    @Test
+    public void valuesAreOldestFirst() {
+        SlidingCovariance covariance = new SlidingCovariance(2, 3);
+        for (int i = 1; i <= 5; i++) {
+            covariance.add(new double[]{i, -i});
+        }
+
+        assertTrue(covariance.isFull());
+        Iterator<double[]> values = covariance.values().iterator();
+        for (int i = 3; i <= 5; i++) {
+            assertArrayEquals(new double[]{i, -i}, values.next(), 0);
+        }
+        assertEquals(-1.0, covariance.getCorrelation(0, 1), EPS);
+    }
+
+    @Test
+    public void constantSeriesAndShortWindowsHaveNoCorrelation() {
+        SlidingCovariance covariance = new SlidingCovariance(2, 4);
+
+        covariance.add(new double[]{1, 5});
+        assertTrue(Double.isNaN(covariance.getCovariance(0, 1)));
+        assertTrue(Double.isNaN(covariance.getCorrelation(0, 1)));
+
+        covariance.add(new double[]{2, 5});
+        assertEquals(0.0, covariance.getCovariance(0, 1), EPS);
+        assertTrue(Double.isNaN(covariance.getCorrelation(0, 1)));
+    }
+
+    @Test
+    public void singleRowWindowAndClear() {
+        SlidingCovariance covariance = new SlidingCovariance(2, 1);
+        covariance.add(new double[]{1, 2});
+        covariance.add(new double[]{3, 4});
+
+        assertEquals(1, covariance.size());
+        assertEquals(3.0, covariance.getMean(0), 0);
+        assertEquals(4.0, covariance.getMean(1), 0);
+
+        covariance.clear();
+        assertEquals(0, covariance.size());
+        assertTrue(Double.isNaN(covariance.getMean(0)));
+        covariance.add(new double[]{5, 6});
+        assertEquals(5.0, covariance.getMean(0), 0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void readingOutsideTheWindowFails() {
+        SlidingCovariance covariance = new SlidingCovariance(2, 3);
+        covariance.add(new double[]{1, 2});
+
+        covariance.get(1, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dimensionMustBePositive() {
+        new SlidingCovariance(0, 3);
+    }
+}
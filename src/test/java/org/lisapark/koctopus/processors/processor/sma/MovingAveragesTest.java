@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.processor.sma;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import org.lisapark.koctopus.processors.memory.TimeWindow;
+
+/**
+ *
+ * @author alexmy
+ */
+public class MovingAveragesTest {
+
+    private static final double EPS = 1e-9;
+
+    private static double sma(double[] values, int end, int length) {
+        int start = Math.max(0, end - length);
+        double sum = 0;
+        for (int i = start; i < end; i++) {
+            sum += values[i];
+        }
+        return sum / (end - start);
+    }
+
+    private static double wma(double[] values, int end, int length) {
+        int start = Math.max(0, end - length);
+        double sum = 0;
+        double weights = 0;
+        for (int i = start; i < end; i++) {
+            sum += (i - start + 1) * values[i];
+            weights += i - start + 1;
+        }
+        return sum / weights;
+    }
+
+    @Test
+    public void additionalAveragesAreNamedAfterThePrimary() {
+        MovingAverages averages = MovingAverages.parse("avg", 5, " sma3, EMA4 ,,wma3");
+
+        assertEquals(4, averages.size());
+        assertEquals("avg", averages.getName(0));
+        assertEquals("avg_sma3", averages.getName(1));
+        assertEquals("avg_ema4", averages.getName(2));
+        assertEquals("avg_wma3", averages.getName(3));
+        assertTrue(Double.isNaN(averages.get(0)));
+        assertFalse(averages.isHopping());
+    }
+
+    @Test
+    public void averagesMatchTheirDefinitions() {
+        MovingAverages averages = MovingAverages.parse("avg", 7, "ema4,wma5");
+        Random random = new Random(10);
+        double[] values = new double[100];
+        double ema = Double.NaN;
+
+        for (int n = 0; n < values.length; n++) {
+            // large offset, the running sums must not drift
+            values[n] = 1e6 + random.nextGaussian();
+            averages.add(values[n]);
+            ema = n == 0 ? values[n] : ema + 0.4 * (values[n] - ema);
+
+            assertEquals("sma at " + n, sma(values, n + 1, 7), averages.get(0), EPS);
+            assertEquals("ema at " + n, ema, averages.get(1), EPS);
+            assertEquals("wma at " + n, wma(values, n + 1, 5), averages.get(2), EPS);
+        }
+    }
+
+    @Test
+    public void restoredAveragesContinueWhereTheyStopped() throws IOException {
+        MovingAverages averages = MovingAverages.parse("avg", 4, "ema3,wma4");
+        for (int i = 1; i <= 6; i++) {
+            averages.add(i * i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        averages.writeState(new DataOutputStream(bytes));
+
+        MovingAverages restored = MovingAverages.parse("avg", 4, "ema3,wma4");
+        restored.readState(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        for (int i = 7; i <= 12; i++) {
+            averages.add(i * i);
+            restored.add(i * i);
+            for (int k = 0; k < averages.size(); k++) {
+                assertEquals(averages.getName(k) + " after " + i, averages.get(k), restored.get(k), EPS);
+            }
+        }
+    }
+
+    @Test
+    public void slidingDurationWindowAveragesTheLastDuration() {
+        MovingAverages averages = MovingAverages.parse("avg", 3, "sma2", 100, 0);
+
+        averages.add(0, 1);
+        averages.add(50, 3);
+        averages.add(99, 5);
+        assertEquals(3.0, averages.get(0), EPS);
+
+        // time 0 is out of (0, 100]
+        averages.add(100, 7);
+        assertEquals(5.0, averages.get(0), EPS);
+        assertEquals(6.0, averages.get(1), EPS);
+
+        averages.add(250, 9);
+        assertEquals(9.0, averages.get(0), EPS);
+        // a late value counts at the newest time
+        averages.add(200, 11);
+        assertEquals(10.0, averages.get(0), EPS);
+    }
+
+    @Test
+    public void tumblingWindowsAreReportedWhenTheNextOneStarts() {
+        MovingAverages averages = MovingAverages.parse("avg", 3, null, 100, 100);
+        assertTrue(averages.isHopping());
+
+        assertEquals(TimeWindow.NONE, averages.close(10));
+        averages.add(10, 1);
+        assertEquals(TimeWindow.NONE, averages.close(20));
+        averages.add(20, 3);
+
+        assertEquals(100, averages.close(110));
+        assertEquals(2.0, averages.get(0), EPS);
+        assertEquals(TimeWindow.NONE, averages.close(110));
+        averages.add(110, 5);
+
+        // no values in [200, 300), that window is not reported
+        assertEquals(200, averages.close(350));
+        assertEquals(5.0, averages.get(0), EPS);
+        assertEquals(TimeWindow.NONE, averages.close(350));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownAverageType() {
+        MovingAverages.parse("avg", 5, "xma5");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void averageWithoutLength() {
+        MovingAverages.parse("avg", 5, "sma");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void averageWithWrongLength() {
+        MovingAverages.parse("avg", 5, "emaX");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void averageOfZeroValues() {
+        MovingAverages.parse("avg", 5, "wma0");
+    }
+}
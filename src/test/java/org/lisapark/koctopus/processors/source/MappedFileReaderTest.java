@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.source;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author alexmy
+ */
+public class MappedFileReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path write(String content) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static List<String[]> readAll(Path file, char delimiter, int threads, long chunkSize)
+            throws IOException, InterruptedException {
+        List<String[]> records = new ArrayList<>();
+        try (MappedFileReader reader = new MappedFileReader(file, delimiter, threads, chunkSize)) {
+            reader.read(fields -> {
+                Map<String, Object> record = new HashMap<>();
+                record.put("fields", fields);
+                return record;
+            }, record -> records.add((String[]) record.get("fields")));
+        }
+        return records;
+    }
+
+    @Test
+    public void everyChunkSizeGivesAllRecordsInFileOrder() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            content.append(i).append(',').append("value-").append(i * 7).append('\n');
+        }
+        Path file = write(content.toString());
+
+        for (long chunkSize : new long[]{1, 2, 13, 64, 4096, 1 << 20}) {
+            List<String[]> records = readAll(file, ',', 4, chunkSize);
+            assertEquals("chunk size " + chunkSize, 500, records.size());
+            for (int i = 0; i < 500; i++) {
+                assertArrayEquals("chunk size " + chunkSize,
+                        new String[]{Integer.toString(i), "value-" + i * 7}, records.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void chunkEndingRightAfterLineBreakDoesNotSplitNextLine() throws Exception {
+        // chunk size = length of the first line with its line break
+        Path file = write("abc\ndefgh\nij\n");
+
+        List<String[]> records = readAll(file, ',', 2, 4);
+
+        assertEquals(3, records.size());
+        assertArrayEquals(new String[]{"abc"}, records.get(0));
+        assertArrayEquals(new String[]{"defgh"}, records.get(1));
+        assertArrayEquals(new String[]{"ij"}, records.get(2));
+    }
+
+    @Test
+    public void lastLineWithoutLineBreak() throws Exception {
+        Path file = write("1,2\n3,4");
+
+        List<String[]> records = readAll(file, ',', 1, 3);
+
+        assertEquals(2, records.size());
+        assertArrayEquals(new String[]{"3", "4"}, records.get(1));
+    }
+
+    @Test
+    public void quotedFieldsKeepDelimitersAndEscapedQuotes() throws Exception {
+        Path file = write("\"a,b\",\"say \"\"hi\"\"\",plain\n\"\",,\"x\"\n");
+
+        List<String[]> records = readAll(file, ',', 2, 5);
+
+        assertEquals(2, records.size());
+        assertArrayEquals(new String[]{"a,b", "say \"hi\"", "plain"}, records.get(0));
+        assertArrayEquals(new String[]{"", "", "x"}, records.get(1));
+    }
+
+    @Test
+    public void crlfLineBreaksAndBlankLines() throws Exception {
+        Path file = write("1\t2\r\n\r\n3\t4\r\n\n5\t\r\n");
+
+        for (long chunkSize : new long[]{1, 3, 1024}) {
+            List<String[]> records = readAll(file, '\t', 3, chunkSize);
+            assertEquals(3, records.size());
+            assertArrayEquals(new String[]{"1", "2"}, records.get(0));
+            assertArrayEquals(new String[]{"3", "4"}, records.get(1));
+            assertArrayEquals(new String[]{"5", ""}, records.get(2));
+        }
+    }
+
+    @Test
+    public void headerWithByteOrderMark() throws Exception {
+        Path file = write("\uFEFFname,price\r\n\u00C4pfel,1.5\r\n");
+
+        try (MappedFileReader reader = new MappedFileReader(file, ',', 2, 1)) {
+            assertArrayEquals(new String[]{"name", "price"}, reader.readHeader());
+            List<String[]> records = new ArrayList<>();
+            reader.read(fields -> {
+                Map<String, Object> record = new HashMap<>();
+                record.put("fields", fields);
+                return record;
+            }, record -> records.add((String[]) record.get("fields")));
+            assertEquals(1, records.size());
+            assertArrayEquals(new String[]{"\u00C4pfel", "1.5"}, records.get(0));
+        }
+    }
+
+    @Test
+    public void headerOfEmptyFile() throws Exception {
+        Path file = write("");
+
+        try (MappedFileReader reader = new MappedFileReader(file, ',', 1, 16)) {
+            assertEquals(0, reader.readHeader().length);
+        }
+    }
+
+    @Test
+    public void sinkStopsReading() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append(i).append('\n');
+        }
+        Path file = write(content.toString());
+
+        try (MappedFileReader reader = new MappedFileReader(file, ',', 4, 32)) {
+            List<Object> seen = new ArrayList<>();
+            long count = reader.read(fields -> {
+                Map<String, Object> record = new HashMap<>();
+                record.put("n", fields[0]);
+                return record;
+            }, record -> {
+                seen.add(record.get("n"));
+                return seen.size() < 10;
+            });
+            assertEquals(10, count);
+            assertEquals("9", seen.get(9));
+        }
+    }
+}
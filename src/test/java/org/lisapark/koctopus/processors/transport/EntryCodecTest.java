@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author alexmy
+ */
+public class EntryCodecTest {
+
+    // schemas stay in this JVM
+    private final EntryCodec codec = new EntryCodec(null);
+
+    private final EntrySchema schema = EntrySchema.builder()
+            .addString("symbol")
+            .addDouble("price")
+            .addLong("volume")
+            .addString("note")
+            .build();
+
+    private Map<String, Object> event(Object symbol, Object price, Object volume, Object note) {
+        Map<String, Object> event = new HashMap<>();
+        event.put("symbol", symbol);
+        event.put("price", price);
+        event.put("volume", volume);
+        event.put("note", note);
+        return event;
+    }
+
+    @Test
+    public void schemaKeepsNumericFieldsFirstAndParsesBack() {
+        assertEquals("price:D;volume:L;symbol:S;note:S", schema.getDefinition());
+        assertEquals(2, schema.getNumericCount());
+
+        EntrySchema parsed = EntrySchema.parse(schema.getDefinition());
+        assertEquals(schema.getId(), parsed.getId());
+        assertEquals(schema.getDefinition(), parsed.getDefinition());
+    }
+
+    @Test
+    public void encodedEntryDecodesToTheSameValues() {
+        codec.register(schema);
+        Map<String, String> body = codec.encode(schema, event("ÄX", 12.5, 300L, null));
+
+        assertEquals(1, body.size());
+        assertTrue(EntryCodec.isEncoded(body));
+        Map<String, Object> decoded = codec.decode(body);
+        assertEquals(event("ÄX", 12.5, 300L, null), decoded);
+    }
+
+    @Test
+    public void valuesAreConvertedToSchemaTypes() {
+        codec.register(schema);
+        Map<String, Object> event = event(42, "12.5", "7.0", true);
+        event.put("dropped", "not in the schema");
+
+        Map<String, Object> decoded = codec.decode(codec.encode(schema, event));
+
+        assertEquals(event("42", 12.5, 7L, "true"), decoded);
+    }
+
+    @Test
+    public void gettersReadSingleFields() {
+        codec.register(schema);
+        Map<String, String> body = codec.encode(schema, event("A", 2.25, 10L, "12"));
+
+        assertEquals(2.25, codec.getDouble(body, "price"), 0);
+        assertEquals(10.0, codec.getDouble(body, "volume"), 0);
+        assertEquals(12.0, codec.getDouble(body, "note"), 0);
+        assertEquals("2.25", codec.getString(body, "price"));
+        assertEquals("10", codec.getString(body, "volume"));
+        assertEquals("A", codec.getString(body, "symbol"));
+        assertEquals(Long.valueOf(2), codec.getLong(body, "price"));
+        assertEquals(Long.valueOf(12), codec.getLong(body, "note"));
+        assertNull(codec.getDouble(body, "missing"));
+        assertNull(codec.getString(body, "missing"));
+        assertNull(codec.getLong(body, "missing"));
+    }
+
+    @Test
+    public void nullFieldsStayNull() {
+        codec.register(schema);
+        Map<String, String> body = codec.encode(schema, event(null, null, null, null));
+
+        assertNull(codec.getDouble(body, "price"));
+        assertNull(codec.getLong(body, "volume"));
+        assertNull(codec.getString(body, "volume"));
+        assertNull(codec.getString(body, "symbol"));
+        double[][] columns = new double[2][1];
+        codec.readDoubles(body, new String[]{"price", "volume"}, columns, 0);
+        assertTrue(Double.isNaN(columns[0][0]));
+        assertTrue(Double.isNaN(columns[1][0]));
+    }
+
+    @Test
+    public void longsBeyondDoublePrecisionStayExact() {
+        codec.register(schema);
+        long big = (1L << 53) + 1;
+        Map<String, String> body = codec.encode(schema, event("A", 1.0, big, null));
+
+        assertEquals(Long.valueOf(big), codec.getLong(body, "volume"));
+        assertEquals(Long.toString(big), codec.getString(body, "volume"));
+    }
+
+    @Test
+    public void plainTextEntriesAreReadAsTheyAre() {
+        Map<String, String> body = new HashMap<>();
+        body.put("price", "3.5");
+        body.put("volume", "12.0");
+        body.put("symbol", "B");
+
+        assertFalse(EntryCodec.isEncoded(body));
+        assertEquals(3.5, codec.getDouble(body, "price"), 0);
+        assertEquals(Long.valueOf(12), codec.getLong(body, "volume"));
+        assertEquals("B", codec.getString(body, "symbol"));
+        assertNull(codec.getDouble(body, "missing"));
+        assertEquals(new HashMap<String, Object>(body), codec.decode(body));
+    }
+
+    @Test
+    public void readDoublesFillsOneRowOfColumns() {
+        codec.register(schema);
+        Map<String, String> encoded = codec.encode(schema, event("A", 1.5, 20L, "0.25"));
+        Map<String, String> plain = new HashMap<>();
+        plain.put("price", "4.5");
+        plain.put("note", "8");
+        String[] names = {"note", "price", "volume", "missing"};
+        double[][] columns = new double[names.length][2];
+
+        codec.readDoubles(encoded, names, columns, 0);
+        codec.readDoubles(plain, names, columns, 1);
+
+        assertEquals(0.25, columns[0][0], 0);
+        assertEquals(1.5, columns[1][0], 0);
+        assertEquals(20.0, columns[2][0], 0);
+        assertTrue(Double.isNaN(columns[3][0]));
+        assertEquals(8.0, columns[0][1], 0);
+        assertEquals(4.5, columns[1][1], 0);
+        assertTrue(Double.isNaN(columns[2][1]));
+        assertTrue(Double.isNaN(columns[3][1]));
+    }
+
+    @Test
+    public void pageRowIsEncodedWithItsKey() {
+        codec.register(schema);
+        ColumnPage page = ColumnPage.keyed("symbol", "price", "volume");
+        page.setSize(2);
+        page.column(0)[1] = 9.75;
+        page.column(1)[1] = Double.NaN;
+        page.setKey(1, "C");
+
+        Map<String, Object> decoded = codec.decode(codec.encode(schema, page, 1));
+
+        assertEquals(event("C", 9.75, null, null), decoded);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void entryOfUnknownSchemaIsRejected() {
+        EntrySchema unregistered = EntrySchema.builder().addDouble("never-registered").build();
+        Map<String, Object> event = new HashMap<>();
+        event.put("never-registered", 1.0);
+
+        codec.decode(codec.encode(unregistered, event));
+    }
+}
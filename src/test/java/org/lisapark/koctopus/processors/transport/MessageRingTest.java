@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.StreamMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author alexmy
+ */
+public class MessageRingTest {
+
+    private static List<String> values(List<StreamMessage<String, String>> list) {
+        List<String> values = new ArrayList<>();
+        list.forEach(msg -> values.add(msg.getBody().get("n")));
+        return values;
+    }
+
+    private static void publish(MessageRing ring, int from, int to) {
+        for (int i = from; i < to; i++) {
+            ring.publish(Collections.singletonMap("n", Integer.toString(i)));
+        }
+    }
+
+    private static Thread producer(MessageRing ring, int count) {
+        Thread thread = new Thread(() -> publish(ring, 0, count), "producer");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void producerWaitsForTheSlowestConsumer() throws Exception {
+        MessageRing ring = new MessageRing("stream", 4, 60000);
+        // registers the consumer at the start
+        assertEquals(0, ring.read("0", 10).size());
+
+        Thread producer = producer(ring, 10);
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        List<StreamMessage<String, String>> first = ring.read("0", 10);
+        assertEquals(4, first.size());
+        assertEquals("0", first.get(0).getBody().get("n"));
+
+        String offset = first.get(3).getId();
+        List<String> rest = new ArrayList<>();
+        while (rest.size() < 6) {
+            List<StreamMessage<String, String>> page = ring.read(offset, 10);
+            if (!page.isEmpty()) {
+                offset = page.get(page.size() - 1).getId();
+                rest.addAll(values(page));
+            }
+        }
+        producer.join(5000);
+        assertEquals(false, producer.isAlive());
+        assertEquals(Arrays.asList("4", "5", "6", "7", "8", "9"), rest);
+    }
+
+    @Test
+    public void concurrentConsumersSeeEveryEntryInOrder() throws Exception {
+        int count = 5000;
+        MessageRing ring = new MessageRing("stream", 16, 60000);
+        List<Thread> consumers = new ArrayList<>();
+        AtomicReference<String> failure = new AtomicReference<>();
+        CountDownLatch registered = new CountDownLatch(3);
+        for (int c = 0; c < 3; c++) {
+            int pageSize = 1 + c * 5;
+            // the first one is far slower than the producer
+            boolean slow = c == 0;
+            Thread consumer = new Thread(() -> {
+                String offset = "0";
+                int expected = 0;
+                ring.read(offset, pageSize);
+                registered.countDown();
+                try {
+                    while (expected < count) {
+                        for (StreamMessage<String, String> msg : ring.read(offset, pageSize)) {
+                            String n = msg.getBody().get("n");
+                            if (!Integer.toString(expected++).equals(n)) {
+                                failure.compareAndSet(null, "expected " + (expected - 1) + " got " + n);
+                                return;
+                            }
+                            offset = msg.getId();
+                        }
+                        if (slow) {
+                            LockSupport.parkNanos(100000);
+                        }
+                    }
+                } catch (IllegalStateException ex) {
+                    failure.compareAndSet(null, ex.getMessage());
+                }
+            });
+            consumer.start();
+            consumers.add(consumer);
+        }
+        // every consumer is registered before the first entry
+        registered.await();
+        Thread producer = producer(ring, count);
+        producer.join(30000);
+        for (Thread consumer : consumers) {
+            consumer.join(5000);
+            assertEquals(false, consumer.isAlive());
+        }
+        assertEquals(null, failure.get());
+        assertEquals(false, producer.isAlive());
+    }
+
+    @Test
+    public void idleConsumerStopsHoldingTheProducer() throws Exception {
+        MessageRing ring = new MessageRing("stream", 4, 50);
+        assertEquals(0, ring.read("0", 10).size());
+
+        Thread producer = producer(ring, 20);
+        producer.join(5000);
+
+        assertEquals(false, producer.isAlive());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void readAfterOverwrittenEntriesFails() throws Exception {
+        MessageRing ring = new MessageRing("stream", 4, 50);
+        publish(ring, 0, 2);
+        List<StreamMessage<String, String>> first = ring.read("0", 1);
+
+        Thread producer = producer(ring, 20);
+        producer.join(5000);
+
+        ring.read(first.get(0).getId(), 10);
+    }
+
+    @Test
+    public void startOffsetReadsFromTheOldestRetainedEntry() {
+        MessageRing ring = new MessageRing("stream", 4, 60000);
+        // no consumer yet, nothing holds the producer
+        publish(ring, 0, 10);
+
+        List<StreamMessage<String, String>> page = ring.read("0", 10);
+
+        assertEquals(4, ring.capacity());
+        assertEquals(Arrays.asList("6", "7", "8", "9"), values(page));
+    }
+}
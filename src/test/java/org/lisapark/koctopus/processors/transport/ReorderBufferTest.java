@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import io.lettuce.core.StreamMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author alexmy
+ */
+public class ReorderBufferTest {
+
+    private static final String TIME = "time";
+
+    // plain text entries only, the codec never looks up a schema
+    private final EntryCodec codec = new EntryCodec(null);
+
+    private static int sequence;
+
+    private static StreamMessage<String, String> entry(long time) {
+        return new StreamMessage<>("stream", "1000-" + sequence++,
+                Collections.singletonMap(TIME, Long.toString(time)));
+    }
+
+    private static List<String> ids(List<StreamMessage<String, String>> list) {
+        List<String> ids = new ArrayList<>();
+        list.forEach(msg -> ids.add(msg.getId()));
+        return ids;
+    }
+
+    @Test
+    public void releasesEntriesInEventTimeOrderOnceTheWatermarkPasses() {
+        ReorderBuffer buffer = new ReorderBuffer(codec, TIME, 10, 1000, "0");
+        StreamMessage<String, String> t100 = entry(100);
+        StreamMessage<String, String> t95 = entry(95);
+        StreamMessage<String, String> t105 = entry(105);
+        StreamMessage<String, String> t98 = entry(98);
+        List<StreamMessage<String, String>> ready = new ArrayList<>();
+        List<StreamMessage<String, String>> late = new ArrayList<>();
+
+        buffer.offer(Arrays.asList(t100, t95, t105), ready, late, 0);
+        // watermark 105 - 10
+        assertEquals(95, buffer.getWatermark());
+        assertEquals(ids(Arrays.asList(t95)), ids(ready));
+
+        buffer.offer(Arrays.asList(t98), ready, late, 0);
+        assertEquals(0, late.size());
+        assertEquals(3, buffer.size());
+
+        buffer.drain(ready);
+        assertEquals(ids(Arrays.asList(t95, t98, t100, t105)), ids(ready));
+    }
+
+    @Test
+    public void entriesBehindTheWatermarkAreLateInStreamOrder() {
+        ReorderBuffer buffer = new ReorderBuffer(codec, TIME, 10, 1000, "0");
+        StreamMessage<String, String> t200 = entry(200);
+        StreamMessage<String, String> t150 = entry(150);
+        StreamMessage<String, String> t190 = entry(190);
+        StreamMessage<String, String> t120 = entry(120);
+        List<StreamMessage<String, String>> ready = new ArrayList<>();
+        List<StreamMessage<String, String>> late = new ArrayList<>();
+
+        buffer.offer(Arrays.asList(t200, t150, t190, t120), ready, late, 0);
+
+        assertEquals(ids(Arrays.asList(t150, t120)), ids(late));
+        assertEquals(2, buffer.getLateCount());
+        buffer.drain(ready);
+        assertEquals(ids(Arrays.asList(t190, t200)), ids(ready));
+    }
+
+    @Test
+    public void entryAtTheWatermarkIsNotLate() {
+        ReorderBuffer buffer = new ReorderBuffer(codec, TIME, 10, 1000, "0");
+        List<StreamMessage<String, String>> ready = new ArrayList<>();
+        List<StreamMessage<String, String>> late = new ArrayList<>();
+
+        buffer.offer(Arrays.asList(entry(110), entry(100)), ready, late, 0);
+
+        assertEquals(0, late.size());
+        assertEquals(1, ready.size());
+        assertEquals("100", ready.get(0).getBody().get(TIME));
+    }
+
+    @Test
+    public void equalTimesLeaveInArrivalOrder() {
+        ReorderBuffer buffer = new ReorderBuffer(codec, TIME, 50, 1000, "0");
+        List<StreamMessage<String, String>> page = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            page.add(entry(i % 2 == 0 ? 100 : 90));
+        }
+        List<StreamMessage<String, String>> ready = new ArrayList<>();
+        List<StreamMessage<String, String>> late = new ArrayList<>();
+
+        buffer.offer(page.subList(0, 10), ready, late, 0);
+        buffer.offer(page.subList(10, 20), ready, late, 0);
+        buffer.drain(ready);
+
+        List<StreamMessage<String, String>> expected = new ArrayList<>();
+        for (int i = 1; i < 20; i += 2) {
+            expected.add(page.get(i));
+        }
+        for (int i = 0; i < 20; i += 2) {
+            expected.add(page.get(i));
+        }
+        assertEquals(ids(expected), ids(ready));
+    }
+
+    @Test
+    public void overflowReleasesTheOldestEarly() {
+        ReorderBuffer buffer = new ReorderBuffer(codec, TIME, 1000, 2, "0");
+        StreamMessage<String, String> t30 = entry(30);
+        StreamMessage<String, String> t10 = entry(10);
+        StreamMessage<String, String> t20 = entry(20);
+        List<StreamMessage<String, String>> ready = new ArrayList<>();
+        List<StreamMessage<String, String>> late = new ArrayList<>();
+
+        buffer.offer(Arrays.asList(t30, t10, t20), ready, late, 0);
+
+        assertEquals(ids(Arrays.asList(t10)), ids(ready));
+        assertEquals(2, buffer.size());
+        // the watermark followed the released entry
+        buffer.offer(Arrays.asList(entry(5)), ready, late, 0);
+        assertEquals(1, late.size());
+    }
+
+    @Test
+    public void idleInputReleasesWaitingEntries() {
+        ReorderBuffer buffer = new ReorderBuffer(codec, TIME, 100, 1000, "0", 500);
+        StreamMessage<String, String> t100 = entry(100);
+        StreamMessage<String, String> t90 = entry(90);
+        List<StreamMessage<String, String>> ready = new ArrayList<>();
+        List<StreamMessage<String, String>> late = new ArrayList<>();
+
+        buffer.offer(Arrays.asList(t100, t90), ready, late, 1000);
+        buffer.offer(Collections.emptyList(), ready, late, 1499);
+        assertEquals(0, ready.size());
+
+        buffer.offer(Collections.emptyList(), ready, late, 1500);
+        assertEquals(ids(Arrays.asList(t90, t100)), ids(ready));
+        assertEquals(100, buffer.getWatermark());
+
+        buffer.offer(Arrays.asList(entry(99)), ready, late, 1600);
+        assertEquals(1, late.size());
+    }
+
+    @Test
+    public void entryIdTimeIsUsedWithoutTimeAttribute() {
+        ReorderBuffer buffer = new ReorderBuffer(null, null, 0, 1000, "0");
+        StreamMessage<String, String> first = new StreamMessage<>("stream", "2000-0", Collections.emptyMap());
+        StreamMessage<String, String> second = new StreamMessage<>("stream", "1000-0", Collections.emptyMap());
+        List<StreamMessage<String, String>> ready = new ArrayList<>();
+        List<StreamMessage<String, String>> late = new ArrayList<>();
+
+        buffer.offer(Arrays.asList(first, second), ready, late, 0);
+
+        assertEquals(ids(Arrays.asList(first)), ids(ready));
+        assertEquals(ids(Arrays.asList(second)), ids(late));
+        // nothing waits, a restart continues after the last offered entry
+        assertEquals("1000-0", buffer.getSafeOffset());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Test;
+import org.lisapark.koctopus.core.graph.api.GraphVocabulary;
+
+/**
+ *
+ * @author alexmy
+ */
+public class StreamPartitionsTest {
+
+    private static final String MEM_URL = "mem://partitions-test";
+    // nothing listens there, a Redis call fails fast
+    private static final String REDIS_URL = "redis://127.0.0.1:1";
+
+    @After
+    public void release() {
+        MemoryTransport.release(MEM_URL);
+    }
+
+    @Test
+    public void partitionIsStableAndInRange() {
+        for (int partitions : new int[]{2, 3, 8, 13}) {
+            int[] used = new int[partitions];
+            for (int i = 0; i < 1000; i++) {
+                String key = "key-" + i;
+                int partition = StreamPartitions.partition(key, partitions);
+                assertTrue(partition >= 0 && partition < partitions);
+                assertEquals(partition, StreamPartitions.partition(key, partitions));
+                used[partition]++;
+            }
+            for (int count : used) {
+                assertTrue("every partition gets keys", count > 0);
+            }
+        }
+    }
+
+    @Test
+    public void keyValueIsPartitionedByItsText() {
+        assertEquals(StreamPartitions.partition("42", 7), StreamPartitions.partition(42, 7));
+    }
+
+    @Test
+    public void nullKeyAndSinglePartitionGoToPartitionZero() {
+        assertEquals(0, StreamPartitions.partition(null, 8));
+        assertEquals(0, StreamPartitions.partition("key", 1));
+        assertEquals(0, StreamPartitions.partition("key", 0));
+    }
+
+    @Test
+    public void partitionKeyAppendsTheIndex() {
+        assertEquals("Processor:id:3", StreamPartitions.partitionKey("Processor:id", 3));
+    }
+
+    @Test
+    public void inMemoryStreamsAreNeverPartitioned() {
+        MemoryTransport runtime = new MemoryTransport(MEM_URL);
+
+        // neither call goes to Redis
+        StreamPartitions.register(runtime, REDIS_URL, "Processor:id", 4);
+        assertEquals(1, StreamPartitions.count(runtime, REDIS_URL, "Processor:id"));
+        assertTrue(StreamPartitions.checkUnpartitioned(runtime, REDIS_URL, "Processor:id"));
+    }
+
+    @Test
+    public void unreachableRedisDoesNotStopTheReader() {
+        assertTrue(StreamPartitions.checkUnpartitioned(null, REDIS_URL, "Processor:id"));
+    }
+
+    @Test
+    public void runAllRunsEveryPartitionInItsOwnThread() {
+        Set<Integer> partitions = ConcurrentHashMap.newKeySet();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+
+        Integer status = StreamPartitions.runAll(4, partition -> {
+            partitions.add(partition);
+            threads.add(Thread.currentThread().getName());
+            return GraphVocabulary.COMPLETE;
+        });
+
+        assertEquals(GraphVocabulary.COMPLETE, status);
+        assertEquals(4, partitions.size());
+        assertEquals(4, threads.size());
+    }
+
+    @Test
+    public void runAllCancelsWhenOnePartitionDoesNotComplete() {
+        assertEquals(GraphVocabulary.CANCEL, StreamPartitions.runAll(3,
+                partition -> partition == 1 ? GraphVocabulary.CANCEL : GraphVocabulary.COMPLETE));
+        assertEquals(GraphVocabulary.CANCEL, StreamPartitions.runAll(3, partition -> {
+            if (partition == 2) {
+                throw new IllegalStateException("partition failed");
+            }
+            return GraphVocabulary.COMPLETE;
+        }));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2019 Lisa Park, Inc. (www.lisa-park.net)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.lisapark.koctopus.processors.transport;
+
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+/**
+ *
+ * @author alexmy
+ */
+public class WatermarkGeneratorTest {
+
+    // 2019-03-01T10:00:00Z
+    private static final long TEN_UTC = 1551434400000L;
+    private static final long HOUR = 3600000L;
+
+    @Test
+    public void isoTextWithAndWithoutZone() {
+        assertEquals(TEN_UTC, WatermarkGenerator.toMillis("2019-03-01T10:00:00Z"));
+        assertEquals(TEN_UTC, WatermarkGenerator.toMillis("2019-03-01T10:00:00"));
+        assertEquals(TEN_UTC + 250, WatermarkGenerator.toMillis("2019-03-01 10:00:00.250"));
+    }
+
+    @Test
+    public void isoTextWithOffset() {
+        assertEquals(TEN_UTC - 2 * HOUR, WatermarkGenerator.toMillis("2019-03-01T10:00:00+02:00"));
+        assertEquals(TEN_UTC + 5 * HOUR, WatermarkGenerator.toMillis("2019-03-01T10:00:00-05:00"));
+        assertEquals(TEN_UTC + 5 * HOUR + 500, WatermarkGenerator.toMillis("2019-03-01 10:00:00.5-05:00"));
+    }
+
+    @Test
+    public void numbersAndDates() {
+        assertEquals(TEN_UTC, WatermarkGenerator.toMillis(TEN_UTC));
+        assertEquals(TEN_UTC, WatermarkGenerator.toMillis(Long.toString(TEN_UTC)));
+        assertEquals(TEN_UTC, WatermarkGenerator.toMillis(new Timestamp(TEN_UTC)));
+        assertEquals(TEN_UTC - 10 * HOUR, WatermarkGenerator.toMillis(20190301));
+        assertEquals(TEN_UTC, WatermarkGenerator.toMillis("20190301100000"));
+    }
+
+    @Test
+    public void otherValuesAreNotTimes() {
+        assertEquals(WatermarkGenerator.NONE, WatermarkGenerator.toMillis(null));
+        assertEquals(WatermarkGenerator.NONE, WatermarkGenerator.toMillis("yesterday"));
+        assertEquals(WatermarkGenerator.NONE, WatermarkGenerator.toMillis("2019-03-01T25:00:00"));
+    }
+
+    @Test
+    public void watermarkIsStampedEveryEighthOfTheBound() {
+        WatermarkGenerator generator = new WatermarkGenerator("time", 800);
+        Map<String, Object> event = new HashMap<>();
+
+        event.put("time", 1000L);
+        generator.stamp(event);
+        assertEquals(200L, event.get(WatermarkGenerator.WATERMARK_FIELD));
+
+        // moved by 99 < 800 / 8, an older event does not move it at all
+        for (long time : new long[]{1099, 500}) {
+            event.clear();
+            event.put("time", time);
+            generator.stamp(event);
+            assertFalse(event.containsKey(WatermarkGenerator.WATERMARK_FIELD));
+        }
+        assertEquals(299, generator.getWatermark());
+
+        event.put("time", 1100L);
+        generator.stamp(event);
+        assertEquals(300L, event.get(WatermarkGenerator.WATERMARK_FIELD));
+    }
+
+    @Test
+    public void withoutTimeAttributeNothingIsStamped() {
+        WatermarkGenerator generator = new WatermarkGenerator("", 800);
+        Map<String, Object> event = new HashMap<>();
+        event.put("time", 1000L);
+
+        generator.stamp(event);
+
+        assertFalse(generator.isEnabled());
+        assertEquals(1, event.size());
+        assertEquals(WatermarkGenerator.NONE, generator.getWatermark());
+    }
+}